@@ -0,0 +1,42 @@
+package io.github.lwcarani;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.lwcarani.model.CurrentWorkingDirectory;
+
+// The path handling every CLI command goes through
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CurrentWorkingDirectoryBenchmark {
+
+	private final CurrentWorkingDirectory cwd = new CurrentWorkingDirectory("user-id", "username");
+
+	@Benchmark
+	public String changeDirectory() {
+		cwd.changeDirectory("/");
+		cwd.changeDirectory("documents/projects/./2024/../2025");
+		cwd.changeDirectory("..");
+		return cwd.getFullPath();
+	}
+
+	@Benchmark
+	public String getPromptString() {
+		cwd.changeDirectory("/");
+		cwd.changeDirectory("documents/projects/2025");
+		return cwd.getPromptString("/home/user/");
+	}
+}
@@ -0,0 +1,61 @@
+package io.github.lwcarani;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Hashing a local file: SHA-256 for the sync manifest, MD5 to compare with a
+// plain upload's ETag
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileHashBenchmark {
+
+	@Param({ "4096", "1048576", "67108864" })
+	public int fileSize;
+
+	private Path file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		byte[] content = new byte[fileSize];
+		new Random(42).nextBytes(content);
+		file = Files.write(Files.createTempFile("dbox-hash-", ".dat"), content);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public String contentHash() throws IOException {
+		return FileUtils.computeContentHash(file);
+	}
+
+	@Benchmark
+	public String md5() throws IOException {
+		return FileUtils.computeHash(file, "MD5");
+	}
+}
@@ -0,0 +1,80 @@
+package io.github.lwcarani;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Turning local paths into S3 keys during push, without any file system or S3
+// work. The scanner builds each relative path from its parent's and push
+// prefixes it with the user ID; relativizing every path against the root, as
+// push used to, is the baseline. Both mirror the private code they measure.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KeyBuildingBenchmark {
+
+	private static final String SYSTEM_DIRECTORY = ".dbox/";
+
+	@Param({ "10000" })
+	public int fileCount;
+
+	private Path root;
+	private String[] directoryPaths;
+	private Path[] files;
+	private int[] directoryOf;
+
+	@Setup
+	public void setUp() {
+		// Laid out like SyncFixture.writeTree: 100 files per folder
+		root = Path.of(System.getProperty("java.io.tmpdir"), "dropbox-clone", SyncFixture.USERNAME);
+		directoryPaths = new String[(fileCount + 99) / 100];
+		files = new Path[fileCount];
+		directoryOf = new int[fileCount];
+		for (int i = 0; i < fileCount; i++) {
+			directoryOf[i] = i / 100;
+			directoryPaths[i / 100] = "dir-" + (i / 100);
+			files[i] = root.resolve(directoryPaths[i / 100]).resolve("file-" + i + ".dat");
+		}
+	}
+
+	@Benchmark
+	public long scannerPaths() {
+		long length = 0;
+		for (int i = 0; i < files.length; i++) {
+			String relativePath = directoryPaths[directoryOf[i]] + "/" + files[i].getFileName();
+			length += key(relativePath).length();
+		}
+		return length;
+	}
+
+	@Benchmark
+	public long relativizedPaths() {
+		long length = 0;
+		for (Path file : files) {
+			String relativePath = root.relativize(file).toString().replace("\\", "/");
+			length += key(relativePath).length();
+		}
+		return length;
+	}
+
+	// The key and the bookkeeping check every pushed entry goes through
+	private static String key(String relativePath) {
+		String s3Key = SyncFixture.USER_ID + "/" + relativePath;
+		int separator = s3Key.indexOf('/');
+		return s3Key.startsWith(SYSTEM_DIRECTORY, separator + 1) ? "" : s3Key;
+	}
+}
@@ -0,0 +1,34 @@
+package io.github.lwcarani;
+
+import java.util.Arrays;
+
+// Latencies recorded for one kind of request, kept in full so percentiles are
+// exact
+public class LatencySamples {
+
+	private long[] samples = new long[1024];
+	private int count;
+
+	public synchronized void add(long nanos) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, count * 2);
+		}
+		samples[count++] = nanos;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	// The latency below which the given fraction (e.g. 0.99) of requests fell, in
+	// nanoseconds
+	public synchronized long percentile(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(fraction * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+}
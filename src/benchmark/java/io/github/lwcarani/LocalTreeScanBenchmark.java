@@ -0,0 +1,74 @@
+package io.github.lwcarani;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.lwcarani.sync.LocalTreeScanner;
+
+// Scanning a local tree with the parallel scanner push uses, and with the
+// single-threaded walk it replaced as a baseline
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LocalTreeScanBenchmark {
+
+	@Param({ "10000" })
+	public int fileCount;
+
+	private Path root;
+	private LocalTreeScanner scanner;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("dbox-scan-");
+		SyncFixture.writeTree(root, fileCount, 0, 100);
+		scanner = new LocalTreeScanner(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		scanner.shutdown();
+		SyncFixture.deleteTree(root);
+	}
+
+	@Benchmark
+	public long parallelScan() {
+		LongAdder bytes = new LongAdder();
+		scanner.scan(root, (path, relativePath, attributes) -> bytes.add(attributes.size() + relativePath.length()));
+		return bytes.sum();
+	}
+
+	@Benchmark
+	public long sequentialWalk() throws IOException {
+		long bytes = 0;
+		try (Stream<Path> paths = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				String relativePath = root.relativize(path).toString().replace("\\", "/");
+				bytes += Files.readAttributes(path, BasicFileAttributes.class).size() + relativePath.length();
+			}
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,39 @@
+package io.github.lwcarani;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.lwcarani.util.PasswordValidator;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PasswordValidatorBenchmark {
+
+	// A valid password (every check runs) and one failing the last check
+	@Param({ "Correct-Horse-42", "NoSpecialChars42" })
+	public String password;
+
+	@Benchmark
+	public boolean isValid() {
+		return PasswordValidator.isValid(password);
+	}
+
+	@Benchmark
+	public String getValidationMessage() {
+		return PasswordValidator.getValidationMessage(password);
+	}
+}
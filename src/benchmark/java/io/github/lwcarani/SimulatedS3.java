@@ -0,0 +1,214 @@
+package io.github.lwcarani;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+// Puts an S3 stand-in behind a simulated network. Every request waits for a
+// round trip (a fixed latency plus random jitter), content goes through
+// upload and download links with a shared bandwidth cap, and requests can be
+// throttled with 503 SlowDown or fail with 500 InternalError at random.
+// Object requests beyond a capacity in flight at once are throttled too, as S3
+// does with a hot prefix (listings are left out, as not all of them are
+// retried without the SDK in the loop). The latency of every request is
+// recorded per operation.
+public class SimulatedS3 implements InvocationHandler {
+
+	private final AmazonS3 target;
+	private final long latencyNanos;
+	private final long jitterNanos;
+	private final double throttleRate;
+	private final double failureRate;
+	private final int capacity;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Link uploadLink;
+	private final Link downloadLink;
+	private final Map<String, LatencySamples> latencies = new ConcurrentHashMap<>();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	// bandwidthBytesPerSecond applies to each direction and capacity to requests
+	// in flight; 0 means unlimited
+	public SimulatedS3(AmazonS3 target, long latencyMillis, long jitterMillis, long bandwidthBytesPerSecond,
+			double throttleRate, double failureRate, int capacity) {
+		this.target = target;
+		this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+		this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+		this.throttleRate = throttleRate;
+		this.failureRate = failureRate;
+		this.capacity = capacity;
+		this.uploadLink = new Link(bandwidthBytesPerSecond);
+		this.downloadLink = new Link(bandwidthBytesPerSecond);
+	}
+
+	// The client to hand to the code under test
+	public AmazonS3 client() {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				this);
+	}
+
+	// Latencies recorded since the last reset, by operation
+	public Map<String, LatencySamples> getLatencies() {
+		return new TreeMap<>(latencies);
+	}
+
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	// Start recording a new phase
+	public void reset() {
+		latencies.clear();
+		throttled.set(0);
+		failed.set(0);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return method.invoke(this, args);
+		}
+
+		long start = System.nanoTime();
+		boolean counted = capacity > 0 && !method.getName().startsWith("list");
+		int active = counted ? inFlight.incrementAndGet() : 0;
+		try {
+			sleep(latencyNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0));
+			double roll = ThreadLocalRandom.current().nextDouble();
+			if (roll < throttleRate || (counted && active > capacity)) {
+				throttled.incrementAndGet();
+				throw serviceError(503, "SlowDown", "Please reduce your request rate.");
+			}
+			if (roll < throttleRate + failureRate) {
+				failed.incrementAndGet();
+				throw serviceError(500, "InternalError", "We encountered an internal error. Please try again.");
+			}
+
+			uploadLink.transfer(uploadedBytes(args));
+			Object result = method.invoke(target, args);
+			if (result instanceof S3Object) {
+				S3Object object = (S3Object) result;
+				object.setObjectContent(new ThrottledInputStream(object.getObjectContent(), downloadLink));
+			}
+			return result;
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			if (counted) {
+				inFlight.decrementAndGet();
+			}
+			latencies.computeIfAbsent(method.getName(), name -> new LatencySamples()).add(System.nanoTime() - start);
+		}
+	}
+
+	// Bytes a request sends as its body
+	private static long uploadedBytes(Object[] args) {
+		if (args == null || args.length == 0) {
+			return 0;
+		}
+		if (args[0] instanceof PutObjectRequest) {
+			PutObjectRequest request = (PutObjectRequest) args[0];
+			if (request.getFile() != null) {
+				return request.getFile().length();
+			}
+			return request.getMetadata() == null ? 0 : request.getMetadata().getContentLength();
+		}
+		if (args[0] instanceof UploadPartRequest) {
+			return ((UploadPartRequest) args[0]).getPartSize();
+		}
+		return 0;
+	}
+
+	private static AmazonS3Exception serviceError(int statusCode, String errorCode, String message) {
+		AmazonS3Exception e = new AmazonS3Exception(message);
+		e.setStatusCode(statusCode);
+		e.setErrorCode(errorCode);
+		e.setErrorType(AmazonServiceException.ErrorType.Service);
+		return e;
+	}
+
+	private static void sleep(long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// A link with a bandwidth cap shared by all transfers over it. Each transfer
+	// reserves the next free slot on the link and waits until it has passed.
+	private static class Link {
+		private final long bytesPerSecond;
+		private long nextFreeNanos;
+
+		Link(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		void transfer(long bytes) {
+			if (bytesPerSecond <= 0 || bytes <= 0) {
+				return;
+			}
+			long doneAt;
+			synchronized (this) {
+				long now = System.nanoTime();
+				nextFreeNanos = Math.max(nextFreeNanos, now) + bytes * 1_000_000_000L / bytesPerSecond;
+				doneAt = nextFreeNanos;
+			}
+			sleep(doneAt - System.nanoTime());
+		}
+	}
+
+	// Paces reads of a response body to a link's bandwidth
+	private static class ThrottledInputStream extends FilterInputStream {
+		private final Link link;
+
+		ThrottledInputStream(InputStream in, Link link) {
+			super(in);
+			this.link = link;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				link.transfer(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				link.transfer(n);
+			}
+			return n;
+		}
+	}
+}
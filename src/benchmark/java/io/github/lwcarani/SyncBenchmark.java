@@ -0,0 +1,117 @@
+package io.github.lwcarani;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Push and pull of a whole tree against the in-memory S3, so the time measured
+// is the client's own work: scanning, building keys, manifest lookups, hashing
+// and the transfer pipeline
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SyncBenchmark {
+
+	// A tree that has been pushed once from a source device
+	@State(Scope.Benchmark)
+	public static class RemoteTree {
+		@Param({ "2000" })
+		public int fileCount;
+
+		@Param({ "4096" })
+		public int fileSize;
+
+		InMemoryS3 s3;
+		SyncFixture source;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			s3 = new InMemoryS3();
+			source = new SyncFixture(s3);
+			SyncFixture.writeTree(source.getLocalRoot(), fileCount, fileSize, 100);
+			source.push();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			source.close();
+		}
+	}
+
+	// A device that starts every invocation without any sync state
+	@State(Scope.Benchmark)
+	public static class NewDevice {
+		SyncFixture device;
+
+		@Setup(Level.Trial)
+		public void setUp(RemoteTree tree) throws IOException {
+			device = new SyncFixture(tree.s3);
+		}
+
+		@Setup(Level.Invocation)
+		public void reset() throws IOException {
+			device.reset();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			device.close();
+		}
+	}
+
+	// A device whose sync state is dropped before every push, so it uploads the
+	// whole tree again
+	@State(Scope.Benchmark)
+	public static class ForgetfulSource {
+		SyncFixture source;
+
+		@Setup(Level.Trial)
+		public void setUp(RemoteTree tree) throws IOException {
+			source = new SyncFixture(tree.s3);
+			SyncFixture.writeTree(source.getLocalRoot(), tree.fileCount, tree.fileSize, 100);
+		}
+
+		@Setup(Level.Invocation)
+		public void forgetState() throws IOException {
+			source.forgetSyncState();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			source.close();
+		}
+	}
+
+	// Nothing changed: every file is skipped on its size and mtime
+	@Benchmark
+	public void pushUnchanged(RemoteTree tree) {
+		tree.source.push();
+	}
+
+	// Every file is hashed and uploaded
+	@Benchmark
+	public void pushAll(ForgetfulSource source) {
+		source.source.push();
+	}
+
+	// Every file is listed and downloaded into an empty folder
+	@Benchmark
+	public void pullAll(NewDevice target) {
+		target.device.pull();
+	}
+}
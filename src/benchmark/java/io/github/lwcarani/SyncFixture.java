@@ -0,0 +1,144 @@
+package io.github.lwcarani;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import io.github.lwcarani.metrics.ClientMetrics;
+import io.github.lwcarani.service.S3StorageService;
+import io.github.lwcarani.sync.ChangeJournal;
+import io.github.lwcarani.sync.LocalTreeScanner;
+import io.github.lwcarani.sync.RemoteNamespaceCache;
+import io.github.lwcarani.sync.SyncManifestStore;
+import io.github.lwcarani.transfer.ChunkStore;
+import io.github.lwcarani.transfer.ContentCompressor;
+import io.github.lwcarani.transfer.ObjectLister;
+import io.github.lwcarani.transfer.PackStore;
+import io.github.lwcarani.transfer.RequestHedger;
+import io.github.lwcarani.transfer.TransferEngine;
+import io.github.lwcarani.transfer.TransferRetrier;
+
+// One device syncing against an S3 stand-in: the storage service wired the way
+// Spring wires it with the default settings, plus its own temporary root and
+// sync state directories
+public class SyncFixture implements Closeable {
+
+	public static final String BUCKET = "benchmark-bucket";
+	public static final String USER_ID = "benchmark-user";
+	public static final String USERNAME = "benchmark";
+
+	private final Path rootDirectory;
+	private final Path stateDirectory;
+	private final TransferEngine transferEngine;
+	private final LocalTreeScanner treeScanner;
+	private final RequestHedger hedger;
+	private final S3StorageService storageService;
+
+	public SyncFixture(AmazonS3 s3) throws IOException {
+		this(s3, Path.of(System.getProperty("java.io.tmpdir")));
+	}
+
+	// Keep the device's directories under workDirectory
+	public SyncFixture(AmazonS3 s3, Path workDirectory) throws IOException {
+		this(s3, workDirectory, false);
+	}
+
+	// Optionally hedge small GETs during pull
+	public SyncFixture(AmazonS3 s3, Path workDirectory, boolean hedge) throws IOException {
+		this(s3, workDirectory, hedge, false);
+	}
+
+	// Optionally also pack small files when pushing
+	public SyncFixture(AmazonS3 s3, Path workDirectory, boolean hedge, boolean packing) throws IOException {
+		Files.createDirectories(workDirectory);
+		this.rootDirectory = Files.createTempDirectory(workDirectory, "dbox-root-");
+		this.stateDirectory = Files.createTempDirectory(workDirectory, "dbox-state-");
+		this.transferEngine = new TransferEngine(s3, 16L * 1024 * 1024, 16L * 1024 * 1024, 32, 32, 0);
+		this.treeScanner = new LocalTreeScanner(0);
+		this.hedger = new RequestHedger(hedge, 95, 1024 * 1024);
+		TransferRetrier retrier = new TransferRetrier(4, 200, 10_000, 0.1);
+		this.storageService = new S3StorageService(s3, BUCKET, new SyncManifestStore(stateDirectory.toString()),
+				transferEngine, new ChunkStore(s3, transferEngine, retrier, false, 1024 * 1024, 8L * 1024 * 1024),
+				new ChangeJournal(s3, retrier, 30, 300), new RemoteNamespaceCache(60),
+				new ObjectLister(s3, transferEngine, retrier, 8), treeScanner,
+				new ContentCompressor(transferEngine, false, 6, 4096, "256MB"),
+				new ClientMetrics(new SimpleMeterRegistry()), retrier, hedger,
+				new PackStore(s3, retrier, packing, 64 * 1024, 8L * 1024 * 1024, 0.5, 60,
+						stateDirectory.toString()));
+	}
+
+	// The folder this device syncs
+	public Path getLocalRoot() {
+		return rootDirectory.resolve("dropbox-clone").resolve(USERNAME);
+	}
+
+	public S3StorageService getStorageService() {
+		return storageService;
+	}
+
+	public void push() {
+		storageService.pushToS3(USER_ID, USERNAME, rootDirectory.toString());
+	}
+
+	public void pull() {
+		storageService.pullFromS3(USER_ID, USERNAME, rootDirectory.toString());
+	}
+
+	// Forget everything synced so far, as if this were a new device
+	public void reset() throws IOException {
+		deleteTree(getLocalRoot());
+		forgetSyncState();
+	}
+
+	// Drop the manifest and journal position but keep the local files, so the
+	// next push checks and uploads every file again
+	public void forgetSyncState() throws IOException {
+		deleteTree(stateDirectory);
+		Files.createDirectories(stateDirectory);
+	}
+
+	@Override
+	public void close() throws IOException {
+		transferEngine.shutdown();
+		treeScanner.shutdown();
+		hedger.shutdown();
+		deleteTree(rootDirectory);
+		deleteTree(stateDirectory);
+	}
+
+	// Fill a folder with files of random content, at most filesPerDirectory per
+	// sub-folder
+	public static void writeTree(Path directory, int fileCount, int fileSize, int filesPerDirectory)
+			throws IOException {
+		Random random = new Random(42);
+		byte[] content = new byte[fileSize];
+		for (int i = 0; i < fileCount; i++) {
+			Path subdirectory = directory.resolve("dir-" + (i / filesPerDirectory));
+			if (i % filesPerDirectory == 0) {
+				Files.createDirectories(subdirectory);
+			}
+			random.nextBytes(content);
+			Files.write(subdirectory.resolve("file-" + i + ".dat"), content);
+		}
+	}
+
+	// Delete a folder and everything in it, if it exists
+	public static void deleteTree(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}
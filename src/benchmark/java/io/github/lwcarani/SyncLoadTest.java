@@ -0,0 +1,121 @@
+package io.github.lwcarani;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import io.github.lwcarani.transfer.ConcurrencyLimiter;
+import io.github.lwcarani.util.FileUtils;
+
+// End-to-end load test of push, pull, rm and delete_account against an
+// in-process S3 behind a simulated network, so sync can be measured at scale
+// without AWS. Options (all optional, as --name=value):
+//
+//   tree           files to sync, e.g. 1000000x4KB or 100x2GB (see SyntheticTree)
+//   latency-ms     round-trip time added to every request
+//   jitter-ms      random extra latency, up to this much
+//   bandwidth      cap per direction, e.g. 100MB (per second); 0 for none
+//   throttle-rate  fraction of requests answered with 503 SlowDown
+//   failure-rate   fraction of requests failing with 500 InternalError
+//   capacity       object requests in flight above which S3 answers 503 SlowDown
+//   hedge          true to hedge small GETs during pull
+//   packing        true to pack small files (see PackStore)
+//   work-dir       where the local trees and large objects are kept
+//
+// Both devices share one ConcurrencyLimiter, as push, pull and delete do in the
+// client. For each operation it prints the wall time, throughput, the limit
+// the limiter settled on and, per kind of S3 request, the request count and
+// p50/p99/max latency.
+public class SyncLoadTest {
+
+	private final SimulatedS3 network;
+	private final InMemoryS3 s3;
+	private final ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, 2, 64, 1000);
+
+	private SyncLoadTest(InMemoryS3 s3, SimulatedS3 network) {
+		this.s3 = s3;
+		this.network = network;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || !arg.contains("=")) {
+				throw new IllegalArgumentException("Expected --name=value: " + arg);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		String spec = options.getOrDefault("tree", "10000x4KB");
+		Path workDirectory = Path.of(options.getOrDefault("work-dir",
+				System.getProperty("java.io.tmpdir") + "/dbox-load-test"));
+
+		InMemoryS3 s3 = new InMemoryS3(workDirectory.resolve("s3"));
+		SimulatedS3 network = new SimulatedS3(s3, Long.parseLong(options.getOrDefault("latency-ms", "20")),
+				Long.parseLong(options.getOrDefault("jitter-ms", "10")),
+				FileUtils.parseBytes(options.getOrDefault("bandwidth", "0")),
+				Double.parseDouble(options.getOrDefault("throttle-rate", "0")),
+				Double.parseDouble(options.getOrDefault("failure-rate", "0")),
+				Integer.parseInt(options.getOrDefault("capacity", "0")));
+		new SyncLoadTest(s3, network).run(spec, workDirectory,
+				Boolean.parseBoolean(options.getOrDefault("hedge", "false")),
+				Boolean.parseBoolean(options.getOrDefault("packing", "false")));
+	}
+
+	private void run(String spec, Path workDirectory, boolean hedge, boolean packing) throws IOException {
+		AmazonS3 client = limiter.limit(network.client());
+		try (SyncFixture source = new SyncFixture(client, workDirectory, false, packing);
+				SyncFixture target = new SyncFixture(client, workDirectory, hedge, packing)) {
+			long start = System.nanoTime();
+			SyntheticTree tree = SyntheticTree.generate(source.getLocalRoot(), spec);
+			System.out.printf("Generated %d file(s), %s in %.1fs%n", tree.getFiles(),
+					FileUtils.formatBytes(tree.getBytes()), seconds(start));
+
+			measure("push", tree.getFiles(), tree.getBytes(), source::push);
+			measure("pull", tree.getFiles(), tree.getBytes(), target::pull);
+
+			// rm of the first top-level folder, then of everything that is left
+			int objects = s3.getObjectCount(SyncFixture.BUCKET);
+			measure("rm", -1, 0,
+					() -> source.getStorageService().deleteDirectory(SyncFixture.USER_ID + "/group-0/d0"));
+			int afterRm = s3.getObjectCount(SyncFixture.BUCKET);
+			System.out.printf("  %d object(s) deleted%n", objects - afterRm);
+			measure("delete_account", -1, 0,
+					() -> source.getStorageService().deleteDirectory(SyncFixture.USER_ID));
+			System.out.printf("  %d object(s) deleted%n", afterRm - s3.getObjectCount(SyncFixture.BUCKET));
+		} finally {
+			SyncFixture.deleteTree(workDirectory.resolve("s3"));
+		}
+	}
+
+	// Run one operation and print what it took. files is -1 for operations that
+	// don't transfer files.
+	private void measure(String operation, long files, long bytes, Runnable task) {
+		network.reset();
+		System.out.printf("%n== %s ==%n", operation);
+		long start = System.nanoTime();
+		task.run();
+		double seconds = Math.max(seconds(start), 0.001);
+
+		long requests = network.getLatencies().values().stream().mapToLong(LatencySamples::getCount).sum();
+		if (files >= 0) {
+			System.out.printf("%s: %.1fs, %.1f files/s, %s/s%n", operation, seconds, files / seconds,
+					FileUtils.formatBytes((long) (bytes / seconds)));
+		} else {
+			System.out.printf("%s: %.1fs%n", operation, seconds);
+		}
+		System.out.printf("  %d request(s), %.1f requests/s, %d throttled, %d failed, concurrency limit %d%n",
+				requests, requests / seconds, network.getThrottledCount(), network.getFailedCount(),
+				limiter.currentLimit());
+		network.getLatencies().forEach((name, samples) -> System.out.printf(
+				"  %-26s %9d  p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms%n", name, samples.getCount(),
+				samples.percentile(0.50) / 1e6, samples.percentile(0.99) / 1e6, samples.percentile(1.0) / 1e6));
+	}
+
+	private static double seconds(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+}
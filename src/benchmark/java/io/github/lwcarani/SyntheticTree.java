@@ -0,0 +1,82 @@
+package io.github.lwcarani;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Generates a local tree to sync from a spec listing groups of files as
+// "<count>x<size>", e.g. "1000000x4KB" or "100x2GB,10000x64KB". Sizes take
+// B, KB, MB or GB suffixes. Files get random (incompressible) content and are
+// spread over nested folders of at most 100 entries each.
+public final class SyntheticTree {
+
+	private static final int ENTRIES_PER_FOLDER = 100;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private long files;
+	private long bytes;
+
+	private SyntheticTree() {
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	// Write the tree described by spec under root
+	public static SyntheticTree generate(Path root, String spec) throws IOException {
+		SyntheticTree tree = new SyntheticTree();
+		SplittableRandom random = new SplittableRandom(42);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		LongBuffer words = ByteBuffer.wrap(buffer).asLongBuffer();
+		String[] groups = spec.split(",");
+
+		for (int group = 0; group < groups.length; group++) {
+			String[] parts = groups[group].trim().toLowerCase(Locale.ROOT).split("x", 2);
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Expected <count>x<size>: " + groups[group]);
+			}
+			long count = Long.parseLong(parts[0].trim());
+			long size = FileUtils.parseBytes(parts[1]);
+
+			for (long i = 0; i < count; i++) {
+				Path folder = root.resolve("group-" + group)
+						.resolve("d" + (i / (ENTRIES_PER_FOLDER * ENTRIES_PER_FOLDER)))
+						.resolve("d" + (i / ENTRIES_PER_FOLDER % ENTRIES_PER_FOLDER));
+				if (i % ENTRIES_PER_FOLDER == 0) {
+					Files.createDirectories(folder);
+				}
+				try (OutputStream out = Files.newOutputStream(folder.resolve("file-" + i + ".dat"))) {
+					for (long written = 0; written < size; written += BUFFER_SIZE) {
+						int length = (int) Math.min(BUFFER_SIZE, size - written);
+						fill(words, random);
+						out.write(buffer, 0, length);
+					}
+				}
+				tree.files++;
+				tree.bytes += size;
+			}
+		}
+		return tree;
+	}
+
+	// Fill a buffer with random content, a word at a time (much faster than
+	// Random.nextBytes, which matters for multi-gigabyte trees)
+	private static void fill(LongBuffer words, SplittableRandom random) {
+		words.clear();
+		while (words.hasRemaining()) {
+			words.put(random.nextLong());
+		}
+	}
+}
@@ -2,6 +2,7 @@ package io.github.lwcarani.cli;
 
 import java.io.Console;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -9,6 +10,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,12 +20,16 @@ import org.springframework.stereotype.Component;
 
 import com.amazonaws.services.cognitoidp.model.AuthenticationResultType;
 
+import io.github.lwcarani.metrics.ClientMetrics;
 import io.github.lwcarani.model.CurrentWorkingDirectory;
 import io.github.lwcarani.model.User;
 import io.github.lwcarani.service.CognitoUserService;
+import io.github.lwcarani.service.SessionRefresher;
 import io.github.lwcarani.service.StorageService;
 import io.github.lwcarani.service.UserPreferenceService;
 import io.github.lwcarani.service.UserService;
+import io.github.lwcarani.sync.SyncWatcher;
+import io.github.lwcarani.transfer.BandwidthLimiter;
 import io.github.lwcarani.util.FileUtils;
 import io.github.lwcarani.util.PasswordValidator;
 
@@ -34,11 +40,16 @@ public class DropboxCliRunner {
 	private final UserService userService;
 	private final StorageService storageService;
 	private final UserPreferenceService preferenceService;
+	private final ClientMetrics clientMetrics;
+	private final BandwidthLimiter bandwidthLimiter;
 	private Scanner scanner;
 	private User currentUser;
-	private String accessToken;
+	// Renewed in the background by the session refresher
+	private volatile String accessToken;
 	private CurrentWorkingDirectory cwd;
 	private String rootDirectory;
+	private SyncWatcher syncWatcher;
+	private final SessionRefresher sessionRefresher;
 	private volatile boolean running;
 
 	@Autowired
@@ -46,12 +57,16 @@ public class DropboxCliRunner {
 
 	// Constructor initializes services and scanner
 	public DropboxCliRunner(UserService userService, StorageService storageService,
-			UserPreferenceService preferenceService) {
+			UserPreferenceService preferenceService, ClientMetrics clientMetrics, BandwidthLimiter bandwidthLimiter,
+			SessionRefresher sessionRefresher) {
 		this.userService = userService;
 		this.storageService = storageService;
 		this.preferenceService = preferenceService;
+		this.clientMetrics = clientMetrics;
+		this.bandwidthLimiter = bandwidthLimiter;
 		this.scanner = new Scanner(System.in);
 		this.running = true;
+		this.sessionRefresher = sessionRefresher;
 	}
 
 	// Main run loop for the CLI
@@ -118,6 +133,9 @@ public class DropboxCliRunner {
 		case "signup":
 			signup();
 			break;
+		case "stats":
+			System.out.print(clientMetrics.report());
+			break;
 		case "help":
 			printHelp();
 			break;
@@ -133,6 +151,8 @@ public class DropboxCliRunner {
 	private void handleLoggedInCommands(String input) {
 		if (!userService.authenticateUserSession(accessToken)) {
 			System.out.println("Your session has expired. Please log in again.");
+			stopWatching();
+			sessionRefresher.stop();
 			currentUser = null;
 			accessToken = null;
 			cwd = null;
@@ -168,9 +188,21 @@ public class DropboxCliRunner {
 		case "pull":
 			pull();
 			break;
+		case "watch":
+			watch();
+			break;
+		case "unwatch":
+			unwatch();
+			break;
 		case "rm":
 			rm(args);
 			break;
+		case "stats":
+			System.out.print(clientMetrics.report());
+			break;
+		case "bandwidth":
+			bandwidth(args);
+			break;
 		case "help":
 			printHelp();
 			break;
@@ -209,16 +241,33 @@ public class DropboxCliRunner {
 			AuthenticationResultType authResult = userService.authenticateUser(username, password);
 			if (authResult != null && authResult.getAccessToken() != null) {
 				accessToken = authResult.getAccessToken();
-				String userId = ((CognitoUserService) userService).getUserId(accessToken);
-				String email = ((CognitoUserService) userService).getEmail(accessToken);
+				// Connect to S3 and load the saved root directory (the user ID is in
+				// the token) while Cognito is asked for the profile
+				CognitoUserService cognito = (CognitoUserService) userService;
+				CompletableFuture<Void> warmUp = CompletableFuture.runAsync(storageService::warmUp);
+				String tokenUserId = cognito.readUserId(accessToken);
+				CompletableFuture<String> savedRootDir = loadRootDirectory(tokenUserId);
+				User profile = cognito.getUserProfile(accessToken);
+				if (profile == null) {
+					System.out.println("Login failed: could not load your profile. Please try again.");
+					accessToken = null;
+					return;
+				}
+				String userId = profile.getUserId();
+				if (!userId.equals(tokenUserId)) {
+					savedRootDir = loadRootDirectory(userId);
+				}
 
 				System.out.println("Welcome back, user!");
-				currentUser = new User(username, email, userId);
+				currentUser = new User(username, profile.getEmail(), userId);
 				cwd = new CurrentWorkingDirectory(userId, username);
 				System.out.println("Login successful. Welcome, " + currentUser.getUsername() + "!");
+				sessionRefresher.start(username, authResult.getRefreshToken(), authResult.getExpiresIn(),
+						token -> accessToken = token);
 
-				setRootDirectory();
+				setRootDirectory(savedRootDir.join());
 				FileUtils.createLocalDirectory(cwd.getPromptString(rootDirectory));
+				warmUp.join();
 			} else {
 				System.out.println(
 						"Login failed. Please check your credentials. To make a new account, type 'signup' to begin.");
@@ -228,10 +277,18 @@ public class DropboxCliRunner {
 		}
 	}
 
+	// Start loading a user's saved root directory in the background
+	private CompletableFuture<String> loadRootDirectory(String userId) {
+		return userId == null ? null
+				: CompletableFuture.supplyAsync(() -> preferenceService.getUserPreference(userId, "rootDirectory"));
+	}
+
 	// User logout process
 	private void logout() {
 		if (currentUser != null) {
 			String username = currentUser.getUsername();
+			stopWatching();
+			sessionRefresher.stop();
 			userService.logout(accessToken);
 			currentUser = null;
 			accessToken = null;
@@ -256,6 +313,10 @@ public class DropboxCliRunner {
 			return;
 		}
 
+		if (syncWatcher != null) {
+			stopWatching();
+			System.out.println("Stopped watching the old root directory. Type 'watch' to watch the new one.");
+		}
 		rootDirectory = newPath;
 
 		// Save the location of the rootDirectory for this user so that next session we
@@ -268,7 +329,12 @@ public class DropboxCliRunner {
 	// Sets the root directory if provided a valid path, otherwise uses a default
 	// location
 	private void setRootDirectory() {
-		String savedRootDir = preferenceService.getUserPreference(currentUser.getUserId(), "rootDirectory");
+		setRootDirectory(preferenceService.getUserPreference(currentUser.getUserId(), "rootDirectory"));
+	}
+
+	// Sets the root directory from an already loaded preference, or asks for one
+	// if none was saved
+	private void setRootDirectory(String savedRootDir) {
 
 		if (savedRootDir != null) {
 			System.out.println("Using saved root directory: " + savedRootDir);
@@ -344,8 +410,11 @@ public class DropboxCliRunner {
 		if (confirmation.equals("y")) {
 			// Delete from S3
 			if (storageService.isValidS3Directory(fullCloudPath)) {
-				storageService.deleteDirectory(fullCloudPath);
-				System.out.println("Cloud directory deleted successfully: " + path);
+				if (storageService.deleteDirectory(fullCloudPath)) {
+					System.out.println("Cloud directory deleted successfully: " + path);
+				} else {
+					System.out.println("Cloud directory was only partially deleted: " + path);
+				}
 			} else {
 				System.out.println("Cloud directory does not exist: " + fullCloudPath);
 			}
@@ -398,6 +467,51 @@ public class DropboxCliRunner {
 		}
 	}
 
+	// Starts syncing local changes to cloud storage in the background as they
+	// happen
+	private void watch() {
+		if (syncWatcher != null && syncWatcher.isRunning()) {
+			System.out.println("Already watching for changes. Type 'unwatch' to stop.");
+			return;
+		}
+
+		String userId = currentUser.getUserId();
+		String username = currentUser.getUsername();
+		String root = rootDirectory;
+		SyncWatcher watcher = new SyncWatcher(Paths.get(root, "dropbox-clone", username),
+				paths -> storageService.syncPaths(userId, username, root, paths),
+				() -> storageService.pushToS3(userId, username, root));
+		try {
+			watcher.start();
+		} catch (IOException e) {
+			System.out.println("Could not start watching for changes: " + e.getMessage());
+			return;
+		}
+		syncWatcher = watcher;
+		System.out.println("Watching " + watcher.getWatchedDirectoryCount()
+				+ " folder(s) for changes. Changes are uploaded automatically; type 'unwatch' to stop.");
+		System.out.println("Tip: run 'push' once first if you changed files while not watching.");
+	}
+
+	// Stops syncing local changes in the background
+	private void unwatch() {
+		if (syncWatcher == null || !syncWatcher.isRunning()) {
+			stopWatching();
+			System.out.println("Not currently watching for changes.");
+			return;
+		}
+		stopWatching();
+		System.out.println("Stopped watching for changes.");
+	}
+
+	// Stops the background sync, if it is running
+	private void stopWatching() {
+		if (syncWatcher != null) {
+			syncWatcher.stop();
+			syncWatcher = null;
+		}
+	}
+
 	// Lists contents of a directory
 	private void ls(String path) {
 
@@ -565,9 +679,16 @@ public class DropboxCliRunner {
 
 		if (confirmation.equals("y")) {
 			try {
-				// delete cloud bucket holding their data
-				storageService.deleteDirectory(currentUser.getUserId());
+				// delete cloud bucket holding their data, keeping the account if any of it
+				// is left so the user can retry
+				stopWatching();
+				if (!storageService.deleteDirectory(currentUser.getUserId())) {
+					System.out.println(
+							"Some of your cloud files could not be deleted. Your account was kept; please try again.");
+					return;
+				}
 				// delete account
+				sessionRefresher.stop();
 				userService.deleteUser(accessToken);
 				// end user session
 				currentUser = null;
@@ -585,6 +706,40 @@ public class DropboxCliRunner {
 
 	}
 
+	// Show or change the bandwidth limits; changes apply to transfers already
+	// running as well as new ones
+	private void bandwidth(String args) {
+		String[] parts = args.isEmpty() ? new String[0] : args.split("\\s+", 2);
+		try {
+			if (parts.length == 1 && parts[0].equals("off")) {
+				bandwidthLimiter.setUploadLimit(0);
+				bandwidthLimiter.setDownloadLimit(0);
+			} else if (parts.length == 2 && parts[0].equals("upload")) {
+				bandwidthLimiter.setUploadLimit(parseRate(parts[1]));
+			} else if (parts.length == 2 && parts[0].equals("download")) {
+				bandwidthLimiter.setDownloadLimit(parseRate(parts[1]));
+			} else if (parts.length == 2 && parts[0].equals("schedule")) {
+				bandwidthLimiter.setFullSpeedHours(parts[1]);
+			} else if (parts.length != 0) {
+				System.out.println("Usage: bandwidth [upload|download <rate>|off] [schedule <hh:mm-hh:mm,...>|off]");
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println("Invalid bandwidth setting: " + e.getMessage());
+			return;
+		}
+		System.out.print(bandwidthLimiter.report());
+	}
+
+	// Parse a rate such as "2mb", "512kb/s" or "off"
+	private static long parseRate(String rate) {
+		String trimmed = rate.trim();
+		if (trimmed.equals("off")) {
+			return 0;
+		}
+		return FileUtils.parseBytes(trimmed.endsWith("/s") ? trimmed.substring(0, trimmed.length() - 2) : trimmed);
+	}
+
 	// Prints help information
 	private void printHelp() {
 		System.out.println("Available commands:");
@@ -592,13 +747,18 @@ public class DropboxCliRunner {
 		System.out.println("  login - Log in to your account");
 		System.out.println("  logout - Log out of your account");
 		System.out.println("  delete_account - Permanently delete your account");
-		System.out.println("  push - Upload all local files and folders to cloud storage");
+		System.out.println("  push - Upload new and changed local files and folders to cloud storage");
 		System.out.println("  pull - Download all file files and folders from cloud to local machine");
+		System.out.println("  watch - Upload local changes to cloud storage automatically as they happen");
+		System.out.println("  unwatch - Stop uploading local changes automatically");
 		System.out.println("  mkdir <folder_name> - Make a new directory at the specified location");
 		System.out.println("  cd <path> - Change current directory to the specified path");
 		System.out.println("  ls <path> - Display contents of current folder or specified path");
 		System.out.println("  rm <path> - Delete a directory and its contents both locally and from cloud");
 		System.out.println("  chang_root <path> - Set a new root directory for your dropbox-clone files");
+		System.out.println("  stats - Show request counts, latencies and bytes transferred so far");
+		System.out.println("  bandwidth [upload|download <rate>|off] - Show or set transfer limits, e.g. upload 1mb");
+		System.out.println("  bandwidth schedule <hh:mm-hh:mm>|off - Set hours when transfers run at full speed");
 		System.out.println("  help - Show this help message");
 		System.out.println("  exit - Exit the application");
 	}
@@ -4,13 +4,19 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.cognitoidp.AWSCognitoIdentityProvider;
 import com.amazonaws.services.cognitoidp.AWSCognitoIdentityProviderClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
+import io.github.lwcarani.metrics.ClientMetrics;
+import io.github.lwcarani.transfer.BandwidthLimiter;
+import io.github.lwcarani.transfer.ConcurrencyLimiter;
+
 @Configuration
 public class AwsConfig {
 
@@ -23,17 +29,37 @@ public class AwsConfig {
 	@Value("${aws.region}")
 	private String region;
 
+	// Size of the S3 connection pool; must cover the concurrency limiter's
+	// maximum or parallel transfers end up waiting for connections
+	@Value("${dropbox.transfer.max-connections:64}")
+	private int maxConnections;
+
+	// Both clients are measured by ClientMetrics: every call through the proxy
+	// it returns, and every retry made. S3 requests also wait for a slot from
+	// the concurrency limiter first, which backs off when they are throttled,
+	// and their bodies and content are held to the bandwidth limits. The S3
+	// client makes no retries of its own: TransferRetrier retries S3 requests
+	// with backoff and a shared budget, and SDK retries under it would multiply
+	// every attempt.
 	@Bean
-	public AmazonS3 amazonS3() {
+	public AmazonS3 amazonS3(ClientMetrics metrics, ConcurrencyLimiter limiter, BandwidthLimiter bandwidth) {
 		BasicAWSCredentials awsCreds = new BasicAWSCredentials(accessKey, secretKey);
-		return AmazonS3ClientBuilder.standard().withRegion(region)
-				.withCredentials(new AWSStaticCredentialsProvider(awsCreds)).build();
+		AmazonS3 client = AmazonS3ClientBuilder.standard().withRegion(region)
+				.withCredentials(new AWSStaticCredentialsProvider(awsCreds))
+				.withClientConfiguration(new ClientConfiguration().withMaxConnections(maxConnections)
+						.withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY))
+				.build();
+		return limiter.limit(bandwidth.limit(metrics.instrument(AmazonS3.class, client, "s3")));
 	}
 
 	@Bean
-	public AWSCognitoIdentityProvider amazonCognitoClient() {
+	public AWSCognitoIdentityProvider amazonCognitoClient(ClientMetrics metrics) {
 		BasicAWSCredentials awsCreds = new BasicAWSCredentials(accessKey, secretKey);
-		return AWSCognitoIdentityProviderClientBuilder.standard()
-				.withCredentials(new AWSStaticCredentialsProvider(awsCreds)).withRegion(region).build();
+		AWSCognitoIdentityProvider client = AWSCognitoIdentityProviderClientBuilder.standard()
+				.withCredentials(new AWSStaticCredentialsProvider(awsCreds)).withRegion(region)
+				.withClientConfiguration(
+						new ClientConfiguration().withRetryPolicy(metrics.countingRetryPolicy("cognito")))
+				.build();
+		return metrics.instrument(AWSCognitoIdentityProvider.class, client, "cognito");
 	}
 }
\ No newline at end of file
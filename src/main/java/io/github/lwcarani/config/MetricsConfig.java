@@ -0,0 +1,20 @@
+package io.github.lwcarani.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+
+@Configuration
+public class MetricsConfig {
+
+	// Metrics are published over JMX (domain "metrics"), e.g. for JConsole or
+	// VisualVM, and summarized by the CLI's stats command
+	@Bean(destroyMethod = "close")
+	public MeterRegistry meterRegistry() {
+		return new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM);
+	}
+}
@@ -0,0 +1,243 @@
+package io.github.lwcarani.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Measures every call made to AWS and the local work around them, so a slow
+// push can be traced to the network, to S3 throttling or to the local disk.
+// AWS clients are wrapped in a proxy that times each call per operation and
+// counts errors (by HTTP status, so 503 SlowDown stands out), bytes sent and
+// received, and calls in flight. S3 requests are retried by TransferRetrier,
+// which reports each retry here; Cognito's are retried inside the SDK and
+// counted by its retry policy.
+@Component
+public class ClientMetrics {
+
+	public static final String REQUESTS = "dropbox.client.requests";
+	public static final String ERRORS = "dropbox.client.errors";
+	public static final String RETRIES = "dropbox.client.retries";
+	public static final String IN_FLIGHT = "dropbox.client.in.flight";
+	public static final String BYTES = "dropbox.client.bytes";
+	public static final String LOCAL = "dropbox.local.duration";
+	public static final String SYNC = "dropbox.sync.duration";
+
+	private final MeterRegistry registry;
+	// Meters by name and tags, registered on first use
+	private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+	private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+	public ClientMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	// Wrap an AWS client so every call made through it is measured
+	public <T> T instrument(Class<T> type, T client, String service) {
+		AtomicInteger active = inFlight.computeIfAbsent(service,
+				name -> registry.gauge(IN_FLIGHT, Tags.of("service", name), new AtomicInteger()));
+		// Looked up here and once per operation, so a call doesn't build keys to
+		// find its meters
+		Counter sent = counter(BYTES, "service", service, "direction", "sent");
+		Counter received = counter(BYTES, "service", service, "direction", "received");
+		Map<Method, Timer> requestTimers = new ConcurrentHashMap<>();
+		Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (self, method, args) -> {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(client, args);
+			}
+			long bytes = sentBytes(args);
+			if (bytes > 0) {
+				sent.increment(bytes);
+			}
+			active.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				Object result = method.invoke(client, args);
+				if (result instanceof S3Object) {
+					S3Object object = (S3Object) result;
+					object.setObjectContent(new CountingInputStream(object.getObjectContent(), received));
+				}
+				return result;
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				String status = cause instanceof AmazonServiceException
+						? String.valueOf(((AmazonServiceException) cause).getStatusCode())
+						: "client";
+				counter(ERRORS, "service", service, "operation", method.getName(), "status", status).increment();
+				throw cause;
+			} finally {
+				active.decrementAndGet();
+				requestTimers
+						.computeIfAbsent(method, m -> timer(REQUESTS, "service", service, "operation", m.getName()))
+						.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		});
+		return type.cast(proxy);
+	}
+
+	// The SDK's default retry policy, counting every retry it decides to make
+	public RetryPolicy countingRetryPolicy(String service) {
+		Counter retries = counter(RETRIES, "service", service);
+		RetryPolicy.RetryCondition condition = (request, exception, retriesAttempted) -> {
+			boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception,
+					retriesAttempted);
+			if (retry) {
+				retries.increment();
+			}
+			return retry;
+		};
+		return new RetryPolicy(condition, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+				PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+	}
+
+	// Count a retry made outside the SDK, e.g. by TransferRetrier
+	public void retried(String service) {
+		counter(RETRIES, "service", service).increment();
+	}
+
+	// Record local work (e.g. hashing or scanning files) that started at startNanos
+	public void recordLocal(String operation, long startNanos) {
+		timer(LOCAL, "operation", operation).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	// Record a whole sync operation (e.g. a push) that started at startNanos
+	public void recordSync(String operation, long startNanos) {
+		timer(SYNC, "operation", operation).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	// Summary of everything measured since startup, for the stats command.
+	// Percentiles cover the last few minutes.
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-9s %-28s %8s %7s %9s %9s %9s%n", "Service", "Request", "Count", "Errors",
+				"p50 ms", "p99 ms", "Max ms"));
+		registry.find(REQUESTS).timers().stream()
+				.sorted(Comparator.comparing((Timer timer) -> timer.getId().getTag("service"))
+						.thenComparing(timer -> timer.getId().getTag("operation")))
+				.forEach(timer -> {
+					String service = timer.getId().getTag("service");
+					String operation = timer.getId().getTag("operation");
+					double errors = registry.find(ERRORS).tags("service", service, "operation", operation).counters()
+							.stream().mapToDouble(Counter::count).sum();
+					HistogramSnapshot snapshot = timer.takeSnapshot();
+					report.append(String.format("%-9s %-28s %8d %7d %9.1f %9.1f %9.1f%n", service, operation,
+							snapshot.count(), (long) errors, percentile(snapshot, 0.5), percentile(snapshot, 0.99),
+							snapshot.max(TimeUnit.MILLISECONDS)));
+				});
+
+		for (String service : new TreeSet<>(inFlight.keySet())) {
+			report.append(String.format("%s: %d retries, %d in flight, %s sent, %s received%n", service,
+					(long) sum(RETRIES, service, null), inFlight.get(service).get(),
+					FileUtils.formatBytes((long) sum(BYTES, service, "sent")),
+					FileUtils.formatBytes((long) sum(BYTES, service, "received"))));
+		}
+
+		for (String name : new String[] { SYNC, LOCAL }) {
+			registry.find(name).timers().forEach(timer -> report.append(String.format(
+					"%s %s: %d in %.1fs total (mean %.1f ms, max %.1f ms)%n",
+					name.equals(SYNC) ? "Sync" : "Local", timer.getId().getTag("operation"), timer.count(),
+					timer.totalTime(TimeUnit.SECONDS), timer.mean(TimeUnit.MILLISECONDS),
+					timer.max(TimeUnit.MILLISECONDS))));
+		}
+		return report.toString();
+	}
+
+	// Bytes a request sends as its body
+	public static long sentBytes(Object[] args) {
+		if (args == null || args.length == 0) {
+			return 0;
+		}
+		if (args[0] instanceof PutObjectRequest) {
+			PutObjectRequest request = (PutObjectRequest) args[0];
+			if (request.getFile() != null) {
+				return request.getFile().length();
+			}
+			return request.getMetadata() == null ? 0 : request.getMetadata().getContentLength();
+		}
+		if (args[0] instanceof UploadPartRequest) {
+			return ((UploadPartRequest) args[0]).getPartSize();
+		}
+		return 0;
+	}
+
+	// Sum of the counters with the given name for a service (and direction)
+	private double sum(String name, String service, String direction) {
+		return registry.find(name).tag("service", service).counters().stream()
+				.filter(counter -> direction == null || direction.equals(counter.getId().getTag("direction")))
+				.mapToDouble(Counter::count).sum();
+	}
+
+	private Timer timer(String name, String... tags) {
+		return timers.computeIfAbsent(name + String.join("/", tags),
+				key -> Timer.builder(name).tags(tags).publishPercentiles(0.5, 0.99).register(registry));
+	}
+
+	private Counter counter(String name, String... tags) {
+		return counters.computeIfAbsent(name + String.join("/", tags),
+				key -> Counter.builder(name).tags(tags).register(registry));
+	}
+
+	private static double percentile(HistogramSnapshot snapshot, double percentile) {
+		for (ValueAtPercentile value : snapshot.percentileValues()) {
+			if (value.percentile() == percentile) {
+				return value.value(TimeUnit.MILLISECONDS);
+			}
+		}
+		return Double.NaN;
+	}
+
+	// Counts the bytes read from a response body
+	private static class CountingInputStream extends FilterInputStream {
+		private final Counter received;
+
+		CountingInputStream(InputStream in, Counter received) {
+			super(in);
+			this.received = received;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				received.increment();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				received.increment(n);
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package io.github.lwcarani.service;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Verifies Cognito access tokens locally. The RS256 signature is checked
+// against the user pool's published signing keys (cached, and refreshed in the
+// background once they get old), and the expiry, issuer, client and token use
+// are read from the claims. Cognito only has to be asked when the signing keys
+// can't be fetched at all. A token revoked by a sign-out elsewhere stays
+// accepted locally until it expires (Cognito access tokens last an hour by
+// default); anything that calls Cognito with it is still refused.
+@Component
+public class CognitoTokenVerifier {
+
+	public enum Result {
+		VALID, INVALID, UNKNOWN
+	}
+
+	// Don't re-fetch the keys for an unknown key ID more often than this
+	private static final long MIN_KEY_REFRESH_MILLIS = 60_000;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+	private final String issuer;
+	private final String clientId;
+	private final long keyRefreshMillis;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile Map<String, PublicKey> signingKeys = Map.of();
+	private volatile long keysFetchedAt;
+	private volatile long lastFetchAttempt;
+	// The last token that passed verification and when it expires, so checking
+	// the same token again is just a clock comparison
+	private volatile String verifiedToken;
+	private volatile long verifiedExpiresAt;
+	// Tokens signed out on this device and when they expire; they are refused
+	// until then even though their signature still checks out
+	private final Map<String, Long> signedOut = new ConcurrentHashMap<>();
+
+	@Autowired
+	public CognitoTokenVerifier(@Value("${aws.region}") String region,
+			@Value("${aws.cognito.userPoolId}") String userPoolId, @Value("${aws.cognito.clientId}") String clientId,
+			@Value("${dropbox.auth.signing-key-refresh-seconds:21600}") long keyRefreshSeconds) {
+		this("https://cognito-idp." + region + ".amazonaws.com/" + userPoolId, clientId, keyRefreshSeconds);
+	}
+
+	// Accept tokens from any issuer that publishes its keys the way Cognito does
+	public CognitoTokenVerifier(String issuer, String clientId, long keyRefreshSeconds) {
+		this.issuer = issuer;
+		this.clientId = clientId;
+		this.keyRefreshMillis = keyRefreshSeconds * 1000;
+	}
+
+	// Check an access token without a network round trip (unless the signing
+	// keys have never been fetched). UNKNOWN means the keys are unavailable and
+	// the caller has to ask Cognito.
+	public Result verify(String accessToken) {
+		if (accessToken == null) {
+			return Result.INVALID;
+		}
+		long now = System.currentTimeMillis();
+		if (signedOut.containsKey(accessToken)) {
+			return Result.INVALID;
+		}
+		if (accessToken.equals(verifiedToken)) {
+			return now < verifiedExpiresAt ? Result.VALID : Result.INVALID;
+		}
+
+		String[] parts = accessToken.split("\\.");
+		if (parts.length != 3) {
+			return Result.INVALID;
+		}
+		try {
+			JsonNode header = decodeJson(parts[0]);
+			JsonNode claims = decodeJson(parts[1]);
+			if (!"RS256".equals(header.path("alg").asText())) {
+				return Result.INVALID;
+			}
+
+			PublicKey key = getSigningKey(header.path("kid").asText());
+			if (key == null) {
+				return signingKeys.isEmpty() ? Result.UNKNOWN : Result.INVALID;
+			}
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initVerify(key);
+			signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+			if (!signature.verify(Base64.getUrlDecoder().decode(parts[2]))) {
+				return Result.INVALID;
+			}
+
+			long expiresAt = claims.path("exp").asLong() * 1000;
+			if (!issuer.equals(claims.path("iss").asText()) || !"access".equals(claims.path("token_use").asText())
+					|| !clientId.equals(claims.path("client_id").asText()) || now >= expiresAt) {
+				return Result.INVALID;
+			}
+
+			verifiedExpiresAt = expiresAt;
+			verifiedToken = accessToken;
+			return Result.VALID;
+		} catch (IOException | IllegalArgumentException | GeneralSecurityException e) {
+			return Result.INVALID;
+		}
+	}
+
+	// Stop accepting a token that was signed out
+	public void forget(String accessToken) {
+		if (accessToken == null) {
+			return;
+		}
+		if (accessToken.equals(verifiedToken)) {
+			verifiedToken = null;
+		}
+		long now = System.currentTimeMillis();
+		signedOut.values().removeIf(expiresAt -> expiresAt <= now);
+		String[] parts = accessToken.split("\\.");
+		try {
+			long expiresAt = parts.length == 3 ? decodeJson(parts[1]).path("exp").asLong() * 1000 : 0;
+			if (expiresAt > now) {
+				signedOut.put(accessToken, expiresAt);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			// Not a token verify would accept anyway
+		}
+	}
+
+	// The user ID ("sub" claim) of an access token, or null if it can't be read.
+	// The token isn't verified, so this is only for a token just received from
+	// Cognito, e.g. to start loading the user's data during login.
+	public String getSubject(String accessToken) {
+		if (accessToken == null) {
+			return null;
+		}
+		String[] parts = accessToken.split("\\.");
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			return decodeJson(parts[1]).path("sub").asText(null);
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	// Fetch the signing keys in the background, e.g. right after login so the
+	// first command doesn't wait for them
+	public void prefetchKeys() {
+		if (refreshing.compareAndSet(false, true)) {
+			CompletableFuture.runAsync(() -> {
+				try {
+					fetchKeys();
+				} finally {
+					refreshing.set(false);
+				}
+			});
+		}
+	}
+
+	// Look up a signing key. The key set is refreshed in the foreground if it
+	// doesn't know the key (Cognito rotated its keys, or they were never
+	// fetched), and in the background once it is old.
+	private PublicKey getSigningKey(String keyId) {
+		PublicKey key = signingKeys.get(keyId);
+		long now = System.currentTimeMillis();
+		if (key == null && now - lastFetchAttempt > MIN_KEY_REFRESH_MILLIS) {
+			fetchKeys();
+			key = signingKeys.get(keyId);
+		} else if (key != null && now - keysFetchedAt > keyRefreshMillis) {
+			prefetchKeys();
+		}
+		return key;
+	}
+
+	// Download the user pool's JSON Web Key Set
+	private synchronized void fetchKeys() {
+		lastFetchAttempt = System.currentTimeMillis();
+		try {
+			HttpRequest request = HttpRequest.newBuilder(URI.create(issuer + "/.well-known/jwks.json"))
+					.timeout(Duration.ofSeconds(10)).GET().build();
+			HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+			if (response.statusCode() != 200) {
+				System.err.println("Couldn't fetch token signing keys: HTTP " + response.statusCode());
+				return;
+			}
+
+			Map<String, PublicKey> keys = new HashMap<>();
+			KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+			for (JsonNode jwk : objectMapper.readTree(response.body()).path("keys")) {
+				if ("RSA".equals(jwk.path("kty").asText())) {
+					BigInteger modulus = new BigInteger(1, Base64.getUrlDecoder().decode(jwk.path("n").asText()));
+					BigInteger exponent = new BigInteger(1, Base64.getUrlDecoder().decode(jwk.path("e").asText()));
+					keys.put(jwk.path("kid").asText(),
+							keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+				}
+			}
+			signingKeys = Map.copyOf(keys);
+			keysFetchedAt = System.currentTimeMillis();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | IllegalArgumentException | GeneralSecurityException e) {
+			System.err.println("Couldn't fetch token signing keys: " + e.getMessage());
+		}
+	}
+
+	// Decode one base64url-encoded JSON part of a token
+	private JsonNode decodeJson(String part) throws IOException {
+		return objectMapper.readTree(Base64.getUrlDecoder().decode(part));
+	}
+}
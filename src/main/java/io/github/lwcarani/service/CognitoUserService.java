@@ -32,6 +32,10 @@ import io.github.lwcarani.model.User;
 public class CognitoUserService implements UserService {
 
 	private final AWSCognitoIdentityProvider cognitoClient;
+	private final CognitoTokenVerifier tokenVerifier;
+	// Profile of the logged in user, and the access token it was fetched with
+	private volatile User cachedProfile;
+	private volatile String cachedProfileToken;
 
 	// AWS Cognito configuration values
 	@Value("${aws.cognito.userPoolId}")
@@ -46,8 +50,9 @@ public class CognitoUserService implements UserService {
 	// Constructor with dependency injection
 	// Automatically inject the AWSCognitoIdentityProvider instance that was created
 	// in the io.github.lwcarani.config AwsConfig.java file
-	public CognitoUserService(AWSCognitoIdentityProvider cognitoClient) {
+	public CognitoUserService(AWSCognitoIdentityProvider cognitoClient, CognitoTokenVerifier tokenVerifier) {
 		this.cognitoClient = cognitoClient;
+		this.tokenVerifier = tokenVerifier;
 	}
 
 	// Calculate secret hash for Cognito authentication
@@ -81,6 +86,8 @@ public class CognitoUserService implements UserService {
 
 			// Perform authentication request
 			AdminInitiateAuthResult result = cognitoClient.adminInitiateAuth(authRequest);
+			// Have the signing keys ready before the first command needs them
+			tokenVerifier.prefetchKeys();
 			return result.getAuthenticationResult();
 		} catch (Exception e) {
 			System.err.println("Error during authentication: " + e.getMessage());
@@ -88,9 +95,39 @@ public class CognitoUserService implements UserService {
 		}
 	}
 
-	// Validate user session with access token
+	// Renew a session with the refresh token from an earlier login
+	@Override
+	public AuthenticationResultType refreshSession(String username, String refreshToken) {
+		try {
+			final Map<String, String> authParams = new HashMap<>();
+			authParams.put("REFRESH_TOKEN", refreshToken);
+			authParams.put("SECRET_HASH", calculateSecretHash(username));
+
+			final AdminInitiateAuthRequest authRequest = new AdminInitiateAuthRequest()
+					.withAuthFlow(AuthFlowType.REFRESH_TOKEN_AUTH).withUserPoolId(userPoolId).withClientId(clientId)
+					.withAuthParameters(authParams);
+
+			AuthenticationResultType result = cognitoClient.adminInitiateAuth(authRequest).getAuthenticationResult();
+			// The profile doesn't change with the token, so keep it for the new one
+			if (result != null && result.getAccessToken() != null && cachedProfile != null) {
+				cachedProfileToken = result.getAccessToken();
+			}
+			return result;
+		} catch (Exception e) {
+			System.err.println("Error refreshing session: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Validate user session with access token. The token is checked locally;
+	// Cognito is only asked if the signing keys aren't available.
 	@Override
 	public boolean authenticateUserSession(String accessToken) {
+		CognitoTokenVerifier.Result result = tokenVerifier.verify(accessToken);
+		if (result != CognitoTokenVerifier.Result.UNKNOWN) {
+			return result == CognitoTokenVerifier.Result.VALID;
+		}
+
 		try {
 			GetUserRequest getUserRequest = new GetUserRequest().withAccessToken(accessToken);
 			cognitoClient.getUser(getUserRequest);
@@ -131,35 +168,56 @@ public class CognitoUserService implements UserService {
 		}
 	}
 
-	// Get user ID from access token
-	public String getUserId(String accessToken) {
+	// Get the profile of the user an access token belongs to. A single getUser
+	// call fills the profile, which is cached for as long as the session lasts.
+	public User getUserProfile(String accessToken) {
+		User profile = cachedProfile;
+		if (profile != null && accessToken.equals(cachedProfileToken)) {
+			return profile;
+		}
 		try {
-			GetUserRequest getUserRequest = new GetUserRequest().withAccessToken(accessToken);
-			GetUserResult getUserResult = cognitoClient.getUser(getUserRequest);
-			return getUserResult.getUserAttributes().stream().filter(attr -> "sub".equals(attr.getName())).findFirst()
-					.map(AttributeType::getValue).orElse(null);
+			GetUserResult getUserResult = cognitoClient.getUser(new GetUserRequest().withAccessToken(accessToken));
+			profile = new User(getUserResult.getUsername(), getAttribute(getUserResult, "email"),
+					getAttribute(getUserResult, "sub"));
+			cachedProfile = profile;
+			cachedProfileToken = accessToken;
+			return profile;
 		} catch (Exception e) {
-			System.err.println("Error getting user ID: " + e.getMessage());
+			System.err.println("Error getting user profile: " + e.getMessage());
 			return null;
 		}
 	}
 
+	// Read the user ID from an access token just received from Cognito, without
+	// a round trip; null if the token doesn't carry one
+	public String readUserId(String accessToken) {
+		return tokenVerifier.getSubject(accessToken);
+	}
+
+	// Get user ID from access token
+	public String getUserId(String accessToken) {
+		User profile = getUserProfile(accessToken);
+		return profile == null ? null : profile.getUserId();
+	}
+
 	// Get user email from access token
 	public String getEmail(String accessToken) {
-		try {
-			GetUserRequest getUserRequest = new GetUserRequest().withAccessToken(accessToken);
-			GetUserResult getUserResult = cognitoClient.getUser(getUserRequest);
-			return getUserResult.getUserAttributes().stream().filter(attr -> "email".equals(attr.getName())).findFirst()
-					.map(AttributeType::getValue).orElse(null);
-		} catch (Exception e) {
-			System.err.println("Error getting user email: " + e.getMessage());
-			return null;
-		}
+		User profile = getUserProfile(accessToken);
+		return profile == null ? null : profile.getEmail();
+	}
+
+	// Read one attribute of a user
+	private static String getAttribute(GetUserResult getUserResult, String name) {
+		return getUserResult.getUserAttributes().stream().filter(attr -> name.equals(attr.getName())).findFirst()
+				.map(AttributeType::getValue).orElse(null);
 	}
 
 	// Log out user by invalidating their access token
 	@Override
 	public void logout(String accessToken) {
+		tokenVerifier.forget(accessToken);
+		cachedProfile = null;
+		cachedProfileToken = null;
 		try {
 			GlobalSignOutRequest signOutRequest = new GlobalSignOutRequest().withAccessToken(accessToken);
 			cognitoClient.globalSignOut(signOutRequest);
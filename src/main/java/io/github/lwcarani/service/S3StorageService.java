@@ -1,14 +1,43 @@
 package io.github.lwcarani.service;
 
 // Import statements
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Value;
@@ -17,28 +46,97 @@ import org.springframework.stereotype.Service;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.HeadBucketRequest;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import io.github.lwcarani.metrics.ClientMetrics;
+import io.github.lwcarani.sync.ChangeJournal;
+import io.github.lwcarani.sync.LocalTreeScanner;
+import io.github.lwcarani.sync.RemoteNamespaceCache;
+import io.github.lwcarani.sync.SyncManifest;
+import io.github.lwcarani.sync.SyncManifestStore;
+import io.github.lwcarani.sync.TransferJournal;
+import io.github.lwcarani.transfer.ChunkStore;
+import io.github.lwcarani.transfer.ContentCompressor;
+import io.github.lwcarani.transfer.ObjectLister;
+import io.github.lwcarani.transfer.PackStore;
+import io.github.lwcarani.transfer.TransferBatch;
+import io.github.lwcarani.transfer.TransferEngine;
+import io.github.lwcarani.transfer.TransferRetrier;
+import io.github.lwcarani.transfer.MultipartCheckpoint;
+import io.github.lwcarani.transfer.ProgressReporter;
+import io.github.lwcarani.transfer.RequestHedger;
+import io.github.lwcarani.transfer.TransferStats;
+import io.github.lwcarani.util.FileUtils;
+
 @Service
 public class S3StorageService implements StorageService {
 
+	// Directory under each user's prefix reserved for the client's bookkeeping
+	private static final String SYSTEM_DIRECTORY = ".dbox/";
+	// Suffix of the temporary files downloads are written to before being moved
+	// into place
+	private static final String PARTIAL_DOWNLOAD_SUFFIX = ".dbox-part";
+
 	private final AmazonS3 s3Client;
 	private final String bucketName;
+	private final SyncManifestStore manifestStore;
+	private final TransferEngine transferEngine;
+	private final ChunkStore chunkStore;
+	private final ChangeJournal changeJournal;
+	private final RemoteNamespaceCache namespaceCache;
+	private final ObjectLister objectLister;
+	private final LocalTreeScanner treeScanner;
+	private final ContentCompressor compressor;
+	private final ClientMetrics metrics;
+	private final TransferRetrier retrier;
+	private final RequestHedger hedger;
+	private final PackStore packStore;
+	// One per user: push, pull, watched syncs and deletes share the manifest and
+	// journals, and a watched sync must not see files a pull is still writing
+	private final Map<String, ReentrantLock> syncLocks = new ConcurrentHashMap<>();
 
 	// Constructor with dependency injection
 	// Automatically inject the AmazonS3 instance that was created in the
 	// io.github.lwcarani.config AwsConfig.java file
-	public S3StorageService(AmazonS3 s3Client, @Value("${aws.s3.bucket-user-storage}") String bucketName) {
+	public S3StorageService(AmazonS3 s3Client, @Value("${aws.s3.bucket-user-storage}") String bucketName,
+			SyncManifestStore manifestStore, TransferEngine transferEngine, ChunkStore chunkStore,
+			ChangeJournal changeJournal, RemoteNamespaceCache namespaceCache, ObjectLister objectLister,
+			LocalTreeScanner treeScanner, ContentCompressor compressor, ClientMetrics metrics, TransferRetrier retrier,
+			RequestHedger hedger, PackStore packStore) {
 		this.s3Client = s3Client;
 		this.bucketName = bucketName;
+		this.manifestStore = manifestStore;
+		this.transferEngine = transferEngine;
+		this.chunkStore = chunkStore;
+		this.changeJournal = changeJournal;
+		this.namespaceCache = namespaceCache;
+		this.objectLister = objectLister;
+		this.treeScanner = treeScanner;
+		this.compressor = compressor;
+		this.metrics = metrics;
+		this.retrier = retrier;
+		this.hedger = hedger;
+		this.packStore = packStore;
+	}
+
+	// Open a pooled connection to S3 (DNS, TCP and TLS) with a cheap request
+	@Override
+	public void warmUp() {
+		try {
+			retrier.get(() -> s3Client.headBucket(new HeadBucketRequest(bucketName)));
+		} catch (SdkClientException e) {
+			// The first real request will report any problem
+		}
 	}
 
 	// Create a new folder in S3 bucket
@@ -48,196 +146,1282 @@ public class S3StorageService implements StorageService {
 
 		try {
 			// Check if the folder already exists
-			ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(bucketName)
-					.withPrefix(folderKey).withMaxKeys(1);
-			ListObjectsV2Result listResult = s3Client.listObjectsV2(listRequest);
+			Boolean exists = namespaceCache.getExists(folderKey);
+			if (exists == null) {
+				long generation = namespaceCache.getGeneration();
+				ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(bucketName)
+						.withPrefix(folderKey).withMaxKeys(1);
+				ListObjectsV2Result listResult = retrier.get(() -> s3Client.listObjectsV2(listRequest));
+				exists = !listResult.getObjectSummaries().isEmpty();
+				namespaceCache.putExists(folderKey, exists, generation);
+			}
 
-			if (!listResult.getObjectSummaries().isEmpty()) {
+			if (exists) {
 				System.out.println("Folder already exists in S3: " + folderName);
 				return;
 			}
 
 			// If the folder doesn't exist, create it
-			s3Client.putObject(bucketName, folderKey, "");
+			retrier.get(() -> s3Client.putObject(bucketName, folderKey, ""));
+			namespaceCache.objectWritten(folderKey);
+			recordChange(folderKey, ChangeJournal.Change.directory(relativePathOf(folderKey)));
 			System.out.println("Folder created successfully in S3: " + folderName);
 		} catch (Exception e) {
 			System.err.println("Couldn't create folder in S3: " + e.getMessage());
 		}
 	}
 
-	// List files and folders in a specific S3 path
+	// List files and folders in a specific S3 path. Recent listings are served
+	// from the namespace cache.
 	@Override
 	public List<String> listFiles(String fullPath, String path) {
 		String prefix = fullPath + (path.isEmpty() ? "" : "/" + path);
-		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix)
-				.withDelimiter("/");
+		List<String> cached = namespaceCache.getListing(prefix);
+		if (cached != null) {
+			return new ArrayList<>(cached);
+		}
+
+		long generation = namespaceCache.getGeneration();
 		try {
-			ListObjectsV2Result result = s3Client.listObjectsV2(req);
-			List<String> files = result.getObjectSummaries().stream().map(S3ObjectSummary::getKey)
-					.map(key -> key.substring(prefix.length())).filter(key -> !key.isEmpty())
-					.collect(Collectors.toList());
-			files.addAll(result.getCommonPrefixes());
-			return files;
+			// Folders with more than 1000 entries span several pages
+			List<String> files = new ArrayList<>();
+			for (ListObjectsV2Result result : objectLister.pages(bucketName, prefix, "/")) {
+				result.getObjectSummaries().stream().map(S3ObjectSummary::getKey)
+						.map(key -> key.substring(prefix.length())).filter(key -> !key.isEmpty()).forEach(files::add);
+				// Hide the client's own bookkeeping objects (e.g. stored chunks)
+				result.getCommonPrefixes().stream().filter(commonPrefix -> !isSystemKey(commonPrefix))
+						.forEach(files::add);
+			}
+
+			// Packed files and folders, listed the way S3 lists keys with a "/"
+			// delimiter
+			String userId = userIdOf(prefix);
+			Set<String> listed = new LinkedHashSet<>(files);
+			for (PackStore.Entry entry : packStore.open(bucketName, userId).entries()) {
+				String key = userId + "/" + entry.getPath();
+				if (key.startsWith(prefix) && key.length() > prefix.length()) {
+					String rest = key.substring(prefix.length());
+					int separator = rest.indexOf('/');
+					listed.add(separator < 0 ? rest : prefix + rest.substring(0, separator + 1));
+				}
+			}
+			List<String> entries = new ArrayList<>(listed);
+			namespaceCache.putListing(prefix, entries, generation);
+			return entries;
 		} catch (Exception e) {
 			System.err.println("Couldn't list files in S3: " + e.getMessage());
 		}
 		return List.of();
 	}
 
-	// Push local files to S3
+	// Push local files to S3, uploading only files that changed since the last
+	// push according to the user's sync manifest. The local tree is scanned in
+	// parallel while changed files are hashed and uploaded by the transfer engine.
 	@Override
 	public void pushToS3(String userId, String username, String rootDirectory) {
+		ReentrantLock lock = lockSync(userId);
+		try {
+			push(userId, username, rootDirectory);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void push(String userId, String username, String rootDirectory) {
 		Path localRoot = Paths.get(rootDirectory, "dropbox-clone", username);
 		System.out.println("Push operation started.");
-//		System.out.println("userId: " + userId);
-//		System.out.println("username: " + username);
-//		System.out.println("rootDirectory: " + rootDirectory);
-//		System.out.println("Pushing to S3 from local root: " + localRoot);
+		long start = System.nanoTime();
+
+		// Pick up where an interrupted push or pull stopped: files it finished are
+		// skipped, and the remote changes it may not have recorded are recorded now
+		TransferJournal journal = manifestStore.openTransferJournal(userId, localRoot);
+		PushContext context = new PushContext(userId, manifestStore.load(userId, localRoot), journal,
+				transferEngine.newBatch(), openPacks(userId), packStore.isEnabled());
+		journal.applyTo(context.manifest);
+		for (SyncManifest.Entry entry : journal.getPushedEntries()) {
+			context.changes.add(entry.isDirectory() ? ChangeJournal.Change.directory(entry.getPath())
+					: ChangeJournal.Change.put(entry.getPath(), entry.getSize(), entry.getETag()));
+		}
+		ProgressReporter progress = transferEngine.startProgress("Uploading", context.stats);
+		boolean scanCompleted = false;
 
 		try {
-			Files.walk(localRoot).forEach(path -> {
-				Path relativePath = localRoot.relativize(path);
-				String s3Key = userId + "/" + relativePath.toString().replace("\\", "/");
-
-				if (Files.isDirectory(path)) {
-					// For directories, we'll create an empty object to represent the folder in S3
-					if (!path.equals(localRoot)) { // Skip creating an object for the root directory
-//						System.out.println("Creating directory in S3: " + s3Key + "/");
-						try {
-							// Create empty content with known length
-							byte[] emptyContent = new byte[0];
-							ObjectMetadata metadata = new ObjectMetadata();
-							metadata.setContentLength(0);
-
-							s3Client.putObject(new PutObjectRequest(bucketName, s3Key + "/",
-									new ByteArrayInputStream(emptyContent), metadata));
-						} catch (AmazonS3Exception e) {
-							System.err.println("Error creating directory in S3: " + e.getMessage());
-						}
-					}
-				} else if (Files.isRegularFile(path)) {
-//					System.out.println("Pushing file to S3: " + s3Key);
-					try {
-						s3Client.putObject(bucketName, s3Key, path.toFile());
-					} catch (AmazonS3Exception e) {
-						System.err.println("Error uploading file to S3: " + e.getMessage());
+			// The root directory itself isn't visited, so no object is created for it
+			scanCompleted = treeScanner.scan(localRoot,
+					(path, relativePath, attributes) -> pushEntry(context, path, relativePath, attributes));
+			metrics.recordLocal("scan", start);
+		} finally {
+			// Wait for in-flight uploads, only forget deleted paths after a complete
+			// scan, then persist whatever was uploaded even if the push was
+			// interrupted part way through
+			context.batch.await();
+			commitPacks(context);
+			if (context.knownChunks.hasUploads()) {
+				collectChunks(userId);
+			}
+			progress.close();
+			if (scanCompleted) {
+				context.manifest.retainAll(context.seenPaths);
+				abortUnresumedUploads(journal);
+			}
+			manifestStore.save(userId, localRoot, context.manifest);
+			changeJournal.append(bucketName, userId, context.changes);
+			journal.close();
+			metrics.recordSync("push", start);
+		}
+
+		System.out.println(context.stats.summary("Uploaded"));
+	}
+
+	// Push only the given paths, e.g. the ones a file watcher saw change. Paths
+	// that were synced before but no longer exist locally are deleted from S3.
+	@Override
+	public void syncPaths(String userId, String username, String rootDirectory, Collection<String> relativePaths) {
+		ReentrantLock lock = lockSync(userId);
+		try {
+			syncLocalPaths(userId, username, rootDirectory, relativePaths);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void syncLocalPaths(String userId, String username, String rootDirectory,
+			Collection<String> relativePaths) {
+		Path localRoot = Paths.get(rootDirectory, "dropbox-clone", username);
+		long start = System.nanoTime();
+		PushContext context = new PushContext(userId, manifestStore.load(userId, localRoot), null,
+				transferEngine.newBatch(), openPacks(userId), false);
+		int deleted = 0;
+
+		try {
+			for (String relativePath : relativePaths) {
+				Path path = localRoot.resolve(relativePath);
+				if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+					boolean wasSynced = context.manifest.get(relativePath) != null
+							|| context.manifest.get(relativePath + "/") != null;
+					if (wasSynced && deleteDirectory(userId + "/" + relativePath)) {
+						context.manifest.removeTree(relativePath);
+						deleted++;
 					}
+					continue;
 				}
-			});
+				// Files a pull just wrote are already recorded as synced; their events
+				// are the pull's own writes
+				if (isUnchangedSinceSync(context.manifest, path, relativePath)) {
+					continue;
+				}
+
+				// A new or moved directory may already contain files created before it
+				// was being watched, so sync everything below it
+				treeScanner.scan(localRoot, path,
+						(child, childPath, attributes) -> pushEntry(context, child, childPath, attributes));
+			}
+		} finally {
+			context.batch.await();
+			commitPacks(context);
+			manifestStore.save(userId, localRoot, context.manifest);
+			changeJournal.append(bucketName, userId, context.changes);
+			metrics.recordSync("sync_paths", start);
+		}
+
+		if (context.stats.getFiles() > 0 || context.stats.getFailed() > 0 || deleted > 0) {
+			System.out.println(context.stats.summary("Synced") + " Deleted " + deleted + " path(s).");
+		}
+	}
+
+	// Take the user's sync lock, waiting for any push, pull, watched sync or
+	// delete of theirs in progress
+	private ReentrantLock lockSync(String userId) {
+		ReentrantLock lock = syncLocks.computeIfAbsent(userId, id -> new ReentrantLock());
+		lock.lock();
+		return lock;
+	}
+
+	// Whether a path is a regular file with the size and mtime the manifest
+	// recorded for it when it was last synced
+	private static boolean isUnchangedSinceSync(SyncManifest manifest, Path path, String relativePath) {
+		SyncManifest.Entry entry = manifest.get(relativePath);
+		if (entry == null || entry.isDirectory()) {
+			return false;
+		}
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			return attributes.isRegularFile()
+					&& entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis());
 		} catch (IOException e) {
-			System.err.println("Error during push operation: " + e.getMessage());
-			e.printStackTrace();
+			return false;
+		}
+	}
+
+	// Abort the multipart uploads an interrupted push left behind that a complete
+	// push didn't resume, e.g. because the file changed or was deleted since
+	private void abortUnresumedUploads(TransferJournal journal) {
+		for (TransferJournal.PendingUpload upload : journal.getUnresumedUploads()) {
+			try {
+				transferEngine.abortUpload(bucketName, upload.getKey(), upload.getUploadId());
+				journal.uploadClosed(upload.getUploadId());
+			} catch (AmazonServiceException e) {
+				if (e.getStatusCode() == 404) {
+					journal.uploadClosed(upload.getUploadId()); // Already gone
+				} else {
+					System.err.println("Couldn't abort unfinished upload of " + upload.getKey() + ": "
+							+ e.getErrorMessage());
+				}
+			} catch (SdkClientException e) {
+				System.err.println("Couldn't abort unfinished upload of " + upload.getKey() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	// Read the user's pack index, or return null if nothing was ever packed for
+	// them here (see PackStore.openIfUsed) or if it can't be read (after saying
+	// why), in which case files are pushed as objects of their own
+	private PackStore.Session openPacks(String userId) {
+		try {
+			return packStore.openIfUsed(bucketName, userId);
+		} catch (IOException | SdkClientException e) {
+			System.err.println("Couldn't read the pack index, not packing files: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Save the files and folders a push packed in the pack index, then record
+	// them in the manifest and change journal, delete the objects they had
+	// before, and compact packs that have become mostly stale
+	private void commitPacks(PushContext context) {
+		if (context.packs == null) {
+			return;
+		}
+		List<PackStore.Entry> committed;
+		try {
+			committed = context.packs.commit();
+		} catch (IOException | SdkClientException e) {
+			System.err.println("Couldn't save the pack index, packed files will be pushed again: " + e.getMessage());
+			return;
+		}
+
+		List<KeyVersion> replaced = new ArrayList<>();
+		for (PackStore.Entry packed : committed) {
+			SyncManifest.Entry entry = context.packed.get(packed.getPath());
+			if (entry == null) {
+				continue;
+			}
+			context.pushed(entry);
+			context.changes.add(entry.isDirectory() ? ChangeJournal.Change.directory(entry.getPath())
+					: ChangeJournal.Change.put(entry.getPath(), entry.getSize(), entry.getETag()));
+			namespaceCache.objectWritten(context.userId + "/" + entry.getPath());
+			String replacedKey = context.replacedKeys.get(entry.getPath());
+			if (replacedKey != null) {
+				replaced.add(new KeyVersion(replacedKey));
+			}
+		}
+
+		List<String> failures = new ArrayList<>();
+		for (int from = 0; from < replaced.size(); from += 1000) {
+			deleteKeys(replaced.subList(from, Math.min(from + 1000, replaced.size())), new AtomicLong(), failures);
+		}
+		failures.forEach(failure -> System.err.println("Couldn't delete replaced object " + failure));
+
+		if (context.packing && !committed.isEmpty()) {
+			context.packs.compact();
+		}
+	}
+
+	// State shared by the steps of one push
+	private static class PushContext {
+		private final String userId;
+		private final SyncManifest manifest;
+		// Null when the push isn't journaled (e.g. when syncing watched paths)
+		private final TransferJournal journal;
+		private final TransferBatch batch;
+		private final Set<String> seenPaths = ConcurrentHashMap.newKeySet();
+		private final TransferStats stats = new TransferStats();
+		// Changes to record in the remote change journal
+		private final Queue<ChangeJournal.Change> changes = new ConcurrentLinkedQueue<>();
+		// The user's packed files, or null if the pack index couldn't be read
+		private final PackStore.Session packs;
+		// Whether small files and folders go into packs rather than objects of
+		// their own
+		private final boolean packing;
+		// Packed files and folders, recorded as pushed once the index has them
+		private final Map<String, SyncManifest.Entry> packed = new ConcurrentHashMap<>();
+		// Objects of files that are packed now, deleted once the index has them
+		private final Map<String, String> replacedKeys = new ConcurrentHashMap<>();
+		// Chunks this push found or stored in the bucket
+		private final ChunkStore.KnownChunks knownChunks = ChunkStore.newKnownChunks();
+
+		PushContext(String userId, SyncManifest manifest, TransferJournal journal, TransferBatch batch,
+				PackStore.Session packs, boolean packing) {
+			this.userId = userId;
+			this.manifest = manifest;
+			this.journal = journal;
+			this.batch = batch;
+			this.packs = packs;
+			this.packing = packing && packs != null;
+		}
+
+		// Record a path as pushed
+		void pushed(SyncManifest.Entry entry) {
+			manifest.put(entry);
+			if (journal != null) {
+				journal.filePushed(entry);
+			}
+		}
+
+		// Where the multipart upload of a file records its progress, if anywhere
+		MultipartCheckpoint checkpoint(String key, long size, long lastModified) {
+			return journal == null ? null : journal.checkpoint(key, size, lastModified);
+		}
+	}
+
+	// Queue the upload of one local file or directory if it changed since the
+	// last push
+	private void pushEntry(PushContext context, Path path, String relativePath, BasicFileAttributes attributes) {
+		String s3Key = context.userId + "/" + relativePath;
+		if (isSystemKey(s3Key + "/") || path.getFileName().toString().endsWith(PARTIAL_DOWNLOAD_SUFFIX)) {
+			return; // Never overwrite the client's bookkeeping objects or upload half-pulled files
+		}
+
+		SyncManifest manifest = context.manifest;
+		if (attributes.isDirectory()) {
+			// For directories, we'll create an empty object to represent the folder in S3,
+			// unless a previous push already did so
+			SyncManifest.Entry entry = SyncManifest.Entry.directory(relativePath);
+			context.seenPaths.add(entry.getPath());
+			if (manifest.get(entry.getPath()) == null) {
+				if (context.packing) {
+					// Recorded in the pack index instead, saving a request per folder
+					context.packs.addDirectory(entry.getPath());
+					context.packed.put(entry.getPath(), entry);
+				} else {
+					context.batch.submit(() -> pushDirectoryMarker(context, s3Key, entry), e -> System.err
+							.println("Error creating directory in S3: " + s3Key + ". Error: " + e));
+				}
+			}
+		} else if (attributes.isRegularFile()) {
+			context.seenPaths.add(relativePath);
+			long size = attributes.size();
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			SyncManifest.Entry entry = manifest.get(relativePath);
+
+			// Unchanged size and mtime: skip without reading the file or touching S3
+			context.stats.fileQueued(size);
+			if (entry != null && entry.matches(size, lastModified)) {
+				context.stats.fileSkipped(size);
+				return;
+			}
+
+			context.batch.submit(() -> pushFile(context, path, s3Key, relativePath, size, lastModified, entry),
+					e -> transferFailed(context.stats, "Error uploading to S3: " + s3Key, size, e));
+		}
+	}
+
+	// Create the empty object that represents a folder in S3
+	private void pushDirectoryMarker(PushContext context, String s3Key, SyncManifest.Entry entry) {
+		try {
+			// Create empty content with known length
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(0);
+			retrier.get(() -> s3Client.putObject(
+					new PutObjectRequest(bucketName, s3Key + "/", new ByteArrayInputStream(new byte[0]), metadata)));
+			namespaceCache.objectWritten(s3Key + "/");
+			context.pushed(entry);
+			context.changes.add(ChangeJournal.Change.directory(entry.getPath()));
+		} catch (SdkClientException e) {
+			System.err.println("Error creating directory in S3: " + s3Key + ". Error: " + e.getMessage());
+		}
+	}
+
+	// Upload a single changed file and record it in the manifest
+	private void pushFile(PushContext context, Path path, String s3Key, String relativePath, long size,
+			long lastModified, SyncManifest.Entry entry) {
+		TransferStats stats = context.stats;
+		try {
+			// Touched but identical content: just refresh the recorded mtime
+			long hashStart = System.nanoTime();
+			String contentHash = FileUtils.computeContentHash(path);
+			metrics.recordLocal("hash", hashStart);
+			if (entry != null && entry.getSize() == size && entry.getContentHash().equals(contentHash)) {
+				context.pushed(new SyncManifest.Entry(relativePath, size, lastModified, contentHash, entry.getETag()));
+				stats.fileSkipped(size);
+				return;
+			}
+
+			// Small files go into the pack being filled, and are recorded once the
+			// pack index has them. A file that had an object of its own until now
+			// leaves it behind until then.
+			if (context.packing && packStore.shouldPack(size)) {
+				boolean hadObject = entry != null && context.packs.get(relativePath) == null;
+				String md5 = context.packs.add(relativePath, path, lastModified, stats);
+				context.packed.put(relativePath,
+						new SyncManifest.Entry(relativePath, size, lastModified, contentHash, md5));
+				if (hadObject) {
+					context.replacedKeys.put(relativePath, s3Key);
+				}
+				return;
+			}
+
+			// Transient errors are retried; a multipart upload then resumes from its
+			// checkpoint
+			String eTag = retrier.call(() -> uploadObject(s3Key, path, size, stats,
+					context.checkpoint(s3Key, size, lastModified), context.knownChunks));
+			context.pushed(new SyncManifest.Entry(relativePath, size, lastModified, contentHash, eTag));
+			context.changes.add(ChangeJournal.Change.put(relativePath, size, eTag));
+			stats.fileTransferred(size);
+			// A file that outgrew packing now has an object of its own
+			if (context.packs != null) {
+				context.packs.remove(relativePath);
+			}
+		} catch (SdkClientException e) {
+			System.err.println("Error uploading to S3: " + s3Key + ". Error: " + e.getMessage());
+			stats.fileFailed(size);
+		} catch (IOException e) {
+			System.err.println("Error reading local file: " + path + ". Error: " + e.getMessage());
+			stats.fileFailed(size);
 		}
 	}
 
-	// Pull files from S3 to local storage
+	// Pull files from S3 to local storage. If this device has pulled before, only
+	// the changes recorded in the remote change journal since then are applied;
+	// otherwise every key is listed in parallel shards. Either way the changes
+	// feed a bounded pool of download workers, unchanged files cost no GET, and
+	// remote folders are merged into existing local directories.
 	@Override
 	public void pullFromS3(String userId, String username, String rootDirectory) {
+		ReentrantLock lock = lockSync(userId);
+		try {
+			pull(userId, username, rootDirectory);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void pull(String userId, String username, String rootDirectory) {
 		System.out.println("Pull operation started.");
-//		System.out.println("userId: " + userId);
-//		System.out.println("username: " + username);
-//		System.out.println("rootDirectory: " + rootDirectory);
-		String prefix = userId + "/";
-//		System.out.println("S3 prefix: " + prefix);
 
 		Path localRoot = Paths.get(rootDirectory, "dropbox-clone", username);
 		System.out.println("Pulling from S3 to local root: " + localRoot);
+		long start = System.nanoTime();
+
+		// Files an interrupted push or pull finished are skipped, and large
+		// downloads it didn't finish carry on from where they stopped
+		TransferJournal journal = manifestStore.openTransferJournal(userId, localRoot);
+		PullContext context = new PullContext(userId, localRoot, manifestStore.load(userId, localRoot), journal,
+				transferEngine.newBatch());
+		journal.applyTo(context.manifest);
+		ProgressReporter progress = transferEngine.startProgress("Downloading", context.stats);
+		ChangeJournal.Position position = manifestStore.loadJournalPosition(userId, localRoot);
+		ChangeJournal.Position newPosition = null;
+		boolean completed = false;
 
 		try {
-			ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
-			ListObjectsV2Result result;
-
-			do {
-				result = s3Client.listObjectsV2(listRequest);
-				for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
-					String key = objectSummary.getKey();
-					String relativePath = key.substring(prefix.length());
-					Path localPath = Paths.get(rootDirectory, "dropbox-clone", username, relativePath);
-
-					if (key.endsWith("/")) {
-						// It's a directory
-//						System.out.println("Recreating directory: " + localPath);
-						try {
-							if (Files.exists(localPath)) {
-								Files.walk(localPath).sorted(Comparator.reverseOrder()).forEach(path -> {
-									try {
-										Files.delete(path);
-									} catch (IOException e) {
-										System.err
-												.println("Error deleting path: " + path + ". Error: " + e.getMessage());
-									}
-								});
-							}
-							Files.createDirectories(localPath);
-							System.out.println("Directory recreated successfully: " + localPath);
-						} catch (IOException e) {
-							System.err
-									.println("Error recreating directory: " + localPath + ". Error: " + e.getMessage());
-						}
-					} else {
-						// It's a file
-//						System.out.println("Downloading file: " + key + " to " + localPath);
-						S3Object object = s3Client.getObject(bucketName, key);
-						Files.createDirectories(localPath.getParent());
-
-						// Check if file exists and if it's different from S3 version
-						if (!Files.exists(localPath) || Files.size(localPath) != objectSummary.getSize()
-								|| !Files.getLastModifiedTime(localPath).toInstant()
-										.equals(objectSummary.getLastModified().toInstant())) {
-
-							Files.copy(object.getObjectContent(), localPath, StandardCopyOption.REPLACE_EXISTING);
-//							System.out.println("File updated: " + localPath);
-						} else {
-							System.out.println("File already up to date: " + localPath);
-						}
-					}
+			ChangeJournal.Read journalRead = null;
+			// The journal only holds remote changes, so files removed locally since
+			// they were synced are only restored by listing everything
+			if (position != null && !isLocalTreeComplete(context)) {
+				System.out.println("Some synced files are missing locally, listing all files.");
+				position = null;
+			}
+			if (position != null) {
+				try {
+					journalRead = changeJournal.readSince(bucketName, userId, position);
+				} catch (IOException | SdkClientException e) {
+					System.err.println("Couldn't read the sync journal, listing all files instead: " + e.getMessage());
 				}
-				listRequest.setContinuationToken(result.getNextContinuationToken());
-			} while (result.isTruncated());
+			}
+
+			if (journalRead != null) {
+				pullChanges(context, journalRead.getChanges());
+				newPosition = journalRead.getPosition();
+			} else {
+				// Note where the journal ends before listing, so anything changed while
+				// listing is applied again by the next pull
+				newPosition = currentJournalPosition(userId);
+				pullListing(context);
+			}
+			completed = true;
 		} catch (Exception e) {
 			System.err.println("Error during pull operation: " + e.getMessage());
 			e.printStackTrace();
+		} finally {
+			context.batch.await();
+			progress.close();
+			manifestStore.save(userId, localRoot, context.manifest);
+			journal.close();
+			metrics.recordSync("pull", start);
+		}
+
+		// Only move past changes that were fully applied; failed files are retried
+		// by the next pull
+		if (completed && context.stats.getFailed() == 0 && context.batch.getFailures().isEmpty()
+				&& newPosition != null) {
+			manifestStore.saveJournalPosition(userId, localRoot, newPosition);
+		}
+
+		System.out.println(context.stats.summary("Downloaded"));
+	}
+
+	// State shared by the steps of one pull
+	private static class PullContext {
+		private final String userId;
+		private final Path localRoot;
+		private final SyncManifest manifest;
+		private final TransferJournal journal;
+		private final TransferBatch batch;
+		private final TransferStats stats = new TransferStats();
+		private final Map<Path, Boolean> createdDirectories = new ConcurrentHashMap<>();
+
+		PullContext(String userId, Path localRoot, SyncManifest manifest, TransferJournal journal,
+				TransferBatch batch) {
+			this.userId = userId;
+			this.localRoot = localRoot;
+			this.manifest = manifest;
+			this.journal = journal;
+			this.batch = batch;
+		}
+
+		// Record a path as pulled
+		void pulled(SyncManifest.Entry entry) {
+			manifest.put(entry);
+			journal.filePulled(entry);
+		}
+	}
+
+	// Whether every path the manifest records as synced still exists locally
+	private static boolean isLocalTreeComplete(PullContext context) {
+		for (SyncManifest.Entry entry : context.manifest.entries()) {
+			if (!Files.exists(context.localRoot.resolve(entry.getPath()), LinkOption.NOFOLLOW_LINKS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Pull every key under the user's prefix. The prefix is listed as parallel
+	// shards, and each listed page feeds the download workers right away.
+	private void pullListing(PullContext context) throws IOException {
+		String prefix = context.userId + "/";
+		PackStore.Session packs = packStore.open(bucketName, context.userId);
+		objectLister.forEachPage(bucketName, prefix, commonPrefix -> !isSystemKey(commonPrefix), page -> {
+			for (S3ObjectSummary objectSummary : page) {
+				String key = objectSummary.getKey();
+				String relativePath = key.substring(prefix.length());
+				// A packed path's object, if it still has one, is about to be replaced
+				if (relativePath.isEmpty() || isSystemKey(key) || packs.get(relativePath) != null) {
+					continue;
+				}
+
+				if (key.endsWith("/")) {
+					// It's a directory: make sure it exists, keeping anything already in it
+					pullDirectory(context, relativePath);
+				} else {
+					// It's a file
+					context.stats.fileQueued(objectSummary.getSize());
+					context.batch.submit(() -> pullFile(context, objectSummary, relativePath), e -> transferFailed(
+							context.stats, "Error downloading file: " + key, objectSummary.getSize(), e));
+				}
+			}
+		});
+		pullPacked(context, packs, packs.entries());
+	}
+
+	// Apply changes read from the remote change journal. The pack index is only
+	// read if a file changed, to tell packed files from objects.
+	private void pullChanges(PullContext context, List<ChangeJournal.Change> changes) throws IOException {
+		PackStore.Session packs = null;
+		List<PackStore.Entry> packed = new ArrayList<>();
+		for (ChangeJournal.Change change : ChangeJournal.latestChanges(changes)) {
+			String relativePath = change.getPath();
+			if (change.getType() == ChangeJournal.Change.Type.DELETE) {
+				deleteLocalCopies(context, relativePath);
+			} else if (change.isDirectory()) {
+				pullDirectory(context, relativePath);
+			} else {
+				if (packs == null) {
+					packs = packStore.open(bucketName, context.userId);
+				}
+				PackStore.Entry entry = packs.get(relativePath);
+				if (entry != null) {
+					packed.add(entry);
+					continue;
+				}
+				S3ObjectSummary objectSummary = new S3ObjectSummary();
+				objectSummary.setBucketName(bucketName);
+				objectSummary.setKey(context.userId + "/" + relativePath);
+				objectSummary.setETag(change.getETag());
+				objectSummary.setSize(change.getSize());
+				context.stats.fileQueued(change.getSize());
+				context.batch.submit(() -> pullFile(context, objectSummary, relativePath), e -> transferFailed(
+						context.stats, "Error downloading file: " + objectSummary.getKey(), change.getSize(), e));
+			}
+		}
+		if (!packed.isEmpty()) {
+			pullPacked(context, packs, packed);
+		}
+	}
+
+	// Pull packed files and folders. Files whose local copy already matches cost
+	// nothing; the rest are fetched from their packs, each run of nearby files in
+	// a pack with one ranged GET on a download worker.
+	private void pullPacked(PullContext context, PackStore.Session packs, Collection<PackStore.Entry> entries) {
+		List<PackStore.Entry> needed = new ArrayList<>();
+		for (PackStore.Entry entry : entries) {
+			if (entry.isDirectory()) {
+				pullDirectory(context, entry.getPath());
+				continue;
+			}
+			context.stats.fileQueued(entry.getLength());
+			try {
+				if (isPackedCopyCurrent(context, entry)) {
+					context.stats.fileSkipped(entry.getLength());
+					continue;
+				}
+			} catch (IOException e) {
+				System.err.println("Error reading local file: " + entry.getPath() + ". Error: " + e.getMessage());
+				context.stats.fileFailed(entry.getLength());
+				continue;
+			}
+			needed.add(entry);
+		}
+
+		for (List<PackStore.Entry> run : packs.planFetch(needed)) {
+			context.batch.submit(() -> pullPackedRun(context, packs, run), e -> {
+				System.err.println("Error downloading packed files. Error: " + e);
+				run.forEach(entry -> context.stats.fileFailed(entry.getLength()));
+			});
+		}
+	}
+
+	// Whether the local copy of a packed file is the one in the pack, either
+	// because it is untouched since it was synced from it or because it has the
+	// same content
+	private boolean isPackedCopyCurrent(PullContext context, PackStore.Entry packed) throws IOException {
+		Path localPath = context.localRoot.resolve(packed.getPath());
+		if (!Files.exists(localPath)) {
+			return false;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+		long localSize = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		SyncManifest.Entry entry = context.manifest.get(packed.getPath());
+		if (entry != null && entry.matches(localSize, lastModified)) {
+			return entry.getETag().equals(packed.getMd5());
+		}
+		if (localSize == packed.getLength() && FileUtils.computeHash(localPath, "MD5").equals(packed.getMd5())) {
+			context.pulled(new SyncManifest.Entry(packed.getPath(), localSize, lastModified,
+					FileUtils.computeContentHash(localPath), packed.getMd5()));
+			return true;
+		}
+		return false;
+	}
+
+	// Fetch a run of files from one pack and write each to its local path.
+	// Transient errors are retried, skipping files already written.
+	private void pullPackedRun(PullContext context, PackStore.Session packs, List<PackStore.Entry> run) {
+		Set<String> written = new HashSet<>();
+		try {
+			retrier.call(() -> {
+				packs.fetch(run, (entry, content) -> {
+					if (!written.contains(entry.getPath())) {
+						writePackedFile(context, entry, content);
+						written.add(entry.getPath());
+					}
+				});
+				return null;
+			});
+		} catch (AmazonServiceException e) {
+			System.err.println("Error downloading packed files: " + e.getErrorMessage());
+		} catch (SdkClientException | IOException | UncheckedIOException e) {
+			System.err.println("Error downloading packed files: " + e.getMessage());
+		}
+		for (PackStore.Entry entry : run) {
+			if (!written.contains(entry.getPath())) {
+				context.stats.fileFailed(entry.getLength());
+			}
+		}
+	}
+
+	// Write a packed file's content next to its local path, move it into place
+	// and give it the modification time it was pushed with
+	private void writePackedFile(PullContext context, PackStore.Entry entry, byte[] content) throws IOException {
+		Path localPath = context.localRoot.resolve(entry.getPath());
+		ensureDirectory(localPath.getParent(), context.createdDirectories);
+		Path tmp = partialDownloadPath(localPath);
+		try {
+			Files.write(tmp, content);
+			Files.move(tmp, localPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		Files.setLastModifiedTime(localPath, FileTime.fromMillis(entry.getLastModified()));
+		BasicFileAttributes attributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+		String contentHash = HexFormat.of().formatHex(FileUtils.newDigest("SHA-256").digest(content));
+		context.pulled(new SyncManifest.Entry(entry.getPath(), attributes.size(),
+				attributes.lastModifiedTime().toMillis(), contentHash, entry.getMd5()));
+		context.stats.fileTransferred(content.length);
+	}
+
+	// Make sure a remote folder exists locally, keeping anything already in it
+	private void pullDirectory(PullContext context, String relativePath) {
+		Path localPath = context.localRoot.resolve(relativePath);
+		try {
+			ensureDirectory(localPath, context.createdDirectories);
+			context.pulled(SyncManifest.Entry.directory(relativePath));
+		} catch (UncheckedIOException e) {
+			System.err.println("Error creating directory: " + localPath + ". Error: " + e.getMessage());
+		}
+	}
+
+	// Apply a remote delete locally. Only files that are unchanged since they were
+	// last synced are removed; local edits are kept (and uploaded by the next push).
+	private void deleteLocalCopies(PullContext context, String relativePath) {
+		String path = relativePath.endsWith("/") ? relativePath.substring(0, relativePath.length() - 1)
+				: relativePath;
+		String directoryPrefix = path + "/";
+		List<String> directories = new ArrayList<>();
+
+		for (SyncManifest.Entry entry : context.manifest.entries()) {
+			String entryPath = entry.getPath();
+			if (!entryPath.equals(path) && !entryPath.startsWith(directoryPrefix)) {
+				continue;
+			}
+			if (entry.isDirectory()) {
+				directories.add(entryPath);
+				continue;
+			}
+			Path localPath = context.localRoot.resolve(entryPath);
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+				if (entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+					Files.delete(localPath);
+				}
+			} catch (NoSuchFileException e) {
+				// Already gone locally
+			} catch (IOException e) {
+				System.err.println("Error deleting local file: " + localPath + ". Error: " + e.getMessage());
+			}
+		}
+
+		// Deepest folders first, and only those left empty
+		directories.sort(Comparator.comparingInt(String::length).reversed());
+		for (String directory : directories) {
+			try {
+				Files.deleteIfExists(context.localRoot.resolve(directory));
+			} catch (DirectoryNotEmptyException e) {
+				// Still holds local changes
+			} catch (IOException e) {
+				System.err.println("Error deleting local directory: " + directory + ". Error: " + e.getMessage());
+			}
+		}
+		context.manifest.removeTree(path);
+	}
+
+	// Find the end of the remote change journal, or null if it can't be read (the
+	// next pull then lists everything again)
+	private ChangeJournal.Position currentJournalPosition(String userId) {
+		try {
+			return changeJournal.getCurrentPosition(bucketName, userId);
+		} catch (SdkClientException e) {
+			System.err.println("Couldn't read the sync journal: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Download a single file unless the local copy is known to match it
+	private void pullFile(PullContext context, S3ObjectSummary objectSummary, String relativePath) {
+		String key = objectSummary.getKey();
+		String remoteETag = objectSummary.getETag();
+		Path localPath = context.localRoot.resolve(relativePath);
+		SyncManifest manifest = context.manifest;
+		TransferStats stats = context.stats;
+
+		try {
+			String knownETag = null;
+			if (Files.exists(localPath)) {
+				BasicFileAttributes attributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+				long localSize = attributes.size();
+				SyncManifest.Entry entry = manifest.get(relativePath);
+
+				if (entry != null && entry.matches(localSize, attributes.lastModifiedTime().toMillis())) {
+					// Local copy is untouched since the last sync, so the recorded ETag
+					// describes it
+					if (entry.getETag().equals(remoteETag)) {
+						stats.fileSkipped(objectSummary.getSize());
+						return;
+					}
+					knownETag = entry.getETag();
+				} else if (localSize == objectSummary.getSize() && isContentMd5(remoteETag)
+						&& FileUtils.computeHash(localPath, "MD5").equals(remoteETag)) {
+					// Never synced (or touched since), but the content is identical
+					context.pulled(new SyncManifest.Entry(relativePath, localSize,
+							attributes.lastModifiedTime().toMillis(), FileUtils.computeContentHash(localPath),
+							remoteETag));
+					stats.fileSkipped(objectSummary.getSize());
+					return;
+				}
+			}
+
+			// Transient errors, including a connection dropped mid-download, are
+			// retried; a large download then carries on from what it already wrote
+			String localETag = knownETag;
+			retrier.call(() -> {
+				fetchFile(context, objectSummary, relativePath, localPath, localETag);
+				return null;
+			});
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				discardPartialDownload(context, relativePath, localPath);
+				stats.fileSkipped(objectSummary.getSize()); // Deleted remotely since it was listed
+				return;
+			}
+			System.err.println("Error downloading file: " + key + ". Error: " + e.getErrorMessage());
+			stats.fileFailed(objectSummary.getSize());
+		} catch (SdkClientException | IOException | UncheckedIOException e) {
+			System.err.println("Error downloading file: " + key + ". Error: " + e.getMessage());
+			stats.fileFailed(objectSummary.getSize());
+		}
+	}
+
+	// Download an object (or the rest of an interrupted download of it) to its
+	// local path, unless it still has the ETag the local copy was synced from
+	private void fetchFile(PullContext context, S3ObjectSummary objectSummary, String relativePath, Path localPath,
+			String knownETag) throws IOException {
+		String key = objectSummary.getKey();
+		String remoteETag = objectSummary.getETag();
+		TransferStats stats = context.stats;
+
+		// An interrupted download of this very object only needs the rest of it,
+		// as long as the object is still the same (S3 answers 412 to If-Match
+		// otherwise, and the SDK returns null)
+		long resumeFrom = resumableLength(context, relativePath, objectSummary);
+		S3Object object = null;
+		if (resumeFrom > 0) {
+			object = s3Client.getObject(new GetObjectRequest(bucketName, key).withRange(resumeFrom)
+					.withMatchingETagConstraint(remoteETag));
+			if (object == null) {
+				discardPartialDownload(context, relativePath, localPath);
+				resumeFrom = 0;
+			}
+		}
+
+		if (object == null) {
+			// Conditional GET: S3 answers 304 (and the SDK returns null) if the
+			// object still has the ETag we already have locally. A small object's
+			// GET may be hedged, as its response time is most of its cost.
+			GetObjectRequest request = new GetObjectRequest(bucketName, key);
+			if (knownETag != null) {
+				request.withNonmatchingETagConstraint(knownETag);
+			}
+			object = hedger.shouldHedge(objectSummary.getSize())
+					? hedger.call(() -> s3Client.getObject(request), S3StorageService::closeQuietly)
+					: s3Client.getObject(request);
+			if (object == null) {
+				stats.fileSkipped(objectSummary.getSize());
+				return;
+			}
+		}
+
+		ensureDirectory(localPath.getParent(), context.createdDirectories);
+		try (S3Object content = object) {
+			downloadObject(context, content, relativePath, localPath, objectSummary.getSize(), resumeFrom);
+		}
+		stats.fileTransferred(object.getObjectMetadata().getContentLength());
+	}
+
+	// Report a transfer task that failed with an unexpected error and count its
+	// file as failed, so the next push or pull tries it again
+	private static void transferFailed(TransferStats stats, String message, long size, RuntimeException e) {
+		System.err.println(message + ". Error: " + e);
+		stats.fileFailed(size);
+	}
+
+	// Close a response that won't be read, e.g. the loser of a hedged GET
+	private static void closeQuietly(S3Object object) {
+		if (object == null) {
+			return;
+		}
+		try {
+			object.close();
+		} catch (IOException e) {
+			// Nothing more is wanted from it
 		}
 	}
 
+	// Stream an object into a temporary file next to its destination, hashing it
+	// on the way, then move it into place and stamp it with S3's LastModified so
+	// the manifest records exactly what is on disk. Bytes are reported to stats as
+	// they arrive. A large plain object is journaled and its temporary file kept
+	// if the download fails, so the next pull can resume it; with resumeFrom > 0
+	// the object holds just the rest of such a download.
+	private void downloadObject(PullContext context, S3Object object, String relativePath, Path localPath, long size,
+			long resumeFrom) throws IOException {
+		ObjectMetadata metadata = object.getObjectMetadata();
+		Path tmp = partialDownloadPath(localPath);
+		MessageDigest digest = FileUtils.newDigest("SHA-256");
+		boolean resumable = size >= transferEngine.getMultipartThreshold() && !ChunkStore.isChunkManifest(metadata)
+				&& !ContentCompressor.isCompressed(metadata);
+		boolean completed = false;
+
+		try {
+			OutputStream file;
+			if (resumeFrom > 0) {
+				// Hash what the interrupted download already wrote, then append to it
+				try (InputStream in = Files.newInputStream(tmp)) {
+					in.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+				}
+				file = Files.newOutputStream(tmp, StandardOpenOption.APPEND);
+			} else {
+				if (resumable) {
+					context.journal.downloadStarted(relativePath, metadata.getETag());
+				}
+				file = Files.newOutputStream(tmp);
+			}
+			try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(file), digest)) {
+				readObject(object, context.userId, localPath, out, context.stats);
+			}
+			Files.move(tmp, localPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			completed = true;
+		} finally {
+			if (!completed && !resumable) {
+				Files.deleteIfExists(tmp);
+			}
+		}
+
+		Files.setLastModifiedTime(localPath, FileTime.from(metadata.getLastModified().toInstant()));
+		// Read the attributes back, as some file systems store coarser timestamps
+		BasicFileAttributes attributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+		context.pulled(new SyncManifest.Entry(relativePath, attributes.size(),
+				attributes.lastModifiedTime().toMillis(), HexFormat.of().formatHex(digest.digest()),
+				metadata.getETag()));
+	}
+
+	// How much of an object an interrupted download already wrote to its
+	// temporary file, or 0 if there is nothing to resume
+	private long resumableLength(PullContext context, String relativePath, S3ObjectSummary objectSummary)
+			throws IOException {
+		String eTag = context.journal.getDownloadETag(relativePath);
+		if (eTag == null || !eTag.equals(objectSummary.getETag())) {
+			return 0;
+		}
+		Path tmp = partialDownloadPath(context.localRoot.resolve(relativePath));
+		long length = Files.exists(tmp) ? Files.size(tmp) : 0;
+		// Nothing is left to fetch if the whole object arrived, so get it again
+		return length < objectSummary.getSize() ? length : 0;
+	}
+
+	// Throw away what an interrupted download of a path fetched
+	private void discardPartialDownload(PullContext context, String relativePath, Path localPath) {
+		if (context.journal.getDownloadETag(relativePath) == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(partialDownloadPath(localPath));
+			context.journal.downloadDiscarded(relativePath);
+		} catch (IOException e) {
+			System.err.println("Failed to remove partial download: " + e.getMessage());
+		}
+	}
+
+	// The temporary file a download is written to before being moved into place
+	private static Path partialDownloadPath(Path localPath) {
+		return localPath.resolveSibling(localPath.getFileName() + PARTIAL_DOWNLOAD_SUFFIX);
+	}
+
+	// Write the content of a downloaded object to out. Chunked objects are
+	// reassembled, reusing chunks from the previous local copy where possible,
+	// and compressed objects are decompressed as they stream in. Bytes read are
+	// reported to stats, if not null.
+	private void readObject(S3Object object, String userId, Path previous, OutputStream out, TransferStats stats)
+			throws IOException {
+		ObjectMetadata metadata = object.getObjectMetadata();
+		try (InputStream in = stats == null ? object.getObjectContent()
+				: stats.trackProgress(object.getObjectContent())) {
+			if (ChunkStore.isChunkManifest(metadata)) {
+				chunkStore.restore(bucketName, userId, in, previous, out);
+			} else {
+				try (InputStream content = ContentCompressor.decode(metadata, in)) {
+					content.transferTo(out);
+				}
+			}
+		}
+	}
+
+	// Upload a file as a plain object, or as chunks or compressed if one of those
+	// storage modes applies. Large plain and compressed uploads report their
+	// parts to stats, large plain ones record their progress in checkpoint, and
+	// chunked ones skip the chunks in knownChunks (each may be null).
+	private String uploadObject(String key, Path file, long size, TransferStats stats, MultipartCheckpoint checkpoint,
+			ChunkStore.KnownChunks knownChunks) throws IOException {
+		String eTag;
+		if (chunkStore.shouldChunk(size)) {
+			eTag = chunkStore.upload(bucketName, userIdOf(key), key, file, knownChunks);
+		} else if (compressor.shouldCompress(file, size)) {
+			eTag = compressor.upload(bucketName, key, file, size, stats, checkpoint);
+		} else {
+			eTag = transferEngine.upload(bucketName, key, file, new ObjectMetadata(), stats, checkpoint);
+		}
+		namespaceCache.objectWritten(key);
+		return eTag;
+	}
+
+	// Keys under "<userId>/.dbox/" hold the client's bookkeeping, not user files
+	private static boolean isSystemKey(String key) {
+		int separator = key.indexOf('/');
+		return separator >= 0 && key.startsWith(SYSTEM_DIRECTORY, separator + 1);
+	}
+
+	// Get the user ID a "<userId>/<relativePath>" key belongs to
+	private static String userIdOf(String fullPath) {
+		int separator = fullPath.indexOf('/');
+		return separator < 0 ? fullPath : fullPath.substring(0, separator);
+	}
+
+	// A plain (non-multipart, non-KMS) upload has the MD5 of its content as ETag
+	private static boolean isContentMd5(String eTag) {
+		return eTag != null && eTag.length() == 32 && !eTag.contains("-");
+	}
+
+	// Create a local directory once per pull. Only the first worker to need a
+	// directory creates it; any others needing it at the same time wait for it.
+	private static void ensureDirectory(Path directory, Map<Path, Boolean> createdDirectories) {
+		createdDirectories.computeIfAbsent(directory, dir -> {
+			try {
+				Files.createDirectories(dir);
+				return Boolean.TRUE;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
 	// Check if a given S3 path is a valid directory
 	@Override
 	public boolean isValidS3Directory(String fullPath) {
+		Boolean cached = namespaceCache.getExists(fullPath);
+		if (cached != null) {
+			return cached;
+		}
+
+		long generation = namespaceCache.getGeneration();
 		ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(fullPath)
 				.withDelimiter("/").withMaxKeys(1);
 
-		ListObjectsV2Result result = s3Client.listObjectsV2(listRequest);
-		return !result.getCommonPrefixes().isEmpty() || !result.getObjectSummaries().isEmpty();
+		ListObjectsV2Result result = retrier.get(() -> s3Client.listObjectsV2(listRequest));
+		boolean exists = !result.getCommonPrefixes().isEmpty() || !result.getObjectSummaries().isEmpty();
+		if (!exists && !relativePathOf(fullPath).isEmpty()) {
+			exists = withPacks(userIdOf(fullPath), packs -> packs.hasTree(trimSlashes(relativePathOf(fullPath))));
+		}
+		namespaceCache.putExists(fullPath, exists, generation);
+		return exists;
 	}
 
-	// Delete a directory and its contents from S3
+	// Delete a directory and its contents from S3. Each listed page (up to 1000
+	// keys) is removed with a single multi-object delete on the transfer
+	// engine's workers while the next page is being listed.
 	@Override
-	public void deleteDirectory(String fullPath) {
-		ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(fullPath);
+	public boolean deleteDirectory(String fullPath) {
+		ReentrantLock lock = lockSync(userIdOf(fullPath));
+		try {
+			return deleteTree(fullPath);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean deleteTree(String fullPath) {
+		// Only list the directory's contents, not siblings that merely share the
+		// name as a prefix (e.g. "foo" must not list or delete "foobar")
+		String directoryPrefix = fullPath.endsWith("/") ? fullPath : fullPath + "/";
+		TransferBatch batch = transferEngine.newBatch();
+		AtomicLong deleted = new AtomicLong();
+		List<String> failures = new CopyOnWriteArrayList<>();
 
-		ListObjectsV2Result result;
-		do {
-			result = s3Client.listObjectsV2(listRequest);
-			for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
-				s3Client.deleteObject(bucketName, objectSummary.getKey());
-//				System.out.println("Successfully deleted from S3: " + objectSummary.getKey());
+		// Packed files and folders go by removing them from the pack index; their
+		// packs are compacted by a later push. Removing the whole prefix takes the
+		// index and packs with it.
+		String relativePath = trimSlashes(relativePathOf(fullPath));
+		if (!relativePath.isEmpty()) {
+			try {
+				PackStore.Session packs = packStore.openIfUsed(bucketName, userIdOf(fullPath));
+				int unpacked = packs == null ? 0 : packs.removeTree(relativePath);
+				if (unpacked > 0) {
+					packs.commit();
+					deleted.addAndGet(unpacked);
+				}
+			} catch (IOException | SdkClientException e) {
+				failures.add(fullPath + ": couldn't update the pack index: " + e.getMessage());
+			}
+		}
+
+		try {
+			// A key named exactly like the directory isn't under its prefix
+			if (!fullPath.equals(directoryPrefix)
+					&& retrier.get(() -> s3Client.doesObjectExist(bucketName, fullPath))) {
+				List<KeyVersion> marker = List.of(new KeyVersion(fullPath));
+				batch.submit(() -> deleteKeys(marker, deleted, failures));
+			}
+			for (ListObjectsV2Result result : objectLister.pages(bucketName, directoryPrefix, null)) {
+				List<KeyVersion> keys = result.getObjectSummaries().stream().map(S3ObjectSummary::getKey)
+						.map(KeyVersion::new).collect(Collectors.toList());
+				if (!keys.isEmpty()) {
+					batch.submit(() -> deleteKeys(keys, deleted, failures));
+				}
+			}
+		} catch (RuntimeException e) {
+			failures.add(fullPath + ": listing failed: " + e.getMessage());
+		} finally {
+			batch.await();
+		}
+		batch.getFailures().forEach(e -> failures.add(fullPath + ": " + e));
+
+		// Make sure the next push re-uploads anything that was just removed remotely
+		namespaceCache.treeDeleted(fullPath);
+		forgetSyncedPath(fullPath);
+		if (deleted.get() > 0) {
+			recordChange(fullPath, ChangeJournal.Change.delete(relativePathOf(fullPath)));
+			collectChunks(userIdOf(fullPath));
+		}
+
+		if (!failures.isEmpty()) {
+			System.err.printf("Deleted %d object(s), but %d could not be deleted:%n", deleted.get(), failures.size());
+			failures.stream().limit(10).forEach(failure -> System.err.println("  " + failure));
+			if (failures.size() > 10) {
+				System.err.printf("  ...and %d more%n", failures.size() - 10);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	// Delete up to 1000 keys in one request, collecting any per-key errors
+	private void deleteKeys(List<KeyVersion> keys, AtomicLong deleted, List<String> failures) {
+		try {
+			// Quiet mode: S3 only reports the keys that failed
+			DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName).withKeys(keys).withQuiet(true);
+			retrier.deleteObjects(s3Client, request);
+			deleted.addAndGet(keys.size());
+		} catch (MultiObjectDeleteException e) {
+			deleted.addAndGet(keys.size() - e.getErrors().size());
+			for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+				failures.add(error.getKey() + ": " + error.getMessage());
+			}
+		} catch (SdkClientException e) {
+			for (KeyVersion key : keys) {
+				failures.add(key.getKey() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	// Delete the user's chunks that deleted and replaced files no longer use, if
+	// chunking is enabled. Errors are reported and leave the chunks for a later
+	// sweep.
+	private void collectChunks(String userId) {
+		if (!chunkStore.isEnabled()) {
+			return;
+		}
+		try {
+			int deleted = chunkStore.collectGarbage(bucketName, userId);
+			if (deleted > 0) {
+				System.out.println("Deleted " + deleted + " unused chunk(s).");
+			}
+		} catch (SdkClientException e) {
+			System.err.println("Couldn't delete unused chunks: " + e.getMessage());
+		}
+	}
+
+	// Drop manifest entries for a remote "<userId>/<relativePath>" that no longer
+	// exists in S3
+	private void forgetSyncedPath(String fullPath) {
+		manifestStore.forget(userIdOf(fullPath), trimSlashes(relativePathOf(fullPath)));
+	}
+
+	// Strip the trailing slashes of a folder path
+	private static String trimSlashes(String path) {
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	// Work with a user's packed files, or return false (after saying why) if the
+	// pack index can't be read or saved
+	private boolean withPacks(String userId, PackAction action) {
+		try {
+			return action.apply(packStore.open(bucketName, userId));
+		} catch (IOException | SdkClientException e) {
+			System.err.println("Couldn't read the pack index: " + e.getMessage());
+			return false;
+		}
+	}
+
+	@FunctionalInterface
+	private interface PackAction {
+		boolean apply(PackStore.Session packs) throws IOException;
+	}
+
+	// Take a file out of the pack index, e.g. because it was replaced by an
+	// object of its own or deleted. Returns whether it was packed.
+	private boolean unpack(String userId, String relativePath) {
+		return withPacks(userId, packs -> {
+			if (!packs.remove(relativePath)) {
+				return false;
 			}
-			listRequest.setContinuationToken(result.getNextContinuationToken());
-		} while (result.isTruncated());
+			packs.commit();
+			return true;
+		});
 	}
 
-	// Upload a single file to S3
+	// Get a file's object; for a packed file, one holding just its content read
+	// from its pack. The pack index is only read if the file has no object.
+	private S3Object getFileObject(String userId, String filePath) throws IOException {
+		try {
+			return retrier.get(() -> s3Client.getObject(bucketName, userId + "/" + filePath));
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() != 404) {
+				throw e;
+			}
+			PackStore.Session packs = packStore.open(bucketName, userId);
+			PackStore.Entry entry = packs.get(filePath);
+			if (entry == null || entry.isDirectory()) {
+				throw e;
+			}
+			return packs.getObject(entry);
+		}
+	}
+
+	// Record a single change to a "<userId>/<relativePath>" key in the user's
+	// remote change journal, unless it removed the user's whole prefix
+	private void recordChange(String fullPath, ChangeJournal.Change change) {
+		if (!change.getPath().isEmpty() && !change.getPath().equals("/")) {
+			changeJournal.append(bucketName, userIdOf(fullPath), List.of(change));
+		}
+	}
+
+	// Get the path a "<userId>/<relativePath>" key has relative to the user's root
+	private static String relativePathOf(String fullPath) {
+		int separator = fullPath.indexOf('/');
+		return separator < 0 ? "" : fullPath.substring(separator + 1);
+	}
+
+	// Upload a single file to S3 (large files go up as a parallel multipart upload)
 	@Override
 	public void uploadFile(String fullPath, Path localFilePath, String remotePath) {
 //		System.out.format("Uploading %s to S3 bucket %s...\n", localFilePath, bucketName);
 		String fileKey = fullPath + "/" + remotePath;
 		try {
-			PutObjectResult result = s3Client.putObject(bucketName, fileKey, localFilePath.toFile());
+			long size = Files.size(localFilePath);
+			String eTag = uploadObject(fileKey, localFilePath, size, null, null, null);
+			unpack(userIdOf(fileKey), relativePathOf(fileKey));
+			recordChange(fileKey, ChangeJournal.Change.put(relativePathOf(fileKey), size, eTag));
 //			System.out.println("File uploaded successfully to S3: " + remotePath);
 		} catch (AmazonServiceException e) {
 			System.err.println("Amazon S3 couldn't upload file: " + e.getErrorMessage());
 		} catch (SdkClientException e) {
 			System.err.println("SDK Client couldn't upload file: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Couldn't read local file: " + e.getMessage());
 		}
 	}
 
@@ -245,32 +1429,41 @@ public class S3StorageService implements StorageService {
 	@Override
 	public void deleteFile(String userId, String filePath) {
 		String fileKey = userId + "/" + filePath;
+		ReentrantLock lock = lockSync(userId);
 		try {
-			s3Client.deleteObject(bucketName, fileKey);
+			retrier.get(() -> {
+				s3Client.deleteObject(bucketName, fileKey);
+				return null;
+			});
+			unpack(userId, filePath);
+			namespaceCache.treeDeleted(fileKey);
+			forgetSyncedPath(fileKey);
+			recordChange(fileKey, ChangeJournal.Change.delete(filePath));
+			collectChunks(userId);
 			System.out.println("File deleted successfully: " + filePath);
 		} catch (AmazonServiceException e) {
 			System.err.println("Amazon S3 couldn't delete file: " + e.getErrorMessage());
 		} catch (SdkClientException e) {
 			System.err.println("SDK Client couldn't delete file: " + e.getMessage());
+		} finally {
+			lock.unlock();
 		}
 	}
 
-	// Download a single file from S3
+	// Download a single file from S3 into memory
 	@Override
 	public byte[] downloadFile(String userId, String filePath) {
-		String fileKey = userId + "/" + filePath;
 		try {
-			S3Object s3Object = s3Client.getObject(bucketName, fileKey);
-			S3ObjectInputStream inputStream = s3Object.getObjectContent();
+			S3Object s3Object = getFileObject(userId, filePath);
 			try {
-				byte[] content = inputStream.readAllBytes();
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				readObject(s3Object, userId, null, content, null);
 				System.out.println("File downloaded successfully: " + filePath);
-				return content;
+				return content.toByteArray();
 			} catch (IOException e) {
 				System.err.println("Failed to read file content: " + e.getMessage());
 			} finally {
 				try {
-					inputStream.close();
 					s3Object.close();
 				} catch (IOException e) {
 					System.err.println("Failed to close S3 object: " + e.getMessage());
@@ -280,7 +1473,90 @@ public class S3StorageService implements StorageService {
 			System.err.println("Amazon S3 couldn't download file: " + e.getErrorMessage());
 		} catch (SdkClientException e) {
 			System.err.println("SDK Client couldn't download file: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Couldn't read the pack index: " + e.getMessage());
 		}
 		return new byte[0]; // Return empty byte array if there's an error
 	}
-}
\ No newline at end of file
+
+	// Download a single file from S3 straight to a local file
+	@Override
+	public long downloadFile(String userId, String filePath, Path destination) {
+		String fileKey = userId + "/" + filePath;
+		Path tmp = partialDownloadPath(destination);
+		try (S3Object s3Object = getFileObject(userId, filePath)) {
+			if (destination.getParent() != null) {
+				Files.createDirectories(destination.getParent());
+			}
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+				readObject(s3Object, userIdOf(fileKey), destination, out, null);
+			}
+			Files.move(tmp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("File downloaded successfully: " + filePath);
+			return Files.size(destination);
+		} catch (AmazonServiceException e) {
+			System.err.println("Amazon S3 couldn't download file: " + e.getErrorMessage());
+		} catch (SdkClientException e) {
+			System.err.println("SDK Client couldn't download file: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Failed to write file content: " + e.getMessage());
+		} finally {
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				System.err.println("Failed to remove partial download: " + e.getMessage());
+			}
+		}
+		return -1;
+	}
+
+	// Download a single file from S3 into a channel
+	@Override
+	public long downloadFile(String userId, String filePath, WritableByteChannel target) {
+		String fileKey = userId + "/" + filePath;
+		try (S3Object s3Object = getFileObject(userId, filePath)) {
+			CountingOutputStream out = new CountingOutputStream(Channels.newOutputStream(target));
+			readObject(s3Object, userIdOf(fileKey), null, out, null);
+			out.flush();
+			System.out.println("File downloaded successfully: " + filePath);
+			return out.getCount();
+		} catch (AmazonServiceException e) {
+			System.err.println("Amazon S3 couldn't download file: " + e.getErrorMessage());
+		} catch (SdkClientException e) {
+			System.err.println("SDK Client couldn't download file: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Failed to write file content: " + e.getMessage());
+		}
+		return -1;
+	}
+
+	// Counts the bytes written through it, without closing the underlying stream
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+}
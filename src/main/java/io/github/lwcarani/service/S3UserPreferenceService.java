@@ -1,38 +1,365 @@
 package io.github.lwcarani.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import io.github.lwcarani.transfer.TransferRetrier;
+
+import jakarta.annotation.PreDestroy;
 
+// Keeps all of a user's preferences in one S3 document, "<userId>/preferences.properties".
+// Reads are served from memory, backed by a local copy in the sync state
+// directory that is revalidated against S3 in the background with a
+// conditional GET. Writes go to the local copy immediately and are coalesced
+// into a single upload shortly afterwards; an upload that fails is tried again
+// later for as long as there are changes to upload.
 @Service
 public class S3UserPreferenceService implements UserPreferenceService {
 
+	private static final String DOCUMENT_NAME = "preferences.properties";
+	// Writes made within this window go up in one PUT
+	private static final long FLUSH_DELAY_MILLIS = 500;
+	// How long the first read without a local copy waits for S3 before going
+	// on with what is known; the values are filled in once they arrive. Writes
+	// never wait.
+	private static final long LOAD_WAIT_MILLIS = 1_000;
+	// Delay before a failed upload is tried again
+	private static final long FLUSH_RETRY_MILLIS = 30_000;
+	// Conditional uploads lost to another device's upload before giving up
+	// until the next flush
+	private static final int MAX_FLUSH_ATTEMPTS = 5;
+
 	private final AmazonS3 s3Client;
+	private final TransferRetrier retrier;
 	private final String bucketName;
+	private final Path stateDirectory;
+	private final Map<String, Preferences> preferences = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "preference-flush");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// One user's preferences. Guarded by its own lock.
+	private static class Preferences {
+		private Properties values = new Properties();
+		// ETag of the remote document the values are based on, null if unknown
+		private String eTag;
+		// The remote document didn't exist, so values may still be stored the old
+		// way (one object per preference)
+		private boolean remoteMissing;
+		private final Set<String> legacyChecked = new HashSet<>();
+		// Changes not uploaded yet; a null value means the preference was deleted
+		private final Map<String, String> pending = new HashMap<>();
+		private ScheduledFuture<?> scheduledFlush;
+		// Completes once there are values to serve: from the local copy, or once
+		// the first revalidation has finished
+		private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+	}
 
 	// Constructor with dependency injection
 	// Automatically inject the AmazonS3 instance that was created in the
 	// io.github.lwcarani.config AwsConfig.java file
-	public S3UserPreferenceService(AmazonS3 s3Client, @Value("${aws.s3.bucket-user-preferences}") String bucketName) {
+	public S3UserPreferenceService(AmazonS3 s3Client, TransferRetrier retrier,
+			@Value("${aws.s3.bucket-user-preferences}") String bucketName,
+			@Value("${dropbox.sync.state-dir:${user.home}/.dropbox-clone}") String stateDirectory) {
 		this.s3Client = s3Client;
+		this.retrier = retrier;
 		this.bucketName = bucketName;
+		this.stateDirectory = Paths.get(stateDirectory);
 	}
 
-	// Save a user preference to S3
+	// Save a user preference; it is uploaded in the background
 	@Override
 	public void saveUserPreference(String userId, String key, String value) {
-		String objectKey = getUserPreferenceKey(userId, key);
-		s3Client.putObject(bucketName, objectKey, value);
+		update(userId, key, value);
 	}
 
-	// Retrieve a user preference from S3
+	// Retrieve a user preference. Only the first read on a device without a local
+	// copy waits for S3.
 	@Override
 	public String getUserPreference(String userId, String key) {
-		String objectKey = getUserPreferenceKey(userId, key);
+		Preferences prefs = load(userId, true);
+		synchronized (prefs) {
+			String value = prefs.values.getProperty(key);
+			if (value != null || !prefs.remoteMissing || !prefs.legacyChecked.add(key)) {
+				return value;
+			}
+		}
+
+		// Written by an older version as its own object: adopt it into the document
+		String legacyValue = getLegacyPreference(userId, key);
+		if (legacyValue != null) {
+			update(userId, key, legacyValue);
+		}
+		return legacyValue;
+	}
+
+	// Delete a user preference; the deletion is uploaded in the background
+	@Override
+	public void deleteUserPreference(String userId, String key) {
+		update(userId, key, null);
+	}
+
+	// Upload any changes not uploaded yet, e.g. on shutdown
+	@PreDestroy
+	public void flushAll() {
+		flusher.shutdownNow();
+		preferences.forEach(this::flush);
+	}
+
+	// Get a user's preferences, loading them on first use. S3 is revalidated in
+	// the background; without a local copy, readers wait a moment for it.
+	private Preferences load(String userId, boolean wait) {
+		Preferences prefs = preferences.get(userId);
+		if (prefs == null) {
+			Preferences created = new Preferences();
+			if (readLocalCopy(userId, created)) {
+				created.loaded.complete(null);
+			}
+			prefs = preferences.putIfAbsent(userId, created);
+			if (prefs == null) {
+				prefs = created;
+				CompletableFuture.runAsync(() -> revalidate(userId, created))
+						.whenComplete((result, e) -> created.loaded.complete(null));
+			}
+		}
+		if (wait && !prefs.loaded.isDone()) {
+			try {
+				prefs.loaded.get(LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | TimeoutException e) {
+				// Go on with what is known; revalidate reports its own errors
+			}
+		}
+		return prefs;
+	}
+
+	// Apply a change locally and schedule its upload. Changes made before the
+	// remote document has arrived are applied on top of it by merge.
+	private void update(String userId, String key, String value) {
+		Preferences prefs = load(userId, false);
+		synchronized (prefs) {
+			if (value == null) {
+				prefs.values.remove(key);
+			} else {
+				prefs.values.setProperty(key, value);
+			}
+			prefs.pending.put(key, value);
+			writeLocalCopy(userId, prefs);
+			if (prefs.scheduledFlush == null || prefs.scheduledFlush.isDone()) {
+				prefs.scheduledFlush = flusher.schedule(() -> flush(userId, prefs), FLUSH_DELAY_MILLIS,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	// Fetch the remote document unless it still has the ETag we know, and apply
+	// any unflushed local changes on top of it
+	private void revalidate(String userId, Preferences prefs) {
+		try {
+			merge(userId, prefs);
+		} catch (SdkClientException | IOException e) {
+			System.err.println("Couldn't load preferences: " + e.getMessage());
+		}
+	}
+
+	private void merge(String userId, Preferences prefs) throws IOException {
+		String knownETag;
+		synchronized (prefs) {
+			knownETag = prefs.eTag;
+		}
+		Remote remote = fetch(userId, knownETag);
+		if (remote == null) {
+			return; // Not modified
+		}
+		synchronized (prefs) {
+			if (remote.eTag == null && knownETag == null) {
+				// Never uploaded: nothing to merge, keep what we have locally
+				prefs.remoteMissing = true;
+				return;
+			}
+			prefs.values = remote.values;
+			prefs.pending.forEach((key, value) -> {
+				if (value == null) {
+					prefs.values.remove(key);
+				} else {
+					prefs.values.setProperty(key, value);
+				}
+			});
+			prefs.eTag = remote.eTag;
+			prefs.remoteMissing = remote.eTag == null;
+			writeLocalCopy(userId, prefs);
+		}
+	}
+
+	// Upload the pending changes, merged into the latest remote document so
+	// changes made on other devices are kept. The upload only replaces the
+	// document it was merged into (If-Match its ETag, or If-None-Match "*" if
+	// there was none); if another device uploaded in between, S3 answers 412
+	// and the merge is done again on top of that device's document.
+	private void flush(String userId, Preferences prefs) {
+		Map<String, String> changes;
+		synchronized (prefs) {
+			if (prefs.pending.isEmpty()) {
+				return;
+			}
+			changes = new HashMap<>(prefs.pending);
+		}
+
+		try {
+			for (int attempt = 1;; attempt++) {
+				merge(userId, prefs);
+				byte[] content;
+				String basedOn;
+				synchronized (prefs) {
+					content = serialize(prefs.values);
+					basedOn = prefs.eTag;
+				}
+
+				String eTag;
+				try {
+					// A new request per attempt, as a failed one has read its content
+					eTag = retrier.get(() -> s3Client.putObject(uploadRequest(userId, content, basedOn))).getETag();
+				} catch (AmazonServiceException e) {
+					// 409 while another conditional upload is in flight
+					boolean conflict = e.getStatusCode() == 412 || e.getStatusCode() == 409;
+					if (!conflict || attempt >= MAX_FLUSH_ATTEMPTS) {
+						throw e;
+					}
+					continue;
+				}
+
+				synchronized (prefs) {
+					// Keep anything changed again while uploading for the next flush
+					changes.forEach((key, value) -> prefs.pending.remove(key, value));
+					prefs.eTag = eTag;
+					prefs.remoteMissing = false;
+					writeLocalCopy(userId, prefs);
+				}
+				return;
+			}
+		} catch (SdkClientException | IOException e) {
+			System.err.println("Couldn't save preferences, will try again: " + e.getMessage());
+			retryFlush(userId, prefs);
+		}
+	}
+
+	// Schedule another upload after a failed one, unless shutting down or a
+	// newer change already scheduled one
+	private void retryFlush(String userId, Preferences prefs) {
+		synchronized (prefs) {
+			if (prefs.pending.isEmpty() || flusher.isShutdown()) {
+				return;
+			}
+			ScheduledFuture<?> scheduled = prefs.scheduledFlush;
+			if (scheduled != null && !scheduled.isDone() && scheduled.getDelay(TimeUnit.MILLISECONDS) > 0) {
+				return;
+			}
+			try {
+				prefs.scheduledFlush = flusher.schedule(() -> flush(userId, prefs), FLUSH_RETRY_MILLIS,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shut down meanwhile; flushAll uploads what is left
+			}
+		}
+	}
+
+	// Conditional upload of a preferences document: it only replaces the
+	// document with ETag basedOn, or creates one if basedOn is null
+	private PutObjectRequest uploadRequest(String userId, byte[] content, String basedOn) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		metadata.setContentType("text/plain; charset=utf-8");
+		PutObjectRequest request = new PutObjectRequest(bucketName, getDocumentKey(userId),
+				new ByteArrayInputStream(content), metadata);
+		if (basedOn != null) {
+			request.putCustomRequestHeader("If-Match", basedOn);
+		} else {
+			request.putCustomRequestHeader("If-None-Match", "*");
+		}
+		return request;
+	}
+
+	// The remote document and its ETag (null if it doesn't exist)
+	private static class Remote {
+		private final Properties values;
+		private final String eTag;
+
+		Remote(Properties values, String eTag) {
+			this.values = values;
+			this.eTag = eTag;
+		}
+	}
+
+	// Conditional GET of the remote document; null if it still has knownETag
+	private Remote fetch(String userId, String knownETag) throws IOException {
+		GetObjectRequest request = new GetObjectRequest(bucketName, getDocumentKey(userId));
+		if (knownETag != null) {
+			request.withNonmatchingETagConstraint(knownETag);
+		}
+		return retrier.call(() -> {
+			try {
+				S3Object object = s3Client.getObject(request);
+				if (object == null) {
+					return null;
+				}
+				try (object; InputStream in = object.getObjectContent()) {
+					Properties values = new Properties();
+					values.load(new StringReader(new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+					return new Remote(values, object.getObjectMetadata().getETag());
+				}
+			} catch (AmazonS3Exception e) {
+				if (e.getStatusCode() == 404) {
+					return new Remote(new Properties(), null);
+				}
+				throw e;
+			}
+		});
+	}
+
+	// Read a preference stored as its own object by older versions
+	private String getLegacyPreference(String userId, String key) {
 		try {
-			return s3Client.getObjectAsString(bucketName, objectKey);
+			return retrier.get(() -> s3Client.getObjectAsString(bucketName, userId + "/" + key));
 		} catch (AmazonS3Exception e) {
 			if (e.getStatusCode() == 404) {
 				return null; // Preference not found
@@ -41,15 +368,58 @@ public class S3UserPreferenceService implements UserPreferenceService {
 		}
 	}
 
-	// Delete a user preference from S3
-	@Override
-	public void deleteUserPreference(String userId, String key) {
-		String objectKey = getUserPreferenceKey(userId, key);
-		s3Client.deleteObject(bucketName, objectKey);
+	// Load the local copy of a user's preferences; false if there is none
+	private boolean readLocalCopy(String userId, Preferences prefs) {
+		Path localCopy = getLocalCopyPath(userId);
+		if (!Files.exists(localCopy)) {
+			return false;
+		}
+		try (Reader reader = Files.newBufferedReader(localCopy, StandardCharsets.UTF_8)) {
+			Properties stored = new Properties();
+			stored.load(reader);
+			// The ETag is kept next to the values under a key no preference uses
+			String eTag = (String) stored.remove("#etag");
+			prefs.values = stored;
+			prefs.eTag = eTag == null || eTag.isEmpty() ? null : eTag;
+			return true;
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Couldn't read local preferences, reloading them: " + e.getMessage());
+			return false;
+		}
+	}
+
+	// Write the local copy of a user's preferences. Called with the lock held.
+	private void writeLocalCopy(String userId, Preferences prefs) {
+		Path localCopy = getLocalCopyPath(userId);
+		Properties stored = new Properties();
+		stored.putAll(prefs.values);
+		stored.setProperty("#etag", prefs.eTag == null ? "" : prefs.eTag);
+		try {
+			Files.createDirectories(localCopy.getParent());
+			Path tmp = localCopy.resolveSibling(localCopy.getFileName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				stored.store(writer, null);
+			}
+			Files.move(tmp, localCopy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Couldn't save local preferences: " + e.getMessage());
+		}
+	}
+
+	// Encode a preferences document
+	private static byte[] serialize(Properties values) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		values.store(new OutputStreamWriter(out, StandardCharsets.UTF_8), null);
+		return out.toByteArray();
+	}
+
+	// Generate the S3 object key for a user's preferences document
+	private String getDocumentKey(String userId) {
+		return userId + "/" + DOCUMENT_NAME;
 	}
 
-	// Generate the S3 object key for a user preference
-	private String getUserPreferenceKey(String userId, String key) {
-		return userId + "/" + key;
+	// Get the location of the local copy of a user's preferences
+	private Path getLocalCopyPath(String userId) {
+		return stateDirectory.resolve(userId).resolve(DOCUMENT_NAME);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package io.github.lwcarani.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.cognitoidp.model.AuthenticationResultType;
+
+// Renews the logged-in user's session in the background shortly before the
+// access token expires, so long-running commands never find it expired.
+// Failed attempts are retried every minute until the current token runs out.
+@Component
+public class SessionRefresher {
+
+	// Lifetime assumed when Cognito doesn't report one
+	private static final long DEFAULT_LIFETIME_SECONDS = 3600;
+
+	private final UserService userService;
+	private final long minDelayMillis;
+	private final long retryDelayMillis;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "session-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// The session being renewed. Guarded by this.
+	private long session;
+	private String username;
+	private String refreshToken;
+	private Consumer<String> onRefresh;
+	private ScheduledFuture<?> scheduled;
+
+	@Autowired
+	public SessionRefresher(UserService userService) {
+		this(userService, 30_000, 60_000);
+	}
+
+	// Renew no earlier than minDelayMillis after a login or renewal, and retry
+	// failed renewals every retryDelayMillis
+	public SessionRefresher(UserService userService, long minDelayMillis, long retryDelayMillis) {
+		this.userService = userService;
+		this.minDelayMillis = minDelayMillis;
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	// Start renewing the session of a user who just logged in; onRefresh is
+	// given every new access token. Replaces any session renewed before.
+	public synchronized void start(String username, String refreshToken, Integer expiresInSeconds,
+			Consumer<String> onRefresh) {
+		stop();
+		if (refreshToken == null || onRefresh == null) {
+			return;
+		}
+		this.username = username;
+		this.refreshToken = refreshToken;
+		this.onRefresh = onRefresh;
+		scheduleRenewal(expiresInSeconds);
+	}
+
+	// Stop renewing the session, e.g. on logout
+	public synchronized void stop() {
+		session++;
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		username = null;
+		refreshToken = null;
+		onRefresh = null;
+	}
+
+	// Called with the lock held
+	private void scheduleRenewal(Integer expiresInSeconds) {
+		long lifetimeMillis = (expiresInSeconds != null ? expiresInSeconds : DEFAULT_LIFETIME_SECONDS) * 1000;
+		long expiresAt = System.currentTimeMillis() + lifetimeMillis;
+		schedule(Math.max(minDelayMillis, lifetimeMillis * 4 / 5), expiresAt);
+	}
+
+	// Called with the lock held
+	private void schedule(long delayMillis, long expiresAt) {
+		long current = session;
+		scheduled = scheduler.schedule(() -> renew(current, expiresAt), delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void renew(long current, long expiresAt) {
+		String user;
+		String token;
+		synchronized (this) {
+			if (current != session) {
+				return; // Logged out (or in again) in the meantime
+			}
+			user = username;
+			token = refreshToken;
+		}
+
+		AuthenticationResultType result = userService.refreshSession(user, token);
+		synchronized (this) {
+			if (current != session) {
+				return;
+			}
+			if (result != null && result.getAccessToken() != null) {
+				onRefresh.accept(result.getAccessToken());
+				scheduleRenewal(result.getExpiresIn());
+			} else if (System.currentTimeMillis() + retryDelayMillis < expiresAt) {
+				schedule(retryDelayMillis, expiresAt);
+			}
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package io.github.lwcarani.service;
 
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -9,6 +11,12 @@ import java.util.List;
  */
 public interface StorageService {
 
+	/**
+	 * Opens a connection to the cloud storage ahead of the first real request,
+	 * so it doesn't pay for the connection setup. Errors are ignored.
+	 */
+	void warmUp();
+
 	/**
 	 * Creates a new folder in the storage.
 	 *
@@ -46,7 +54,8 @@ public interface StorageService {
 	void deleteFile(String fullPath, String filePath);
 
 	/**
-	 * Downloads a file from the storage.
+	 * Downloads a file from the storage into memory. The whole file is held on
+	 * the heap, so prefer the streaming variants for anything large.
 	 *
 	 * @param fullPath The full path of the file to download
 	 * @param filePath The relative path of the file to download
@@ -55,7 +64,31 @@ public interface StorageService {
 	byte[] downloadFile(String fullPath, String filePath);
 
 	/**
-	 * Pushes local files to S3 storage.
+	 * Downloads a file from the storage straight to a local file, streaming it
+	 * through a fixed-size buffer. The destination is only replaced once the
+	 * download has completed.
+	 *
+	 * @param fullPath    The full path of the file to download
+	 * @param filePath    The relative path of the file to download
+	 * @param destination The local file to write
+	 * @return The number of bytes written, or -1 if the download failed
+	 */
+	long downloadFile(String fullPath, String filePath, Path destination);
+
+	/**
+	 * Downloads a file from the storage into a channel, streaming it through a
+	 * fixed-size buffer. The channel is not closed.
+	 *
+	 * @param fullPath The full path of the file to download
+	 * @param filePath The relative path of the file to download
+	 * @param target   The channel to write the file contents to
+	 * @return The number of bytes written, or -1 if the download failed
+	 */
+	long downloadFile(String fullPath, String filePath, WritableByteChannel target);
+
+	/**
+	 * Pushes local files to S3 storage. Only files that changed since the last
+	 * sync are uploaded.
 	 *
 	 * @param userId        The ID of the user
 	 * @param username      The username of the user
@@ -64,7 +97,24 @@ public interface StorageService {
 	void pushToS3(String userId, String username, String rootDirectory);
 
 	/**
-	 * Pulls files from S3 storage to the local file system.
+	 * Pushes only the given local paths to S3 storage, including everything
+	 * below any directories among them. Paths that were synced before but no
+	 * longer exist locally are deleted from the storage. Waits for any push, pull
+	 * or delete of the same user in progress, and skips files that are still as
+	 * they were last synced (e.g. ones that pull just wrote).
+	 *
+	 * @param userId        The ID of the user
+	 * @param username      The username of the user
+	 * @param rootDirectory The root directory on the local file system
+	 * @param relativePaths The changed paths, relative to the user's local root
+	 *                      and separated by "/"
+	 */
+	void syncPaths(String userId, String username, String rootDirectory, Collection<String> relativePaths);
+
+	/**
+	 * Pulls files from S3 storage to the local file system. Files whose local
+	 * copy already matches the cloud are not downloaded, and cloud folders are
+	 * merged into existing local directories.
 	 *
 	 * @param userId        The ID of the user
 	 * @param username      The username of the user
@@ -76,8 +126,9 @@ public interface StorageService {
 	 * Deletes a directory and its contents from the storage.
 	 *
 	 * @param fullPath The full path of the directory to delete
+	 * @return true if everything was deleted, false if some objects could not be
 	 */
-	void deleteDirectory(String fullPath);
+	boolean deleteDirectory(String fullPath);
 
 	/**
 	 * Checks if a given path is a valid S3 directory.
@@ -19,6 +19,17 @@ public interface UserService {
 	 */
 	AuthenticationResultType authenticateUser(String username, String password);
 
+	/**
+	 * Renews a user's session with the refresh token from an earlier
+	 * authentication, without asking for the password again.
+	 *
+	 * @param username     The username of the user
+	 * @param refreshToken The refresh token returned when the user logged in
+	 * @return An AuthenticationResultType object holding the new access token, or
+	 *         null if the session could not be renewed
+	 */
+	AuthenticationResultType refreshSession(String username, String refreshToken);
+
 	/**
 	 * Authenticates a user session using an access token.
 	 *
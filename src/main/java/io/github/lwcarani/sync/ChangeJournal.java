@@ -0,0 +1,425 @@
+package io.github.lwcarani.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import io.github.lwcarani.transfer.TransferRetrier;
+
+// Ordered log of the changes made to a user's files in S3, so another device
+// can catch up by reading only what changed since its last pull instead of
+// listing every key. Each push appends one segment object at
+// "<userId>/.dbox/journal/<sequence>"; segments sort by sequence number, so a
+// reader lists just the keys from the last sequence it has seen. A segment is
+// only ever created, never overwritten: a writer claims the next number with a
+// conditional PUT and moves on to the one after if another device got there
+// first. That alone doesn't keep segments from appearing out of order: while
+// one device's PUT of N is still in flight, another can be told N is taken,
+// write N+1, and have it listed first. So a reader stops at a missing number
+// until the segment after it is older than a grace period, by which time the
+// earlier PUT has either landed or failed for good.
+// "<userId>/.dbox/journal-head" records the latest sequence, so finding the end
+// of the journal never needs a full listing either. Segments older than the
+// retention period are deleted, oldest first; a reader whose position was
+// deleted that way gets an error and lists every key instead.
+@Component
+public class ChangeJournal {
+
+	private static final String JOURNAL_DIRECTORY = ".dbox/journal/";
+	private static final String HEAD_KEY = ".dbox/journal-head";
+	private static final String SEGMENT_HEADER = "# dropbox-clone journal v1";
+	// Attempts to claim a sequence number, or to move the head, while other
+	// devices keep appending
+	private static final int MAX_APPEND_ATTEMPTS = 16;
+	// Old segments are deleted every this many appends
+	private static final int TRIM_INTERVAL = 64;
+
+	// Latest sequence number seen per user, to avoid re-reading the head
+	private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+	private final AmazonS3 s3Client;
+	private final TransferRetrier retrier;
+	private final long retentionMillis;
+	private final long gapGraceMillis;
+
+	public ChangeJournal(AmazonS3 s3Client, TransferRetrier retrier,
+			@Value("${dropbox.sync.journal-retention-days:30}") long retentionDays,
+			@Value("${dropbox.sync.journal-gap-grace-seconds:300}") long gapGraceSeconds) {
+		this.s3Client = s3Client;
+		this.retrier = retrier;
+		this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+		this.gapGraceMillis = TimeUnit.SECONDS.toMillis(gapGraceSeconds);
+	}
+
+	// One change to a path. Directory paths end with "/"; a deleted path stands
+	// for everything at or below it.
+	public static class Change {
+		public enum Type {
+			PUT, DELETE
+		}
+
+		private final Type type;
+		private final String path;
+		private final long size;
+		private final String eTag;
+
+		private Change(Type type, String path, long size, String eTag) {
+			this.type = type;
+			this.path = path;
+			this.size = size;
+			this.eTag = eTag;
+		}
+
+		public static Change put(String path, long size, String eTag) {
+			return new Change(Type.PUT, path, size, eTag);
+		}
+
+		public static Change directory(String path) {
+			return new Change(Type.PUT, path.endsWith("/") ? path : path + "/", 0, "-");
+		}
+
+		public static Change delete(String path) {
+			return new Change(Type.DELETE, path, -1, "-");
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		public boolean isDirectory() {
+			return path.endsWith("/");
+		}
+	}
+
+	// How far a device has read the journal: the last sequence number it applied
+	public static class Position {
+		private final long sequence;
+
+		public Position(long sequence) {
+			this.sequence = sequence;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+	}
+
+	// The changes read from the journal, and the position after them
+	public static class Read {
+		private final List<Change> changes;
+		private final Position position;
+
+		Read(List<Change> changes, Position position) {
+			this.changes = changes;
+			this.position = position;
+		}
+
+		public List<Change> getChanges() {
+			return changes;
+		}
+
+		public Position getPosition() {
+			return position;
+		}
+	}
+
+	// Append one segment holding the given changes, then move the head to it and
+	// every TRIM_INTERVAL segments delete the expired ones. Failures are reported
+	// but don't fail the operation that made the changes.
+	public void append(String bucketName, String userId, Collection<Change> changes) {
+		if (changes.isEmpty()) {
+			return;
+		}
+
+		StringBuilder segment = new StringBuilder(SEGMENT_HEADER).append('\n');
+		for (Change change : changes) {
+			segment.append(change.getType() == Change.Type.PUT ? 'P' : 'D').append('\t').append(change.getSize())
+					.append('\t').append(change.getETag()).append('\t').append(change.getPath()).append('\n');
+		}
+
+		try {
+			long sequence = getCurrentPosition(bucketName, userId).getSequence() + 1;
+			for (int attempt = 1;; attempt++) {
+				try {
+					putText(bucketName, segmentKey(userId, sequence), segment.toString(), null);
+					break;
+				} catch (AmazonServiceException e) {
+					if (!isConflict(e) || attempt >= MAX_APPEND_ATTEMPTS) {
+						throw e;
+					}
+					sequence++; // Taken by another device
+				}
+			}
+			lastSequences.merge(userId, sequence, Math::max);
+			advanceHead(bucketName, userId, sequence);
+			if (sequence % TRIM_INTERVAL == 0) {
+				trim(bucketName, userId);
+			}
+		} catch (SdkClientException e) {
+			System.err.println("Couldn't record changes in the sync journal: " + e.getMessage());
+		}
+	}
+
+	// Delete segments older than the retention period, oldest first and always
+	// keeping the latest one, so the journal stays one unbroken run of sequence
+	// numbers
+	public void trim(String bucketName, String userId) {
+		String prefix = userId + "/" + JOURNAL_DIRECTORY;
+		long cutoff = System.currentTimeMillis() - retentionMillis;
+		List<KeyVersion> expired = new ArrayList<>();
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+		ListObjectsV2Result result;
+		// The last expired segment seen, deleted only once a later one turns up
+		String last = null;
+		boolean reachedRetained = false;
+		do {
+			result = retrier.get(() -> s3Client.listObjectsV2(request));
+			for (S3ObjectSummary summary : result.getObjectSummaries()) {
+				if (last != null) {
+					expired.add(new KeyVersion(last));
+				}
+				if (summary.getLastModified() == null || summary.getLastModified().getTime() >= cutoff) {
+					reachedRetained = true;
+					break;
+				}
+				last = summary.getKey();
+			}
+			request.setContinuationToken(result.getNextContinuationToken());
+		} while (!reachedRetained && result.isTruncated());
+
+		for (int from = 0; from < expired.size(); from += 1000) {
+			List<KeyVersion> keys = expired.subList(from, Math.min(from + 1000, expired.size()));
+			retrier.deleteObjects(s3Client, new DeleteObjectsRequest(bucketName).withKeys(keys).withQuiet(true));
+		}
+	}
+
+	// Find the end of the journal, i.e. the position a device that is fully up to
+	// date would be at. A segment still being written below that position is
+	// not waited for: its changes were made in S3 before it was appended, so a
+	// listing taken after this call already sees them.
+	public Position getCurrentPosition(String bucketName, String userId) {
+		Long known = lastSequences.get(userId);
+		long sequence = known != null ? known : readHead(bucketName, userId);
+
+		// The head may lag behind if another device appended since it was written
+		for (S3ObjectSummary segment : listSegmentsFrom(bucketName, userId, sequence)) {
+			sequence = Math.max(sequence, sequenceOf(segment));
+		}
+		lastSequences.merge(userId, sequence, Math::max);
+		return new Position(sequence);
+	}
+
+	// Read the changes appended since a position, oldest first. With nothing new
+	// this is a single listing request. Reading stops at a missing sequence
+	// number while the segment after it is recent, as the missing one may still
+	// be being written. Fails if segments after the position were deleted by
+	// trim, as their changes can't be read any more.
+	public Read readSince(String bucketName, String userId, Position position) throws IOException {
+		List<Change> changes = new ArrayList<>();
+		long sequence = position.getSequence();
+
+		List<S3ObjectSummary> listed = listSegmentsFrom(bucketName, userId, position.getSequence());
+		// The position's own segment is still there unless the journal was
+		// trimmed past it. Before the first segment, only a recent one may be
+		// preceded by missing numbers.
+		long first = listed.isEmpty() ? -1 : sequenceOf(listed.get(0));
+		if (position.getSequence() > 0 ? first != position.getSequence()
+				: first > 1 && !isWithinGapGrace(listed.get(0))) {
+			throw new IOException("The sync journal no longer holds the changes since sequence "
+					+ position.getSequence());
+		}
+		for (S3ObjectSummary segment : listed) {
+			long segmentSequence = sequenceOf(segment);
+			if (segmentSequence == position.getSequence()) {
+				continue; // Already applied
+			}
+			if (segmentSequence > sequence + 1 && isWithinGapGrace(segment)) {
+				break; // Come back for it once the missing segments had time to land
+			}
+			changes.addAll(readSegment(bucketName, segment.getKey()));
+			sequence = segmentSequence;
+		}
+		lastSequences.merge(userId, sequence, Math::max);
+		return new Read(changes, new Position(sequence));
+	}
+
+	// Collapse a list of changes so each path appears once with its latest
+	// state. A deleted directory drops the earlier changes below it.
+	public static Collection<Change> latestChanges(List<Change> changes) {
+		Map<String, Change> latest = new LinkedHashMap<>();
+		for (Change change : changes) {
+			if (change.getType() == Change.Type.DELETE) {
+				String directoryPrefix = change.getPath().endsWith("/") ? change.getPath() : change.getPath() + "/";
+				latest.keySet().removeIf(path -> path.equals(change.getPath()) || path.startsWith(directoryPrefix));
+			} else {
+				latest.remove(change.getPath());
+			}
+			latest.put(change.getPath(), change);
+		}
+		return latest.values();
+	}
+
+	// Segments with at least the given sequence number, in order
+	private List<S3ObjectSummary> listSegmentsFrom(String bucketName, String userId, long sequence) {
+		String prefix = userId + "/" + JOURNAL_DIRECTORY;
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+		if (sequence > 0) {
+			request.setStartAfter(prefix + formatSequence(sequence - 1));
+		}
+		List<S3ObjectSummary> segments = new ArrayList<>();
+		ListObjectsV2Result result;
+		do {
+			result = retrier.get(() -> s3Client.listObjectsV2(request));
+			segments.addAll(result.getObjectSummaries());
+			request.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+		return segments;
+	}
+
+	// Whether a segment was written too recently for a missing sequence number
+	// before it to be given up on
+	private boolean isWithinGapGrace(S3ObjectSummary segment) {
+		return segment.getLastModified() == null
+				|| System.currentTimeMillis() - segment.getLastModified().getTime() < gapGraceMillis;
+	}
+
+	// Parse one segment object
+	private List<Change> readSegment(String bucketName, String key) throws IOException {
+		List<Change> changes = new ArrayList<>();
+		String content;
+		try (S3Object object = retrier.get(() -> s3Client.getObject(bucketName, key));
+				InputStream in = object.getObjectContent()) {
+			content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		for (String line : content.split("\n")) {
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\t", 4);
+			if (fields.length != 4) {
+				throw new IOException("Malformed journal line in " + key + ": " + line);
+			}
+			changes.add(fields[0].equals("D") ? Change.delete(fields[3])
+					: Change.put(fields[3], Long.parseLong(fields[1]), fields[2]));
+		}
+		return changes;
+	}
+
+	// Read the latest sequence number recorded in the head, 0 if there is none
+	private long readHead(String bucketName, String userId) {
+		try {
+			return Long.parseLong(
+					retrier.get(() -> s3Client.getObjectAsString(bucketName, userId + "/" + HEAD_KEY)).trim());
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				return 0;
+			}
+			throw e;
+		} catch (NumberFormatException e) {
+			return 0; // Listing from the start recovers the real position
+		}
+	}
+
+	// Move the head to a sequence number unless another device already moved it
+	// further. Each update is conditional on the head read, so the head never
+	// goes back.
+	private void advanceHead(String bucketName, String userId, long sequence) {
+		String key = userId + "/" + HEAD_KEY;
+		for (int attempt = 1;; attempt++) {
+			String eTag = null;
+			try (S3Object head = retrier.get(() -> s3Client.getObject(bucketName, key));
+					InputStream in = head.getObjectContent()) {
+				eTag = head.getObjectMetadata().getETag();
+				if (Long.parseLong(new String(in.readAllBytes(), StandardCharsets.UTF_8).trim()) >= sequence) {
+					return;
+				}
+			} catch (AmazonServiceException e) {
+				if (e.getStatusCode() != 404) {
+					throw e;
+				}
+			} catch (IOException | NumberFormatException e) {
+				// Unreadable: replace it
+			}
+
+			try {
+				putText(bucketName, key, String.valueOf(sequence), eTag);
+				return;
+			} catch (AmazonServiceException e) {
+				if (!isConflict(e) || attempt >= MAX_APPEND_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	// Upload a small text object, only if the key still has the given ETag, or
+	// only if it doesn't exist yet when eTag is null
+	private void putText(String bucketName, String key, String text, String eTag) {
+		byte[] content = text.getBytes(StandardCharsets.UTF_8);
+		retrier.get(() -> {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(content.length);
+			PutObjectRequest request = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(content),
+					metadata);
+			if (eTag != null) {
+				request.putCustomRequestHeader("If-Match", eTag);
+			} else {
+				request.putCustomRequestHeader("If-None-Match", "*");
+			}
+			return s3Client.putObject(request);
+		});
+	}
+
+	// A conditional write lost to another device's write (409 while both are in
+	// flight)
+	private static boolean isConflict(AmazonServiceException e) {
+		return e.getStatusCode() == 412 || e.getStatusCode() == 409;
+	}
+
+	private static String segmentKey(String userId, long sequence) {
+		return userId + "/" + JOURNAL_DIRECTORY + formatSequence(sequence);
+	}
+
+	// Zero-padded so keys sort in sequence order
+	private static String formatSequence(long sequence) {
+		return String.format("%019d", sequence);
+	}
+
+	private static long sequenceOf(S3ObjectSummary segment) {
+		return Long.parseLong(segment.getKey().substring(segment.getKey().lastIndexOf('/') + 1));
+	}
+}
@@ -0,0 +1,135 @@
+package io.github.lwcarani.sync;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+// Scans a local tree in parallel. Each directory is read by its own fork/join
+// task, which forks a task per sub-directory, so slow file systems (e.g. NFS)
+// get many directory reads in flight at once. Attributes are read once per
+// entry, as part of listing its directory, and every entry is handed to the
+// visitor as soon as it is found, so uploads start while the scan goes on.
+@Component
+public class LocalTreeScanner {
+
+	// Receives every entry found. Called from several threads at once.
+	public interface Visitor {
+		void visit(Path path, String relativePath, BasicFileAttributes attributes);
+	}
+
+	private final ForkJoinPool pool;
+
+	// Directory reads mostly wait on I/O, so by default use more threads than cores
+	public LocalTreeScanner(@Value("${dropbox.sync.scan-parallelism:0}") int parallelism) {
+		this.pool = new ForkJoinPool(
+				parallelism > 0 ? parallelism : Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+	}
+
+	// Visit everything below root (but not root itself). Returns false if some
+	// directory couldn't be read, i.e. the scan is incomplete.
+	public boolean scan(Path root, Visitor visitor) {
+		return scan(root, root, visitor);
+	}
+
+	// Visit start and everything below it, with paths relative to root
+	public boolean scan(Path root, Path start, Visitor visitor) {
+		AtomicBoolean complete = new AtomicBoolean(true);
+		String startPath = root.relativize(start).toString().replace("\\", "/");
+		if (!startPath.isEmpty()) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(start, BasicFileAttributes.class);
+				visitor.visit(start, startPath, attributes);
+				if (!attributes.isDirectory()) {
+					return true;
+				}
+			} catch (IOException e) {
+				System.err.println("Error reading local file: " + start + ". Error: " + e.getMessage());
+				return false;
+			}
+		}
+		pool.invoke(new DirectoryTask(start, startPath, visitor, complete));
+		return complete.get();
+	}
+
+	// Stop the scanner threads when the application shuts down
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	// Lists one directory, visiting its entries and forking a task for each
+	// sub-directory
+	private static class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final String relativePath;
+		private final Visitor visitor;
+		private final AtomicBoolean complete;
+
+		DirectoryTask(Path directory, String relativePath, Visitor visitor, AtomicBoolean complete) {
+			this.directory = directory;
+			this.relativePath = relativePath;
+			this.visitor = visitor;
+			this.complete = complete;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subdirectories = new ArrayList<>();
+			try {
+				// Depth 1: every child is passed to visitFile with the attributes read
+				// while listing, and symbolic links aren't followed
+				Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+						String childPath = (relativePath.isEmpty() ? "" : relativePath + "/") + path.getFileName();
+						if (attributes.isSymbolicLink()) {
+							// Links are synced as whatever they point to, but not descended into
+							try {
+								attributes = Files.readAttributes(path, BasicFileAttributes.class);
+							} catch (IOException e) {
+								return visitFileFailed(path, e);
+							}
+						} else if (attributes.isDirectory()) {
+							DirectoryTask task = new DirectoryTask(path, childPath, visitor, complete);
+							task.fork();
+							subdirectories.add(task);
+						}
+						visitor.visit(path, childPath, attributes);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path path, IOException e) {
+						System.err.println("Error reading local file: " + path + ". Error: " + e.getMessage());
+						complete.set(false);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				System.err.println("Error reading local directory: " + directory + ". Error: " + e.getMessage());
+				complete.set(false);
+			}
+
+			for (DirectoryTask task : subdirectories) {
+				task.join();
+			}
+		}
+	}
+}
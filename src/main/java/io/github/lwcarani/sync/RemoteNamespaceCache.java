@@ -0,0 +1,136 @@
+package io.github.lwcarani.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// In-memory view of the remote namespace, filled lazily from the listings the
+// client already makes. Results are cached per listed prefix and expire after
+// a TTL (to pick up changes made by other devices), and every write or delete
+// this client makes drops exactly the cached prefixes it could have changed:
+// a key can only show up in a listing of one of its own prefixes.
+@Component
+public class RemoteNamespaceCache {
+
+	// A cached result and when it was stored
+	private static class Cached<T> {
+		private final T value;
+		private final long storedAt;
+
+		Cached(T value, long storedAt) {
+			this.value = value;
+			this.storedAt = storedAt;
+		}
+	}
+
+	private final long ttlMillis;
+	private final Map<String, Cached<List<String>>> listings = new ConcurrentHashMap<>();
+	private final Map<String, Cached<Boolean>> existence = new ConcurrentHashMap<>();
+	// Bumped by every change, so a listing that was in flight during a change
+	// isn't cached with a result that may predate it
+	private final AtomicLong generation = new AtomicLong();
+
+	public RemoteNamespaceCache(@Value("${dropbox.cache.namespace-ttl-seconds:60}") long ttlSeconds) {
+		this.ttlMillis = ttlSeconds * 1000;
+	}
+
+	// Take this before sending a listing request and pass it back when caching
+	// the result
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	// The cached entries listed under a prefix, as listFiles returns them (files
+	// relative to the prefix, folders as full keys ending with "/"), or null if
+	// unknown
+	public List<String> getListing(String prefix) {
+		return fresh(listings.get(prefix));
+	}
+
+	// Cache a listing. Folders in it are known to exist as well.
+	public void putListing(String prefix, List<String> entries, long listedAtGeneration) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (generation.get() != listedAtGeneration) {
+				return;
+			}
+			listings.put(prefix, new Cached<>(List.copyOf(entries), now));
+			if (!entries.isEmpty()) {
+				existence.put(prefix, new Cached<>(true, now));
+			}
+			for (String entry : entries) {
+				if (entry.endsWith("/")) {
+					// S3 lists common prefixes as full keys
+					String folder = entry.startsWith(prefix) ? entry : prefix + entry;
+					existence.put(folder, new Cached<>(true, now));
+					existence.put(folder.substring(0, folder.length() - 1), new Cached<>(true, now));
+				}
+			}
+		}
+	}
+
+	// Whether any key starts with a prefix, or null if unknown
+	public Boolean getExists(String prefix) {
+		return fresh(existence.get(prefix));
+	}
+
+	// Cache whether any key starts with a prefix
+	public synchronized void putExists(String prefix, boolean exists, long listedAtGeneration) {
+		if (generation.get() == listedAtGeneration) {
+			existence.put(prefix, new Cached<>(exists, System.currentTimeMillis()));
+		}
+	}
+
+	// Record that this client created or overwrote a key: every prefix of it now
+	// exists, and any listing of one of them may have changed. Only prefixes
+	// already cached are touched, so pushing many files doesn't fill the cache.
+	public synchronized void objectWritten(String key) {
+		generation.incrementAndGet();
+		long now = System.currentTimeMillis();
+		for (String prefix : prefixesOf(key)) {
+			listings.remove(prefix);
+			existence.computeIfPresent(prefix, (cachedPrefix, cached) -> new Cached<>(true, now));
+		}
+	}
+
+	// Record that this client deleted a key or a whole folder. Prefixes of it may
+	// have become empty, and nothing below it exists any more.
+	public synchronized void treeDeleted(String path) {
+		generation.incrementAndGet();
+		for (String prefix : prefixesOf(path)) {
+			listings.remove(prefix);
+			existence.remove(prefix);
+		}
+		// Only what is inside the folder, not siblings sharing its name ("docs-old")
+		String tree = path.endsWith("/") ? path : path + "/";
+		listings.keySet().removeIf(prefix -> prefix.startsWith(tree));
+		existence.keySet().removeIf(prefix -> prefix.startsWith(tree));
+	}
+
+	// The prefixes of a key that can be cached. Paths are only ever listed or
+	// checked whole, so these are the parts ending just before or just after
+	// each "/", and the key itself.
+	private static List<String> prefixesOf(String key) {
+		List<String> prefixes = new ArrayList<>();
+		prefixes.add("");
+		for (int slash = key.indexOf('/'); slash >= 0; slash = key.indexOf('/', slash + 1)) {
+			prefixes.add(key.substring(0, slash));
+			prefixes.add(key.substring(0, slash + 1));
+		}
+		prefixes.add(key);
+		return prefixes;
+	}
+
+	// The cached value, unless it has expired
+	private <T> T fresh(Cached<T> cached) {
+		if (cached == null || System.currentTimeMillis() - cached.storedAt > ttlMillis) {
+			return null;
+		}
+		return cached.value;
+	}
+}
@@ -0,0 +1,156 @@
+package io.github.lwcarani.sync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Records what a user's local tree looked like the last time it was pushed, so
+// that push only has to upload the paths that changed since then
+public class SyncManifest {
+
+	private static final String HEADER = "# dropbox-clone sync manifest v1";
+
+	// A single synced path. Directories are stored with a trailing "/" and have
+	// no size, hash or ETag.
+	public static class Entry {
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final String contentHash;
+		private final String eTag;
+
+		public Entry(String path, long size, long lastModified, String contentHash, String eTag) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentHash = contentHash;
+			this.eTag = eTag;
+		}
+
+		// Creates an entry representing a directory marker
+		public static Entry directory(String path) {
+			return new Entry(path.endsWith("/") ? path : path + "/", -1, 0, "-", "-");
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getContentHash() {
+			return contentHash;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		public boolean isDirectory() {
+			return path.endsWith("/");
+		}
+
+		// True if the local file still has the size and mtime recorded at push time
+		public boolean matches(long size, long lastModified) {
+			return this.size == size && this.lastModified == lastModified;
+		}
+	}
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	// Returns the entry for the given relative path, or null if it was never
+	// synced
+	public Entry get(String path) {
+		return entries.get(path);
+	}
+
+	public void put(Entry entry) {
+		entries.put(entry.getPath(), entry);
+	}
+
+	public void remove(String path) {
+		entries.remove(path);
+	}
+
+	// Removes every entry at or below the given relative directory path. An empty
+	// prefix clears the whole manifest.
+	public void removeTree(String prefix) {
+		if (prefix.isEmpty()) {
+			entries.clear();
+			return;
+		}
+		String dirPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+		String filePath = dirPrefix.substring(0, dirPrefix.length() - 1);
+		entries.keySet().removeIf(path -> path.equals(filePath) || path.startsWith(dirPrefix));
+	}
+
+	// Drops entries for paths that no longer exist locally
+	public void retainAll(Set<String> paths) {
+		entries.keySet().retainAll(paths);
+	}
+
+	public Collection<Entry> entries() {
+		return entries.values();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	// Loads a manifest from disk, returning an empty manifest if none exists yet
+	public static SyncManifest load(Path file) throws IOException {
+		SyncManifest manifest = new SyncManifest();
+		if (!Files.exists(file)) {
+			return manifest;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				// The path is the last column so that it may itself contain tabs
+				String[] fields = line.split("\t", 5);
+				if (fields.length != 5) {
+					continue;
+				}
+				manifest.put(new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+						fields[3]));
+			}
+		}
+		return manifest;
+	}
+
+	// Writes the manifest to a temporary file and atomically moves it into place,
+	// so a crash mid-write never leaves a truncated manifest behind
+	public void save(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.newLine();
+			for (Entry entry : entries.values()) {
+				writer.write(entry.getSize() + "\t" + entry.getLastModified() + "\t" + entry.getContentHash() + "\t"
+						+ entry.getETag() + "\t" + entry.getPath());
+				writer.newLine();
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,145 @@
+package io.github.lwcarani.sync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Loads and saves per-user sync manifests, journal positions and transfer
+// journals. They live under a local state directory rather than inside the
+// synced tree, so they survive restarts, and are kept per user and per local
+// root ("<state>/<userId>/<root hash>/"): what was synced from one root says
+// nothing about the files in another, so change_root starts from a fresh
+// state, and switching back picks up the old one again.
+@Component
+public class SyncManifestStore {
+
+	private static final String MANIFEST_FILE = "sync-manifest.tsv";
+
+	private final Path stateDirectory;
+
+	public SyncManifestStore(@Value("${dropbox.sync.state-dir:${user.home}/.dropbox-clone}") String stateDirectory) {
+		this.stateDirectory = Paths.get(stateDirectory);
+	}
+
+	// Load the manifest for a user's local root, falling back to an empty
+	// manifest if it is missing or unreadable (which just means the next push
+	// re-checks every file)
+	public SyncManifest load(String userId, Path localRoot) {
+		return load(getManifestPath(userId, localRoot));
+	}
+
+	private static SyncManifest load(Path manifestPath) {
+		try {
+			return SyncManifest.load(manifestPath);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Couldn't read sync manifest, starting from scratch: " + e.getMessage());
+			return new SyncManifest();
+		}
+	}
+
+	// Save the manifest for a user's local root
+	public void save(String userId, Path localRoot, SyncManifest manifest) {
+		save(getManifestPath(userId, localRoot), manifest);
+	}
+
+	private static void save(Path manifestPath, SyncManifest manifest) {
+		try {
+			manifest.save(manifestPath);
+		} catch (IOException e) {
+			System.err.println("Couldn't save sync manifest: " + e.getMessage());
+		}
+	}
+
+	// Forget everything recorded at or below a relative path in every one of
+	// the user's local roots, e.g. after it was deleted remotely
+	public void forget(String userId, String relativePath) {
+		Path userDirectory = stateDirectory.resolve(userId);
+		if (!Files.isDirectory(userDirectory)) {
+			return;
+		}
+		try (DirectoryStream<Path> roots = Files.newDirectoryStream(userDirectory, Files::isDirectory)) {
+			for (Path root : roots) {
+				Path manifestPath = root.resolve(MANIFEST_FILE);
+				if (Files.exists(manifestPath)) {
+					SyncManifest manifest = load(manifestPath);
+					manifest.removeTree(relativePath);
+					save(manifestPath, manifest);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't update sync manifests: " + e.getMessage());
+		}
+	}
+
+	// Load how far this device has read the user's remote change journal into a
+	// local root, or null if it never has (or the record is unreadable)
+	public ChangeJournal.Position loadJournalPosition(String userId, Path localRoot) {
+		Path positionPath = getJournalPositionPath(userId, localRoot);
+		if (!Files.exists(positionPath)) {
+			return null;
+		}
+		try {
+			List<String> lines = Files.readAllLines(positionPath, StandardCharsets.UTF_8);
+			return new ChangeJournal.Position(Long.parseLong(lines.get(0).trim()));
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Couldn't read sync journal position: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Save how far this device has read the user's remote change journal into a
+	// local root
+	public void saveJournalPosition(String userId, Path localRoot, ChangeJournal.Position position) {
+		Path positionPath = getJournalPositionPath(userId, localRoot);
+		List<String> lines = List.of(String.valueOf(position.getSequence()));
+		try {
+			Files.createDirectories(positionPath.getParent());
+			Path tmp = positionPath.resolveSibling(positionPath.getFileName() + ".tmp");
+			Files.write(tmp, lines, StandardCharsets.UTF_8);
+			Files.move(tmp, positionPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Couldn't save sync journal position: " + e.getMessage());
+		}
+	}
+
+	// Open the transfer journal of a user's local root, replaying what an
+	// interrupted push or pull left in it
+	public TransferJournal openTransferJournal(String userId, Path localRoot) {
+		return TransferJournal.open(getRootStateDirectory(userId, localRoot).resolve("transfer-journal.log"));
+	}
+
+	// Get the location of the journal position file of a user's local root
+	public Path getJournalPositionPath(String userId, Path localRoot) {
+		return getRootStateDirectory(userId, localRoot).resolve("journal-position");
+	}
+
+	// Get the location of the manifest file of a user's local root
+	public Path getManifestPath(String userId, Path localRoot) {
+		return getRootStateDirectory(userId, localRoot).resolve(MANIFEST_FILE);
+	}
+
+	// Get the directory holding the state of a user's local root, named after a
+	// hash of the root's canonical path so that different spellings of the same
+	// directory (relative, through a symlink, ...) share it
+	private Path getRootStateDirectory(String userId, Path localRoot) {
+		Path canonicalRoot;
+		try {
+			canonicalRoot = localRoot.toRealPath();
+		} catch (IOException e) {
+			canonicalRoot = localRoot.toAbsolutePath().normalize();
+		}
+		byte[] hash = FileUtils.newDigest("SHA-256").digest(canonicalRoot.toString().getBytes(StandardCharsets.UTF_8));
+		return stateDirectory.resolve(userId).resolve(HexFormat.of().formatHex(hash, 0, 8));
+	}
+}
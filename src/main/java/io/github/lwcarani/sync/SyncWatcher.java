@@ -0,0 +1,255 @@
+package io.github.lwcarani.sync;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Watches a user's local dropbox-clone folder and syncs changed paths in the
+// background. Every directory is registered with the platform's WatchService,
+// so an idle tree costs no CPU. Events are collected until the tree has been
+// quiet for a moment (an editor saving a file several times becomes a single
+// upload) and then only the affected paths are handed to the sync callback.
+public class SyncWatcher {
+
+	// Sync once no event has arrived for this long...
+	private static final long QUIET_PERIOD_MILLIS = 2_000;
+	// ...but never hold back a change longer than this while events keep coming
+	private static final long MAX_DELAY_MILLIS = 10_000;
+
+	private final Path root;
+	private final Consumer<Collection<String>> syncPaths;
+	private final Runnable fullSync;
+	private final long quietPeriodMillis;
+	private final long maxDelayMillis;
+	private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+	private WatchService watchService;
+	private Thread thread;
+
+	// syncPaths receives "/"-separated paths relative to root; fullSync is run
+	// instead when the platform dropped events and the changes are unknown
+	public SyncWatcher(Path root, Consumer<Collection<String>> syncPaths, Runnable fullSync) {
+		this(root, syncPaths, fullSync, QUIET_PERIOD_MILLIS, MAX_DELAY_MILLIS);
+	}
+
+	public SyncWatcher(Path root, Consumer<Collection<String>> syncPaths, Runnable fullSync, long quietPeriodMillis,
+			long maxDelayMillis) {
+		this.root = root;
+		this.syncPaths = syncPaths;
+		this.fullSync = fullSync;
+		this.quietPeriodMillis = quietPeriodMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	// Register the tree and start syncing changes on a background thread
+	public synchronized void start() throws IOException {
+		if (thread != null) {
+			return;
+		}
+		watchService = FileSystems.getDefault().newWatchService();
+		try {
+			registerTree(root);
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+		thread = new Thread(this::run, "sync-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Stop watching; a sync already in progress is allowed to finish
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			System.err.println("Error closing file watcher: " + e.getMessage());
+		}
+		thread = null;
+		watchedDirectories.clear();
+	}
+
+	public synchronized boolean isRunning() {
+		return thread != null;
+	}
+
+	public int getWatchedDirectoryCount() {
+		return watchedDirectories.size();
+	}
+
+	// Event loop: block while idle, then debounce and sync. A failed sync doesn't
+	// end the loop; the next change is synced with a full sync instead, so what
+	// the failed one missed is picked up too.
+	private void run() {
+		TreeSet<String> pending = new TreeSet<>();
+		boolean overflow = false;
+		boolean syncFailed = false;
+		long firstEventAt = 0;
+
+		try {
+			while (true) {
+				WatchKey key;
+				if (pending.isEmpty() && !overflow) {
+					key = watchService.take();
+					firstEventAt = System.currentTimeMillis();
+				} else {
+					long waitMillis = Math.min(quietPeriodMillis,
+							firstEventAt + maxDelayMillis - System.currentTimeMillis());
+					key = waitMillis > 0 ? watchService.poll(waitMillis, TimeUnit.MILLISECONDS) : null;
+				}
+
+				if (key != null) {
+					overflow |= collectEvents(key, pending);
+					continue;
+				}
+
+				// Quiet period elapsed (or the maximum delay was reached)
+				try {
+					if (overflow || syncFailed) {
+						fullSync.run();
+					} else {
+						syncPaths.accept(withoutNestedPaths(pending));
+					}
+					syncFailed = false;
+				} catch (RuntimeException e) {
+					System.err.println("Couldn't sync changes, will retry on the next change: " + e.getMessage());
+					syncFailed = true;
+				}
+				pending.clear();
+				overflow = false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// stop() was called
+		} catch (RuntimeException e) {
+			System.err.println("File watcher stopped after an error: " + e.getMessage());
+		} finally {
+			stopped(Thread.currentThread());
+		}
+	}
+
+	// Clear the state of a thread that ended on its own, so the watcher reports
+	// that it is no longer running
+	private synchronized void stopped(Thread ended) {
+		if (thread != ended) {
+			return;
+		}
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			System.err.println("Error closing file watcher: " + e.getMessage());
+		}
+		thread = null;
+		watchedDirectories.clear();
+	}
+
+	// Add the paths changed in one directory to pending. Returns true if events
+	// were lost and a full sync is needed.
+	private boolean collectEvents(WatchKey key, TreeSet<String> pending) {
+		Path directory = watchedDirectories.get(key);
+		boolean overflow = false;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			if (directory == null) {
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			String relativePath = root.relativize(path).toString().replace("\\", "/");
+			if (isIgnored(relativePath)) {
+				continue;
+			}
+
+			boolean isDirectory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+			if (event.kind() == ENTRY_CREATE && isDirectory) {
+				// Watch the new directory before syncing it, so nothing created in it
+				// from now on is missed
+				try {
+					registerTree(path);
+				} catch (IOException e) {
+					System.err.println("Couldn't watch new directory " + path + ": " + e.getMessage());
+				}
+			} else if (event.kind() == ENTRY_MODIFY && isDirectory) {
+				continue; // Its children report their own changes
+			}
+			pending.add(relativePath);
+		}
+
+		if (!key.reset()) {
+			// The directory was deleted or became inaccessible
+			watchedDirectories.remove(key);
+		}
+		return overflow;
+	}
+
+	// Register a directory and everything below it
+	private void registerTree(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (!dir.equals(root) && isIgnored(root.relativize(dir).toString().replace("\\", "/"))) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchedDirectories.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println("Couldn't watch " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	// The client's own bookkeeping and half-finished downloads never get synced
+	private static boolean isIgnored(String relativePath) {
+		return relativePath.equals(".dbox") || relativePath.startsWith(".dbox/")
+				|| relativePath.endsWith(".dbox-part");
+	}
+
+	// Drop paths below another pending path: syncing a directory covers them
+	public static List<String> withoutNestedPaths(Set<String> paths) {
+		List<String> result = new ArrayList<>();
+		for (String path : paths) {
+			boolean nested = false;
+			for (int slash = path.lastIndexOf('/'); slash > 0 && !nested; slash = path.lastIndexOf('/', slash - 1)) {
+				nested = paths.contains(path.substring(0, slash));
+			}
+			if (!nested) {
+				result.add(path);
+			}
+		}
+		return result;
+	}
+}
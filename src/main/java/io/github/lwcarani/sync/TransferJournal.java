@@ -0,0 +1,341 @@
+package io.github.lwcarani.sync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+import io.github.lwcarani.transfer.MultipartCheckpoint;
+
+// Local, crash-safe record of a push or pull in progress: files finished since
+// the manifest was last saved, multipart uploads with the parts uploaded so
+// far, and large downloads under way. Each event is appended as one line and
+// flushed right away, so if the JVM dies or the machine sleeps part way
+// through, the next push or pull replays the journal and picks up where it
+// stopped instead of starting over. A torn last line is ignored. Closing the
+// journal compacts it down to what can still be resumed.
+public class TransferJournal implements Closeable {
+
+	private static final String HEADER = "# dropbox-clone transfer journal v1";
+
+	// A multipart upload started for one version of a local file
+	public static class PendingUpload {
+		private final String uploadId;
+		private final String key;
+		private final long size;
+		private final long lastModified;
+		private final long partSize;
+		private final Map<Integer, String> partETags = new LinkedHashMap<>();
+		// Found again (or started) by the current push
+		private boolean resumed;
+
+		PendingUpload(String uploadId, String key, long size, long lastModified, long partSize) {
+			this.uploadId = uploadId;
+			this.key = key;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.partSize = partSize;
+		}
+
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+
+	private final Path file;
+	// Files finished since the manifest was last saved, and which of them were
+	// pushed (rather than pulled)
+	private final Map<String, SyncManifest.Entry> finished = new LinkedHashMap<>();
+	private final Set<String> pushed = new HashSet<>();
+	// Open multipart uploads by upload ID
+	private final Map<String, PendingUpload> uploads = new LinkedHashMap<>();
+	// ETag of the object each unfinished large download is fetching, by path
+	private final Map<String, String> downloads = new LinkedHashMap<>();
+	// Null once writing failed; the operation then goes on without a journal
+	private BufferedWriter writer;
+
+	private TransferJournal(Path file) {
+		this.file = file;
+	}
+
+	// Open the journal at file, replaying whatever an interrupted operation left
+	// in it. Problems are reported but never fail the operation.
+	public static TransferJournal open(Path file) {
+		TransferJournal journal = new TransferJournal(file);
+		try {
+			if (Files.exists(file)) {
+				journal.replay();
+			}
+			journal.compact(true);
+			Files.createDirectories(file.getParent());
+			journal.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			System.err.println("Couldn't open transfer journal, transfers won't be resumable: " + e.getMessage());
+		}
+		return journal;
+	}
+
+	// Add the files finished by an interrupted operation to the manifest
+	public synchronized void applyTo(SyncManifest manifest) {
+		finished.values().forEach(manifest::put);
+	}
+
+	// Files an interrupted push uploaded but may not have recorded in the remote
+	// change journal yet
+	public synchronized List<SyncManifest.Entry> getPushedEntries() {
+		return finished.values().stream().filter(entry -> pushed.contains(entry.getPath()))
+				.collect(Collectors.toList());
+	}
+
+	// Record a file or directory marker that was uploaded
+	public synchronized void filePushed(SyncManifest.Entry entry) {
+		finished.put(entry.getPath(), entry);
+		pushed.add(entry.getPath());
+		append("pushed\t" + format(entry));
+	}
+
+	// Record a file that was downloaded (or found up to date) or a directory
+	// that was created
+	public synchronized void filePulled(SyncManifest.Entry entry) {
+		finished.put(entry.getPath(), entry);
+		pushed.remove(entry.getPath());
+		downloads.remove(entry.getPath());
+		append("pulled\t" + format(entry));
+	}
+
+	// A checkpoint for the multipart upload of a file with the given size and
+	// mtime to key
+	public MultipartCheckpoint checkpoint(String key, long size, long lastModified) {
+		return new MultipartCheckpoint() {
+			@Override
+			public Upload find() {
+				synchronized (TransferJournal.this) {
+					PendingUpload found = null;
+					for (PendingUpload upload : uploads.values()) {
+						if (upload.key.equals(key) && upload.size == size && upload.lastModified == lastModified) {
+							found = upload;
+						}
+					}
+					if (found == null) {
+						return null;
+					}
+					found.resumed = true;
+					return new Upload(found.uploadId, found.partSize, new LinkedHashMap<>(found.partETags));
+				}
+			}
+
+			@Override
+			public void started(String uploadId, long partSize) {
+				synchronized (TransferJournal.this) {
+					PendingUpload upload = new PendingUpload(uploadId, key, size, lastModified, partSize);
+					upload.resumed = true;
+					uploads.put(uploadId, upload);
+					append(formatUpload(upload));
+				}
+			}
+
+			@Override
+			public void partUploaded(String uploadId, PartETag part) {
+				synchronized (TransferJournal.this) {
+					PendingUpload upload = uploads.get(uploadId);
+					if (upload != null) {
+						upload.partETags.put(part.getPartNumber(), part.getETag());
+						append("part\t" + uploadId + "\t" + part.getPartNumber() + "\t" + part.getETag());
+					}
+				}
+			}
+
+			@Override
+			public void closed(String uploadId) {
+				uploadClosed(uploadId);
+			}
+		};
+	}
+
+	// Record that a multipart upload was completed or aborted
+	public synchronized void uploadClosed(String uploadId) {
+		if (uploads.remove(uploadId) != null) {
+			append("closed\t" + uploadId);
+		}
+	}
+
+	// Uploads left by an interrupted push that the current push didn't resume,
+	// e.g. because the file changed or was deleted since
+	public synchronized List<PendingUpload> getUnresumedUploads() {
+		return uploads.values().stream().filter(upload -> !upload.resumed).collect(Collectors.toList());
+	}
+
+	// The ETag of the object an unfinished download of a path was fetching, or
+	// null if there is none
+	public synchronized String getDownloadETag(String relativePath) {
+		return downloads.get(relativePath);
+	}
+
+	// Record that a large download started, so it can be resumed if interrupted
+	public synchronized void downloadStarted(String relativePath, String eTag) {
+		downloads.put(relativePath, eTag);
+		append("download\t" + eTag + "\t" + relativePath);
+	}
+
+	// Record that what an unfinished download fetched was thrown away
+	public synchronized void downloadDiscarded(String relativePath) {
+		if (downloads.remove(relativePath) != null) {
+			append("discarded\t" + relativePath);
+		}
+	}
+
+	// Close the journal once the operation's manifest is saved, keeping only the
+	// uploads and downloads that can still be resumed
+	@Override
+	public synchronized void close() {
+		try {
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+			finished.clear();
+			pushed.clear();
+			compact(false);
+		} catch (IOException e) {
+			System.err.println("Couldn't compact transfer journal: " + e.getMessage());
+		}
+	}
+
+	private void replay() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					replay(line);
+				} catch (RuntimeException e) {
+					// A line torn by a crash mid-write
+				}
+			}
+		}
+	}
+
+	// Paths and keys are the last column so that they may contain tabs
+	private void replay(String line) {
+		String type = line.substring(0, line.indexOf('\t'));
+		String[] fields;
+		switch (type) {
+		case "pushed":
+		case "pulled":
+			fields = line.split("\t", 6);
+			SyncManifest.Entry entry = new SyncManifest.Entry(fields[5], Long.parseLong(fields[1]),
+					Long.parseLong(fields[2]), fields[3], fields[4]);
+			finished.put(entry.getPath(), entry);
+			if (type.equals("pushed")) {
+				pushed.add(entry.getPath());
+			} else {
+				pushed.remove(entry.getPath());
+				downloads.remove(entry.getPath());
+			}
+			break;
+		case "upload":
+			fields = line.split("\t", 6);
+			uploads.put(fields[1], new PendingUpload(fields[1], fields[5], Long.parseLong(fields[2]),
+					Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+			break;
+		case "part":
+			fields = line.split("\t", 4);
+			PendingUpload upload = uploads.get(fields[1]);
+			if (upload != null) {
+				upload.partETags.put(Integer.parseInt(fields[2]), fields[3]);
+			}
+			break;
+		case "closed":
+			uploads.remove(line.split("\t", 2)[1]);
+			break;
+		case "download":
+			fields = line.split("\t", 3);
+			downloads.put(fields[2], fields[1]);
+			break;
+		case "discarded":
+			downloads.remove(line.split("\t", 2)[1]);
+			break;
+		default:
+			break;
+		}
+	}
+
+	// Rewrite the journal with just its current state, or delete it if there is
+	// nothing left to resume
+	private void compact(boolean keepFinished) throws IOException {
+		List<String> lines = new ArrayList<>();
+		if (keepFinished) {
+			for (SyncManifest.Entry entry : finished.values()) {
+				lines.add((pushed.contains(entry.getPath()) ? "pushed\t" : "pulled\t") + format(entry));
+			}
+		}
+		for (PendingUpload upload : uploads.values()) {
+			lines.add(formatUpload(upload));
+			upload.partETags.forEach(
+					(number, eTag) -> lines.add("part\t" + upload.uploadId + "\t" + number + "\t" + eTag));
+		}
+		downloads.forEach((path, eTag) -> lines.add("download\t" + eTag + "\t" + path));
+
+		if (lines.isEmpty()) {
+			Files.deleteIfExists(file);
+			return;
+		}
+		lines.add(0, HEADER);
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(tmp, lines, StandardCharsets.UTF_8);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Append one record and hand it to the OS right away, so it survives the JVM
+	// dying. Failing to write never fails the transfer itself.
+	private void append(String record) {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.write(record);
+			writer.newLine();
+			writer.flush();
+		} catch (IOException e) {
+			System.err.println("Couldn't write transfer journal, transfers won't be resumable: " + e.getMessage());
+			try {
+				writer.close();
+			} catch (IOException ignored) {
+				// Already reported
+			}
+			writer = null;
+		}
+	}
+
+	private static String format(SyncManifest.Entry entry) {
+		return entry.getSize() + "\t" + entry.getLastModified() + "\t" + entry.getContentHash() + "\t"
+				+ entry.getETag() + "\t" + entry.getPath();
+	}
+
+	private static String formatUpload(PendingUpload upload) {
+		return "upload\t" + upload.uploadId + "\t" + upload.size + "\t" + upload.lastModified + "\t"
+				+ upload.partSize + "\t" + upload.key;
+	}
+}
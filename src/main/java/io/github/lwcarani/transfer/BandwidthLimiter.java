@@ -0,0 +1,406 @@
+package io.github.lwcarani.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Caps the bytes per second sent to and received from S3, across every push,
+// pull and watch, so a large sync doesn't crowd everything else off the
+// network. Each direction is a token bucket kept as a single virtual clock:
+// a read books its bytes by moving the clock forward with one compare-and-set,
+// then sleeps until the clock is no more than the allowed burst ahead of real
+// time. Nothing is locked per byte, and unlimited transfers only read a
+// volatile. Limits can be changed while transfers run, and optional
+// full-speed hours (e.g. overnight) lift them altogether.
+@Component
+public class BandwidthLimiter {
+
+	// How far ahead of its rate a transfer may get, e.g. after an idle moment
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+	// Largest read charged at once, so slow limits still send smoothly
+	private static final int MAX_CHUNK = 16 * 1024;
+	// How often the full-speed hours are checked against the clock
+	private static final long SCHEDULE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("H:mm");
+
+	private final Bucket upload = new Bucket();
+	private final Bucket download = new Bucket();
+	// Full-speed hours as [start, end) minutes of the day; end may be before
+	// start for hours that run past midnight
+	private volatile List<int[]> fullSpeedHours;
+	private volatile boolean fullSpeed;
+	private volatile long scheduleCheckedAt;
+
+	public BandwidthLimiter(@Value("${dropbox.transfer.bandwidth.upload:0}") String uploadLimit,
+			@Value("${dropbox.transfer.bandwidth.download:0}") String downloadLimit,
+			@Value("${dropbox.transfer.bandwidth.full-speed-hours:}") String fullSpeedHours) {
+		setUploadLimit(FileUtils.parseBytes(uploadLimit));
+		setDownloadLimit(FileUtils.parseBytes(downloadLimit));
+		setFullSpeedHours(fullSpeedHours);
+	}
+
+	// Wrap an S3 client so uploaded request bodies and downloaded object content
+	// are held to the current limits
+	public AmazonS3 limit(AmazonS3 client) {
+		Object proxy = Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				(self, method, args) -> {
+					if (method.getDeclaringClass() == Object.class || args == null) {
+						return invoke(method, client, args);
+					}
+					// The call gets a throttled copy of the request, leaving the caller's as it was
+					InputStream opened = null;
+					Object[] limitedArgs = args;
+					if (args[0] instanceof PutObjectRequest) {
+						PutObjectRequest request = ((PutObjectRequest) args[0]).clone();
+						opened = throttleBody(request);
+						limitedArgs = args.clone();
+						limitedArgs[0] = request;
+					} else if (args[0] instanceof UploadPartRequest) {
+						UploadPartRequest request = (UploadPartRequest) ((UploadPartRequest) args[0]).clone();
+						opened = throttleBody(request);
+						limitedArgs = args.clone();
+						limitedArgs[0] = request;
+					}
+					Object result;
+					try {
+						result = invoke(method, client, limitedArgs);
+					} finally {
+						if (opened != null) {
+							opened.close();
+						}
+					}
+					if (result instanceof S3Object) {
+						S3Object object = (S3Object) result;
+						object.setObjectContent(throttleDownload(object.getObjectContent()));
+					}
+					return result;
+				});
+		return (AmazonS3) proxy;
+	}
+
+	// Wrap a stream being uploaded so reading it is held to the upload limit
+	public InputStream throttleUpload(InputStream in) {
+		return new ThrottledInputStream(in, upload);
+	}
+
+	// Wrap a stream being downloaded so reading it is held to the download limit
+	public InputStream throttleDownload(InputStream in) {
+		return new ThrottledInputStream(in, download);
+	}
+
+	// Set the upload limit in bytes per second; 0 means unlimited
+	public void setUploadLimit(long bytesPerSecond) {
+		upload.setRate(bytesPerSecond);
+	}
+
+	// Set the download limit in bytes per second; 0 means unlimited
+	public void setDownloadLimit(long bytesPerSecond) {
+		download.setRate(bytesPerSecond);
+	}
+
+	public long getUploadLimit() {
+		return upload.rate;
+	}
+
+	public long getDownloadLimit() {
+		return download.rate;
+	}
+
+	// Set the hours during which no limits apply, as comma-separated ranges such
+	// as "22:00-07:00,12:00-13:00"; empty or "off" clears them
+	public void setFullSpeedHours(String hours) {
+		List<int[]> ranges = new ArrayList<>();
+		String trimmed = hours == null ? "" : hours.trim();
+		if (!trimmed.isEmpty() && !trimmed.equalsIgnoreCase("off")) {
+			for (String range : trimmed.split(",")) {
+				String[] ends = range.trim().split("-");
+				if (ends.length != 2) {
+					throw new IllegalArgumentException("Expected a range like 22:00-07:00: " + range.trim());
+				}
+				int start = parseMinute(ends[0]);
+				int end = parseMinute(ends[1]);
+				if (start == end) {
+					throw new IllegalArgumentException("Empty range: " + range.trim());
+				}
+				ranges.add(new int[] { start, end });
+			}
+		}
+		fullSpeedHours = ranges;
+		scheduleCheckedAt = System.nanoTime() - SCHEDULE_CHECK_NANOS;
+	}
+
+	// The full-speed hours in the form setFullSpeedHours takes, or "" if none
+	public String getFullSpeedHours() {
+		return fullSpeedHours.stream().map(range -> formatMinute(range[0]) + "-" + formatMinute(range[1]))
+				.collect(Collectors.joining(","));
+	}
+
+	// Whether the given time of day falls in the full-speed hours
+	public boolean isFullSpeed(LocalTime time) {
+		int minute = time.getHour() * 60 + time.getMinute();
+		for (int[] range : fullSpeedHours) {
+			boolean inside = range[0] < range[1] ? minute >= range[0] && minute < range[1]
+					: minute >= range[0] || minute < range[1];
+			if (inside) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Describe the current limits, for the bandwidth command
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append("Upload limit: ").append(formatRate(upload.rate)).append('\n');
+		report.append("Download limit: ").append(formatRate(download.rate)).append('\n');
+		String hours = getFullSpeedHours();
+		if (!hours.isEmpty()) {
+			report.append("Full speed during: ").append(hours)
+					.append(isFullSpeed(LocalTime.now()) ? " (now)" : "").append('\n');
+		}
+		return report.toString();
+	}
+
+	// Swap the file of a copied request for a stream over the same bytes that
+	// can be throttled. The stream supports mark and reset, so a request that
+	// is sent again rereads the same bytes. Returns the stream opened, for the
+	// caller to close once the request is done.
+	private InputStream throttleBody(PutObjectRequest request) throws IOException {
+		if (request.getFile() == null) {
+			if (request.getInputStream() != null) {
+				request.setInputStream(throttleUpload(request.getInputStream()));
+			}
+			return null;
+		}
+		File file = request.getFile();
+		ObjectMetadata metadata = request.getMetadata() != null ? request.getMetadata().clone() : new ObjectMetadata();
+		metadata.setContentLength(file.length());
+		if (metadata.getContentType() == null) {
+			String contentType = URLConnection.guessContentTypeFromName(file.getName());
+			metadata.setContentType(contentType != null ? contentType : "application/octet-stream");
+		}
+		InputStream body = throttleUpload(new FileRangeInputStream(file, 0, file.length()));
+		request.setFile(null);
+		request.setMetadata(metadata);
+		request.setInputStream(body);
+		return body;
+	}
+
+	private InputStream throttleBody(UploadPartRequest request) throws IOException {
+		if (request.getFile() == null) {
+			if (request.getInputStream() != null) {
+				request.setInputStream(throttleUpload(request.getInputStream()));
+			}
+			return null;
+		}
+		InputStream body = throttleUpload(
+				new FileRangeInputStream(request.getFile(), request.getFileOffset(), request.getPartSize()));
+		request.setFile(null);
+		request.setFileOffset(0);
+		request.setInputStream(body);
+		return body;
+	}
+
+	private boolean fullSpeedNow() {
+		long now = System.nanoTime();
+		if (now - scheduleCheckedAt >= SCHEDULE_CHECK_NANOS) {
+			fullSpeed = !fullSpeedHours.isEmpty() && isFullSpeed(LocalTime.now());
+			scheduleCheckedAt = now;
+		}
+		return fullSpeed;
+	}
+
+	private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static int parseMinute(String time) {
+		try {
+			LocalTime parsed = LocalTime.parse(time.trim(), TIME_FORMAT);
+			return parsed.getHour() * 60 + parsed.getMinute();
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Expected a time like 22:00: " + time.trim());
+		}
+	}
+
+	private static String formatMinute(int minute) {
+		return String.format("%02d:%02d", minute / 60, minute % 60);
+	}
+
+	private static String formatRate(long bytesPerSecond) {
+		return bytesPerSecond == 0 ? "unlimited" : FileUtils.formatBytes(bytesPerSecond) + "/s";
+	}
+
+	// A token bucket for one direction. next is the virtual time at which
+	// everything booked so far will have been sent at the current rate.
+	private class Bucket {
+		private volatile long rate;
+		private final AtomicLong next = new AtomicLong(System.nanoTime());
+
+		void setRate(long bytesPerSecond) {
+			if (bytesPerSecond < 0) {
+				throw new IllegalArgumentException("Limit can't be negative: " + bytesPerSecond);
+			}
+			rate = bytesPerSecond;
+		}
+
+		// Book bytes just read and wait until they are within the rate
+		void take(long bytes) throws InterruptedIOException {
+			long currentRate = rate;
+			if (currentRate <= 0 || fullSpeedNow()) {
+				return;
+			}
+			long cost = (long) (bytes * 1_000_000_000.0 / currentRate);
+			long now = System.nanoTime();
+			long prev;
+			long booked;
+			do {
+				prev = next.get();
+				// Time left idle isn't saved up; the burst allowance covers that
+				booked = Math.max(prev, now) + cost;
+			} while (!next.compareAndSet(prev, booked));
+
+			long wait;
+			while ((wait = booked - System.nanoTime() - BURST_NANOS) > 0) {
+				LockSupport.parkNanos(wait);
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while limiting bandwidth");
+				}
+			}
+		}
+	}
+
+	// Reads a range of a file through a FileInputStream. Mark and reset move
+	// within the range, so a request that is sent again rereads the same bytes.
+	private static class FileRangeInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		private long mark;
+
+		FileRangeInputStream(File file, long offset, long length) throws IOException {
+			this.channel = new FileInputStream(file).getChannel();
+			this.end = offset + length;
+			this.position = offset;
+			this.mark = offset;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			mark = position;
+		}
+
+		@Override
+		public synchronized void reset() {
+			position = mark;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	// Charges every read to a bucket. Mark and reset are passed through, so a
+	// retry that rereads bytes is charged for sending them again.
+	private static class ThrottledInputStream extends FilterInputStream {
+		private final Bucket bucket;
+
+		ThrottledInputStream(InputStream in, Bucket bucket) {
+			super(in);
+			this.bucket = bucket;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				bucket.take(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, bucket.rate > 0 ? Math.min(len, MAX_CHUNK) : len);
+			if (n > 0) {
+				bucket.take(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			return in.skip(n);
+		}
+	}
+}
@@ -0,0 +1,518 @@
+package io.github.lwcarani.transfer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Optional deduplicating storage mode. Large files are split into
+// content-defined chunks stored once per user under "<userId>/.dbox/chunks/<sha256>",
+// and the file's own key holds a small manifest listing its chunks. Push only
+// uploads chunks the bucket doesn't have yet, and pull rebuilds files from the
+// chunks already present in the old local copy plus any it has to fetch.
+//
+// Chunks no file uses any more are deleted by a sweep. Every chunked upload
+// first writes a reference under "<userId>/.dbox/chunk-refs/" naming the file
+// and listing its chunks, so the sweep knows which files to read without
+// looking at every object. Chunks and references are only considered once
+// they are a day old, which keeps uploads still in progress safe.
+@Component
+public class ChunkStore {
+
+	// Metadata marking an object as a chunk manifest rather than file content
+	public static final String STORAGE_METADATA = "dbox-storage";
+	public static final String STORAGE_CHUNKED = "chunked";
+
+	private static final String MANIFEST_HEADER = "# dropbox-clone chunked file v1";
+	private static final String CHUNK_DIRECTORY = ".dbox/chunks/";
+	private static final String REFERENCE_DIRECTORY = ".dbox/chunk-refs/";
+	// Chunks are listed in shards of this many leading hex digits of their hash
+	private static final int SHARD_DIGITS = 2;
+	// Chunks fetched ahead of the one being written when rebuilding a file
+	private static final int MAX_PARALLEL_FETCHES = 8;
+	// Chunks and references younger than this are left alone by the sweep: an
+	// upload may still be about to use the chunk or write the file
+	private static final long ORPHAN_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+	// A user's chunks are swept at most this often by one client
+	private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	// The chunks one push found or stored in the bucket, so that its uploads
+	// list each shard of the chunk store at most once and check each chunk at
+	// most once. Chunks may be deleted between pushes, so an instance shouldn't
+	// outlive its push.
+	public static class KnownChunks {
+		private final Set<String> hashes = ConcurrentHashMap.newKeySet();
+		// The listing of each shard, started by the first upload to need it
+		private final Map<String, CompletableFuture<Void>> shards = new ConcurrentHashMap<>();
+		private volatile boolean uploaded;
+
+		// Whether a chunked file was uploaded with this set
+		public boolean hasUploads() {
+			return uploaded;
+		}
+	}
+
+	private final AmazonS3 s3Client;
+	private final TransferEngine transferEngine;
+	private final TransferRetrier retrier;
+	private final ContentChunker chunker;
+	private final boolean enabled;
+	private final long minFileSize;
+	// Makes reference names unique across devices
+	private final String writerId = UUID.randomUUID().toString().substring(0, 8);
+	private final AtomicLong referenceCounter = new AtomicLong();
+	// When each user's chunks were last swept by this client
+	private final Map<String, Long> lastSweeps = new ConcurrentHashMap<>();
+
+	public ChunkStore(AmazonS3 s3Client, TransferEngine transferEngine, TransferRetrier retrier,
+			@Value("${dropbox.storage.chunking.enabled:false}") boolean enabled,
+			@Value("${dropbox.storage.chunking.average-chunk-size:1048576}") int averageChunkSize,
+			@Value("${dropbox.storage.chunking.min-file-size:8388608}") long minFileSize) {
+		this.s3Client = s3Client;
+		this.transferEngine = transferEngine;
+		this.retrier = retrier;
+		this.chunker = new ContentChunker(averageChunkSize);
+		this.enabled = enabled;
+		this.minFileSize = minFileSize;
+	}
+
+	// Whether large files are stored as chunks
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	// Whether a file of the given size should be stored as chunks
+	public boolean shouldChunk(long size) {
+		return enabled && size >= minFileSize;
+	}
+
+	// Whether a downloaded object is a chunk manifest
+	public static boolean isChunkManifest(ObjectMetadata metadata) {
+		return STORAGE_CHUNKED.equals(metadata.getUserMetaDataOf(STORAGE_METADATA));
+	}
+
+	// Start the set of known chunks of a push
+	public static KnownChunks newKnownChunks() {
+		return new KnownChunks();
+	}
+
+	// Upload the chunks of a file that the bucket doesn't have yet, then its
+	// manifest. Chunks in knownChunks (if not null) aren't looked up again, and
+	// the chunks of this file are added to it. Every chunk is hashed again as it
+	// is uploaded; if the file changed since it was split the upload fails, as
+	// the manifest would no longer match the chunks. Returns the ETag of the
+	// manifest object.
+	public String upload(String bucketName, String userId, String key, Path file, KnownChunks knownChunks)
+			throws IOException {
+		KnownChunks known = knownChunks != null ? knownChunks : newKnownChunks();
+		List<ContentChunker.Chunk> chunks = chunker.split(file);
+
+		StringBuilder manifest = new StringBuilder(MANIFEST_HEADER).append('\n');
+		for (ContentChunker.Chunk chunk : chunks) {
+			manifest.append(chunk.getHash()).append('\t').append(chunk.getLength()).append('\n');
+		}
+		// The reference goes first, so that a sweep which starts meanwhile keeps the
+		// chunks this upload finds in the bucket
+		putText(bucketName, referenceKey(userId), key + "\n" + manifest, null);
+		findChunks(bucketName, userId, chunks, known);
+
+		List<Callable<Void>> uploads = new ArrayList<>();
+		Set<String> scheduled = new HashSet<>();
+		for (ContentChunker.Chunk chunk : chunks) {
+			// Repeated blocks within the file are only uploaded once
+			if (known.hashes.contains(chunk.getHash()) || !scheduled.add(chunk.getHash())) {
+				continue;
+			}
+			uploads.add(() -> {
+				uploadChunk(bucketName, userId, file, chunk);
+				known.hashes.add(chunk.getHash());
+				return null;
+			});
+		}
+		transferEngine.invokeParts(uploads);
+
+		String eTag = putText(bucketName, key, manifest.toString(), STORAGE_CHUNKED);
+		known.uploaded = true;
+		return eTag;
+	}
+
+	// Add the chunks of a file the bucket already has to known, listing the
+	// shards of the chunk store they fall in unless this push already has.
+	// Shards are listed in parallel; one that another upload is listing is
+	// waited for.
+	private void findChunks(String bucketName, String userId, List<ContentChunker.Chunk> chunks, KnownChunks known) {
+		List<Callable<Void>> listings = new ArrayList<>();
+		List<CompletableFuture<Void>> others = new ArrayList<>();
+		for (ContentChunker.Chunk chunk : chunks) {
+			String shard = chunk.getHash().substring(0, SHARD_DIGITS);
+			CompletableFuture<Void> listing = new CompletableFuture<>();
+			CompletableFuture<Void> existing = known.shards.putIfAbsent(shard, listing);
+			if (existing != null) {
+				others.add(existing);
+				continue;
+			}
+			listings.add(() -> {
+				try {
+					String prefix = userId + "/" + CHUNK_DIRECTORY;
+					forEachObject(bucketName, prefix + shard,
+							summary -> known.hashes.add(summary.getKey().substring(prefix.length())));
+					listing.complete(null);
+				} catch (RuntimeException e) {
+					// Another upload may list it again
+					known.shards.remove(shard, listing);
+					listing.completeExceptionally(e);
+					throw e;
+				}
+				return null;
+			});
+		}
+		transferEngine.invokeParts(listings);
+		for (CompletableFuture<Void> listing : others) {
+			try {
+				listing.join();
+			} catch (CompletionException e) {
+				// Its chunks are simply uploaded again
+			}
+		}
+	}
+
+	// Upload one chunk, checking that the file still holds the bytes it was
+	// split into
+	private void uploadChunk(String bucketName, String userId, Path file, ContentChunker.Chunk chunk)
+			throws IOException {
+		byte[] data = readRange(file, chunk.getOffset(), chunk.getLength());
+		if (!sha256(data).equals(chunk.getHash())) {
+			// Not worth retrying: the next push uploads the file as it is then
+			throw new FileSystemException(file.toString(), null, "File changed while it was being uploaded");
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		retrier.get(() -> s3Client.putObject(new PutObjectRequest(bucketName, chunkKey(userId, chunk.getHash()),
+				new ByteArrayInputStream(data), metadata)));
+	}
+
+	// Rebuild a file from a chunk manifest into target. Chunks that the previous
+	// local copy (if any) already contains are copied from it; only the rest are
+	// downloaded, several at a time on the part pool. Every chunk is checked
+	// against its hash and length before it is written, so a corrupt or changed
+	// chunk fails the restore.
+	public void restore(String bucketName, String userId, InputStream manifest, Path previous, OutputStream target)
+			throws IOException {
+		List<String[]> entries = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				entries.add(line.split("\t", 2));
+			}
+		}
+		// Done with the manifest; closing it now frees its request slot before the
+		// chunks are fetched
+		manifest.close();
+
+		Map<String, ContentChunker.Chunk> localChunks = new HashMap<>();
+		if (previous != null && Files.isRegularFile(previous)) {
+			for (ContentChunker.Chunk chunk : chunker.split(previous)) {
+				localChunks.putIfAbsent(chunk.getHash(), chunk);
+			}
+		}
+
+		// Fetches run up to MAX_PARALLEL_FETCHES chunks ahead of the one written
+		List<Future<byte[]>> fetches = new ArrayList<>(entries.size());
+		try {
+			for (int i = 0; i < entries.size(); i++) {
+				while (fetches.size() < entries.size() && fetches.size() < i + MAX_PARALLEL_FETCHES) {
+					String hash = entries.get(fetches.size())[0];
+					ContentChunker.Chunk local = localChunks.get(hash);
+					fetches.add(local != null
+							? CompletableFuture.completedFuture(readRange(previous, local.getOffset(), local.getLength()))
+							: transferEngine.submitPart(() -> fetchChunk(bucketName, userId, hash)));
+				}
+				String[] entry = entries.get(i);
+				byte[] data = await(fetches.get(i));
+				fetches.set(i, null);
+				if (entry.length < 2 || data.length != Long.parseLong(entry[1]) || !sha256(data).equals(entry[0])) {
+					throw new IOException("Chunk " + entry[0] + " doesn't match its hash");
+				}
+				target.write(data);
+			}
+		} finally {
+			// Don't leave the rest of a failed restore running
+			for (Future<byte[]> fetch : fetches) {
+				if (fetch != null) {
+					fetch.cancel(true);
+				}
+			}
+		}
+	}
+
+	// Download one chunk
+	private byte[] fetchChunk(String bucketName, String userId, String hash) throws IOException {
+		try (S3Object chunk = retrier.get(() -> s3Client.getObject(bucketName, chunkKey(userId, hash)))) {
+			return chunk.getObjectContent().readAllBytes();
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				throw new IOException("Chunk " + hash + " of the file is missing from the bucket", e);
+			}
+			throw e;
+		}
+	}
+
+	// Delete the user's chunks that no file uses any more, unless this client
+	// swept them recently. Chunks in use are the ones listed by references
+	// younger than a day (uploads that may still be running) and by the
+	// manifests of files that older references name. References to files that
+	// were deleted or stored differently since are deleted too. Returns how many
+	// chunks were deleted.
+	//
+	// One race is left: an upload that writes its reference after the sweep last
+	// listed them, and finds a day-old unused chunk just before the sweep deletes
+	// it, stores a file missing that chunk. Listing the references again right
+	// before deleting keeps that window to the duration of the delete.
+	public int collectGarbage(String bucketName, String userId) {
+		long now = System.currentTimeMillis();
+		Long lastSweep = lastSweeps.get(userId);
+		if (lastSweep != null && now - lastSweep < SWEEP_INTERVAL_MILLIS) {
+			return 0;
+		}
+		lastSweeps.put(userId, now);
+		long cutoff = now - ORPHAN_AGE_MILLIS;
+
+		String chunkPrefix = userId + "/" + CHUNK_DIRECTORY;
+		List<S3ObjectSummary> candidates = new ArrayList<>();
+		forEachObject(bucketName, chunkPrefix, summary -> {
+			if (summary.getLastModified() != null && summary.getLastModified().getTime() < cutoff) {
+				candidates.add(summary);
+			}
+		});
+		if (candidates.isEmpty()) {
+			return 0;
+		}
+
+		Set<String> live = ConcurrentHashMap.newKeySet();
+		Set<String> readReferences = ConcurrentHashMap.newKeySet();
+		Map<String, List<String>> fileChunks = new ConcurrentHashMap<>();
+		Map<String, String> keptReferences = new ConcurrentHashMap<>();
+		List<KeyVersion> staleReferences = new ArrayList<>();
+		readReferences(bucketName, userId, cutoff, live, readReferences, fileChunks, keptReferences, staleReferences);
+		readReferences(bucketName, userId, cutoff, live, readReferences, fileChunks, keptReferences, staleReferences);
+
+		List<KeyVersion> unused = candidates.stream()
+				.filter(summary -> !live.contains(summary.getKey().substring(chunkPrefix.length())))
+				.map(summary -> new KeyVersion(summary.getKey())).collect(Collectors.toList());
+		deleteKeys(bucketName, unused);
+		deleteKeys(bucketName, staleReferences);
+		return unused.size();
+	}
+
+	// Add the chunks of every reference not read yet to live. Old references are
+	// checked against the file they name (read once per file into fileChunks):
+	// the first one found to match it is kept, and the rest are collected in
+	// stale.
+	private void readReferences(String bucketName, String userId, long cutoff, Set<String> live,
+			Set<String> readReferences, Map<String, List<String>> fileChunks, Map<String, String> keptReferences,
+			List<KeyVersion> stale) {
+		List<S3ObjectSummary> references = new ArrayList<>();
+		forEachObject(bucketName, userId + "/" + REFERENCE_DIRECTORY, summary -> {
+			if (readReferences.add(summary.getKey())) {
+				references.add(summary);
+			}
+		});
+
+		List<Callable<KeyVersion>> reads = new ArrayList<>();
+		for (S3ObjectSummary reference : references) {
+			reads.add(() -> {
+				List<String> text = readText(bucketName, reference.getKey());
+				if (text == null) {
+					return null; // Deleted by another sweep
+				}
+				List<String> chunks = parseManifest(text.subList(1, text.size()));
+				boolean young = reference.getLastModified() == null
+						|| reference.getLastModified().getTime() >= cutoff;
+				if (young) {
+					live.addAll(chunks);
+					return null;
+				}
+				String fileKey = text.get(0);
+				live.addAll(fileChunks.computeIfAbsent(fileKey, file -> readFileChunks(bucketName, file)));
+				// One reference to the file's current chunks is enough
+				boolean kept = chunks.equals(fileChunks.get(fileKey))
+						&& keptReferences.putIfAbsent(fileKey, reference.getKey()) == null;
+				return kept ? null : new KeyVersion(reference.getKey());
+			});
+		}
+		for (KeyVersion reference : transferEngine.invokeParts(reads)) {
+			if (reference != null) {
+				stale.add(reference);
+			}
+		}
+	}
+
+	// The chunks a file's object lists, or none if it isn't stored as chunks (or
+	// is gone)
+	private List<String> readFileChunks(String bucketName, String key) {
+		S3Object object;
+		try {
+			object = retrier.get(() -> s3Client.getObject(bucketName, key));
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				return List.of();
+			}
+			throw e;
+		}
+		try (S3Object content = object) {
+			if (!isChunkManifest(content.getObjectMetadata())) {
+				// Don't download the whole file just to drop it
+				content.getObjectContent().abort();
+				return List.of();
+			}
+			return parseManifest(readLines(content.getObjectContent()));
+		} catch (IOException e) {
+			throw new SdkClientException("Couldn't read " + key + ": " + e.getMessage(), e);
+		}
+	}
+
+	// Get the chunk hashes of manifest lines, in order
+	private static List<String> parseManifest(List<String> lines) {
+		return lines.stream().filter(line -> !line.isEmpty() && !line.startsWith("#"))
+				.map(line -> line.split("\t", 2)[0]).collect(Collectors.toList());
+	}
+
+	// Read the lines of a small object, or null if it doesn't exist
+	private List<String> readText(String bucketName, String key) throws IOException {
+		try (S3Object object = retrier.get(() -> s3Client.getObject(bucketName, key))) {
+			return readLines(object.getObjectContent());
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	private static List<String> readLines(InputStream in) throws IOException {
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).lines()
+				.collect(Collectors.toList());
+	}
+
+	// Store a small text object, marked with the given storage mode if not null.
+	// Returns its ETag.
+	private String putText(String bucketName, String key, String text, String storage) {
+		byte[] content = text.getBytes(StandardCharsets.UTF_8);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		if (storage != null) {
+			metadata.addUserMetadata(STORAGE_METADATA, storage);
+		}
+		return retrier.get(() -> s3Client
+				.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(content), metadata)))
+				.getETag();
+	}
+
+	// Pass every object under a prefix to action, page by page
+	private void forEachObject(String bucketName, String prefix, Consumer<S3ObjectSummary> action) {
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+		ListObjectsV2Result result;
+		do {
+			result = retrier.get(() -> s3Client.listObjectsV2(request));
+			result.getObjectSummaries().forEach(action);
+			request.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+	}
+
+	// Delete keys in requests of up to 1000
+	private void deleteKeys(String bucketName, List<KeyVersion> keys) {
+		for (int from = 0; from < keys.size(); from += 1000) {
+			retrier.deleteObjects(s3Client, new DeleteObjectsRequest(bucketName)
+					.withKeys(keys.subList(from, Math.min(from + 1000, keys.size()))).withQuiet(true));
+		}
+	}
+
+	private static byte[] await(Future<byte[]> fetch) throws IOException {
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SdkClientException("Transfer interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw cause instanceof RuntimeException ? (RuntimeException) cause
+					: new SdkClientException("Transfer failed: " + cause.getMessage(), cause);
+		}
+	}
+
+	// Build the S3 key of a chunk
+	private static String chunkKey(String userId, String hash) {
+		return userId + "/" + CHUNK_DIRECTORY + hash;
+	}
+
+	// Build the S3 key of a new reference, unique across devices
+	private String referenceKey(String userId) {
+		return userId + "/" + REFERENCE_DIRECTORY + String.format("%013d-%s-%d", System.currentTimeMillis(), writerId,
+				referenceCounter.incrementAndGet());
+	}
+
+	private static String sha256(byte[] data) {
+		return HexFormat.of().formatHex(FileUtils.newDigest("SHA-256").digest(data));
+	}
+
+	// Read a byte range of a file (chunks are bounded by the chunker's max size)
+	private static byte[] readRange(Path file, long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) {
+					throw new IOException("File changed while reading: " + file);
+				}
+			}
+		}
+		return buffer.array();
+	}
+}
@@ -0,0 +1,271 @@
+package io.github.lwcarani.transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import io.github.lwcarani.metrics.ClientMetrics;
+
+// Adapts how many S3 requests may be in flight at once, shared by every push,
+// pull and delete, so their combined load stays near the level the link and
+// S3 handle best without hand tuning. Requests are measured in windows: while
+// the limit is actually reached, throughput holds up and tail latency stays
+// near its baseline, the limit grows; on throttling (503 SlowDown) it is
+// halved, and on rising tail latency it is cut by a fifth. Latency is compared
+// per operation and per MiB moved, so a window of large parts doesn't look
+// slower than one of small files. Listings are not limited, so fetching the
+// next page is never stuck behind transfers.
+@Component
+public class ConcurrencyLimiter {
+
+	// Requests that are limited; everything else (listings, bucket calls) isn't
+	private static final Set<String> LIMITED_OPERATIONS = Set.of("putObject", "uploadPart", "getObject",
+			"getObjectMetadata", "doesObjectExist", "copyObject", "deleteObject", "deleteObjects",
+			"initiateMultipartUpload", "completeMultipartUpload", "abortMultipartUpload");
+	// Requests moving less than this count as moving this much
+	private static final double UNIT_BYTES = 1024 * 1024;
+	// A window is judged once it has this many samples
+	private static final int MIN_SAMPLES = 5;
+	// Multiplicative backoffs on throttling and on rising tail latency
+	private static final double THROTTLE_BACKOFF = 0.5;
+	private static final double LATENCY_BACKOFF = 0.8;
+	// The tail (p90) may be this many times the baseline before it counts as rising
+	private static final double LATENCY_TOLERANCE = 2.0;
+	// Throughput at least this share of the previous window's counts as holding up
+	private static final double THROUGHPUT_TOLERANCE = 0.95;
+	// How far a baseline moves towards a slower window's best, so it follows a
+	// lasting change (e.g. a slower network) instead of backing off forever
+	private static final double BASELINE_DRIFT = 0.1;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long windowNanos;
+	private double limit;
+	private int inFlight;
+	// Lowest cost (nanos per unit moved) seen for each operation
+	private final Map<String, Double> baselines = new HashMap<>();
+	// Current window
+	private long windowStart;
+	private double windowUnits;
+	private final List<Double> latencyRatios = new ArrayList<>();
+	private final Map<String, Double> windowBest = new HashMap<>();
+	private boolean saturated;
+	private double lastThroughput = -1;
+	private long lastBackoff;
+
+	public ConcurrencyLimiter(@Value("${dropbox.transfer.concurrency.initial:16}") int initialLimit,
+			@Value("${dropbox.transfer.concurrency.min:2}") int minLimit,
+			@Value("${dropbox.transfer.concurrency.max:64}") int maxLimit,
+			@Value("${dropbox.transfer.concurrency.window-ms:1000}") long windowMillis) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+		this.windowStart = System.nanoTime();
+		this.lastBackoff = windowStart - windowNanos;
+	}
+
+	// Wrap an S3 client so its requests wait for a slot and are measured. A
+	// GetObject keeps its slot until its content stream is closed.
+	public AmazonS3 limit(AmazonS3 client) {
+		Object proxy = Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				(self, method, args) -> {
+					String operation = method.getName();
+					if (method.getDeclaringClass() == Object.class || !LIMITED_OPERATIONS.contains(operation)) {
+						return invoke(method, client, args);
+					}
+					long start = acquire();
+					Object result;
+					try {
+						result = invoke(method, client, args);
+					} catch (Throwable e) {
+						release(operation, start, 0, isThrottling(e));
+						throw e;
+					}
+					if (result instanceof S3Object) {
+						S3Object object = (S3Object) result;
+						object.setObjectContent(new ReleasingInputStream(object.getObjectContent(), operation, start));
+					} else {
+						long bytes = result instanceof ObjectMetadata ? ((ObjectMetadata) result).getContentLength()
+								: ClientMetrics.sentBytes(args);
+						release(operation, start, bytes, false);
+					}
+					return result;
+				});
+		return (AmazonS3) proxy;
+	}
+
+	// Wait for a slot and return the time the request starts, to pass to release
+	public synchronized long acquire() {
+		while (inFlight >= currentLimit()) {
+			saturated = true;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SdkClientException("Interrupted waiting to send a request", e);
+			}
+		}
+		long now = System.nanoTime();
+		if (inFlight == 0 && latencyRatios.isEmpty()) {
+			// Don't count idle time before a window's first request
+			windowStart = now;
+		}
+		inFlight++;
+		if (inFlight >= currentLimit()) {
+			saturated = true;
+		}
+		return now;
+	}
+
+	// Free the slot of a request that started at startNanos and moved bytes
+	public synchronized void release(String operation, long startNanos, long bytes, boolean throttled) {
+		inFlight--;
+		long now = System.nanoTime();
+		if (throttled) {
+			throttled();
+		} else {
+			double units = Math.max(1, bytes / UNIT_BYTES);
+			double cost = (now - startNanos) / units;
+			double baseline = baselines.merge(operation, cost, Math::min);
+			latencyRatios.add(cost / baseline);
+			windowBest.merge(operation, cost, Math::min);
+			windowUnits += units;
+			if (latencyRatios.size() >= MIN_SAMPLES && now - windowStart >= windowNanos) {
+				adjust(now);
+			}
+		}
+		notifyAll();
+	}
+
+	// Halve the limit, at most once a window, as requests already in flight
+	// when S3 started throttling are likely to be throttled too
+	public synchronized void throttled() {
+		long now = System.nanoTime();
+		if (now - lastBackoff < windowNanos) {
+			return;
+		}
+		backOff(THROTTLE_BACKOFF, now);
+	}
+
+	// How many requests may currently be in flight
+	public synchronized int currentLimit() {
+		return Math.max(1, (int) limit);
+	}
+
+	private void adjust(long now) {
+		double throughput = windowUnits / Math.max((now - windowStart) / 1_000_000_000.0, 1e-9);
+		Collections.sort(latencyRatios);
+		double tail = latencyRatios.get((int) Math.ceil(latencyRatios.size() * 0.9) - 1);
+		windowBest.forEach((operation, best) -> baselines.computeIfPresent(operation,
+				(key, baseline) -> baseline + (best - baseline) * BASELINE_DRIFT));
+
+		if (tail > LATENCY_TOLERANCE) {
+			backOff(LATENCY_BACKOFF, now);
+			return;
+		}
+		if (saturated && (lastThroughput < 0 || throughput >= lastThroughput * THROUGHPUT_TOLERANCE)) {
+			// Additive increase, in bigger steps at higher limits
+			limit = Math.min(maxLimit, limit + Math.max(1, Math.sqrt(limit)));
+		}
+		lastThroughput = throughput;
+		startWindow(now);
+	}
+
+	private void backOff(double factor, long now) {
+		limit = Math.max(minLimit, limit * factor);
+		lastBackoff = now;
+		// Judge the new limit on its own
+		lastThroughput = -1;
+		startWindow(now);
+	}
+
+	private void startWindow(long now) {
+		windowStart = now;
+		windowUnits = 0;
+		latencyRatios.clear();
+		windowBest.clear();
+		saturated = inFlight >= currentLimit();
+	}
+
+	private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	// S3 answers 503 SlowDown when a prefix gets more requests than it can take
+	private static boolean isThrottling(Throwable e) {
+		if (!(e instanceof AmazonServiceException)) {
+			return false;
+		}
+		AmazonServiceException serviceException = (AmazonServiceException) e;
+		return serviceException.getStatusCode() == 503 || serviceException.getStatusCode() == 429
+				|| "SlowDown".equals(serviceException.getErrorCode());
+	}
+
+	// Holds a GetObject's slot until its content has been read and closed
+	private class ReleasingInputStream extends FilterInputStream {
+		private final String operation;
+		private final long start;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private long bytes;
+
+		ReleasingInputStream(InputStream in, String operation, long start) {
+			super(in);
+			this.operation = operation;
+			this.start = start;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				bytes++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				bytes += n;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (released.compareAndSet(false, true)) {
+					release(operation, start, bytes, false);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package io.github.lwcarani.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Splits files into content-defined chunks using a gear rolling hash (as in
+// FastCDC). Chunk boundaries depend only on the bytes around them, so inserting
+// or changing a few bytes only changes the chunks touching the edit and every
+// other chunk keeps its hash.
+public class ContentChunker {
+
+	// Fixed seed: every client must pick the same boundaries for the same bytes
+	private static final long[] GEAR = new long[256];
+
+	static {
+		SplittableRandom random = new SplittableRandom(0x64626f782d636463L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	// A contiguous range of a file and the SHA-256 of its bytes
+	public static class Chunk {
+		private final long offset;
+		private final int length;
+		private final String hash;
+
+		public Chunk(long offset, int length, String hash) {
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+	}
+
+	private final int minSize;
+	private final int maxSize;
+	private final long mask;
+
+	// Chunks average roughly averageSize bytes (rounded down to a power of two),
+	// and are kept between a quarter of and eight times that size
+	public ContentChunker(int averageSize) {
+		int average = Integer.highestOneBit(Math.max(averageSize, 1024));
+		int bits = Integer.numberOfTrailingZeros(average);
+		this.minSize = average / 4;
+		this.maxSize = average * 8;
+		// Test the high bits of the hash, which depend on the last 64 bytes seen
+		this.mask = ((1L << bits) - 1) << (Long.SIZE - bits);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	// Split a file into chunks
+	public List<Chunk> split(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return split(in);
+		}
+	}
+
+	// Split a stream into chunks
+	public List<Chunk> split(InputStream in) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		MessageDigest digest = FileUtils.newDigest("SHA-256");
+		byte[] buffer = new byte[256 * 1024];
+		long offset = 0;
+		int length = 0;
+		long hash = 0;
+
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			int start = 0;
+			for (int i = 0; i < read; i++) {
+				hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+				length++;
+				if ((length >= minSize && (hash & mask) == 0) || length >= maxSize) {
+					digest.update(buffer, start, i + 1 - start);
+					chunks.add(new Chunk(offset, length, HexFormat.of().formatHex(digest.digest())));
+					offset += length;
+					length = 0;
+					hash = 0;
+					start = i + 1;
+				}
+			}
+			digest.update(buffer, start, read - start);
+		}
+
+		if (length > 0) {
+			chunks.add(new Chunk(offset, length, HexFormat.of().formatHex(digest.digest())));
+		}
+		return chunks;
+	}
+}
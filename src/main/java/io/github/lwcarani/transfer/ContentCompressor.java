@@ -0,0 +1,214 @@
+package io.github.lwcarani.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Optional compressed storage mode. Files that compress well (text, logs, CSV,
+// JSON...) are gzipped on upload and marked with the codec in their object
+// metadata, and downloads are decompressed while they stream. Whether a file is
+// worth compressing is decided from its extension (formats that are already
+// compressed are never touched) and by compressing a sample of its head.
+@Component
+public class ContentCompressor {
+
+	// Metadata naming the codec an object's content is compressed with
+	public static final String ENCODING_METADATA = "dbox-encoding";
+	public static final String ENCODING_GZIP = "gzip";
+
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	// Unit in which buffer memory is reserved
+	private static final long MEMORY_UNIT = 1024 * 1024;
+	// Only store compressed content that is at most this fraction of the original
+	private static final double MAX_COMPRESSED_RATIO = 0.9;
+	private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("7z", "aac", "apk", "avi", "br", "bz2", "docx",
+			"flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "lz4", "m4a", "mkv", "mov", "mp3", "mp4", "ogg", "pdf",
+			"png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+
+	private final TransferEngine transferEngine;
+	private final boolean enabled;
+	private final int level;
+	private final long minFileSize;
+	// Memory for compressed content, in MEMORY_UNITs, shared by every upload so
+	// that many workers compressing at once can't run out of heap
+	private final int bufferUnits;
+	private final Semaphore bufferMemory;
+
+	public ContentCompressor(TransferEngine transferEngine,
+			@Value("${dropbox.storage.compression.enabled:false}") boolean enabled,
+			@Value("${dropbox.storage.compression.level:6}") int level,
+			@Value("${dropbox.storage.compression.min-file-size:4096}") long minFileSize,
+			@Value("${dropbox.storage.compression.buffer-memory:256MB}") String bufferMemory) {
+		this.transferEngine = transferEngine;
+		this.enabled = enabled;
+		this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+		this.minFileSize = minFileSize;
+		this.bufferUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+				FileUtils.parseBytes(bufferMemory) / MEMORY_UNIT));
+		this.bufferMemory = new Semaphore(bufferUnits, true);
+	}
+
+	// Whether a file of the given size should be stored compressed. Reads at
+	// most a small sample of the file.
+	public boolean shouldCompress(Path file, long size) throws IOException {
+		if (!enabled || size < minFileSize) {
+			return false;
+		}
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+			return false;
+		}
+		return compressesWell(file);
+	}
+
+	// Whether a downloaded object holds compressed content
+	public static boolean isCompressed(ObjectMetadata metadata) {
+		return ENCODING_GZIP.equals(metadata.getUserMetaDataOf(ENCODING_METADATA));
+	}
+
+	// The content of a downloaded object as stored by the user, decompressing it
+	// on the fly if needed
+	public static InputStream decode(ObjectMetadata metadata, InputStream in) throws IOException {
+		return isCompressed(metadata) ? new GZIPInputStream(in, SAMPLE_SIZE) : in;
+	}
+
+	// Compress a file while uploading it, holding at most a few parts of
+	// compressed content in memory: content that fits in one part is sent with a
+	// single PUT, and anything larger as a multipart upload whose parts are sent
+	// as they fill up. If the first part (or the whole file) didn't compress
+	// well after all, nothing has been sent yet and the file is uploaded as it
+	// is instead, reporting to stats and recording its progress in checkpoint
+	// (either may be null). Compressed uploads are only reported to stats: they
+	// aren't resumable, so a failed one is aborted. Uploads wait while the
+	// buffer memory is taken by others. Returns the object's ETag.
+	public String upload(String bucketName, String key, Path file, long size, TransferStats stats,
+			MultipartCheckpoint checkpoint) throws IOException {
+		long partSize = transferEngine.getPartSize(size);
+		// Content that fits in one part is buffered and copied once; anything
+		// larger is streamed. An upload needing more than there is gets it all.
+		long memory = size < partSize ? 2 * size : TransferEngine.getStreamedUploadMemory(partSize);
+		int units = (int) Math.min(bufferUnits, (memory + MEMORY_UNIT - 1) / MEMORY_UNIT);
+		try {
+			bufferMemory.acquire(units);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for compression buffers");
+		}
+		String eTag;
+		try {
+			eTag = compressAndUpload(bucketName, key, file, partSize, stats);
+		} finally {
+			bufferMemory.release(units);
+		}
+		if (eTag == null) {
+			eTag = transferEngine.upload(bucketName, key, file, new ObjectMetadata(), stats, checkpoint);
+		}
+		return eTag;
+	}
+
+	// Upload a file compressed, or return null without sending anything if it
+	// doesn't compress well
+	private String compressAndUpload(String bucketName, String key, Path file, long partSize,
+			TransferStats stats) throws IOException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.addUserMetadata(ENCODING_METADATA, ENCODING_GZIP);
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		TransferEngine.StreamedUpload upload = null;
+		boolean compresses = true;
+		boolean completed = false;
+		long read = 0;
+		// File bytes whose compressed content was handed to the upload
+		long sent = 0;
+		try {
+			try (InputStream in = Files.newInputStream(file); OutputStream out = newGzipStream(buffer)) {
+				byte[] chunk = new byte[SAMPLE_SIZE];
+				int n;
+				while ((n = in.read(chunk)) > 0) {
+					out.write(chunk, 0, n);
+					read += n;
+					if (buffer.size() >= partSize) {
+						if (upload == null) {
+							compresses = buffer.size() <= read * MAX_COMPRESSED_RATIO;
+							if (!compresses) {
+								break;
+							}
+							upload = transferEngine.startStreamedUpload(bucketName, key, metadata, stats);
+						}
+						upload.addPart(buffer.toByteArray(), read - sent);
+						sent = read;
+						buffer.reset();
+					}
+				}
+			}
+			if (upload == null && (!compresses || buffer.size() > read * MAX_COMPRESSED_RATIO)) {
+				return null;
+			}
+			if (upload == null) {
+				return transferEngine.upload(bucketName, key, buffer.toByteArray(), metadata);
+			}
+
+			upload.addPart(buffer.toByteArray(), read - sent);
+			String eTag = upload.complete();
+			completed = true;
+			return eTag;
+		} finally {
+			if (upload != null && !completed) {
+				upload.abort();
+			}
+		}
+	}
+
+	// Compress the head of a file with the fastest setting to estimate whether
+	// the whole file is worth compressing
+	private static boolean compressesWell(Path file) throws IOException {
+		byte[] sample;
+		try (InputStream in = Files.newInputStream(file)) {
+			sample = in.readNBytes(SAMPLE_SIZE);
+		}
+		if (sample.length == 0) {
+			return false;
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(sample);
+			deflater.finish();
+			byte[] buffer = new byte[SAMPLE_SIZE];
+			long compressedSize = 0;
+			while (!deflater.finished()) {
+				compressedSize += deflater.deflate(buffer);
+			}
+			return compressedSize <= sample.length * MAX_COMPRESSED_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	// A gzip stream at the configured compression level
+	private OutputStream newGzipStream(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out, SAMPLE_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+}
@@ -0,0 +1,73 @@
+package io.github.lwcarani.transfer;
+
+import java.util.Map;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Records the progress of the multipart upload of one version of a local file,
+ * so that an upload interrupted by a crash or a lost connection can be resumed
+ * instead of started over.
+ */
+public interface MultipartCheckpoint {
+
+	/**
+	 * A multipart upload started earlier for the same file version.
+	 */
+	class Upload {
+		private final String uploadId;
+		private final long partSize;
+		private final Map<Integer, String> partETags;
+
+		public Upload(String uploadId, long partSize, Map<Integer, String> partETags) {
+			this.uploadId = uploadId;
+			this.partSize = partSize;
+			this.partETags = partETags;
+		}
+
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		public long getPartSize() {
+			return partSize;
+		}
+
+		/**
+		 * @return The ETags of the parts recorded as uploaded, by part number
+		 */
+		public Map<Integer, String> getPartETags() {
+			return partETags;
+		}
+	}
+
+	/**
+	 * Finds the upload started earlier for the same key and file version.
+	 *
+	 * @return The upload, or null if there is none to resume
+	 */
+	Upload find();
+
+	/**
+	 * Records that a new multipart upload was started.
+	 *
+	 * @param uploadId The upload's ID
+	 * @param partSize The size of every part except the last
+	 */
+	void started(String uploadId, long partSize);
+
+	/**
+	 * Records that a part was uploaded.
+	 *
+	 * @param uploadId The upload's ID
+	 * @param part     The part's number and ETag
+	 */
+	void partUploaded(String uploadId, PartETag part);
+
+	/**
+	 * Records that an upload was completed or aborted, so it can't be resumed.
+	 *
+	 * @param uploadId The upload's ID
+	 */
+	void closed(String uploadId);
+}
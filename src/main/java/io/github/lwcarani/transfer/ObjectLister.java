@@ -0,0 +1,154 @@
+package io.github.lwcarani.transfer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+// Lists S3 keys page by page, always following continuation tokens. The next
+// page is requested while the caller is still working on the current one, and
+// a large prefix can be split at its folder boundaries into shards that are
+// listed in parallel, so enumerating millions of keys isn't limited to one
+// serial chain of requests. A page that fails with a transient error is
+// requested again, as losing it would leave its keys out of a pull.
+@Component
+public class ObjectLister {
+
+	// How many folder levels to look into when splitting a prefix into shards
+	private static final int MAX_SHARD_DEPTH = 3;
+
+	private final AmazonS3 s3Client;
+	private final TransferEngine transferEngine;
+	private final TransferRetrier retrier;
+	private final int listConcurrency;
+
+	public ObjectLister(AmazonS3 s3Client, TransferEngine transferEngine, TransferRetrier retrier,
+			@Value("${dropbox.transfer.list-concurrency:8}") int listConcurrency) {
+		this.s3Client = s3Client;
+		this.transferEngine = transferEngine;
+		this.retrier = retrier;
+		this.listConcurrency = Math.max(1, listConcurrency);
+	}
+
+	// All pages of keys under a prefix (grouped at the delimiter if one is
+	// given), fetched one page ahead of the caller
+	public Iterable<ListObjectsV2Result> pages(String bucketName, String prefix, String delimiter) {
+		return () -> new Iterator<>() {
+			private CompletableFuture<ListObjectsV2Result> nextPage = fetch(bucketName, prefix, delimiter, null);
+
+			@Override
+			public boolean hasNext() {
+				return nextPage != null;
+			}
+
+			@Override
+			public ListObjectsV2Result next() {
+				if (nextPage == null) {
+					throw new NoSuchElementException();
+				}
+				ListObjectsV2Result page = join(nextPage);
+				nextPage = page.isTruncated() ? fetch(bucketName, prefix, delimiter, page.getNextContinuationToken())
+						: null;
+				return page;
+			}
+		};
+	}
+
+	// List every key under a prefix, calling pageConsumer with each page of
+	// results. The prefix is split into shards at its sub-folders (skipping
+	// those includePrefix rejects), and shards are listed in parallel, so
+	// pageConsumer is called from several threads at once and must be
+	// thread-safe. Returns once everything has been listed.
+	public void forEachPage(String bucketName, String prefix, Predicate<String> includePrefix,
+			Consumer<List<S3ObjectSummary>> pageConsumer) {
+		List<String> level = List.of(prefix);
+		List<String> shards = new ArrayList<>();
+
+		for (int depth = 0; !level.isEmpty(); depth++) {
+			if (depth == MAX_SHARD_DEPTH || level.size() >= listConcurrency * 4) {
+				shards.addAll(level);
+				break;
+			}
+			// Objects directly in these folders are handed over as they are listed;
+			// their sub-folders make up the next level
+			Queue<String> nextLevel = new ConcurrentLinkedQueue<>();
+			runInParallel(level, folder -> {
+				for (ListObjectsV2Result page : pages(bucketName, folder, "/")) {
+					pageConsumer.accept(page.getObjectSummaries());
+					page.getCommonPrefixes().stream().filter(includePrefix).forEach(nextLevel::add);
+				}
+			});
+			level = new ArrayList<>(nextLevel);
+		}
+
+		runInParallel(shards, shard -> {
+			for (ListObjectsV2Result page : pages(bucketName, shard, null)) {
+				pageConsumer.accept(page.getObjectSummaries());
+			}
+		});
+	}
+
+	// Run a task for each prefix on up to listConcurrency threads, rethrowing
+	// the first failure once all of them have stopped
+	private void runInParallel(List<String> prefixes, Consumer<String> task) {
+		Queue<String> remaining = new ConcurrentLinkedQueue<>(prefixes);
+		List<CompletableFuture<Void>> workers = new ArrayList<>();
+		for (int i = 0; i < Math.min(listConcurrency, prefixes.size()); i++) {
+			workers.add(transferEngine.prefetch(() -> {
+				String prefix;
+				while ((prefix = remaining.poll()) != null) {
+					try {
+						task.accept(prefix);
+					} catch (RuntimeException e) {
+						remaining.clear(); // Stop the other workers too
+						throw e;
+					}
+				}
+				return null;
+			}));
+		}
+
+		RuntimeException failure = null;
+		for (CompletableFuture<Void> worker : workers) {
+			try {
+				join(worker);
+			} catch (RuntimeException e) {
+				failure = failure == null ? e : failure;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Request one page in the background
+	private CompletableFuture<ListObjectsV2Result> fetch(String bucketName, String prefix, String delimiter,
+			String continuationToken) {
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix)
+				.withDelimiter(delimiter).withContinuationToken(continuationToken);
+		return transferEngine.prefetch(() -> retrier.get(() -> s3Client.listObjectsV2(request)));
+	}
+
+	// Wait for a background request, rethrowing its own exception
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		}
+	}
+}
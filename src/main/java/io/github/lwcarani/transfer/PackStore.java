@@ -0,0 +1,966 @@
+package io.github.lwcarani.transfer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Optional storage mode for trees of many small files (e.g. node_modules),
+// where a request per file costs far more than the bytes it moves. Small
+// files are appended to pack objects of a few MiB under
+// "<userId>/.dbox/packs/<packId>", and the pack index maps each packed path
+// (and each folder created while packing) to its pack, offset and length. A
+// push then costs one PUT per pack plus one for the index, and a pull fetches
+// the files it needs with one ranged GET per run of nearby files in a pack.
+// The index is kept under "<userId>/.dbox/pack-index/" as a numbered base
+// holding all of it plus one delta per commit holding only that commit's
+// changes, so a commit writes what it changed rather than the whole index.
+// Every so many deltas are folded into a new base. Packs are never modified:
+// a changed file goes into a new pack,
+// and packs whose live files take up less than a set share of them are
+// compacted by copying those files into a new pack. The old pack is deleted
+// by a later compaction, a day after it was emptied.
+@Component
+public class PackStore {
+
+	private static final String INDEX_HEADER = "# dropbox-clone pack index v1";
+	private static final String PACK_DIRECTORY = ".dbox/packs/";
+	private static final String INDEX_DIRECTORY = ".dbox/pack-index/";
+	private static final String BASE_PREFIX = "base-";
+	private static final String DELTA_PREFIX = "delta-";
+	// Deltas written before they are folded into a new base
+	private static final int MAX_DELTAS = 32;
+	// Pack of entries stored without one: folders and empty files
+	private static final String NO_PACK = "-";
+	// Files of one pack are fetched with a single GET as long as the bytes
+	// between them that nobody asked for stay below this
+	private static final long MAX_FETCH_GAP = 256 * 1024;
+	// Packs no index entry refers to are only deleted once unused for this long:
+	// a push that is still running may be about to record one, and a device
+	// holding an older index may still be fetching from one compaction emptied
+	private static final long ORPHAN_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+	// Packs rewritten by one compaction at most, to bound the work added to a push
+	private static final int MAX_COMPACTED_PACKS = 16;
+	// Attempts to save the index when other devices keep changing it meanwhile
+	private static final int MAX_SAVE_ATTEMPTS = 5;
+	// Local marker, under the user's sync state, of a user known to have an index
+	private static final String INDEX_MARKER = "pack-index";
+
+	// Where a packed file's content is kept. Folders have a path ending in "/".
+	public static class Entry {
+		private final String path;
+		private final String pack;
+		private final long offset;
+		private final long length;
+		private final String md5;
+		private final long lastModified;
+
+		Entry(String path, String pack, long offset, long length, String md5, long lastModified) {
+			this.path = path;
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+			this.md5 = md5;
+			this.lastModified = lastModified;
+		}
+
+		static Entry directory(String path) {
+			return new Entry(path.endsWith("/") ? path : path + "/", NO_PACK, 0, 0, "-", 0);
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		// Hex MD5 of the content, the ETag S3 would give the file on its own
+		public String getMd5() {
+			return md5;
+		}
+
+		// Modification time of the file that was packed
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public boolean isDirectory() {
+			return path.endsWith("/");
+		}
+
+		boolean sameLocation(Entry other) {
+			return other != null && pack.equals(other.pack) && offset == other.offset && md5.equals(other.md5);
+		}
+	}
+
+	// Receives the content of each file fetched from a pack
+	@FunctionalInterface
+	public interface ContentHandler {
+		void accept(Entry entry, byte[] content) throws IOException;
+	}
+
+	// The pack index of one user: every packed path and the size of every pack.
+	// Instances are never changed once cached; sessions work on copies. Each
+	// change goes through the methods below, which also record it as a delta
+	// line while a commit is logging them.
+	private static class Index {
+		private final Map<String, Entry> entries = new HashMap<>();
+		private final Map<String, Long> packSizes = new HashMap<>();
+		// When each pack no entry refers to any more was first seen that way
+		private final Map<String, Long> emptiedAt = new HashMap<>();
+		// Sequence number of the last delta applied, or of the base it was read from
+		private long sequence;
+		// Deltas applied on top of the newest base
+		private int deltas;
+		// When the user was found to have no index objects, 0 if they have some
+		private long missingSince;
+		// Lines describing the changes made since logging started, or null
+		private List<String> log;
+
+		Index copy() {
+			Index copy = new Index();
+			copy.entries.putAll(entries);
+			copy.packSizes.putAll(packSizes);
+			copy.emptiedAt.putAll(emptiedAt);
+			copy.sequence = sequence;
+			copy.deltas = deltas;
+			copy.missingSince = missingSince;
+			return copy;
+		}
+
+		void put(Entry entry) {
+			entries.put(entry.path, entry);
+			record(entryLine(entry));
+		}
+
+		void remove(String path) {
+			if (entries.remove(path) != null) {
+				record("remove\t" + path);
+			}
+		}
+
+		// Remove a path and everything below it
+		void removeTree(String path) {
+			String directoryPrefix = path + "/";
+			List<String> removed = entries.keySet().stream()
+					.filter(entry -> entry.equals(path) || entry.startsWith(directoryPrefix))
+					.collect(Collectors.toList());
+			removed.forEach(this::remove);
+		}
+
+		void putPack(String pack, long size) {
+			packSizes.put(pack, size);
+			record("pack\t" + pack + "\t" + size);
+		}
+
+		void markEmptied(String pack, long at) {
+			emptiedAt.put(pack, at);
+			record("emptied\t" + pack + "\t" + at);
+		}
+
+		// Forget a deleted pack
+		void dropPack(String pack) {
+			if (packSizes.remove(pack) != null | emptiedAt.remove(pack) != null) {
+				record("drop\t" + pack);
+			}
+		}
+
+		private void record(String line) {
+			if (log != null) {
+				log.add(line);
+			}
+		}
+
+		// Apply the lines of a base or delta object. Paths are the last column so
+		// that they may contain tabs.
+		void apply(InputStream in) throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields;
+				try {
+					if (line.startsWith("file\t")) {
+						fields = line.split("\t", 7);
+						put(new Entry(fields[6], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+								fields[4], Long.parseLong(fields[5])));
+					} else if (line.startsWith("dir\t")) {
+						put(Entry.directory(line.substring(4)));
+					} else if (line.startsWith("remove\t")) {
+						remove(line.substring(7));
+					} else if (line.startsWith("pack\t")) {
+						fields = line.split("\t", 3);
+						putPack(fields[1], Long.parseLong(fields[2]));
+					} else if (line.startsWith("emptied\t")) {
+						fields = line.split("\t", 3);
+						markEmptied(fields[1], Long.parseLong(fields[2]));
+					} else if (line.startsWith("drop\t")) {
+						dropPack(line.substring(5));
+					}
+				} catch (RuntimeException e) {
+					throw new IOException("Malformed pack index line: " + line, e);
+				}
+			}
+		}
+
+		// The whole index, as the content of a base object
+		byte[] format() throws IOException {
+			return format(writer -> {
+				for (Map.Entry<String, Long> pack : packSizes.entrySet()) {
+					writer.accept("pack\t" + pack.getKey() + "\t" + pack.getValue());
+				}
+				for (Map.Entry<String, Long> pack : emptiedAt.entrySet()) {
+					writer.accept("emptied\t" + pack.getKey() + "\t" + pack.getValue());
+				}
+				for (Entry entry : entries.values()) {
+					writer.accept(entryLine(entry));
+				}
+			});
+		}
+
+		// The changes logged since logging started, as the content of a delta object
+		byte[] formatLog() throws IOException {
+			return format(writer -> log.forEach(writer));
+		}
+
+		private static byte[] format(Consumer<Consumer<String>> lines) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (BufferedWriter writer = new BufferedWriter(
+					new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8))) {
+				writer.write(INDEX_HEADER);
+				writer.newLine();
+				lines.accept(line -> {
+					try {
+						writer.write(line);
+						writer.newLine();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return bytes.toByteArray();
+		}
+
+		private static String entryLine(Entry entry) {
+			return entry.isDirectory() ? "dir\t" + entry.path
+					: "file\t" + entry.pack + "\t" + entry.offset + "\t" + entry.length + "\t" + entry.md5 + "\t"
+							+ entry.lastModified + "\t" + entry.path;
+		}
+	}
+
+	private final AmazonS3 s3Client;
+	private final TransferRetrier retrier;
+	private final boolean enabled;
+	private final long maxFileSize;
+	private final long packSize;
+	private final double minLiveRatio;
+	// Makes pack IDs unique across devices
+	private final String writerId = UUID.randomUUID().toString().substring(0, 8);
+	private final AtomicLong packCounter = new AtomicLong();
+	// Last index read or written per user, revalidated with a conditional GET
+	private final Map<String, Index> cachedIndexes = new ConcurrentHashMap<>();
+	// How long a missing index is trusted before it is looked for again
+	private final long missingIndexTtlMillis;
+	// Where the index markers are kept, and the users known to have an index
+	private final Path stateDirectory;
+	private final Set<String> usersWithIndex = ConcurrentHashMap.newKeySet();
+
+	public PackStore(AmazonS3 s3Client, TransferRetrier retrier,
+			@Value("${dropbox.storage.packing.enabled:false}") boolean enabled,
+			@Value("${dropbox.storage.packing.max-file-size:65536}") long maxFileSize,
+			@Value("${dropbox.storage.packing.pack-size:8388608}") long packSize,
+			@Value("${dropbox.storage.packing.min-live-ratio:0.5}") double minLiveRatio,
+			@Value("${dropbox.cache.namespace-ttl-seconds:60}") long missingIndexTtlSeconds,
+			@Value("${dropbox.sync.state-dir:${user.home}/.dropbox-clone}") String stateDirectory) {
+		this.s3Client = s3Client;
+		this.retrier = retrier;
+		this.enabled = enabled;
+		this.maxFileSize = maxFileSize;
+		this.packSize = packSize;
+		this.minLiveRatio = minLiveRatio;
+		this.missingIndexTtlMillis = TimeUnit.SECONDS.toMillis(missingIndexTtlSeconds);
+		this.stateDirectory = Paths.get(stateDirectory);
+	}
+
+	// Whether pushes pack small files and folders
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	// Whether a file of the given size should be packed
+	public boolean shouldPack(long size) {
+		return enabled && size <= maxFileSize;
+	}
+
+	// Start working with a user's packed files, reading the latest index
+	public Session open(String bucketName, String userId) throws IOException {
+		return new Session(bucketName, userId, fetchIndex(bucketName, userId).copy());
+	}
+
+	// Like open, but return null without reading anything from S3 when packing
+	// is disabled and no index of the user's has ever been read or written on
+	// this device, so there is nothing packed to look up or unpack. Pulls always
+	// read the index, so packs made by another device count from the next pull.
+	public Session openIfUsed(String bucketName, String userId) throws IOException {
+		if (!enabled && !hasIndex(userId)) {
+			return null;
+		}
+		return open(bucketName, userId);
+	}
+
+	// A view of one user's packed files for one push, pull or delete. Changes
+	// (files added, paths removed) are kept until commit, which records them all
+	// in the index at once.
+	public class Session {
+		private final String bucketName;
+		private final String userId;
+		// The index as read, with this session's changes applied
+		private Index view;
+		// This session's changes, replayed onto the latest index on commit
+		private final List<Consumer<Index>> changes = new ArrayList<>();
+		// Files and folders stored since the last commit
+		private final List<Entry> stored = new ArrayList<>();
+		private OpenPack open = new OpenPack();
+
+		private Session(String bucketName, String userId, Index view) {
+			this.bucketName = bucketName;
+			this.userId = userId;
+			this.view = view;
+		}
+
+		// The packed file or folder at a relative path, or null if there is none
+		public synchronized Entry get(String relativePath) {
+			return view.entries.get(relativePath);
+		}
+
+		// Every packed file and folder
+		public synchronized List<Entry> entries() {
+			return new ArrayList<>(view.entries.values());
+		}
+
+		// Whether anything is packed at or below a relative path
+		public synchronized boolean hasTree(String relativePath) {
+			String directoryPrefix = relativePath + "/";
+			return view.entries.keySet().stream()
+					.anyMatch(path -> path.equals(relativePath) || path.startsWith(directoryPrefix));
+		}
+
+		// Add a file to the pack being filled, uploading the pack once full.
+		// Returns the MD5 of the content. The file is reported to stats as
+		// transferred (or failed) once its pack is uploaded, and is in the index
+		// once committed.
+		public String add(String relativePath, Path file, long lastModified, TransferStats stats) throws IOException {
+			byte[] content = Files.readAllBytes(file);
+			String md5 = md5(content);
+			append(new Entry(relativePath, NO_PACK, 0, content.length, md5, lastModified), content, null, stats);
+			return md5;
+		}
+
+		// Record a folder
+		public synchronized void addDirectory(String relativePath) {
+			Entry entry = Entry.directory(relativePath);
+			change(index -> index.put(entry));
+			stored.add(entry);
+		}
+
+		// Forget a packed path, e.g. because it was uploaded on its own or
+		// deleted. Returns false if it wasn't packed.
+		public synchronized boolean remove(String relativePath) {
+			if (!view.entries.containsKey(relativePath)) {
+				return false;
+			}
+			change(index -> index.remove(relativePath));
+			return true;
+		}
+
+		// Forget every packed path at or below a relative path. Returns how many
+		// there were.
+		public synchronized int removeTree(String relativePath) {
+			String directoryPrefix = relativePath.endsWith("/") ? relativePath : relativePath + "/";
+			String path = directoryPrefix.substring(0, directoryPrefix.length() - 1);
+			long count = view.entries.keySet().stream()
+					.filter(entry -> entry.equals(path) || entry.startsWith(directoryPrefix)).count();
+			if (count > 0) {
+				change(index -> index.removeTree(path));
+			}
+			return (int) count;
+		}
+
+		// Upload the pack being filled and record this session's changes in the
+		// index, merged onto its latest version as another device may have
+		// changed it meanwhile. Call once every add has returned. Returns the
+		// files and folders stored since the last commit. If the index can't be
+		// saved the changes are dropped and the error thrown; files that were
+		// added are then simply stored again by the next push.
+		public List<Entry> commit() throws IOException {
+			OpenPack last;
+			synchronized (this) {
+				last = open;
+				open = new OpenPack();
+			}
+			if (!last.entries.isEmpty()) {
+				upload(last);
+			}
+
+			List<Consumer<Index>> committing;
+			List<Entry> committed;
+			synchronized (this) {
+				committing = new ArrayList<>(changes);
+				committed = new ArrayList<>(stored);
+				changes.clear();
+				stored.clear();
+			}
+			if (committing.isEmpty()) {
+				return List.of();
+			}
+			Index saved = saveIndex(bucketName, userId, committing);
+			synchronized (this) {
+				view = saved.copy();
+			}
+			return committed;
+		}
+
+		// Group files for fetching: the files of each pack, in order, split into
+		// runs that are close enough together to fetch with one ranged GET.
+		// Empty files form a run of their own that needs no request.
+		public List<List<Entry>> planFetch(Collection<Entry> entries) {
+			Map<String, List<Entry>> byPack = new LinkedHashMap<>();
+			for (Entry entry : entries) {
+				if (!entry.isDirectory()) {
+					byPack.computeIfAbsent(entry.length == 0 ? NO_PACK : entry.pack, pack -> new ArrayList<>())
+							.add(entry);
+				}
+			}
+
+			List<List<Entry>> runs = new ArrayList<>();
+			for (List<Entry> files : byPack.values()) {
+				files.sort(Comparator.comparingLong(entry -> entry.offset));
+				List<Entry> run = new ArrayList<>();
+				long runEnd = 0;
+				for (Entry entry : files) {
+					if (!run.isEmpty() && entry.offset - runEnd > MAX_FETCH_GAP) {
+						runs.add(run);
+						run = new ArrayList<>();
+					}
+					run.add(entry);
+					runEnd = entry.offset + entry.length;
+				}
+				runs.add(run);
+			}
+			return runs;
+		}
+
+		// Read a run of files from planFetch with one ranged GET, checking each
+		// against its MD5 before passing it to handler
+		public void fetch(List<Entry> run, ContentHandler handler) throws IOException {
+			List<Entry> inPack = new ArrayList<>();
+			for (Entry entry : run) {
+				if (entry.length == 0) {
+					handler.accept(entry, new byte[0]);
+				} else {
+					inPack.add(entry);
+				}
+			}
+			if (inPack.isEmpty()) {
+				return;
+			}
+
+			Entry first = inPack.get(0);
+			Entry last = inPack.get(inPack.size() - 1);
+			GetObjectRequest request = new GetObjectRequest(bucketName, packKey(userId, first.pack))
+					.withRange(first.offset, last.offset + last.length - 1);
+			try (S3Object object = s3Client.getObject(request); InputStream in = object.getObjectContent()) {
+				long position = first.offset;
+				for (Entry entry : inPack) {
+					in.skipNBytes(entry.offset - position);
+					byte[] content = in.readNBytes((int) entry.length);
+					if (content.length != entry.length || !md5(content).equals(entry.md5)) {
+						throw new IOException(
+								"Pack " + entry.pack + " doesn't hold the expected content of " + entry.path);
+					}
+					handler.accept(entry, content);
+					position = entry.offset + entry.length;
+				}
+			}
+		}
+
+		// Get a single packed file as an object holding just its content, fetched
+		// with a ranged GET
+		public S3Object getObject(Entry entry) {
+			if (entry.length > 0) {
+				return s3Client.getObject(new GetObjectRequest(bucketName, packKey(userId, entry.pack))
+						.withRange(entry.offset, entry.offset + entry.length - 1));
+			}
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(0);
+			S3Object empty = new S3Object();
+			empty.setObjectMetadata(metadata);
+			empty.setObjectContent(new ByteArrayInputStream(new byte[0]));
+			return empty;
+		}
+
+		// Rewrite packs whose live files take up less than the configured share of
+		// them, then delete packs the index no longer refers to, including ones
+		// left behind by pushes that never saved the index. Failures are reported
+		// and leave the old packs in use until a later compaction.
+		public void compact() {
+			Map<String, List<Entry>> contents = new HashMap<>();
+			Map<String, Long> packSizes;
+			synchronized (this) {
+				for (Entry entry : view.entries.values()) {
+					if (!entry.isDirectory() && entry.length > 0) {
+						contents.computeIfAbsent(entry.pack, pack -> new ArrayList<>()).add(entry);
+					}
+				}
+				packSizes = new HashMap<>(view.packSizes);
+			}
+			Map<String, Long> liveBytes = new HashMap<>();
+			contents.forEach(
+					(pack, entries) -> liveBytes.put(pack, entries.stream().mapToLong(Entry::getLength).sum()));
+			// Packs already emptied only wait to be deleted
+			List<String> sparse = packSizes.keySet().stream().filter(contents::containsKey)
+					.filter(pack -> liveBytes.get(pack) < packSizes.get(pack) * minLiveRatio)
+					.sorted(Comparator.comparingLong(liveBytes::get))
+					.limit(MAX_COMPACTED_PACKS).collect(Collectors.toList());
+
+			try {
+				if (!sparse.isEmpty()) {
+					for (String pack : sparse) {
+						for (List<Entry> run : planFetch(contents.getOrDefault(pack, List.of()))) {
+							// Appending may upload a pack, so only once the GET is closed
+							Map<Entry, byte[]> moved = new LinkedHashMap<>();
+							fetch(run, moved::put);
+							moved.forEach((entry, content) -> append(entry, content, entry, null));
+						}
+					}
+					commit();
+				}
+				deleteUnusedPacks();
+			} catch (IOException | SdkClientException e) {
+				System.err.println("Couldn't compact packed files: " + e.getMessage());
+			}
+		}
+
+		// Add content to the pack being filled as entry, uploading the pack if it
+		// is full. When moving a file during compaction, replacing is its current
+		// entry, and the move only takes effect if the index still has it there.
+		// New files are reported to stats, if not null.
+		private void append(Entry entry, byte[] content, Entry replacing, TransferStats stats) {
+			if (content.length == 0) {
+				synchronized (this) {
+					change(index -> index.put(entry));
+					stored.add(entry);
+				}
+				if (stats != null) {
+					stats.fileTransferred(0);
+				}
+				return;
+			}
+
+			OpenPack full = null;
+			synchronized (this) {
+				if (open.content.size() > 0 && open.content.size() + content.length > packSize) {
+					full = open;
+					open = new OpenPack();
+				}
+				open.add(entry, content, replacing, stats);
+			}
+			if (full != null) {
+				upload(full);
+			}
+		}
+
+		// Upload a filled pack and stage its entries for the next commit. If the
+		// upload fails its files are reported as failed.
+		private void upload(OpenPack pack) {
+			byte[] content = pack.content.toByteArray();
+			try {
+				retrier.get(() -> {
+					ObjectMetadata metadata = new ObjectMetadata();
+					metadata.setContentLength(content.length);
+					return s3Client.putObject(new PutObjectRequest(bucketName, packKey(userId, pack.id),
+							new ByteArrayInputStream(content), metadata));
+				});
+			} catch (SdkClientException e) {
+				System.err.println("Error uploading a pack of " + pack.entries.size() + " file(s): " + e.getMessage());
+				pack.stats.forEach((entry, stats) -> stats.fileFailed(entry.length));
+				return;
+			}
+
+			synchronized (this) {
+				change(index -> index.putPack(pack.id, content.length));
+				for (Entry entry : pack.entries) {
+					Entry replacing = pack.replacing.get(entry);
+					change(index -> {
+						if (replacing == null || replacing.sameLocation(index.entries.get(entry.path))) {
+							index.put(entry);
+						}
+					});
+					if (replacing == null) {
+						stored.add(entry);
+					}
+				}
+			}
+			pack.stats.forEach((entry, stats) -> stats.fileTransferred(entry.length));
+		}
+
+		// Delete packs no index entry refers to: ones compaction emptied, and ones
+		// pushes uploaded without ever saving the index. Either kind is only
+		// deleted once it has been unused for a while, so that devices still
+		// reading an older index can finish fetching from it.
+		private void deleteUnusedPacks() throws IOException {
+			Set<String> referenced;
+			Set<String> recorded;
+			Map<String, Long> emptiedAt;
+			synchronized (this) {
+				referenced = view.entries.values().stream().map(entry -> entry.pack).collect(Collectors.toSet());
+				recorded = new HashSet<>(view.packSizes.keySet());
+				emptiedAt = new HashMap<>(view.emptiedAt);
+			}
+			long now = System.currentTimeMillis();
+			long cutoff = now - ORPHAN_AGE_MILLIS;
+			Set<String> emptied = recorded.stream()
+					.filter(pack -> !referenced.contains(pack) && !emptiedAt.containsKey(pack))
+					.collect(Collectors.toSet());
+			if (!emptied.isEmpty()) {
+				synchronized (this) {
+					change(index -> emptied.stream()
+							.filter(pack -> index.packSizes.containsKey(pack) && !index.emptiedAt.containsKey(pack))
+							.forEach(pack -> index.markEmptied(pack, now)));
+				}
+				commit();
+			}
+
+			String prefix = userId + "/" + PACK_DIRECTORY;
+			List<KeyVersion> unused = new ArrayList<>();
+			ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+			ListObjectsV2Result result;
+			do {
+				result = retrier.get(() -> s3Client.listObjectsV2(request));
+				for (S3ObjectSummary summary : result.getObjectSummaries()) {
+					String pack = summary.getKey().substring(prefix.length());
+					boolean expired = recorded.contains(pack)
+							? emptiedAt.containsKey(pack) && emptiedAt.get(pack) < cutoff
+							: summary.getLastModified() != null && summary.getLastModified().getTime() < cutoff;
+					if (!referenced.contains(pack) && expired) {
+						unused.add(new KeyVersion(summary.getKey()));
+					}
+				}
+				request.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+
+			for (int from = 0; from < unused.size(); from += 1000) {
+				List<KeyVersion> keys = unused.subList(from, Math.min(from + 1000, unused.size()));
+				retrier.deleteObjects(s3Client, new DeleteObjectsRequest(bucketName).withKeys(keys));
+			}
+			if (!unused.isEmpty()) {
+				Set<String> deleted = unused.stream().map(key -> key.getKey().substring(prefix.length()))
+						.collect(Collectors.toSet());
+				synchronized (this) {
+					change(index -> deleted.forEach(index::dropPack));
+				}
+				commit();
+			}
+		}
+
+		// Apply a change to the view and keep it for the next commit
+		private void change(Consumer<Index> change) {
+			change.accept(view);
+			changes.add(change);
+		}
+	}
+
+	// The pack being filled by a session
+	private class OpenPack {
+		private final String id = String.format("%013d-%s-%d", System.currentTimeMillis(), writerId,
+				packCounter.incrementAndGet());
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private final List<Entry> entries = new ArrayList<>();
+		// Entries moved here by compaction, and where they were before
+		private final Map<Entry, Entry> replacing = new HashMap<>();
+		// Where to report the upload of each new file
+		private final Map<Entry, TransferStats> stats = new HashMap<>();
+
+		void add(Entry entry, byte[] data, Entry previous, TransferStats transferStats) {
+			Entry packed = new Entry(entry.path, id, content.size(), data.length, entry.md5, entry.lastModified);
+			content.writeBytes(data);
+			entries.add(packed);
+			if (previous != null) {
+				replacing.put(packed, previous);
+			}
+			if (transferStats != null) {
+				stats.put(packed, transferStats);
+			}
+		}
+	}
+
+	// Read the latest index, or an empty one if the user has none. The index
+	// objects are listed, and only the base and deltas a cached copy lacks are
+	// fetched. Finding no index is trusted for as long as remote listings are
+	// cached, and for good while packing is disabled: then only another device
+	// can create one, and until this client restarts it just doesn't see the
+	// files that device packs.
+	private Index fetchIndex(String bucketName, String userId) throws IOException {
+		Index cached = cachedIndexes.get(userId);
+		if (cached != null && cached.missingSince > 0
+				&& (!enabled || System.currentTimeMillis() - cached.missingSince < missingIndexTtlMillis)) {
+			return cached;
+		}
+		for (int attempt = 1;; attempt++) {
+			try {
+				Index index = readIndex(bucketName, userId, cached);
+				cachedIndexes.put(userId, index);
+				if (index.missingSince == 0) {
+					rememberIndex(userId);
+				}
+				return index;
+			} catch (AmazonServiceException e) {
+				// A compaction deleted an object after it was listed
+				if (e.getStatusCode() != 404 || attempt >= MAX_SAVE_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private boolean hasIndex(String userId) {
+		if (usersWithIndex.contains(userId)) {
+			return true;
+		}
+		if (Files.exists(stateDirectory.resolve(userId).resolve(INDEX_MARKER))) {
+			usersWithIndex.add(userId);
+			return true;
+		}
+		return false;
+	}
+
+	// Record that a user has an index. If the marker can't be written, this
+	// process still remembers it.
+	private void rememberIndex(String userId) {
+		if (!usersWithIndex.add(userId)) {
+			return;
+		}
+		Path marker = stateDirectory.resolve(userId).resolve(INDEX_MARKER);
+		try {
+			Files.createDirectories(marker.getParent());
+			Files.write(marker, new byte[0]);
+		} catch (IOException e) {
+			System.err.println("Couldn't record the pack index locally: " + e.getMessage());
+		}
+	}
+
+	private Index readIndex(String bucketName, String userId, Index cached) throws IOException {
+		String prefix = userId + "/" + INDEX_DIRECTORY;
+		long base = 0;
+		List<Long> deltas = new ArrayList<>();
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+		ListObjectsV2Result result;
+		do {
+			result = retrier.get(() -> s3Client.listObjectsV2(request));
+			for (S3ObjectSummary summary : result.getObjectSummaries()) {
+				String name = summary.getKey().substring(prefix.length());
+				if (name.startsWith(BASE_PREFIX)) {
+					base = Math.max(base, Long.parseLong(name.substring(BASE_PREFIX.length())));
+				} else if (name.startsWith(DELTA_PREFIX)) {
+					deltas.add(Long.parseLong(name.substring(DELTA_PREFIX.length())));
+				}
+			}
+			request.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+
+		long newestBase = base;
+		deltas.removeIf(sequence -> sequence <= newestBase);
+		deltas.sort(null);
+		if (base == 0 && deltas.isEmpty()) {
+			Index empty = new Index();
+			empty.missingSince = System.currentTimeMillis();
+			return empty;
+		}
+		long latest = deltas.isEmpty() ? base : deltas.get(deltas.size() - 1);
+		if (cached != null && cached.missingSince == 0 && cached.sequence == latest) {
+			return cached; // Still the version we have
+		}
+
+		Index index;
+		if (cached != null && cached.missingSince == 0 && cached.sequence >= base && cached.sequence < latest) {
+			index = cached.copy();
+		} else {
+			index = new Index();
+			if (base > 0) {
+				readIndexObject(bucketName, prefix + BASE_PREFIX + sequenceName(base), index);
+			}
+			index.sequence = base;
+		}
+		for (long sequence : deltas) {
+			if (sequence <= index.sequence) {
+				continue;
+			}
+			if (sequence != index.sequence + 1) {
+				throw new IOException("Pack index delta " + (index.sequence + 1) + " is missing");
+			}
+			readIndexObject(bucketName, prefix + DELTA_PREFIX + sequenceName(sequence), index);
+			index.sequence = sequence;
+		}
+		index.deltas = deltas.size();
+		return index;
+	}
+
+	private void readIndexObject(String bucketName, String key, Index index) throws IOException {
+		try (S3Object object = retrier.get(() -> s3Client.getObject(bucketName, key));
+				InputStream in = new GZIPInputStream(object.getObjectContent())) {
+			index.apply(in);
+		}
+	}
+
+	// Apply changes to the latest index and save them as its next delta, only
+	// if nobody saved that delta in between (S3 answers 412 to the conditional
+	// PUT if they did, and the changes are applied again on top of theirs).
+	// Once enough deltas have piled up, they are folded into a new base.
+	private Index saveIndex(String bucketName, String userId, List<Consumer<Index>> changes) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			Index latest = fetchIndex(bucketName, userId);
+			Index updated = latest.copy();
+			updated.log = new ArrayList<>();
+			changes.forEach(change -> change.accept(updated));
+			if (updated.log.isEmpty()) {
+				return latest;
+			}
+			byte[] content = updated.formatLog();
+			long sequence = latest.sequence + 1;
+			try {
+				retrier.get(() -> {
+					ObjectMetadata metadata = new ObjectMetadata();
+					metadata.setContentLength(content.length);
+					PutObjectRequest request = new PutObjectRequest(bucketName,
+							userId + "/" + INDEX_DIRECTORY + DELTA_PREFIX + sequenceName(sequence),
+							new ByteArrayInputStream(content), metadata);
+					request.putCustomRequestHeader("If-None-Match", "*");
+					return s3Client.putObject(request);
+				});
+			} catch (AmazonServiceException e) {
+				boolean conflict = e.getStatusCode() == 412 || e.getStatusCode() == 409;
+				if (!conflict || attempt >= MAX_SAVE_ATTEMPTS) {
+					throw e;
+				}
+				// Read the other delta even if no index was found a moment ago
+				cachedIndexes.remove(userId);
+				continue;
+			}
+			updated.log = null;
+			updated.sequence = sequence;
+			updated.deltas = latest.deltas + 1;
+			updated.missingSince = 0;
+			if (updated.deltas >= MAX_DELTAS) {
+				compactIndex(bucketName, userId, updated);
+			}
+			cachedIndexes.put(userId, updated);
+			rememberIndex(userId);
+			return updated;
+		}
+	}
+
+	// Fold the deltas of an index into a new base, then delete the older base
+	// and deltas. Devices that listed them just before read again once they find
+	// them gone. Failures are reported and leave the deltas for the next commit.
+	private void compactIndex(String bucketName, String userId, Index index) {
+		String prefix = userId + "/" + INDEX_DIRECTORY;
+		try {
+			byte[] content = index.format();
+			retrier.get(() -> {
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(content.length);
+				return s3Client.putObject(new PutObjectRequest(bucketName,
+						prefix + BASE_PREFIX + sequenceName(index.sequence), new ByteArrayInputStream(content),
+						metadata));
+			});
+			index.deltas = 0;
+
+			List<KeyVersion> replaced = new ArrayList<>();
+			ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+			ListObjectsV2Result result;
+			do {
+				result = retrier.get(() -> s3Client.listObjectsV2(request));
+				for (S3ObjectSummary summary : result.getObjectSummaries()) {
+					String name = summary.getKey().substring(prefix.length());
+					String sequence = name.substring(name.indexOf('-') + 1);
+					if (!name.equals(BASE_PREFIX + sequenceName(index.sequence))
+							&& Long.parseLong(sequence) <= index.sequence) {
+						replaced.add(new KeyVersion(summary.getKey()));
+					}
+				}
+				request.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+			for (int from = 0; from < replaced.size(); from += 1000) {
+				List<KeyVersion> keys = replaced.subList(from, Math.min(from + 1000, replaced.size()));
+				retrier.deleteObjects(s3Client, new DeleteObjectsRequest(bucketName).withKeys(keys).withQuiet(true));
+			}
+		} catch (IOException | SdkClientException e) {
+			System.err.println("Couldn't compact the pack index: " + e.getMessage());
+		}
+	}
+
+	// Name index objects so that they list in sequence order
+	private static String sequenceName(long sequence) {
+		return String.format("%013d", sequence);
+	}
+
+	// Build the S3 key of a pack
+	private static String packKey(String userId, String pack) {
+		return userId + "/" + PACK_DIRECTORY + pack;
+	}
+
+	private static String md5(byte[] content) {
+		return HexFormat.of().formatHex(FileUtils.newDigest("MD5").digest(content));
+	}
+}
@@ -0,0 +1,113 @@
+package io.github.lwcarani.transfer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Reports the progress of a push or pull from its TransferStats, e.g.
+// "Uploading: 1200/5000 files, 1.2 GB/4.5 GB, 25.3 MB/s (avg 20.1 MB/s), ETA 2m 10s".
+// The report is redrawn in place on a timer, so the transfer workers never
+// print anything themselves. Without a console (e.g. output redirected to a
+// file) a new line is printed every few seconds instead.
+public class ProgressReporter implements AutoCloseable {
+
+	// Without a console, print only every this many redraws
+	private static final int NON_INTERACTIVE_EVERY = 20;
+	// Weight of the latest interval in the current rate
+	private static final double RATE_SMOOTHING = 0.3;
+
+	private final String verb;
+	private final TransferStats stats;
+	private final boolean interactive;
+	private final ScheduledFuture<?> redraws;
+	private long lastNanos;
+	private long lastBytes;
+	private double currentRate = -1;
+	private int redrawCount;
+	private int lastLength;
+
+	ProgressReporter(String verb, TransferStats stats, ScheduledExecutorService scheduler, long intervalMillis) {
+		this.verb = verb;
+		this.stats = stats;
+		this.interactive = System.console() != null;
+		this.lastNanos = System.nanoTime();
+		this.redraws = intervalMillis > 0
+				? scheduler.scheduleAtFixedRate(this::redraw, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS)
+				: null;
+	}
+
+	// Stop redrawing and clear the progress line, so the caller can print its
+	// summary in its place
+	@Override
+	public void close() {
+		if (redraws == null) {
+			return;
+		}
+		redraws.cancel(false);
+		synchronized (this) {
+			if (interactive && lastLength > 0) {
+				System.out.print("\r" + " ".repeat(lastLength) + "\r");
+				System.out.flush();
+				lastLength = 0;
+			}
+		}
+	}
+
+	private synchronized void redraw() {
+		long now = System.nanoTime();
+		long transferred = stats.getTransferredBytes();
+		double seconds = (now - lastNanos) / 1_000_000_000.0;
+		if (seconds > 0) {
+			double rate = (transferred - lastBytes) / seconds;
+			currentRate = currentRate < 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * currentRate;
+		}
+		lastNanos = now;
+		lastBytes = transferred;
+
+		redrawCount++;
+		if (!interactive && redrawCount % NON_INTERACTIVE_EVERY != 0) {
+			return;
+		}
+
+		String line = describe();
+		if (interactive) {
+			// Pad over whatever is left of a longer previous line
+			System.out.print("\r" + line + " ".repeat(Math.max(0, lastLength - line.length())));
+			lastLength = line.length();
+		} else {
+			System.out.println(line);
+		}
+		System.out.flush();
+	}
+
+	private String describe() {
+		return describe(verb, stats, currentRate, stats.getElapsedSeconds());
+	}
+
+	// The progress line for stats after elapsedSeconds, given the current rate in
+	// bytes per second (negative until it has been measured)
+	public static String describe(String verb, TransferStats stats, double currentRate, double elapsedSeconds) {
+		double averageRate = stats.getTransferredBytes() / Math.max(elapsedSeconds, 0.001);
+		long remaining = Math.max(0, stats.getQueuedBytes() - stats.getCompletedBytes());
+		double rate = currentRate > 0 ? currentRate : averageRate;
+		String eta = remaining == 0 ? "0s" : rate > 0 ? formatDuration((long) (remaining / rate)) : "--";
+
+		return String.format("%s: %d/%d files, %s/%s, %s/s (avg %s/s), ETA %s", verb, stats.getCompletedFiles(),
+				stats.getQueuedFiles(), FileUtils.formatBytes(stats.getCompletedBytes()),
+				FileUtils.formatBytes(stats.getQueuedBytes()), FileUtils.formatBytes((long) Math.max(currentRate, 0)),
+				FileUtils.formatBytes((long) averageRate), eta);
+	}
+
+	// e.g. "45s", "2m 10s" or "1h 05m"
+	public static String formatDuration(long seconds) {
+		if (seconds < 60) {
+			return seconds + "s";
+		}
+		if (seconds < 3600) {
+			return String.format("%dm %02ds", seconds / 60, seconds % 60);
+		}
+		return String.format("%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+	}
+}
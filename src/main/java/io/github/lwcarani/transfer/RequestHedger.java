@@ -0,0 +1,155 @@
+package io.github.lwcarani.transfer;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.SdkClientException;
+
+import jakarta.annotation.PreDestroy;
+
+// Hedges small GETs against tail latency: if a request hasn't answered within
+// the chosen percentile of recent response times, an identical second request
+// is sent and whichever answers first is used. The other one's response is
+// discarded (its connection closed) when it arrives. Only small objects are
+// hedged, where waiting for the response is most of the cost, and at a high
+// percentile only a few percent of requests are sent twice.
+@Component
+public class RequestHedger {
+
+	// Response times kept to estimate the percentile from
+	private static final int SAMPLES = 512;
+	// No hedging until this many responses have been timed
+	private static final int MIN_SAMPLES = 32;
+	// How often the hedging delay is recomputed, in responses
+	private static final int RECOMPUTE_EVERY = 32;
+
+	private final boolean enabled;
+	private final double percentile;
+	private final long maxSize;
+	private final ExecutorService executor;
+	private final long[] samples = new long[SAMPLES];
+	private int sampleCount;
+	private long delayNanos = -1;
+	private final AtomicLong hedged = new AtomicLong();
+
+	public RequestHedger(@Value("${dropbox.transfer.hedge.enabled:false}") boolean enabled,
+			@Value("${dropbox.transfer.hedge.percentile:95}") double percentile,
+			@Value("${dropbox.transfer.hedge.max-size:1048576}") long maxSize) {
+		this.enabled = enabled;
+		this.percentile = Math.min(Math.max(percentile, 1), 100) / 100;
+		this.maxSize = maxSize;
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "transfer-hedge-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Whether a GET of an object of this size should be hedged
+	public boolean shouldHedge(long size) {
+		return enabled && size <= maxSize;
+	}
+
+	// Send request, and a second copy of it if the first is slow. discard is
+	// given the response that lost the race (which may be null).
+	public <T> T call(Supplier<T> request, Consumer<T> discard) {
+		long start = System.nanoTime();
+		long delay = currentDelay();
+		CompletableFuture<T> first = CompletableFuture.supplyAsync(request, executor);
+		first.whenComplete((result, error) -> {
+			if (error == null) {
+				record(System.nanoTime() - start);
+			}
+		});
+		if (delay < 0) {
+			return await(first, discard);
+		}
+
+		try {
+			return first.get(delay, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			// Slower than most: hedge below
+		} catch (InterruptedException e) {
+			first.thenAccept(discard);
+			Thread.currentThread().interrupt();
+			throw new SdkClientException("Interrupted waiting for a response", e);
+		} catch (ExecutionException e) {
+			return await(first, discard); // Failed quickly, so rethrows its error
+		}
+
+		hedged.incrementAndGet();
+		CompletableFuture<T> second = CompletableFuture.supplyAsync(request, executor);
+		// The first response wins; fail only once both requests have failed
+		CompletableFuture<T> winner = new CompletableFuture<>();
+		AtomicInteger failuresLeft = new AtomicInteger(2);
+		BiConsumer<T, Throwable> settle = (result, error) -> {
+			if (error == null) {
+				if (!winner.complete(result)) {
+					discard.accept(result);
+				}
+			} else if (failuresLeft.decrementAndGet() == 0) {
+				winner.completeExceptionally(error);
+			}
+		};
+		first.whenComplete(settle);
+		second.whenComplete(settle);
+		// The loser is discarded by settle, so only the winner is left to discard
+		return await(winner, discard);
+	}
+
+	// How many requests were hedged since startup
+	public long getHedgedCount() {
+		return hedged.get();
+	}
+
+	// Stop the hedging threads when the application shuts down
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private synchronized long currentDelay() {
+		return delayNanos;
+	}
+
+	private synchronized void record(long nanos) {
+		samples[sampleCount % SAMPLES] = nanos;
+		sampleCount++;
+		if (sampleCount >= MIN_SAMPLES && sampleCount % RECOMPUTE_EVERY == 0) {
+			long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, SAMPLES));
+			Arrays.sort(sorted);
+			delayNanos = sorted[(int) Math.ceil(sorted.length * percentile) - 1];
+		}
+	}
+
+	// Wait for a response. If interrupted, the response is discarded once it
+	// arrives, so an S3Object's connection (and concurrency slot) isn't held
+	// forever by a response nobody reads.
+	private static <T> T await(CompletableFuture<T> future, Consumer<T> discard) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.thenAccept(discard);
+			Thread.currentThread().interrupt();
+			throw new SdkClientException("Interrupted waiting for a response", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof RuntimeException ? (RuntimeException) cause
+					: new SdkClientException("Request failed: " + cause.getMessage(), cause);
+		}
+	}
+}
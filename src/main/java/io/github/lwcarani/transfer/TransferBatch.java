@@ -0,0 +1,93 @@
+package io.github.lwcarani.transfer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+// A group of transfer tasks submitted together (e.g. all files of one push).
+// Submitting blocks once too many tasks are queued, so producers such as a tree
+// walk cannot run arbitrarily far ahead of the workers.
+public class TransferBatch {
+
+	private final Executor executor;
+	private final Semaphore queuedTasks;
+	private final List<Throwable> failures = new CopyOnWriteArrayList<>();
+	private final Object lock = new Object();
+	private int pending;
+
+	TransferBatch(Executor executor, int maxQueuedTasks) {
+		this.executor = executor;
+		this.queuedTasks = new Semaphore(maxQueuedTasks);
+	}
+
+	// Queue a task, waiting for room if the batch is already full
+	public void submit(Runnable task) {
+		submit(task, null);
+	}
+
+	// Queue a task with a handler for errors it doesn't handle itself (e.g. to
+	// count its file as failed). Such errors are also kept in getFailures.
+	public void submit(Runnable task, Consumer<RuntimeException> onFailure) {
+		queuedTasks.acquireUninterruptibly();
+		synchronized (lock) {
+			pending++;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					failed(e, onFailure);
+				} finally {
+					finish();
+				}
+			});
+		} catch (RuntimeException e) {
+			// Executor rejected the task (e.g. during shutdown)
+			failed(e, onFailure);
+			finish();
+		}
+	}
+
+	// Wait until every submitted task has finished
+	public void await() {
+		synchronized (lock) {
+			while (pending > 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	// Exceptions thrown by tasks that did not handle their own errors
+	public List<Throwable> getFailures() {
+		return failures;
+	}
+
+	private void failed(RuntimeException e, Consumer<RuntimeException> onFailure) {
+		failures.add(e);
+		if (onFailure != null) {
+			try {
+				onFailure.accept(e);
+			} catch (RuntimeException handlerError) {
+				failures.add(handlerError);
+			}
+		}
+	}
+
+	private void finish() {
+		queuedTasks.release();
+		synchronized (lock) {
+			pending--;
+			if (pending == 0) {
+				lock.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package io.github.lwcarani.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import jakarta.annotation.PreDestroy;
+
+// Runs S3 transfers in parallel. Many files are transferred at once on the file
+// pool, large files are split into parts that are uploaded concurrently on the
+// part pool, and listings are prefetched on the listing pool. The pools are
+// separate so a file task waiting on its parts can never starve the parts of a
+// worker thread. Their sizes are upper bounds: how many requests actually run
+// at once is adapted by the ConcurrencyLimiter the S3 client goes through.
+@Component
+public class TransferEngine {
+
+	// S3 rejects multipart parts smaller than 5 MiB (except the last one)
+	private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+	// S3 allows at most 10,000 parts per multipart upload
+	private static final int MAX_PARTS = 10_000;
+	// Parts of a streamed upload held in memory while they upload
+	private static final int MAX_STREAMED_PARTS = 4;
+
+	private final AmazonS3 s3Client;
+	private final long partSize;
+	private final long multipartThreshold;
+	private final int fileConcurrency;
+	private final ExecutorService fileExecutor;
+	private final ExecutorService partExecutor;
+	private final ExecutorService listingExecutor;
+	private final ScheduledExecutorService progressExecutor;
+	// How often progress reports are redrawn; 0 turns them off
+	private final long progressIntervalMillis;
+
+	public TransferEngine(AmazonS3 s3Client,
+			@Value("${dropbox.transfer.part-size:16777216}") long partSize,
+			@Value("${dropbox.transfer.multipart-threshold:16777216}") long multipartThreshold,
+			@Value("${dropbox.transfer.part-concurrency:32}") int partConcurrency,
+			@Value("${dropbox.transfer.file-concurrency:32}") int fileConcurrency,
+			@Value("${dropbox.transfer.progress-interval-ms:500}") long progressIntervalMillis) {
+		this.s3Client = s3Client;
+		this.partSize = Math.max(partSize, MIN_PART_SIZE);
+		this.multipartThreshold = Math.max(multipartThreshold, this.partSize);
+		this.fileConcurrency = Math.max(1, fileConcurrency);
+		this.fileExecutor = Executors.newFixedThreadPool(this.fileConcurrency, daemonThreads("transfer-file"));
+		this.partExecutor = Executors.newFixedThreadPool(Math.max(1, partConcurrency), daemonThreads("transfer-part"));
+		this.listingExecutor = Executors.newCachedThreadPool(daemonThreads("transfer-list"));
+		this.progressExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("transfer-progress"));
+		this.progressIntervalMillis = progressIntervalMillis;
+	}
+
+	// Start a new batch of file-level tasks that run on the file pool
+	public TransferBatch newBatch() {
+		return new TransferBatch(fileExecutor, fileConcurrency * 4);
+	}
+
+	// Start reporting the progress of a push or pull; close the reporter once its
+	// batch has finished
+	public ProgressReporter startProgress(String verb, TransferStats stats) {
+		return new ProgressReporter(verb, stats, progressExecutor, progressIntervalMillis);
+	}
+
+	// Run a listing request in the background, so the next page can be fetched
+	// while the workers are still busy with the current one
+	public <T> CompletableFuture<T> prefetch(Supplier<T> request) {
+		return CompletableFuture.supplyAsync(request, listingExecutor);
+	}
+
+	// Upload a local file, using a parallel multipart upload if it is large.
+	// Blocks until the upload completes and returns the object's ETag.
+	public String upload(String bucketName, String key, Path localFile) {
+		return upload(bucketName, key, localFile, new ObjectMetadata());
+	}
+
+	// Upload a local file with the given object metadata (e.g. user metadata
+	// describing how the content is stored)
+	public String upload(String bucketName, String key, Path localFile, ObjectMetadata metadata) {
+		return upload(bucketName, key, localFile, metadata, null, null);
+	}
+
+	// Upload a local file, reporting the parts of a multipart upload as partial
+	// progress to stats (if not null) as they complete. With a checkpoint, a
+	// multipart upload records its progress there and resumes the upload an
+	// earlier attempt left unfinished; a failed upload is then kept for the next
+	// attempt rather than aborted.
+	public String upload(String bucketName, String key, Path localFile, ObjectMetadata metadata,
+			TransferStats stats, MultipartCheckpoint checkpoint) {
+		File file = localFile.toFile();
+		long contentLength = file.length();
+		if (contentLength < multipartThreshold) {
+			return s3Client.putObject(new PutObjectRequest(bucketName, key, file).withMetadata(metadata)).getETag();
+		}
+		return uploadMultipart(bucketName, key, file, contentLength, metadata, stats, checkpoint);
+	}
+
+	// Upload content held in memory with a single PUT
+	public String upload(String bucketName, String key, byte[] content, ObjectMetadata metadata) {
+		metadata.setContentLength(content.length);
+		return s3Client
+				.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(content), metadata))
+				.getETag();
+	}
+
+	// Start a multipart upload of content produced while it uploads (e.g. while
+	// it is being compressed), so it never has to be written out in full first
+	public StreamedUpload startStreamedUpload(String bucketName, String key, ObjectMetadata metadata,
+			TransferStats stats) {
+		InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, key, metadata);
+		String uploadId = s3Client.initiateMultipartUpload(request).getUploadId();
+		return new StreamedUpload(bucketName, key, uploadId, stats);
+	}
+
+	// The most memory a streamed upload of content split into parts of the given
+	// size holds at once: the parts still uploading, the one being filled and
+	// its copy handed to addPart
+	public static long getStreamedUploadMemory(long partSize) {
+		return (MAX_STREAMED_PARTS + 2) * partSize;
+	}
+
+	// Files at or above this size are uploaded in parts
+	public long getMultipartThreshold() {
+		return multipartThreshold;
+	}
+
+	// The part size for an upload of the given length (at most): the configured
+	// one, grown if needed to stay within the part count limit
+	public long getPartSize(long contentLength) {
+		return Math.max(partSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+	}
+
+	// A multipart upload whose parts are handed over one at a time. Each part is
+	// uploaded on the part pool while the next one is produced; adding a part
+	// waits while MAX_STREAMED_PARTS are still uploading. Parts are reported to
+	// stats (if not null) as partial progress until the upload completes or is
+	// aborted, as the caller records the whole file as transferred or failed.
+	public class StreamedUpload {
+		private final String bucketName;
+		private final String key;
+		private final String uploadId;
+		private final TransferStats stats;
+		private final List<Future<PartETag>> parts = new ArrayList<>();
+		// Progress reported so far; none is reported once the upload is finished
+		private long uploaded;
+		private boolean finished;
+
+		private StreamedUpload(String bucketName, String key, String uploadId, TransferStats stats) {
+			this.bucketName = bucketName;
+			this.key = key;
+			this.uploadId = uploadId;
+			this.stats = stats;
+		}
+
+		// Upload the next part, reporting progress bytes of the file once it is done
+		public void addPart(byte[] content, long progress) {
+			if (parts.size() >= MAX_STREAMED_PARTS) {
+				await(parts.get(parts.size() - MAX_STREAMED_PARTS));
+			}
+			UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(key)
+					.withUploadId(uploadId).withPartNumber(parts.size() + 1)
+					.withInputStream(new ByteArrayInputStream(content)).withPartSize(content.length);
+			parts.add(partExecutor.submit(() -> {
+				PartETag partETag = s3Client.uploadPart(request).getPartETag();
+				reportProgress(progress);
+				return partETag;
+			}));
+		}
+
+		// Wait for the parts and stitch them together, returning the object's ETag
+		public String complete() {
+			List<PartETag> partETags = new ArrayList<>(parts.size());
+			for (Future<PartETag> part : parts) {
+				partETags.add(await(part));
+			}
+			try {
+				return s3Client.completeMultipartUpload(
+						new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags)).getETag();
+			} finally {
+				clearProgress();
+			}
+		}
+
+		// Give up on the upload, cancelling parts still running
+		public void abort() {
+			parts.forEach(part -> part.cancel(true));
+			abortQuietly(bucketName, key, uploadId);
+			clearProgress();
+		}
+
+		private PartETag await(Future<PartETag> part) {
+			try {
+				return part.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SdkClientException("Transfer interrupted", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof RuntimeException ? (RuntimeException) cause
+						: new SdkClientException("Transfer failed: " + cause.getMessage(), cause);
+			}
+		}
+
+		private synchronized void reportProgress(long bytes) {
+			if (stats != null && !finished) {
+				uploaded += bytes;
+				stats.partialProgress(bytes);
+			}
+		}
+
+		private synchronized void clearProgress() {
+			finished = true;
+			if (stats != null) {
+				stats.partialProgress(-uploaded);
+			}
+		}
+	}
+
+	// Split a file into parts, upload them concurrently, then stitch them together
+	private String uploadMultipart(String bucketName, String key, File file, long contentLength,
+			ObjectMetadata metadata, TransferStats stats, MultipartCheckpoint checkpoint) {
+		long effectivePartSize = getPartSize(contentLength);
+
+		String uploadId = null;
+		Map<Integer, PartETag> uploadedParts = Map.of();
+		MultipartCheckpoint.Upload previous = checkpoint == null ? null : checkpoint.find();
+		if (previous != null) {
+			uploadedParts = findUploadedParts(bucketName, key, previous);
+			if (uploadedParts != null) {
+				uploadId = previous.getUploadId();
+				effectivePartSize = previous.getPartSize();
+			} else {
+				// Gone (e.g. completed or expired) or no longer usable
+				checkpoint.closed(previous.getUploadId());
+				uploadedParts = Map.of();
+			}
+		}
+		if (uploadId == null) {
+			uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata))
+					.getUploadId();
+			if (checkpoint != null) {
+				checkpoint.started(uploadId, effectivePartSize);
+			}
+		}
+
+		String id = uploadId;
+		AtomicLong uploaded = new AtomicLong();
+		try {
+			List<PartETag> partETags = new ArrayList<>();
+			List<Callable<PartETag>> parts = new ArrayList<>();
+			int partNumber = 1;
+			for (long offset = 0; offset < contentLength; offset += effectivePartSize, partNumber++) {
+				long size = Math.min(effectivePartSize, contentLength - offset);
+				PartETag done = uploadedParts.get(partNumber);
+				if (done != null) {
+					partETags.add(done);
+					if (stats != null) {
+						uploaded.addAndGet(size);
+						stats.partialProgress(size);
+					}
+					continue;
+				}
+				UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(key)
+						.withUploadId(id).withPartNumber(partNumber).withFile(file).withFileOffset(offset)
+						.withPartSize(size);
+				parts.add(() -> {
+					PartETag partETag = s3Client.uploadPart(request).getPartETag();
+					if (checkpoint != null) {
+						checkpoint.partUploaded(id, partETag);
+					}
+					if (stats != null) {
+						uploaded.addAndGet(size);
+						stats.partialProgress(size);
+					}
+					return partETag;
+				});
+			}
+
+			partETags.addAll(invokeParts(parts));
+			partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+
+			String eTag = s3Client
+					.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, id, partETags))
+					.getETag();
+			if (checkpoint != null) {
+				checkpoint.closed(id);
+			}
+			return eTag;
+		} catch (RuntimeException e) {
+			if (checkpoint == null) {
+				abortQuietly(bucketName, key, id);
+			}
+			throw e;
+		} finally {
+			// The caller records the whole file as transferred or failed
+			if (stats != null) {
+				stats.partialProgress(-uploaded.get());
+			}
+		}
+	}
+
+	// Run the pieces of one file's transfer concurrently on the part pool and
+	// wait for all of them, returning their results in submission order
+	public <T> List<T> invokeParts(List<Callable<T>> tasks) {
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(partExecutor.submit(task));
+		}
+
+		try {
+			List<T> results = new ArrayList<>(futures.size());
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SdkClientException("Transfer interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof RuntimeException ? (RuntimeException) cause
+					: new SdkClientException("Transfer failed: " + cause.getMessage(), cause);
+		} finally {
+			// Don't leave the rest of a failed transfer running
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	// Start one piece of a transfer on the part pool, for callers that consume
+	// the pieces in order while later ones are still running
+	public <T> Future<T> submitPart(Callable<T> task) {
+		return partExecutor.submit(task);
+	}
+
+	// The parts of an earlier upload that S3 still holds as they were recorded,
+	// by part number, or null if the upload can't be resumed
+	private Map<Integer, PartETag> findUploadedParts(String bucketName, String key,
+			MultipartCheckpoint.Upload upload) {
+		if (upload.getPartSize() < MIN_PART_SIZE) {
+			abortQuietly(bucketName, key, upload.getUploadId());
+			return null;
+		}
+		Map<Integer, PartETag> parts = new HashMap<>();
+		try {
+			ListPartsRequest request = new ListPartsRequest(bucketName, key, upload.getUploadId());
+			PartListing listing;
+			do {
+				listing = s3Client.listParts(request);
+				for (PartSummary part : listing.getParts()) {
+					String recorded = upload.getPartETags().get(part.getPartNumber());
+					if (part.getETag().equals(recorded)) {
+						parts.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+					}
+				}
+				request.setPartNumberMarker(listing.getNextPartNumberMarker());
+			} while (listing.isTruncated());
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				return null; // NoSuchUpload
+			}
+			throw e;
+		}
+		return parts;
+	}
+
+	// Abort a multipart upload so its parts don't linger (and get billed)
+	public void abortUpload(String bucketName, String key, String uploadId) {
+		s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+	}
+
+	// Abort a failed multipart upload, reporting rather than throwing errors
+	private void abortQuietly(String bucketName, String key, String uploadId) {
+		try {
+			abortUpload(bucketName, key, uploadId);
+		} catch (RuntimeException e) {
+			System.err.println("Couldn't abort multipart upload for " + key + ": " + e.getMessage());
+		}
+	}
+
+	// Stop the worker pools when the application shuts down
+	@PreDestroy
+	public void shutdown() {
+		fileExecutor.shutdownNow();
+		partExecutor.shutdownNow();
+		listingExecutor.shutdownNow();
+		progressExecutor.shutdownNow();
+	}
+
+	// Daemon threads so an in-flight transfer never keeps the JVM alive on exit
+	private static ThreadFactory daemonThreads(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,229 @@
+package io.github.lwcarani.transfer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+import io.github.lwcarani.metrics.ClientMetrics;
+
+// Retries whole transfers (a file's upload or download, a batch delete) and
+// single S3 requests that failed with a transient error, so a file isn't left
+// out of a push or pull because of one bad moment. The S3 client makes no
+// retries of its own, so every S3 request goes through here, directly or as
+// part of a transfer; only best-effort cleanup, such as aborting a failed
+// multipart upload, is made once. Retrying whole transfers also covers what
+// per-request retries can't, such as a connection dropped while a download is
+// being read. Every retry is counted in ClientMetrics. Attempts are spaced by
+// exponential backoff with full jitter, so workers that failed together don't
+// retry together.
+// Retries draw on a shared budget: a reserve that refills by a fraction of a
+// retry for every transfer that succeeds. When S3 or the network is down for
+// good, the reserve runs out and failures are reported right away instead of
+// every file retrying on its own.
+@Component
+public class TransferRetrier {
+
+	// Retries that may be made before any transfer has succeeded
+	private static final double BUDGET_RESERVE = 100;
+	// Per-key errors of a multi-object delete that may go away on a retry
+	private static final Set<String> TRANSIENT_DELETE_ERRORS = Set.of("InternalError", "ServiceUnavailable",
+			"SlowDown", "RequestTimeout");
+
+	// A piece of work to retry; it must be safe to run again after a failure
+	@FunctionalInterface
+	public interface Attempt<T> {
+		T run() throws IOException;
+	}
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final double budgetRatio;
+	// Where retries are counted, or null
+	private final ClientMetrics metrics;
+	private double budget = BUDGET_RESERVE;
+	private boolean budgetReported;
+
+	@Autowired
+	public TransferRetrier(ClientMetrics metrics,
+			@Value("${dropbox.transfer.retry.max-attempts:4}") int maxAttempts,
+			@Value("${dropbox.transfer.retry.base-delay-ms:200}") long baseDelayMillis,
+			@Value("${dropbox.transfer.retry.max-delay-ms:10000}") long maxDelayMillis,
+			@Value("${dropbox.transfer.retry.budget-ratio:0.1}") double budgetRatio) {
+		this.metrics = metrics;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseDelayMillis = Math.max(0, baseDelayMillis);
+		this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+		this.budgetRatio = budgetRatio;
+	}
+
+	// A retrier whose retries aren't counted anywhere
+	public TransferRetrier(int maxAttempts, long baseDelayMillis, long maxDelayMillis, double budgetRatio) {
+		this(null, maxAttempts, baseDelayMillis, maxDelayMillis, budgetRatio);
+	}
+
+	// Run attempt, retrying it on transient errors while attempts and budget
+	// last. The last error is thrown if it never succeeds.
+	public <T> T call(Attempt<T> attempt) throws IOException {
+		for (int attempts = 1;; attempts++) {
+			try {
+				T result = attempt.run();
+				succeeded();
+				return result;
+			} catch (IOException | RuntimeException e) {
+				if (attempts >= maxAttempts || !isTransient(e) || !takeRetry()) {
+					throw e;
+				}
+				if (!sleep(attempts)) {
+					throw e;
+				}
+				countRetry();
+			}
+		}
+	}
+
+	// Like call, for work that doesn't do local I/O
+	public <T> T get(Supplier<T> attempt) {
+		try {
+			return call(attempt::get);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Never thrown by a Supplier
+		}
+	}
+
+	// Delete keys with multi-object deletes. A failed request is retried like
+	// any other, and when S3 reports that only some of the keys failed, just
+	// those are sent again if their errors are transient. Keys that still fail
+	// are thrown in one MultiObjectDeleteException.
+	public void deleteObjects(AmazonS3 s3Client, DeleteObjectsRequest request) {
+		List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+		List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+		List<KeyVersion> keys = request.getKeys();
+		for (int attempts = 1;; attempts++) {
+			DeleteObjectsRequest attempt = new DeleteObjectsRequest(request.getBucketName()).withKeys(keys)
+					.withQuiet(request.getQuiet());
+			try {
+				deleted.addAll(get(() -> s3Client.deleteObjects(attempt)).getDeletedObjects());
+				break;
+			} catch (MultiObjectDeleteException e) {
+				deleted.addAll(e.getDeletedObjects());
+				keys = new ArrayList<>();
+				for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+					if (TRANSIENT_DELETE_ERRORS.contains(error.getCode())) {
+						keys.add(new KeyVersion(error.getKey(), error.getVersionId()));
+					} else {
+						errors.add(error);
+					}
+				}
+				if (keys.isEmpty()) {
+					break;
+				}
+				if (attempts >= maxAttempts || Thread.currentThread().isInterrupted() || !takeRetry()
+						|| !sleep(attempts)) {
+					e.getErrors().stream().filter(error -> TRANSIENT_DELETE_ERRORS.contains(error.getCode()))
+							.forEach(errors::add);
+					break;
+				}
+				countRetry();
+			} catch (SdkClientException e) {
+				if (attempts == 1) {
+					throw e;
+				}
+				// The keys deleted by earlier attempts stay deleted
+				for (KeyVersion key : keys) {
+					MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+					error.setKey(key.getKey());
+					error.setVersionId(key.getVersion());
+					error.setMessage(e.getMessage());
+					errors.add(error);
+				}
+				break;
+			}
+		}
+		if (!errors.isEmpty()) {
+			throw new MultiObjectDeleteException(errors, deleted);
+		}
+	}
+
+	// Whether an error may go away if the transfer is tried again: S3 being
+	// busy or failing internally, or the network, but not a refused request or
+	// a problem with a local file (such as one deleted before it was read)
+	public static boolean isTransient(Exception e) {
+		if (Thread.currentThread().isInterrupted()) {
+			return false;
+		}
+		if (e instanceof UncheckedIOException) {
+			return isTransient(((UncheckedIOException) e).getCause());
+		}
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException serviceException = (AmazonServiceException) e;
+			return serviceException.getStatusCode() >= 500 || serviceException.getStatusCode() == 429
+					|| "RequestTimeout".equals(serviceException.getErrorCode());
+		}
+		if (e instanceof SdkClientException) {
+			// The SDK wraps network errors; anything else (e.g. an interrupted
+			// transfer) is final
+			return e.getCause() instanceof IOException && isTransient((IOException) e.getCause());
+		}
+		return e instanceof IOException && !(e instanceof FileSystemException)
+				&& !(e instanceof FileNotFoundException);
+	}
+
+	private synchronized void succeeded() {
+		budget = Math.min(BUDGET_RESERVE, budget + budgetRatio);
+		if (budget >= 1) {
+			budgetReported = false;
+		}
+	}
+
+	private synchronized boolean takeRetry() {
+		if (budget < 1) {
+			if (!budgetReported) {
+				System.err.println("Too many transfers are failing; reporting further failures without retrying.");
+				budgetReported = true;
+			}
+			return false;
+		}
+		budget--;
+		return true;
+	}
+
+	private void countRetry() {
+		if (metrics != null) {
+			metrics.retried("s3");
+		}
+	}
+
+	// Wait before the retry that follows the given number of attempts: a random
+	// time up to the backoff, which doubles with every attempt up to the max.
+	// Returns false if interrupted.
+	private boolean sleep(int attempts) {
+		long backoff = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempts - 1, 30));
+		try {
+			TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
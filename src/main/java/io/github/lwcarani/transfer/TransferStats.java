@@ -0,0 +1,143 @@
+package io.github.lwcarani.transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.lwcarani.util.FileUtils;
+
+// Thread-safe counters for one push or pull, used to print a throughput summary
+// and to report progress while it runs
+public class TransferStats {
+
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong files = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	// Totals for the progress report: every file the operation has to look at,
+	// and the bytes of the files it has finished with one way or another
+	private final AtomicLong queuedFiles = new AtomicLong();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong settledBytes = new AtomicLong();
+	// Bytes of files that are still being transferred
+	private final AtomicLong partialBytes = new AtomicLong();
+
+	// Record a file the operation will transfer, or find up to date
+	public void fileQueued(long size) {
+		queuedFiles.incrementAndGet();
+		queuedBytes.addAndGet(size);
+	}
+
+	// Record a file that was transferred
+	public void fileTransferred(long size) {
+		files.incrementAndGet();
+		bytes.addAndGet(size);
+		settledBytes.addAndGet(size);
+	}
+
+	// Record a file that was already up to date
+	public void fileSkipped(long size) {
+		skipped.incrementAndGet();
+		settledBytes.addAndGet(size);
+	}
+
+	// Record a file that could not be transferred
+	public void fileFailed(long size) {
+		failed.incrementAndGet();
+		settledBytes.addAndGet(size);
+	}
+
+	// Record bytes of a file that is still being transferred. Once the file is
+	// recorded as transferred or failed, the same amount is taken back.
+	public void partialProgress(long bytes) {
+		partialBytes.addAndGet(bytes);
+	}
+
+	// Report the bytes read from a download's content as partial progress
+	public InputStream trackProgress(InputStream in) {
+		return new FilterInputStream(in) {
+			private long reported;
+
+			@Override
+			public int read() throws IOException {
+				int b = in.read();
+				if (b >= 0) {
+					reported++;
+					partialProgress(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = in.read(b, off, len);
+				if (n > 0) {
+					reported += n;
+					partialProgress(n);
+				}
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				partialProgress(-reported);
+				reported = 0;
+				in.close();
+			}
+		};
+	}
+
+	public long getFiles() {
+		return files.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getQueuedFiles() {
+		return queuedFiles.get();
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	// Files finished with so far: transferred, up to date or failed
+	public long getCompletedFiles() {
+		return getFiles() + getSkipped() + getFailed();
+	}
+
+	// Bytes of the queued files that are accounted for, including partial
+	// transfers
+	public long getCompletedBytes() {
+		return settledBytes.get() + partialBytes.get();
+	}
+
+	// Bytes actually sent or received so far, including partial transfers
+	public long getTransferredBytes() {
+		return getBytes() + partialBytes.get();
+	}
+
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - startNanos) / 1_000_000_000.0;
+	}
+
+	// e.g. "Downloaded 120 file(s), 3.4 MB in 2.1s (57.1 files/s, 1.6 MB/s); 4 up to date, 0 failed."
+	public String summary(String verb) {
+		double seconds = Math.max(getElapsedSeconds(), 0.001);
+		return String.format("%s %d file(s), %s in %.1fs (%.1f files/s, %s/s); %d up to date, %d failed.", verb,
+				getFiles(), FileUtils.formatBytes(getBytes()), seconds, getFiles() / seconds,
+				FileUtils.formatBytes((long) (getBytes() / seconds)), getSkipped(), getFailed());
+	}
+}
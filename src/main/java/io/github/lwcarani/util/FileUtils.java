@@ -3,15 +3,25 @@ package io.github.lwcarani.util;
 import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.swing.JFileChooser;
 
 public class FileUtils {
 
+	// A number with an optional K, M, G or T unit and an optional B
+	private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+(?:\\.\\d*)?|\\.\\d+)\\s*([KMGT]?)B?");
+
 	// Select root directory based on environment (GUI or console)
 	public static String selectRootDirectory() {
 		if (GraphicsEnvironment.isHeadless()) {
@@ -104,4 +114,63 @@ public class FileUtils {
 	public static boolean isValidLocalDirectory(Path path) {
 		return Files.isDirectory(path);
 	}
-}
\ No newline at end of file
+
+	// Compute the SHA-256 hash of a file's contents as a hex string
+	public static String computeContentHash(Path path) throws IOException {
+		return computeHash(path, "SHA-256");
+	}
+
+	// Compute a hash of a file's contents with the given algorithm as a hex string
+	public static String computeHash(Path path, String algorithm) throws IOException {
+		MessageDigest digest = newDigest(algorithm);
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(path)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	// Create a MessageDigest for an algorithm every JVM is required to support
+	public static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(algorithm + " not available", e);
+		}
+	}
+
+	// Format a byte count for display, e.g. 1536 -> "1.5 KB"
+	public static String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		String units = "KMGTPE";
+		double value = bytes;
+		int unit = -1;
+		while (value >= 1024 && unit < units.length() - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return String.format("%.1f %cB", value, units.charAt(unit));
+	}
+
+	// Parse a byte count such as "512", "64KB", "1.5M" or "2TB" (case doesn't
+	// matter; units are K, M, G and T, optionally followed by B, in powers of
+	// 1024). Any other suffix is rejected rather than ignored.
+	public static long parseBytes(String size) {
+		Matcher matcher = SIZE_PATTERN.matcher(size.trim().toUpperCase(Locale.ROOT));
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("Not a size (expected e.g. 512, 64KB, 1.5M or 2TB): " + size);
+		}
+		double value = Double.parseDouble(matcher.group(1));
+		int unit = matcher.group(2).isEmpty() ? 0 : "KMGT".indexOf(matcher.group(2)) + 1;
+		double bytes = value * Math.pow(1024, unit);
+		if (bytes >= Long.MAX_VALUE) {
+			throw new IllegalArgumentException("Size too large: " + size);
+		}
+		return (long) bytes;
+	}
+}
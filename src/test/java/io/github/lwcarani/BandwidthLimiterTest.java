@@ -0,0 +1,69 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import io.github.lwcarani.transfer.BandwidthLimiter;
+
+public class BandwidthLimiterTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void testLimitsUploadAndDownload_Success() throws Exception {
+		byte[] content = new byte[384 * 1024];
+		new Random(42).nextBytes(content);
+		Path file = tempDir.resolve("file.bin");
+		Files.write(file, content);
+		BandwidthLimiter limiter = new BandwidthLimiter("256KB", "0", "");
+		AmazonS3 s3 = limiter.limit(new InMemoryS3());
+
+		// 384 KB at 256 KB/s, less the 64 KB burst, takes at least 1.25s
+		long start = System.nanoTime();
+		PutObjectRequest request = new PutObjectRequest("bucket", "user/file.bin", file.toFile());
+		s3.putObject(request);
+		assertTrue(System.nanoTime() - start >= 1_000_000_000L);
+		// The caller's request is left as it was
+		assertEquals(file.toFile(), request.getFile());
+		assertNull(request.getInputStream());
+
+		// Downloads are unlimited until a limit is set, here while running
+		limiter.setUploadLimit(0);
+		limiter.setDownloadLimit(256 * 1024);
+		start = System.nanoTime();
+		byte[] downloaded = s3.getObject("bucket", "user/file.bin").getObjectContent().readAllBytes();
+		assertTrue(System.nanoTime() - start >= 1_000_000_000L);
+		assertArrayEquals(content, downloaded);
+	}
+
+	@Test
+	public void testFullSpeedHours_Success() {
+		BandwidthLimiter limiter = new BandwidthLimiter("1MB", "0", "22:00-7:00, 12:00-13:00");
+		assertEquals("22:00-07:00,12:00-13:00", limiter.getFullSpeedHours());
+		assertTrue(limiter.isFullSpeed(LocalTime.of(23, 30)));
+		assertTrue(limiter.isFullSpeed(LocalTime.of(6, 59)));
+		assertTrue(limiter.isFullSpeed(LocalTime.of(12, 0)));
+		assertFalse(limiter.isFullSpeed(LocalTime.of(7, 0)));
+		assertFalse(limiter.isFullSpeed(LocalTime.of(13, 0)));
+
+		assertThrows(IllegalArgumentException.class, () -> limiter.setFullSpeedHours("25:00-07:00"));
+		limiter.setFullSpeedHours("off");
+		assertFalse(limiter.isFullSpeed(LocalTime.of(23, 30)));
+	}
+}
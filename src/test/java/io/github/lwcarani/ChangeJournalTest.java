@@ -0,0 +1,165 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+import io.github.lwcarani.sync.ChangeJournal;
+import io.github.lwcarani.sync.ChangeJournal.Change;
+import io.github.lwcarani.transfer.TransferRetrier;
+
+public class ChangeJournalTest {
+
+	private static final TransferRetrier RETRIER = new TransferRetrier(4, 1, 5, 0.1);
+
+	@Test
+	public void testLatestChanges_KeepsLastChangePerPath() {
+		List<Change> changes = List.of(Change.put("a.txt", 1, "e1"), Change.put("b.txt", 2, "e2"),
+				Change.put("a.txt", 3, "e3"));
+
+		List<Change> latest = List.copyOf(ChangeJournal.latestChanges(changes));
+
+		assertEquals(2, latest.size());
+		assertEquals("b.txt", latest.get(0).getPath());
+		assertEquals("a.txt", latest.get(1).getPath());
+		assertEquals("e3", latest.get(1).getETag());
+	}
+
+	@Test
+	public void testLatestChanges_DeleteDropsEarlierChangesBelowIt() {
+		List<Change> changes = List.of(Change.directory("docs"), Change.put("docs/a.txt", 1, "e1"),
+				Change.put("docsx/b.txt", 1, "e2"), Change.delete("docs"), Change.put("docs/c.txt", 1, "e3"));
+
+		List<String> paths = ChangeJournal.latestChanges(changes).stream()
+				.map(change -> change.getType() + " " + change.getPath()).collect(Collectors.toList());
+
+		assertEquals(List.of("PUT docsx/b.txt", "DELETE docs", "PUT docs/c.txt"), paths);
+	}
+
+	@Test
+	public void testAppendAfterStaleListing_LandsAfterWhatReadersSaw() throws Exception {
+		// The slow device picks its sequence number from what it saw before the
+		// fast one appended, so it has to move past the numbers already taken
+		boolean[] stale = { false };
+		InMemoryS3 s3 = new InMemoryS3() {
+			@Override
+			public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+				return stale[0] ? new ListObjectsV2Result() : super.listObjectsV2(request);
+			}
+		};
+		ChangeJournal slow = new ChangeJournal(s3, RETRIER, 30, 300);
+		ChangeJournal fast = new ChangeJournal(s3, RETRIER, 30, 300);
+		ChangeJournal reader = new ChangeJournal(s3, RETRIER, 30, 300);
+		ChangeJournal.Position start = reader.getCurrentPosition("bucket", "user");
+		slow.getCurrentPosition("bucket", "user");
+
+		fast.append("bucket", "user", List.of(Change.put("a.txt", 1, "e1")));
+		fast.append("bucket", "user", List.of(Change.put("b.txt", 1, "e2")));
+		ChangeJournal.Read first = reader.readSince("bucket", "user", start);
+		assertEquals(List.of("a.txt", "b.txt"), paths(first.getChanges()));
+		assertEquals(2, first.getPosition().getSequence());
+
+		stale[0] = true;
+		slow.append("bucket", "user", List.of(Change.put("c.txt", 1, "e3")));
+		stale[0] = false;
+		ChangeJournal.Read second = reader.readSince("bucket", "user", first.getPosition());
+		assertEquals(List.of("c.txt"), paths(second.getChanges()));
+		assertEquals(3, second.getPosition().getSequence());
+		assertEquals(3, new ChangeJournal(s3, RETRIER, 30, 300).getCurrentPosition("bucket", "user").getSequence());
+		assertEquals(List.of(), reader.readSince("bucket", "user", second.getPosition()).getChanges());
+	}
+
+	@Test
+	public void testSegmentStillBeingWritten_IsNotSkipped() throws Exception {
+		// The first writer's PUT of segment 2 is in flight while the second is
+		// told 2 is taken (S3 answers 409 to a concurrent conditional write) and
+		// writes segment 3, which readers then list before segment 2 exists
+		String racedSegment = "user/.dbox/journal/" + String.format("%019d", 2);
+		CountDownLatch inFlight = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		InMemoryS3 s3 = new InMemoryS3() {
+			@Override
+			public PutObjectResult putObject(PutObjectRequest request) {
+				if (request.getKey().equals(racedSegment)) {
+					if (Thread.currentThread().getName().equals("first-writer")) {
+						inFlight.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+					} else if (inFlight.getCount() == 0 && release.getCount() > 0) {
+						AmazonS3Exception e = new AmazonS3Exception("A conflicting conditional operation is in progress");
+						e.setStatusCode(409);
+						e.setErrorCode("ConditionalRequestConflict");
+						throw e;
+					}
+				}
+				return super.putObject(request);
+			}
+		};
+		ChangeJournal reader = new ChangeJournal(s3, RETRIER, 30, 300);
+		reader.append("bucket", "user", List.of(Change.put("first.txt", 1, "e0")));
+		ChangeJournal.Position start = reader.getCurrentPosition("bucket", "user");
+
+		Thread firstWriter = new Thread(
+				() -> new ChangeJournal(s3, RETRIER, 30, 300).append("bucket", "user",
+						List.of(Change.put("a.txt", 1, "e1"))),
+				"first-writer");
+		firstWriter.start();
+		inFlight.await();
+		new ChangeJournal(s3, RETRIER, 30, 300).append("bucket", "user", List.of(Change.put("b.txt", 1, "e2")));
+
+		// Segment 3 is there but 2 isn't yet: the reader waits for it rather
+		// than moving past it, while a reader that gave up on gaps right away
+		// would have lost it
+		ChangeJournal.Read early = reader.readSince("bucket", "user", start);
+		assertEquals(List.of(), early.getChanges());
+		assertEquals(1, early.getPosition().getSequence());
+		ChangeJournal.Read impatient = new ChangeJournal(s3, RETRIER, 30, 0).readSince("bucket", "user", start);
+		assertEquals(List.of("b.txt"), paths(impatient.getChanges()));
+
+		release.countDown();
+		firstWriter.join();
+		ChangeJournal.Read late = reader.readSince("bucket", "user", early.getPosition());
+		assertEquals(List.of("a.txt", "b.txt"), paths(late.getChanges()));
+		assertEquals(3, late.getPosition().getSequence());
+		assertEquals(List.of(), reader.readSince("bucket", "user", late.getPosition()).getChanges());
+	}
+
+	@Test
+	public void testTrim_KeepsLatestSegmentAndFailsReadsFromDeletedOnes() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3();
+		ChangeJournal journal = new ChangeJournal(s3, RETRIER, 0, 0);
+		for (String path : List.of("a.txt", "b.txt", "c.txt")) {
+			journal.append("bucket", "user", List.of(Change.put(path, 1, "e")));
+		}
+		Thread.sleep(5);
+
+		journal.trim("bucket", "user");
+
+		ChangeJournal.Position latest = journal.getCurrentPosition("bucket", "user");
+		assertEquals(3, latest.getSequence());
+		assertEquals(List.of(), journal.readSince("bucket", "user", latest).getChanges());
+		assertThrows(IOException.class,
+				() -> journal.readSince("bucket", "user", new ChangeJournal.Position(1)));
+		assertThrows(IOException.class,
+				() -> journal.readSince("bucket", "user", new ChangeJournal.Position(0)));
+	}
+
+	private static List<String> paths(List<Change> changes) {
+		return changes.stream().map(Change::getPath).collect(Collectors.toList());
+	}
+}
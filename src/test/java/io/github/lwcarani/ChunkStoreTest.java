@@ -0,0 +1,150 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import io.github.lwcarani.transfer.ChunkStore;
+import io.github.lwcarani.transfer.TransferEngine;
+import io.github.lwcarani.transfer.TransferRetrier;
+
+public class ChunkStoreTest {
+
+	private static final String BUCKET = "bucket";
+
+	@TempDir
+	Path tempDir;
+
+	// Whether the file being uploaded is changed as the upload starts
+	private volatile boolean changeFile;
+	private Path file;
+
+	private final InMemoryS3 s3 = new InMemoryS3() {
+		@Override
+		protected void beforeRequest(String operation, String key) {
+			super.beforeRequest(operation, key);
+			if (changeFile && key != null && key.startsWith("user/.dbox/chunk-refs/")) {
+				changeFile = false;
+				try {
+					Files.write(file, new byte[(int) Files.size(file)]);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	};
+	private final TransferEngine engine = new TransferEngine(s3, 5L * 1024 * 1024, 5L * 1024 * 1024, 4, 1, 0);
+	private final ChunkStore store = new ChunkStore(s3, engine, new TransferRetrier(4, 1, 5, 0.1), true, 4096, 0);
+
+	@AfterEach
+	public void shutdown() {
+		engine.shutdown();
+	}
+
+	@Test
+	public void testRestore_FailsOnCorruptChunk() throws Exception {
+		byte[] content = new byte[256 * 1024];
+		new Random(42).nextBytes(content);
+		Path file = Files.write(tempDir.resolve("data.bin"), content);
+		store.upload(BUCKET, "user", "user/data.bin", file, null);
+		assertArrayEquals(content, restore());
+
+		List<String> chunks = chunkKeys();
+		assertTrue(chunks.size() > 1);
+		s3.putObject(BUCKET, chunks.get(0), "not the chunk");
+		assertThrows(IOException.class, this::restore);
+	}
+
+	@Test
+	public void testUpload_KnownChunksOnlyLastOnePush() throws Exception {
+		byte[] content = new byte[64 * 1024];
+		new Random(7).nextBytes(content);
+		Path file = Files.write(tempDir.resolve("data.bin"), content);
+		ChunkStore.KnownChunks push = ChunkStore.newKnownChunks();
+		store.upload(BUCKET, "user", "user/data.bin", file, push);
+
+		// Another device deletes the chunks; the next push checks them again
+		for (String chunk : chunkKeys()) {
+			s3.deleteObject(BUCKET, chunk);
+		}
+		assertThrows(IOException.class, this::restore);
+		store.upload(BUCKET, "user", "user/data.bin", file, ChunkStore.newKnownChunks());
+		assertArrayEquals(content, restore());
+	}
+
+	@Test
+	public void testUpload_FailsWhenFileChangesMeanwhile() throws Exception {
+		byte[] content = new byte[64 * 1024];
+		new Random(3).nextBytes(content);
+		file = Files.write(tempDir.resolve("data.bin"), content);
+		changeFile = true;
+
+		assertThrows(RuntimeException.class, () -> store.upload(BUCKET, "user", "user/data.bin", file, null));
+		assertFalse(s3.doesObjectExist(BUCKET, "user/data.bin"));
+	}
+
+	@Test
+	public void testCollectGarbage_DeletesChunksOfReplacedAndDeletedFiles() throws Exception {
+		Random random = new Random(11);
+		byte[] kept = new byte[64 * 1024];
+		byte[] replaced = new byte[64 * 1024];
+		byte[] deleted = new byte[64 * 1024];
+		random.nextBytes(kept);
+		random.nextBytes(replaced);
+		random.nextBytes(deleted);
+		Path data = tempDir.resolve("data.bin");
+		store.upload(BUCKET, "user", "user/data.bin", Files.write(data, kept), null);
+		List<String> keptChunks = chunkKeys();
+		store.upload(BUCKET, "user", "user/data.bin", Files.write(data, replaced), null);
+		store.upload(BUCKET, "user", "user/other.bin", Files.write(tempDir.resolve("other.bin"), deleted), null);
+		store.upload(BUCKET, "user", "user/data.bin", Files.write(data, kept), null);
+		s3.deleteObject(BUCKET, "user/other.bin");
+
+		// Nothing is collected while it may still belong to an upload in progress
+		assertEquals(0, store.collectGarbage(BUCKET, "user"));
+		ChunkStore later = new ChunkStore(s3, engine, new TransferRetrier(4, 1, 5, 0.1), true, 4096, 0);
+		s3.age(BUCKET, "user/", TimeUnit.DAYS.toMillis(2));
+		assertTrue(later.collectGarbage(BUCKET, "user") > 0);
+
+		assertEquals(keptChunks, chunkKeys());
+		assertArrayEquals(kept, restore());
+		// Only the reference of the current data.bin is left
+		assertEquals(1, s3.listObjectsV2(
+				new ListObjectsV2Request().withBucketName(BUCKET).withPrefix("user/.dbox/chunk-refs/"))
+				.getKeyCount());
+	}
+
+	private byte[] restore() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (S3Object manifest = s3.getObject(BUCKET, "user/data.bin"); InputStream in = manifest.getObjectContent()) {
+			store.restore(BUCKET, "user", in, null, out);
+		}
+		return out.toByteArray();
+	}
+
+	private List<String> chunkKeys() {
+		return s3.listObjectsV2(new ListObjectsV2Request().withBucketName(BUCKET).withPrefix("user/.dbox/chunks/"))
+				.getObjectSummaries().stream().map(S3ObjectSummary::getKey).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,153 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.github.lwcarani.service.CognitoTokenVerifier;
+import io.github.lwcarani.service.CognitoTokenVerifier.Result;
+
+public class CognitoTokenVerifierTest {
+
+	private static final String CLIENT_ID = "client";
+
+	private HttpServer server;
+	private String issuer;
+	private KeyPair keys;
+	private volatile int keysStatus = 200;
+	private final AtomicInteger keyFetches = new AtomicInteger();
+
+	// Serve the signing keys the way a user pool publishes them
+	@BeforeEach
+	public void startIssuer() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keys = generator.generateKeyPair();
+		RSAPublicKey publicKey = (RSAPublicKey) keys.getPublic();
+		String jwks = "{\"keys\":[{\"kty\":\"RSA\",\"kid\":\"key-1\",\"alg\":\"RS256\",\"n\":\""
+				+ base64(unsigned(publicKey.getModulus().toByteArray())) + "\",\"e\":\""
+				+ base64(unsigned(publicKey.getPublicExponent().toByteArray())) + "\"}]}";
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/pool/.well-known/jwks.json", exchange -> {
+			keyFetches.incrementAndGet();
+			byte[] body = jwks.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(keysStatus, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		issuer = "http://127.0.0.1:" + server.getAddress().getPort() + "/pool";
+	}
+
+	@AfterEach
+	public void stopIssuer() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testVerifiesTokensLocally_Success() throws Exception {
+		CognitoTokenVerifier verifier = new CognitoTokenVerifier(issuer, CLIENT_ID, 3600);
+		String token = token("key-1", issuer, CLIENT_ID, "access", 3600);
+
+		assertEquals(Result.VALID, verifier.verify(token));
+		assertEquals(Result.VALID, verifier.verify(token));
+		assertEquals(1, keyFetches.get(), "Keys are fetched once");
+
+		// Signed out: refused even though it is still correctly signed
+		verifier.forget(token);
+		assertEquals(Result.INVALID, verifier.verify(token));
+		assertEquals(Result.VALID, verifier.verify(token("key-1", issuer, CLIENT_ID, "access", 1800)));
+	}
+
+	@Test
+	public void testRejectsForgedAndMismatchedTokens() throws Exception {
+		CognitoTokenVerifier verifier = new CognitoTokenVerifier(issuer, CLIENT_ID, 3600);
+		String token = token("key-1", issuer, CLIENT_ID, "access", 3600);
+		String[] parts = token.split("\\.");
+		String otherClaims = base64(claims(issuer, "admin", "access", 3600).getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(Result.INVALID, verifier.verify(parts[0] + "." + otherClaims + "." + parts[2]));
+		assertEquals(Result.INVALID, verifier.verify(token("key-1", issuer, "other-client", "access", 3600)));
+		assertEquals(Result.INVALID, verifier.verify(token("key-1", issuer + "x", CLIENT_ID, "access", 3600)));
+		assertEquals(Result.INVALID, verifier.verify(token("key-1", issuer, CLIENT_ID, "id", 3600)));
+		assertEquals(Result.INVALID, verifier.verify(token("key-1", issuer, CLIENT_ID, "access", -60)));
+		assertEquals(Result.INVALID, verifier.verify("not-a-token"));
+		// An unknown key ID refetches the keys at most once a minute
+		assertEquals(Result.INVALID, verifier.verify(token("key-2", issuer, CLIENT_ID, "access", 3600)));
+		assertEquals(Result.INVALID, verifier.verify(token("key-2", issuer, CLIENT_ID, "access", 3600)));
+		assertEquals(1, keyFetches.get());
+	}
+
+	@Test
+	public void testReadsSubjectWithoutKeys() throws Exception {
+		keysStatus = 500;
+		CognitoTokenVerifier verifier = new CognitoTokenVerifier(issuer, CLIENT_ID, 3600);
+
+		assertEquals("user-id", verifier.getSubject(token("key-1", issuer, CLIENT_ID, "access", 3600)));
+		assertNull(verifier.getSubject("not-a-token"));
+		assertNull(verifier.getSubject(null));
+		assertEquals(0, keyFetches.get());
+	}
+
+	@Test
+	public void testUnknownWhenKeysAreUnavailable() throws Exception {
+		keysStatus = 500;
+		CognitoTokenVerifier verifier = new CognitoTokenVerifier(issuer, CLIENT_ID, 3600);
+
+		assertEquals(Result.UNKNOWN, verifier.verify(token("key-1", issuer, CLIENT_ID, "access", 3600)));
+	}
+
+	// A signed access token expiring the given number of seconds from now
+	private String token(String keyId, String tokenIssuer, String clientId, String tokenUse, long expiresIn)
+			throws GeneralSecurityException {
+		String header = base64(("{\"alg\":\"RS256\",\"kid\":\"" + keyId + "\"}").getBytes(StandardCharsets.UTF_8));
+		String payload = base64(claims(tokenIssuer, clientId, tokenUse, expiresIn).getBytes(StandardCharsets.UTF_8));
+		return header + "." + payload + "." + base64(sign(keys.getPrivate(), header + "." + payload));
+	}
+
+	private static String claims(String tokenIssuer, String clientId, String tokenUse, long expiresIn) {
+		long exp = System.currentTimeMillis() / 1000 + expiresIn;
+		return "{\"iss\":\"" + tokenIssuer + "\",\"client_id\":\"" + clientId + "\",\"token_use\":\"" + tokenUse
+				+ "\",\"exp\":" + exp + ",\"sub\":\"user-id\",\"username\":\"user\"}";
+	}
+
+	private static byte[] sign(PrivateKey key, String content) throws GeneralSecurityException {
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(key);
+		signature.update(content.getBytes(StandardCharsets.US_ASCII));
+		return signature.sign();
+	}
+
+	// Drop the sign byte BigInteger adds to positive numbers
+	private static byte[] unsigned(byte[] bytes) {
+		if (bytes.length > 1 && bytes[0] == 0) {
+			byte[] trimmed = new byte[bytes.length - 1];
+			System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+			return trimmed;
+		}
+		return bytes;
+	}
+
+	private static String base64(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
@@ -0,0 +1,59 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.lwcarani.transfer.ConcurrencyLimiter;
+
+public class ConcurrencyLimiterTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testLimitGrowsWhileSaturated() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 32, 0);
+		for (int round = 0; round < 2; round++) {
+			long[] starts = new long[4];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = limiter.acquire();
+			}
+			for (long start : starts) {
+				limiter.release("putObject", start - 10 * MILLIS, 1024, false);
+			}
+		}
+
+		assertTrue(limiter.currentLimit() > 4);
+	}
+
+	@Test
+	public void testThrottlingHalvesLimit() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, 2, 64, 0);
+		limiter.release("getObject", limiter.acquire(), 0, true);
+		assertEquals(8, limiter.currentLimit());
+
+		limiter.release("getObject", limiter.acquire(), 0, true);
+		assertEquals(4, limiter.currentLimit());
+
+		limiter.release("getObject", limiter.acquire(), 0, true);
+		limiter.release("getObject", limiter.acquire(), 0, true);
+		assertEquals(2, limiter.currentLimit());
+	}
+
+	@Test
+	public void testRisingTailLatencyBacksOff() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, 2, 64, 0);
+		for (int i = 0; i < 5; i++) {
+			limiter.release("uploadPart", limiter.acquire() - 10 * MILLIS, 16 * 1024 * 1024, false);
+		}
+		assertEquals(16, limiter.currentLimit());
+
+		for (int i = 0; i < 5; i++) {
+			limiter.release("uploadPart", limiter.acquire() - 100 * MILLIS, 16 * 1024 * 1024, false);
+		}
+		assertEquals(12, limiter.currentLimit());
+	}
+}
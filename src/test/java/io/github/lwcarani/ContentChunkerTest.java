@@ -0,0 +1,60 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.lwcarani.transfer.ContentChunker;
+
+public class ContentChunkerTest {
+
+	private final ContentChunker chunker = new ContentChunker(64 * 1024);
+
+	@Test
+	public void testSplit_CoversWholeInput() throws Exception {
+		byte[] data = randomBytes(3 * 1024 * 1024);
+
+		List<ContentChunker.Chunk> chunks = chunker.split(new ByteArrayInputStream(data));
+
+		long expectedOffset = 0;
+		for (ContentChunker.Chunk chunk : chunks) {
+			assertEquals(expectedOffset, chunk.getOffset());
+			assertTrue(chunk.getLength() <= chunker.getMaxSize());
+			expectedOffset += chunk.getLength();
+		}
+		assertEquals(data.length, expectedOffset);
+		assertTrue(chunks.size() > 10, "Expected the input to be split into many chunks");
+	}
+
+	@Test
+	public void testSplit_InsertOnlyChangesNearbyChunks() throws Exception {
+		byte[] original = randomBytes(3 * 1024 * 1024);
+		byte[] edited = new byte[original.length + 1];
+		System.arraycopy(original, 0, edited, 0, 1_000_000);
+		edited[1_000_000] = 42;
+		System.arraycopy(original, 1_000_000, edited, 1_000_001, original.length - 1_000_000);
+
+		Set<String> before = hashes(chunker.split(new ByteArrayInputStream(original)));
+		List<ContentChunker.Chunk> after = chunker.split(new ByteArrayInputStream(edited));
+
+		long changed = after.stream().filter(chunk -> !before.contains(chunk.getHash())).count();
+		assertTrue(changed <= 2, "Only the chunks around the edit should change, but " + changed + " did");
+	}
+
+	private static Set<String> hashes(List<ContentChunker.Chunk> chunks) {
+		return chunks.stream().map(ContentChunker.Chunk::getHash).collect(Collectors.toSet());
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(7).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,105 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import io.github.lwcarani.transfer.ContentCompressor;
+import io.github.lwcarani.transfer.TransferEngine;
+import io.github.lwcarani.transfer.TransferStats;
+
+public class ContentCompressorTest {
+
+	private final ContentCompressor compressor = new ContentCompressor(null, true, 6, 4096, "256MB");
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void testShouldCompress_TextButNotCompressedOrRandomContent() throws Exception {
+		byte[] text = "2024-01-01 INFO request handled in 12 ms\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+		byte[] random = new byte[100_000];
+		new Random(42).nextBytes(random);
+
+		Path log = Files.write(tempDir.resolve("server.log"), text);
+		Path archive = Files.write(tempDir.resolve("server.zip"), text);
+		Path binary = Files.write(tempDir.resolve("data.bin"), random);
+
+		assertTrue(compressor.shouldCompress(log, text.length));
+		assertFalse(compressor.shouldCompress(archive, text.length), "Known compressed formats are skipped");
+		assertFalse(compressor.shouldCompress(binary, random.length), "Incompressible content is skipped");
+	}
+
+	@Test
+	public void testDecode_DecompressesOnlyMarkedObjects() throws Exception {
+		byte[] content = "a,b,c\n1,2,3\n".repeat(100).getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+			out.write(content);
+		}
+
+		ObjectMetadata marked = new ObjectMetadata();
+		marked.addUserMetadata(ContentCompressor.ENCODING_METADATA, ContentCompressor.ENCODING_GZIP);
+		try (InputStream in = ContentCompressor.decode(marked, new ByteArrayInputStream(compressed.toByteArray()))) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+		try (InputStream in = ContentCompressor.decode(new ObjectMetadata(), new ByteArrayInputStream(content))) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+	}
+
+	@Test
+	public void testUpload_StreamsCompressedPartsOrFallsBackToPlain() throws Exception {
+		// Random hex digits compress to about half their size: two 5 MiB parts
+		Random random = new Random(42);
+		byte[] hex = new byte[12 * 1024 * 1024];
+		for (int i = 0; i < hex.length; i++) {
+			hex[i] = (byte) Character.forDigit(random.nextInt(16), 16);
+		}
+		byte[] noise = new byte[100_000];
+		random.nextBytes(noise);
+		Path text = Files.write(tempDir.resolve("digits.txt"), hex);
+		Path binary = Files.write(tempDir.resolve("noise.txt"), noise);
+
+		InMemoryS3 s3 = new InMemoryS3();
+		TransferEngine engine = new TransferEngine(s3, 5L * 1024 * 1024, 5L * 1024 * 1024, 2, 1, 0);
+		try {
+			ContentCompressor uploader = new ContentCompressor(engine, true, 6, 4096, "256MB");
+			TransferStats stats = new TransferStats();
+			uploader.upload("bucket", "user/digits.txt", text, hex.length, stats, null);
+			uploader.upload("bucket", "user/noise.txt", binary, noise.length, stats, null);
+			assertEquals(0, stats.getTransferredBytes(), "The caller records finished files");
+
+			try (S3Object object = s3.getObject("bucket", "user/digits.txt")) {
+				assertTrue(ContentCompressor.isCompressed(object.getObjectMetadata()));
+				assertTrue(object.getObjectMetadata().getContentLength() < hex.length * 0.6);
+				try (InputStream in = ContentCompressor.decode(object.getObjectMetadata(),
+						object.getObjectContent())) {
+					assertArrayEquals(hex, in.readAllBytes());
+				}
+			}
+			try (S3Object object = s3.getObject("bucket", "user/noise.txt")) {
+				assertFalse(ContentCompressor.isCompressed(object.getObjectMetadata()));
+				assertArrayEquals(noise, object.getObjectContent().readAllBytes());
+			}
+		} finally {
+			engine.shutdown();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package io.github.lwcarani;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.file.Files;
@@ -54,4 +56,24 @@ public class FileUtilsTest {
 
 		assertTrue(FileUtils.isValidLocalDirectory(dirPath));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testParseBytes_Success() {
+		assertEquals(512, FileUtils.parseBytes("512"));
+		assertEquals(512, FileUtils.parseBytes("512B"));
+		assertEquals(64 * 1024, FileUtils.parseBytes("64KB"));
+		assertEquals(1536, FileUtils.parseBytes("1.5K"));
+		assertEquals(5L * 1024 * 1024, FileUtils.parseBytes("5M"));
+		assertEquals(5L * 1024 * 1024, FileUtils.parseBytes("5 mb"));
+		assertEquals(2L * 1024 * 1024 * 1024, FileUtils.parseBytes("2G"));
+		assertEquals(2L << 40, FileUtils.parseBytes("2TB"));
+		assertEquals(3L << 40, FileUtils.parseBytes("3t"));
+	}
+
+	@Test
+	public void testParseBytes_RejectsUnknownSuffixes() {
+		for (String size : new String[] { "10mbps", "5X", "1PB", "KB", "-1MB", "", "1.5.2K" }) {
+			assertThrows(IllegalArgumentException.class, () -> FileUtils.parseBytes(size));
+		}
+	}
+}
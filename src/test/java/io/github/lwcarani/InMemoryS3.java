@@ -0,0 +1,569 @@
+package io.github.lwcarani;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.HeadBucketRequest;
+import com.amazonaws.services.s3.model.HeadBucketResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+// In-process stand-in for the S3 calls the client makes, for tests and
+// benchmarks that shouldn't touch AWS. Objects are kept per bucket, sorted by
+// key so listings behave like S3's (prefix, delimiter, start-after and
+// continuation tokens, 1000 keys per page). Content is held in memory, or for
+// large objects in files under a spool directory if one is given.
+public class InMemoryS3 extends AbstractAmazonS3 {
+
+	// Content at least this large goes to the spool directory, if there is one
+	private static final long SPOOL_THRESHOLD = 1024 * 1024;
+
+	// Stored content: either in memory or in a spool file
+	private static class Content {
+		private final byte[] bytes;
+		private final Path file;
+		private final long length;
+		private final String md5;
+
+		Content(byte[] bytes, Path file, long length, String md5) {
+			this.bytes = bytes;
+			this.file = file;
+			this.length = length;
+			this.md5 = md5;
+		}
+
+		InputStream open() throws IOException {
+			return file == null ? new ByteArrayInputStream(bytes) : Files.newInputStream(file);
+		}
+
+		void discard() {
+			if (file != null) {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	// A stored object
+	private static class StoredObject {
+		private final Content content;
+		private final Map<String, String> userMetadata;
+		private final String eTag;
+		private volatile Date lastModified = new Date();
+
+		StoredObject(Content content, Map<String, String> userMetadata, String eTag) {
+			this.content = content;
+			this.userMetadata = userMetadata;
+			this.eTag = eTag;
+		}
+	}
+
+	// An unfinished multipart upload
+	private static class MultipartUpload {
+		private final String key;
+		private final Map<String, String> userMetadata;
+		private final Map<Integer, Content> parts = new ConcurrentHashMap<>();
+
+		MultipartUpload(String key, Map<String, String> userMetadata) {
+			this.key = key;
+			this.userMetadata = userMetadata;
+		}
+	}
+
+	private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+	private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final Path spoolDirectory;
+
+	public InMemoryS3() {
+		this(null);
+	}
+
+	// Keep large objects in files under spoolDirectory instead of in memory
+	public InMemoryS3(Path spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	// Number of requests served so far
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	// Number of objects stored in a bucket
+	public int getObjectCount(String bucketName) {
+		return bucket(bucketName).size();
+	}
+
+	// Make the objects under a prefix look as if they were written millis earlier
+	public void age(String bucketName, String prefix, long millis) {
+		bucket(bucketName).tailMap(prefix).entrySet().stream().takeWhile(entry -> entry.getKey().startsWith(prefix))
+				.forEach(entry -> entry.getValue().lastModified = new Date(
+						entry.getValue().lastModified.getTime() - millis));
+	}
+
+	// Called at the start of every request
+	protected void beforeRequest(String operation, String key) {
+		requests.incrementAndGet();
+	}
+
+	@Override
+	public HeadBucketResult headBucket(HeadBucketRequest request) {
+		beforeRequest("HeadBucket", null);
+		return new HeadBucketResult();
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		beforeRequest("PutObject", request.getKey());
+		Content content;
+		try {
+			if (request.getFile() != null) {
+				try (InputStream in = Files.newInputStream(request.getFile().toPath())) {
+					content = store(in, request.getFile().length());
+				}
+			} else {
+				try (InputStream in = request.getInputStream()) {
+					content = store(in == null ? InputStream.nullInputStream() : in, -1);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Map<String, String> userMetadata = request.getMetadata() == null ? Map.of()
+				: Map.copyOf(request.getMetadata().getUserMetadata());
+		String eTag = content.md5;
+		StoredObject object = new StoredObject(content, userMetadata, eTag);
+		Map<String, String> headers = request.getCustomRequestHeaders();
+		if (headers != null && (headers.containsKey("If-Match") || headers.containsKey("If-None-Match"))) {
+			// Conditional writes: If-None-Match "*" only creates, If-Match only
+			// replaces the given version
+			String expected = headers.get("If-Match");
+			NavigableMap<String, StoredObject> bucket = bucket(request.getBucketName());
+			StoredObject[] replaced = new StoredObject[1];
+			boolean written = expected == null ? bucket.putIfAbsent(request.getKey(), object) == null
+					: bucket.computeIfPresent(request.getKey(), (key, current) -> {
+						replaced[0] = current;
+						return current.eTag.equals(expected) ? object : current;
+					}) == object;
+			if (written && replaced[0] != null) {
+				replaced[0].content.discard();
+			} else if (!written) {
+				content.discard();
+				AmazonS3Exception e = new AmazonS3Exception(
+						"At least one of the pre-conditions you specified did not hold");
+				e.setStatusCode(412);
+				e.setErrorCode("PreconditionFailed");
+				throw e;
+			}
+		} else {
+			replace(request.getBucketName(), request.getKey(), object);
+		}
+
+		PutObjectResult result = new PutObjectResult();
+		result.setETag(eTag);
+		return result;
+	}
+
+	@Override
+	public PutObjectResult putObject(String bucketName, String key, File file) {
+		return putObject(new PutObjectRequest(bucketName, key, file));
+	}
+
+	@Override
+	public PutObjectResult putObject(String bucketName, String key, String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(bytes.length);
+		return putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata));
+	}
+
+	@Override
+	public S3Object getObject(GetObjectRequest request) {
+		beforeRequest("GetObject", request.getKey());
+		StoredObject stored = bucket(request.getBucketName()).get(request.getKey());
+		if (stored == null) {
+			throw notFound(request.getKey());
+		}
+		// A matching If-None-Match is a 304 and a failed If-Match a 412, both of
+		// which the SDK reports as null
+		if (request.getNonmatchingETagConstraints().contains(stored.eTag)) {
+			return null;
+		}
+		if (!request.getMatchingETagConstraints().isEmpty()
+				&& !request.getMatchingETagConstraints().contains(stored.eTag)) {
+			return null;
+		}
+
+		// Only "bytes=<start>-" and "bytes=<start>-<end>" ranges
+		long start = 0;
+		long length = stored.content.length;
+		if (request.getRange() != null) {
+			long[] range = request.getRange();
+			start = range[0];
+			long end = range.length > 1 ? Math.min(range[1], length - 1) : length - 1;
+			length = end - start + 1;
+		}
+
+		InputStream in;
+		try {
+			in = stored.content.open();
+			in.skipNBytes(start);
+			in = new BoundedInputStream(in, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(length);
+		metadata.setHeader("ETag", stored.eTag);
+		metadata.setLastModified(stored.lastModified);
+		metadata.setUserMetadata(stored.userMetadata);
+
+		S3Object object = new S3Object();
+		object.setBucketName(request.getBucketName());
+		object.setKey(request.getKey());
+		object.setObjectMetadata(metadata);
+		object.setObjectContent(in);
+		return object;
+	}
+
+	@Override
+	public S3Object getObject(String bucketName, String key) {
+		return getObject(new GetObjectRequest(bucketName, key));
+	}
+
+	@Override
+	public String getObjectAsString(String bucketName, String key) {
+		try (S3Object object = getObject(bucketName, key)) {
+			return new String(object.getObjectContent().readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean doesObjectExist(String bucketName, String key) {
+		beforeRequest("HeadObject", key);
+		return bucket(bucketName).containsKey(key);
+	}
+
+	@Override
+	public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+		beforeRequest("ListObjectsV2", request.getPrefix());
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		String delimiter = request.getDelimiter();
+		int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+		// Continuation tokens are simply the last key or common prefix returned
+		String after = request.getContinuationToken() != null ? request.getContinuationToken()
+				: request.getStartAfter();
+
+		NavigableMap<String, StoredObject> objects = bucket(request.getBucketName());
+		SortedMap<String, StoredObject> candidates = after != null && after.compareTo(prefix) >= 0
+				? objects.tailMap(after, false)
+				: objects.tailMap(prefix, true);
+
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		result.setBucketName(request.getBucketName());
+		result.setPrefix(prefix);
+		result.setDelimiter(delimiter);
+		List<String> commonPrefixes = new ArrayList<>();
+		String last = null;
+		int count = 0;
+		for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+			String key = entry.getKey();
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			int separator = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+			String commonPrefix = separator < 0 ? null : key.substring(0, separator + delimiter.length());
+			if (commonPrefix != null && (commonPrefix.equals(last) || (after != null && commonPrefix.equals(after)))) {
+				continue; // Rest of a common prefix already returned
+			}
+			if (count == maxKeys) {
+				result.setTruncated(true);
+				result.setNextContinuationToken(last);
+				break;
+			}
+
+			if (commonPrefix != null) {
+				commonPrefixes.add(commonPrefix);
+				last = commonPrefix;
+			} else {
+				S3ObjectSummary summary = new S3ObjectSummary();
+				summary.setBucketName(request.getBucketName());
+				summary.setKey(key);
+				summary.setSize(entry.getValue().content.length);
+				summary.setETag(entry.getValue().eTag);
+				summary.setLastModified(entry.getValue().lastModified);
+				result.getObjectSummaries().add(summary);
+				last = key;
+			}
+			count++;
+		}
+		result.setCommonPrefixes(commonPrefixes);
+		result.setKeyCount(count);
+		return result;
+	}
+
+	@Override
+	public void deleteObject(String bucketName, String key) {
+		beforeRequest("DeleteObject", key);
+		remove(bucketName, key);
+	}
+
+	@Override
+	public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+		beforeRequest("DeleteObjects", null);
+		List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+		for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+			remove(request.getBucketName(), key.getKey());
+			DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+			deletedObject.setKey(key.getKey());
+			deleted.add(deletedObject);
+		}
+		return new DeleteObjectsResult(deleted);
+	}
+
+	@Override
+	public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		beforeRequest("CreateMultipartUpload", request.getKey());
+		String uploadId = UUID.randomUUID().toString();
+		Map<String, String> userMetadata = request.getObjectMetadata() == null ? Map.of()
+				: Map.copyOf(request.getObjectMetadata().getUserMetadata());
+		uploads.put(uploadId, new MultipartUpload(request.getKey(), userMetadata));
+
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setUploadId(uploadId);
+		return result;
+	}
+
+	@Override
+	public UploadPartResult uploadPart(UploadPartRequest request) {
+		beforeRequest("UploadPart", request.getKey());
+		MultipartUpload upload = uploads.get(request.getUploadId());
+		if (upload == null) {
+			throw notFound(request.getKey());
+		}
+		Content part;
+		try {
+			if (request.getFile() != null) {
+				try (InputStream in = Files.newInputStream(request.getFile().toPath())) {
+					in.skipNBytes(request.getFileOffset());
+					part = store(new BoundedInputStream(in, request.getPartSize()), request.getPartSize());
+				}
+			} else {
+				part = store(new BoundedInputStream(request.getInputStream(), request.getPartSize()),
+						request.getPartSize());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Content previous = upload.parts.put(request.getPartNumber(), part);
+		if (previous != null) {
+			previous.discard();
+		}
+
+		UploadPartResult result = new UploadPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(part.md5);
+		return result;
+	}
+
+	@Override
+	public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		beforeRequest("CompleteMultipartUpload", request.getKey());
+		MultipartUpload upload = uploads.remove(request.getUploadId());
+		if (upload == null) {
+			throw notFound(request.getKey());
+		}
+		List<InputStream> parts = new ArrayList<>();
+		long length = 0;
+		Content content;
+		try {
+			for (PartETag partETag : request.getPartETags()) {
+				Content part = upload.parts.get(partETag.getPartNumber());
+				parts.add(part.open());
+				length += part.length;
+			}
+			try (InputStream in = new SequenceInputStream(Collections.enumeration(parts))) {
+				content = store(in, length);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			upload.parts.values().forEach(Content::discard);
+		}
+		// Multipart ETags aren't the content's MD5, and S3 marks them with a part count
+		String eTag = content.md5 + "-" + request.getPartETags().size();
+		replace(request.getBucketName(), upload.key, new StoredObject(content, upload.userMetadata, eTag));
+
+		CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(upload.key);
+		result.setETag(eTag);
+		return result;
+	}
+
+	@Override
+	public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+		beforeRequest("AbortMultipartUpload", request.getKey());
+		MultipartUpload upload = uploads.remove(request.getUploadId());
+		if (upload != null) {
+			upload.parts.values().forEach(Content::discard);
+		}
+	}
+
+	@Override
+	public PartListing listParts(ListPartsRequest request) {
+		beforeRequest("ListParts", request.getKey());
+		MultipartUpload upload = uploads.get(request.getUploadId());
+		if (upload == null) {
+			AmazonS3Exception e = new AmazonS3Exception("The specified upload does not exist");
+			e.setStatusCode(404);
+			e.setErrorCode("NoSuchUpload");
+			throw e;
+		}
+		PartListing listing = new PartListing();
+		upload.parts.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
+			PartSummary part = new PartSummary();
+			part.setPartNumber(entry.getKey());
+			part.setETag(entry.getValue().md5);
+			part.setSize(entry.getValue().length);
+			listing.getParts().add(part);
+		});
+		listing.setTruncated(false);
+		return listing;
+	}
+
+	// Read content to store, into memory or a spool file depending on its length
+	// (-1 if unknown), computing its MD5 on the way
+	private Content store(InputStream in, long length) throws IOException {
+		MessageDigest digest = newMd5();
+		if (spoolDirectory == null || (length >= 0 && length < SPOOL_THRESHOLD)) {
+			byte[] bytes = in.readAllBytes();
+			return new Content(bytes, null, bytes.length, HexFormat.of().formatHex(digest.digest(bytes)));
+		}
+		Files.createDirectories(spoolDirectory);
+		Path file = Files.createTempFile(spoolDirectory, "object-", ".bin");
+		try (OutputStream out = new DigestOutputStream(Files.newOutputStream(file), digest)) {
+			in.transferTo(out);
+		}
+		return new Content(null, file, Files.size(file), HexFormat.of().formatHex(digest.digest()));
+	}
+
+	private void replace(String bucketName, String key, StoredObject object) {
+		StoredObject previous = bucket(bucketName).put(key, object);
+		if (previous != null) {
+			previous.content.discard();
+		}
+	}
+
+	private void remove(String bucketName, String key) {
+		StoredObject previous = bucket(bucketName).remove(key);
+		if (previous != null) {
+			previous.content.discard();
+		}
+	}
+
+	private NavigableMap<String, StoredObject> bucket(String bucketName) {
+		return buckets.computeIfAbsent(bucketName, name -> new ConcurrentSkipListMap<>());
+	}
+
+	private static AmazonS3Exception notFound(String key) {
+		AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist: " + key);
+		e.setStatusCode(404);
+		e.setErrorCode("NoSuchKey");
+		return e;
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Reads at most a given number of bytes from another stream
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long limit) {
+			super(in);
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.lwcarani.sync.LocalTreeScanner;
+
+public class LocalTreeScannerTest {
+
+	@TempDir
+	Path tempDir;
+
+	private final LocalTreeScanner scanner = new LocalTreeScanner(4);
+
+	@AfterEach
+	public void shutdown() {
+		scanner.shutdown();
+	}
+
+	@Test
+	public void testScanVisitsEveryEntryOnce_Success() throws Exception {
+		Map<String, Boolean> expected = new TreeMap<>();
+		Files.write(tempDir.resolve("top.txt"), new byte[10]);
+		expected.put("top.txt", false);
+		for (int d = 0; d < 5; d++) {
+			Path directory = Files.createDirectories(tempDir.resolve("dir-" + d).resolve("nested"));
+			expected.put("dir-" + d, true);
+			expected.put("dir-" + d + "/nested", true);
+			for (int f = 0; f < 20; f++) {
+				Files.write(directory.resolve("file-" + f + ".txt"), new byte[f]);
+				expected.put("dir-" + d + "/nested/file-" + f + ".txt", false);
+			}
+		}
+
+		Map<String, Boolean> visited = new ConcurrentHashMap<>();
+		Set<String> duplicates = ConcurrentHashMap.newKeySet();
+		boolean complete = scanner.scan(tempDir, (path, relativePath, attributes) -> {
+			if (visited.put(relativePath, attributes.isDirectory()) != null) {
+				duplicates.add(relativePath);
+			}
+			if (relativePath.endsWith("file-7.txt")) {
+				assertEquals(7, attributes.size());
+			}
+		});
+
+		assertTrue(complete);
+		assertTrue(duplicates.isEmpty(), "Visited twice: " + duplicates);
+		assertEquals(expected, new TreeMap<>(visited));
+	}
+
+	@Test
+	public void testScanFromStartUsesPathsRelativeToRoot_Success() throws Exception {
+		Path start = Files.createDirectories(tempDir.resolve("a").resolve("b"));
+		Files.write(start.resolve("c.txt"), new byte[1]);
+		Files.write(tempDir.resolve("other.txt"), new byte[1]);
+
+		Set<String> visited = ConcurrentHashMap.newKeySet();
+		assertTrue(scanner.scan(tempDir, start, (path, relativePath, attributes) -> visited.add(relativePath)));
+		assertEquals(Set.of("a/b", "a/b/c.txt"), visited);
+
+		visited.clear();
+		assertTrue(scanner.scan(tempDir, start.resolve("c.txt"),
+				(path, relativePath, attributes) -> visited.add(relativePath)));
+		assertEquals(Set.of("a/b/c.txt"), visited);
+	}
+
+	@Test
+	public void testScanOfMissingStartIsIncomplete() {
+		assertFalse(scanner.scan(tempDir, tempDir.resolve("missing"), (path, relativePath, attributes) -> {
+		}));
+	}
+}
@@ -0,0 +1,104 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import io.github.lwcarani.transfer.ObjectLister;
+import io.github.lwcarani.transfer.TransferEngine;
+import io.github.lwcarani.transfer.TransferRetrier;
+
+public class ObjectListerTest {
+
+	private static final String BUCKET = "bucket";
+
+	// The listing request that fails with a transient error, 0 for none
+	private volatile int failingList;
+	private final AtomicInteger lists = new AtomicInteger();
+
+	private final InMemoryS3 s3 = new InMemoryS3() {
+		@Override
+		protected void beforeRequest(String operation, String key) {
+			super.beforeRequest(operation, key);
+			if (operation.equals("ListObjectsV2") && lists.incrementAndGet() == failingList) {
+				AmazonS3Exception e = new AmazonS3Exception("We encountered an internal error");
+				e.setStatusCode(500);
+				e.setErrorCode("InternalError");
+				throw e;
+			}
+		}
+	};
+	private final TransferEngine engine = new TransferEngine(s3, 5L * 1024 * 1024, 5L * 1024 * 1024, 2, 1, 0);
+	private final ObjectLister lister = new ObjectLister(s3, engine, new TransferRetrier(4, 1, 5, 0.1), 2);
+
+	@AfterEach
+	public void shutdown() {
+		engine.shutdown();
+	}
+
+	@Test
+	public void testPagesFollowContinuationTokens_Success() {
+		Set<String> expected = new TreeSet<>();
+		for (int i = 0; i < 2500; i++) {
+			expected.add(put(String.format("user/docs/file-%04d.txt", i)));
+		}
+		put("user/docs/sub/a.txt");
+		put("user/docs/sub/b.txt");
+		// The second page fails once and is requested again
+		failingList = 2;
+
+		List<String> keys = new ArrayList<>();
+		List<String> folders = new ArrayList<>();
+		int pages = 0;
+		for (ListObjectsV2Result page : lister.pages(BUCKET, "user/docs/", "/")) {
+			page.getObjectSummaries().forEach(summary -> keys.add(summary.getKey()));
+			folders.addAll(page.getCommonPrefixes());
+			pages++;
+		}
+
+		assertEquals(3, pages);
+		assertEquals(2500, keys.size());
+		assertEquals(expected, new TreeSet<>(keys));
+		assertEquals(List.of("user/docs/sub/"), folders);
+	}
+
+	@Test
+	public void testForEachPageListsEveryShardOnce_Success() {
+		Set<String> expected = new TreeSet<>();
+		expected.add(put("user/top.txt"));
+		for (int folder = 0; folder < 12; folder++) {
+			for (int file = 0; file < 150; file++) {
+				expected.add(put(String.format("user/f%02d/file-%03d.txt", folder, file)));
+			}
+			// Below the deepest shard level, listed without a delimiter
+			expected.add(put(String.format("user/f%02d/a/b/c/d/deep.txt", folder)));
+		}
+		// Skipped folders aren't listed at all
+		put("user/.dbox/chunks/ab/chunk");
+
+		Queue<String> keys = new ConcurrentLinkedQueue<>();
+		lister.forEachPage(BUCKET, "user/", prefix -> !prefix.equals("user/.dbox/"),
+				page -> page.stream().map(S3ObjectSummary::getKey).forEach(keys::add));
+
+		assertEquals(expected.size(), keys.size(), "No key is listed twice");
+		assertEquals(expected, new TreeSet<>(keys));
+	}
+
+	private String put(String key) {
+		s3.putObject(BUCKET, key, "");
+		return key;
+	}
+}
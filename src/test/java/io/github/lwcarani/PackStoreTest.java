@@ -0,0 +1,189 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.S3Object;
+
+import io.github.lwcarani.transfer.PackStore;
+import io.github.lwcarani.transfer.TransferRetrier;
+import io.github.lwcarani.transfer.TransferStats;
+
+public class PackStoreTest {
+
+	private static final String BUCKET = "bucket";
+	private static final String USER = "user";
+
+	@TempDir
+	Path tempDir;
+
+	private final InMemoryS3 s3 = new InMemoryS3();
+
+	@Test
+	public void testCommittedFilesFetchedByAnotherDevice_Success() throws Exception {
+		// Packs of at most 20 bytes: two of the 8-byte files per pack
+		PackStore store = newStore(20);
+		PackStore.Session session = store.open(BUCKET, USER);
+		TransferStats stats = new TransferStats();
+		for (String name : List.of("a.txt", "b.txt", "c.txt")) {
+			session.add("docs/" + name, write(name, name + "-data"), 1000, stats);
+		}
+		session.add("docs/empty.txt", write("empty.txt", ""), 2000, stats);
+		session.addDirectory("docs");
+		assertEquals(5, session.commit().size());
+		assertEquals(4, stats.getFiles());
+
+		PackStore.Session other = newStore(20).open(BUCKET, USER);
+		assertTrue(other.get("docs/").isDirectory());
+		assertTrue(other.hasTree("docs"));
+		assertFalse(other.hasTree("doc"));
+		Map<String, String> fetched = new HashMap<>();
+		List<List<PackStore.Entry>> runs = other.planFetch(other.entries());
+		assertEquals(3, runs.size()); // Two packs, plus the empty file
+		for (List<PackStore.Entry> run : runs) {
+			other.fetch(run,
+					(entry, content) -> fetched.put(entry.getPath(), new String(content, StandardCharsets.UTF_8)));
+		}
+		assertEquals(Map.of("docs/a.txt", "a.txt-data", "docs/b.txt", "b.txt-data", "docs/c.txt", "c.txt-data",
+				"docs/empty.txt", ""), fetched);
+		assertEquals(1000, other.get("docs/a.txt").getLastModified());
+
+		try (S3Object object = other.getObject(other.get("docs/c.txt"))) {
+			assertArrayEquals("c.txt-data".getBytes(StandardCharsets.UTF_8), object.getObjectContent().readAllBytes());
+		}
+	}
+
+	@Test
+	public void testConcurrentCommitsMergeAndCompaction_Success() throws Exception {
+		// Both devices start from no index; the second commit is refused and
+		// applied again on top of the first
+		PackStore.Session first = newStore(1024).open(BUCKET, USER);
+		PackStore.Session second = newStore(1024).open(BUCKET, USER);
+		for (int i = 0; i < 10; i++) {
+			first.add("first/" + i + ".txt", write("f" + i, "first-" + i), 1000, null);
+		}
+		second.add("second.txt", write("second", "second"), 1000, null);
+		first.commit();
+		second.commit();
+
+		PackStore.Session session = newStore(1024).open(BUCKET, USER);
+		assertEquals(11, session.entries().size());
+
+		// Most of the first pack is stale once 9 of its 10 files are removed, so
+		// compaction moves the last one to a new pack. The old pack is kept, as
+		// other devices may still be reading it through the previous index.
+		for (int i = 0; i < 9; i++) {
+			assertTrue(session.remove("first/" + i + ".txt"));
+		}
+		session.commit();
+		PackStore.Session reader = newStore(1024).open(BUCKET, USER);
+		int packs = countObjects("user/.dbox/packs/");
+		session.compact();
+		session.compact();
+		assertEquals(packs + 1, countObjects("user/.dbox/packs/"));
+		try (S3Object object = reader.getObject(reader.get("first/9.txt"))) {
+			assertEquals("first-9", new String(object.getObjectContent().readAllBytes(), StandardCharsets.UTF_8));
+		}
+
+		PackStore.Session after = newStore(1024).open(BUCKET, USER);
+		assertNull(after.get("first/0.txt"));
+		try (S3Object object = after.getObject(after.get("first/9.txt"))) {
+			assertEquals("first-9", new String(object.getObjectContent().readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertEquals(2, after.removeTree("first") + after.removeTree("second.txt"));
+	}
+
+	@Test
+	public void testMissingIndex_NotFetchedAgain() throws Exception {
+		PackStore notPacking = new PackStore(s3, new TransferRetrier(1, 0, 0, 0), false, 1024, 1024, 0.5, 0,
+				stateDirectory());
+		PackStore packing = newStore(1024);
+		notPacking.open(BUCKET, USER);
+		packing.open(BUCKET, USER);
+		long requests = s3.getRequestCount();
+		notPacking.open(BUCKET, USER);
+		packing.open(BUCKET, USER);
+		assertEquals(requests, s3.getRequestCount());
+
+		// A device that packs still finds the index another one created meanwhile
+		PackStore.Session other = newStore(1024).open(BUCKET, USER);
+		other.add("a.txt", write("a", "a"), 1000, null);
+		other.commit();
+		PackStore.Session session = packing.open(BUCKET, USER);
+		session.add("b.txt", write("b", "b"), 1000, null);
+		session.commit();
+		assertEquals(2, newStore(1024).open(BUCKET, USER).entries().size());
+	}
+
+	@Test
+	public void testUnusedIndexNotReadWhileNotPacking() throws Exception {
+		String otherState = tempDir.resolve("other-state").toString();
+		PackStore notPacking = new PackStore(s3, new TransferRetrier(1, 0, 0, 0), false, 1024, 1024, 0.5, 60,
+				otherState);
+		assertNull(notPacking.openIfUsed(BUCKET, USER));
+		assertEquals(0, s3.getRequestCount());
+
+		// Once a pull has read an index, it is looked at, also after a restart
+		PackStore.Session session = newStore(1024).open(BUCKET, USER);
+		session.add("a.txt", write("a", "a"), 1000, null);
+		session.commit();
+		assertNull(notPacking.openIfUsed(BUCKET, USER));
+		notPacking.open(BUCKET, USER);
+		assertEquals(1, notPacking.openIfUsed(BUCKET, USER).entries().size());
+		PackStore restarted = new PackStore(s3, new TransferRetrier(1, 0, 0, 0), false, 1024, 1024, 0.5, 60,
+				otherState);
+		assertEquals(1, restarted.openIfUsed(BUCKET, USER).entries().size());
+	}
+
+	@Test
+	public void testIndexDeltasFoldedIntoBase_Success() throws Exception {
+		PackStore store = newStore(1024);
+		for (int i = 0; i < 40; i++) {
+			PackStore.Session session = store.open(BUCKET, USER);
+			session.add(i + ".txt", write(i + ".txt", "content-" + i), 1000, null);
+			session.commit();
+		}
+		PackStore.Session session = store.open(BUCKET, USER);
+		assertTrue(session.remove("0.txt"));
+		session.commit();
+
+		// A base and the deltas written since it are all that is kept
+		assertEquals(1 + 41 - 32, countObjects("user/.dbox/pack-index/"));
+		PackStore.Session reader = newStore(1024).open(BUCKET, USER);
+		assertEquals(39, reader.entries().size());
+		assertNull(reader.get("0.txt"));
+		try (S3Object object = reader.getObject(reader.get("39.txt"))) {
+			assertEquals("content-39", new String(object.getObjectContent().readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	private int countObjects(String prefix) {
+		return s3.listObjectsV2(new ListObjectsV2Request().withBucketName(BUCKET).withPrefix(prefix)).getKeyCount();
+	}
+
+	private PackStore newStore(long packSize) {
+		return new PackStore(s3, new TransferRetrier(1, 0, 0, 0), true, 1024, packSize, 0.5, 60, stateDirectory());
+	}
+
+	private String stateDirectory() {
+		return tempDir.resolve("state").toString();
+	}
+
+	private Path write(String name, String content) throws Exception {
+		return Files.writeString(tempDir.resolve(name), content);
+	}
+}
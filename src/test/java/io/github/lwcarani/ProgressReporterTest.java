@@ -0,0 +1,78 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.lwcarani.transfer.ProgressReporter;
+import io.github.lwcarani.transfer.TransferStats;
+
+public class ProgressReporterTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void testDescribeRatesAndEta() {
+		TransferStats stats = new TransferStats();
+		for (int i = 0; i < 3; i++) {
+			stats.fileQueued(MB);
+		}
+		stats.fileTransferred(MB);
+		stats.fileSkipped(MB);
+		stats.partialProgress(MB / 2);
+
+		// 1.5 MB transferred in 3s; the last half MB takes 2s at the current rate
+		assertEquals("Uploading: 2/3 files, 2.5 MB/3.0 MB, 256.0 KB/s (avg 512.0 KB/s), ETA 2s",
+				ProgressReporter.describe("Uploading", stats, MB / 4, 3));
+		// Until the current rate is measured, the ETA uses the average
+		assertEquals("Uploading: 2/3 files, 2.5 MB/3.0 MB, 0 B/s (avg 512.0 KB/s), ETA 1s",
+				ProgressReporter.describe("Uploading", stats, -1, 3));
+	}
+
+	@Test
+	public void testDescribeWithoutProgress() {
+		TransferStats stats = new TransferStats();
+		stats.fileQueued(MB);
+		assertEquals("Downloading: 0/1 files, 0 B/1.0 MB, 0 B/s (avg 0 B/s), ETA --",
+				ProgressReporter.describe("Downloading", stats, 0, 1));
+
+		stats.fileSkipped(MB);
+		assertEquals("Downloading: 1/1 files, 1.0 MB/1.0 MB, 0 B/s (avg 0 B/s), ETA 0s",
+				ProgressReporter.describe("Downloading", stats, 0, 1));
+	}
+
+	@Test
+	public void testFormatDuration() {
+		assertEquals("0s", ProgressReporter.formatDuration(0));
+		assertEquals("45s", ProgressReporter.formatDuration(45));
+		assertEquals("1m 00s", ProgressReporter.formatDuration(60));
+		assertEquals("2m 10s", ProgressReporter.formatDuration(130));
+		assertEquals("1h 05m", ProgressReporter.formatDuration(3900));
+	}
+
+	@Test
+	public void testTrackProgressCountsPartialBytesUntilClosed() throws Exception {
+		TransferStats stats = new TransferStats();
+		stats.fileQueued(10);
+		InputStream in = stats.trackProgress(new ByteArrayInputStream(new byte[10]));
+
+		in.read();
+		in.read(new byte[4], 0, 4);
+		assertEquals(5, stats.getCompletedBytes());
+		assertEquals(5, stats.getTransferredBytes());
+
+		in.read(new byte[10], 0, 10);
+		assertEquals(-1, in.read(new byte[10], 0, 10));
+		assertEquals(10, stats.getTransferredBytes());
+
+		// Once the file is recorded, its partial bytes are taken back on close
+		stats.fileTransferred(10);
+		in.close();
+		assertEquals(10, stats.getCompletedBytes());
+		assertEquals(10, stats.getTransferredBytes());
+		assertEquals(0, stats.getQueuedBytes() - stats.getCompletedBytes());
+	}
+}
@@ -0,0 +1,64 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.lwcarani.sync.RemoteNamespaceCache;
+
+public class RemoteNamespaceCacheTest {
+
+	@Test
+	public void testWriteInvalidatesOnlyListingsOfItsPrefixes() {
+		RemoteNamespaceCache cache = new RemoteNamespaceCache(60);
+		cache.putListing("user/docs/", List.of("a.txt", "user/docs/sub/"), cache.getGeneration());
+		cache.putListing("user/photos", List.of("user/photos/"), cache.getGeneration());
+
+		cache.objectWritten("user/docs/b.txt");
+
+		assertNull(cache.getListing("user/docs/"));
+		assertEquals(List.of("user/photos/"), cache.getListing("user/photos"));
+		assertEquals(Boolean.TRUE, cache.getExists("user/docs/"));
+	}
+
+	@Test
+	public void testListedFoldersAreKnownToExist() {
+		RemoteNamespaceCache cache = new RemoteNamespaceCache(60);
+		// Common prefixes come back from listFiles as full keys
+		cache.putListing("user/docs/", List.of("a.txt", "user/docs/sub/"), cache.getGeneration());
+
+		assertEquals(Boolean.TRUE, cache.getExists("user/docs/sub/"));
+		assertEquals(Boolean.TRUE, cache.getExists("user/docs/sub"));
+		assertNull(cache.getExists("user/docs/user/docs/sub/"));
+	}
+
+	@Test
+	public void testListingStartedBeforeAChangeIsNotCached() {
+		RemoteNamespaceCache cache = new RemoteNamespaceCache(60);
+		long generation = cache.getGeneration();
+
+		cache.treeDeleted("user/docs");
+		cache.putListing("user/docs", List.of("/a.txt"), generation);
+		cache.putExists("user/docs", true, generation);
+
+		assertNull(cache.getListing("user/docs"));
+		assertNull(cache.getExists("user/docs"));
+	}
+
+	@Test
+	public void testDeleteLeavesSiblingsSharingItsName() {
+		RemoteNamespaceCache cache = new RemoteNamespaceCache(60);
+		cache.putListing("user/docs/", List.of("a.txt"), cache.getGeneration());
+		cache.putListing("user/docs-old/", List.of("b.txt"), cache.getGeneration());
+
+		cache.treeDeleted("user/docs");
+
+		assertNull(cache.getListing("user/docs/"));
+		assertNull(cache.getExists("user/docs/"));
+		assertEquals(List.of("b.txt"), cache.getListing("user/docs-old/"));
+		assertEquals(Boolean.TRUE, cache.getExists("user/docs-old/"));
+	}
+}
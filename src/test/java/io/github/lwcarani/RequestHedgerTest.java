@@ -0,0 +1,114 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.SdkClientException;
+
+import io.github.lwcarani.transfer.RequestHedger;
+
+public class RequestHedgerTest {
+
+	@Test
+	public void testSlowRequestIsHedged_Success() throws Exception {
+		RequestHedger hedger = new RequestHedger(true, 95, 1024);
+		try {
+			assertTrue(hedger.shouldHedge(1024));
+			assertFalse(hedger.shouldHedge(1025));
+
+			// Learn the usual response time
+			for (int i = 0; i < 64; i++) {
+				assertEquals("fast", hedger.call(() -> respond("fast", 1), response -> {
+				}));
+			}
+			long hedged = hedger.getHedgedCount();
+
+			// The first request stalls, so the hedged second one answers
+			AtomicInteger requests = new AtomicInteger();
+			List<String> discarded = new CopyOnWriteArrayList<>();
+			String response = hedger.call(
+					() -> requests.incrementAndGet() == 1 ? respond("stalled", 500) : respond("hedged", 1),
+					discarded::add);
+
+			assertEquals("hedged", response);
+			assertEquals(hedged + 1, hedger.getHedgedCount());
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (discarded.isEmpty() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(List.of("stalled"), discarded);
+		} finally {
+			hedger.shutdown();
+		}
+	}
+
+	@Test
+	public void testInterruptedCallDiscardsLateResponses() throws Exception {
+		RequestHedger hedger = new RequestHedger(true, 95, 1024);
+		try {
+			for (int i = 0; i < 64; i++) {
+				hedger.call(() -> respond("fast", 1), response -> {
+				});
+			}
+
+			// Both the request and its hedge answer after the caller gave up
+			CountDownLatch release = new CountDownLatch(1);
+			List<String> discarded = new CopyOnWriteArrayList<>();
+			AtomicInteger requests = new AtomicInteger();
+			Thread caller = new Thread(() -> {
+				try {
+					hedger.call(() -> {
+						int request = requests.incrementAndGet();
+						awaitQuietly(release);
+						return "response " + request;
+					}, discarded::add);
+				} catch (SdkClientException e) {
+					// Interrupted
+				}
+			});
+			caller.start();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (requests.get() < 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			caller.interrupt();
+			caller.join(5_000);
+			release.countDown();
+
+			while (discarded.size() < 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(Set.of("response 1", "response 2"), new HashSet<>(discarded));
+		} finally {
+			hedger.shutdown();
+		}
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String respond(String response, long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return response;
+	}
+}
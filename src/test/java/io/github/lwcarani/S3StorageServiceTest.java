@@ -0,0 +1,299 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.model.S3Object;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import io.github.lwcarani.metrics.ClientMetrics;
+import io.github.lwcarani.service.S3StorageService;
+import io.github.lwcarani.sync.ChangeJournal;
+import io.github.lwcarani.sync.LocalTreeScanner;
+import io.github.lwcarani.sync.RemoteNamespaceCache;
+import io.github.lwcarani.sync.SyncManifest;
+import io.github.lwcarani.sync.SyncManifestStore;
+import io.github.lwcarani.transfer.ChunkStore;
+import io.github.lwcarani.transfer.ContentCompressor;
+import io.github.lwcarani.transfer.ObjectLister;
+import io.github.lwcarani.transfer.PackStore;
+import io.github.lwcarani.transfer.RequestHedger;
+import io.github.lwcarani.transfer.TransferEngine;
+import io.github.lwcarani.transfer.TransferRetrier;
+import io.github.lwcarani.util.FileUtils;
+
+public class S3StorageServiceTest {
+
+	private static final String BUCKET = "bucket";
+	private static final String USER_ID = "user";
+	private static final String USERNAME = "alice";
+
+	@TempDir
+	Path tempDir;
+
+	// Keys of the file contents uploaded, leaving out the client's bookkeeping
+	private final Queue<String> uploads = new ConcurrentLinkedQueue<>();
+
+	private final InMemoryS3 s3 = new InMemoryS3() {
+		@Override
+		protected void beforeRequest(String operation, String key) {
+			super.beforeRequest(operation, key);
+			if ((operation.equals("PutObject") || operation.equals("InitiateMultipartUpload")) && key != null
+					&& !key.contains("/.dbox/")) {
+				uploads.add(key);
+			}
+		}
+	};
+	private final List<Device> devices = new ArrayList<>();
+
+	@AfterEach
+	public void shutdown() {
+		devices.forEach(Device::shutdown);
+	}
+
+	@Test
+	public void testPushThenPullOnAnotherDevice_Success() throws Exception {
+		Device laptop = new Device("laptop", false);
+		writeTree(laptop.localRoot);
+
+		laptop.push();
+		Device desktop = new Device("desktop", false);
+		desktop.pull();
+
+		assertEquals(readTree(laptop.localRoot), readTree(desktop.localRoot));
+		assertTrue(Files.isDirectory(desktop.localRoot.resolve("empty")));
+	}
+
+	@Test
+	public void testSecondPushOnlyUploadsChanges_Success() throws Exception {
+		Device laptop = new Device("laptop", false);
+		writeTree(laptop.localRoot);
+		laptop.push();
+
+		uploads.clear();
+		laptop.push();
+		assertEquals(List.of(), new ArrayList<>(uploads), "Nothing changed");
+
+		Files.writeString(laptop.localRoot.resolve("docs/notes.txt"), "changed");
+		laptop.push();
+		assertEquals(List.of(USER_ID + "/docs/notes.txt"), new ArrayList<>(uploads));
+
+		Device desktop = new Device("desktop", false);
+		desktop.pull();
+		assertEquals("changed", Files.readString(desktop.localRoot.resolve("docs/notes.txt")));
+	}
+
+	@Test
+	public void testRemoteChangesAndDeletesReachOtherDevices_Success() throws Exception {
+		Device laptop = new Device("laptop", false);
+		writeTree(laptop.localRoot);
+		laptop.push();
+		Device desktop = new Device("desktop", false);
+		desktop.pull();
+
+		// rm of a folder and a file on the laptop (remotely, then locally), and an edit
+		assertTrue(laptop.service.deleteDirectory(USER_ID + "/photos"));
+		laptop.service.deleteFile(USER_ID, "top.txt");
+		deleteTree(laptop.localRoot.resolve("photos"));
+		Files.delete(laptop.localRoot.resolve("top.txt"));
+		Files.writeString(laptop.localRoot.resolve("docs/notes.txt"), "edited on the laptop");
+		laptop.push();
+
+		// Read from the change journal: deleted paths go, the edit arrives
+		desktop.pull();
+		assertFalse(Files.exists(desktop.localRoot.resolve("photos")));
+		assertFalse(Files.exists(desktop.localRoot.resolve("top.txt")));
+		assertEquals("edited on the laptop", Files.readString(desktop.localRoot.resolve("docs/notes.txt")));
+		assertFalse(laptop.service.isValidS3Directory(USER_ID + "/photos"));
+		assertFalse(laptop.service.listFiles(USER_ID, "").contains("top.txt"));
+	}
+
+	@Test
+	public void testPushThenPullWithEveryStorageMode_Success() throws Exception {
+		// Chunked, compressed and packed files all come back as they were
+		Device laptop = new Device("laptop", true);
+		writeTree(laptop.localRoot);
+		StringBuilder log = new StringBuilder();
+		for (int i = 0; i < 20_000; i++) {
+			log.append("line ").append(i).append(": nothing to report\n");
+		}
+		Files.writeString(laptop.localRoot.resolve("docs/app.log"), log);
+
+		laptop.push();
+		assertTrue(hasKeys(USER_ID + "/.dbox/chunks/"));
+		assertTrue(hasKeys(USER_ID + "/.dbox/packs/"));
+		try (S3Object object = s3.getObject(BUCKET, USER_ID + "/docs/app.log")) {
+			assertTrue(ContentCompressor.isCompressed(object.getObjectMetadata()));
+		}
+		Device desktop = new Device("desktop", true);
+		desktop.pull();
+
+		assertEquals(readTree(laptop.localRoot), readTree(desktop.localRoot));
+	}
+
+	@Test
+	public void testSyncPathsUploadsEditedFiles_Success() throws Exception {
+		Device laptop = new Device("laptop", false);
+		writeTree(laptop.localRoot);
+		laptop.push();
+
+		uploads.clear();
+		Files.writeString(laptop.localRoot.resolve("docs/notes.txt"), "edited while watched");
+		Files.writeString(laptop.localRoot.resolve("docs/drafts/new.txt"), "new");
+		laptop.syncPaths("docs/notes.txt", "docs/drafts/new.txt");
+
+		assertEquals(Set.of(USER_ID + "/docs/notes.txt", USER_ID + "/docs/drafts/new.txt"), new HashSet<>(uploads));
+		assertEquals("edited while watched", s3.getObjectAsString(BUCKET, USER_ID + "/docs/notes.txt"));
+	}
+
+	@Test
+	public void testSyncPathsDeletesRemovedPaths_Success() throws Exception {
+		Device laptop = new Device("laptop", false);
+		writeTree(laptop.localRoot);
+		laptop.push();
+
+		deleteTree(laptop.localRoot.resolve("photos"));
+		Files.delete(laptop.localRoot.resolve("top.txt"));
+		laptop.syncPaths("photos", "top.txt");
+
+		assertFalse(hasKeys(USER_ID + "/photos/"));
+		assertFalse(s3.doesObjectExist(BUCKET, USER_ID + "/top.txt"));
+		assertTrue(s3.doesObjectExist(BUCKET, USER_ID + "/docs/notes.txt"));
+		SyncManifest manifest = laptop.manifestStore.load(USER_ID, laptop.localRoot);
+		assertNull(manifest.get("top.txt"));
+		assertNull(manifest.get("photos/video.mp4"));
+		assertNull(manifest.get("photos/"));
+		assertNotNull(manifest.get("docs/notes.txt"));
+	}
+
+	@Test
+	public void testSyncPathsSkipsFilesWrittenByPull_Success() throws Exception {
+		Device laptop = new Device("laptop", false);
+		writeTree(laptop.localRoot);
+		laptop.push();
+		Device desktop = new Device("desktop", false);
+		desktop.pull();
+
+		// The desktop's watcher sees the pull's own writes
+		uploads.clear();
+		desktop.syncPaths("docs", "photos", "top.txt");
+
+		assertEquals(List.of(), new ArrayList<>(uploads));
+		assertEquals(readTree(laptop.localRoot), readTree(desktop.localRoot));
+	}
+
+	// A few small files, a large one and an empty folder
+	private static void writeTree(Path root) throws IOException {
+		Random random = new Random(42);
+		Files.createDirectories(root.resolve("docs/drafts"));
+		Files.createDirectories(root.resolve("photos"));
+		Files.createDirectories(root.resolve("empty"));
+		Files.writeString(root.resolve("top.txt"), "top");
+		Files.writeString(root.resolve("docs/notes.txt"), "notes");
+		Files.writeString(root.resolve("docs/drafts/draft.txt"), "draft");
+		for (int i = 0; i < 3; i++) {
+			byte[] photo = new byte[40_000];
+			random.nextBytes(photo);
+			Files.write(root.resolve("photos/photo-" + i + ".jpg"), photo);
+		}
+		byte[] video = new byte[6 * 1024 * 1024];
+		random.nextBytes(video);
+		Files.write(root.resolve("photos/video.mp4"), video);
+	}
+
+	private boolean hasKeys(String prefix) {
+		return !s3.listObjectsV2(BUCKET, prefix).getObjectSummaries().isEmpty();
+	}
+
+	private static void deleteTree(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	// Relative paths of the files below a root and hashes of their content
+	private static Map<String, String> readTree(Path root) throws IOException {
+		Map<String, String> files = new TreeMap<>();
+		try (Stream<Path> paths = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+				byte[] hash = FileUtils.newDigest("SHA-256").digest(Files.readAllBytes(path));
+				files.put(root.relativize(path).toString().replace("\\", "/"), HexFormat.of().formatHex(hash));
+			}
+		}
+		return files;
+	}
+
+	// One device syncing with the shared bucket, wired the way Spring wires it
+	private class Device {
+		private final Path rootDirectory;
+		private final Path localRoot;
+		private final TransferEngine transferEngine;
+		private final LocalTreeScanner treeScanner;
+		private final RequestHedger hedger;
+		private final SyncManifestStore manifestStore;
+		private final S3StorageService service;
+
+		Device(String name, boolean storageModes) throws IOException {
+			rootDirectory = Files.createDirectories(tempDir.resolve(name).resolve("root"));
+			localRoot = Files.createDirectories(rootDirectory.resolve("dropbox-clone").resolve(USERNAME));
+			String stateDirectory = tempDir.resolve(name).resolve("state").toString();
+			transferEngine = new TransferEngine(s3, 5L * 1024 * 1024, 5L * 1024 * 1024, 4, 4, 0);
+			treeScanner = new LocalTreeScanner(2);
+			hedger = new RequestHedger(false, 95, 1024 * 1024);
+			TransferRetrier retrier = new TransferRetrier(4, 1, 5, 0.1);
+			manifestStore = new SyncManifestStore(stateDirectory);
+			service = new S3StorageService(s3, BUCKET, manifestStore, transferEngine,
+					new ChunkStore(s3, transferEngine, retrier, storageModes, 4096, 1024 * 1024),
+					new ChangeJournal(s3, retrier, 30, 300), new RemoteNamespaceCache(60),
+					new ObjectLister(s3, transferEngine, retrier, 2), treeScanner,
+					new ContentCompressor(transferEngine, storageModes, 6, 4096, "64MB"),
+					new ClientMetrics(new SimpleMeterRegistry()), retrier, hedger,
+					new PackStore(s3, retrier, storageModes, 16 * 1024, 1024 * 1024, 0.5, 60, stateDirectory));
+			devices.add(this);
+		}
+
+		void push() {
+			service.pushToS3(USER_ID, USERNAME, rootDirectory.toString());
+		}
+
+		void pull() {
+			service.pullFromS3(USER_ID, USERNAME, rootDirectory.toString());
+		}
+
+		void syncPaths(String... relativePaths) {
+			service.syncPaths(USER_ID, USERNAME, rootDirectory.toString(), List.of(relativePaths));
+		}
+
+		void shutdown() {
+			transferEngine.shutdown();
+			treeScanner.shutdown();
+			hedger.shutdown();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+
+import io.github.lwcarani.service.S3UserPreferenceService;
+import io.github.lwcarani.transfer.TransferRetrier;
+
+public class S3UserPreferenceServiceTest {
+
+	private static final String BUCKET = "prefs";
+	private static final String DOCUMENT = "user/preferences.properties";
+
+	@TempDir
+	Path tempDir;
+
+	// Whether another device uploads the document just before the next upload
+	private volatile boolean raceNextUpload;
+	// Uploads of the document that fail with a 500 before one goes through
+	private final AtomicInteger failingUploads = new AtomicInteger();
+
+	private final InMemoryS3 s3 = new InMemoryS3() {
+		@Override
+		protected void beforeRequest(String operation, String key) {
+			super.beforeRequest(operation, key);
+			if (raceNextUpload && operation.equals("PutObject") && DOCUMENT.equals(key)) {
+				raceNextUpload = false;
+				putObject(BUCKET, DOCUMENT, "rootDirectory=/other\ntheme=dark\n");
+			}
+			if (operation.equals("PutObject") && DOCUMENT.equals(key) && failingUploads.getAndDecrement() > 0) {
+				AmazonS3Exception e = new AmazonS3Exception("We encountered an internal error");
+				e.setStatusCode(500);
+				throw e;
+			}
+		}
+	};
+
+	@Test
+	public void testPreferencesShareOneDocumentAcrossDevices() {
+		S3UserPreferenceService laptop = service(tempDir.resolve("laptop").toString());
+		laptop.saveUserPreference("user", "rootDirectory", "/home/user");
+		laptop.saveUserPreference("user", "theme", "light");
+		assertEquals("/home/user", laptop.getUserPreference("user", "rootDirectory"));
+		laptop.flushAll();
+
+		S3UserPreferenceService desktop = service(tempDir.resolve("desktop").toString());
+		assertEquals("/home/user", desktop.getUserPreference("user", "rootDirectory"));
+		desktop.deleteUserPreference("user", "theme");
+		desktop.flushAll();
+
+		assertEquals(1, s3.getObjectCount(BUCKET));
+		assertNull(load().getProperty("theme"));
+	}
+
+	@Test
+	public void testUploadLostToAnotherDeviceIsMergedAgain() {
+		S3UserPreferenceService laptop = service(tempDir.resolve("laptop").toString());
+		laptop.saveUserPreference("user", "rootDirectory", "/home/user");
+		laptop.flushAll();
+
+		// Another device uploads between the merge and the upload: the
+		// conditional upload fails and is merged into that device's document
+		laptop = service(tempDir.resolve("laptop").toString());
+		laptop.saveUserPreference("user", "rootDirectory", "/home/user/sync");
+		raceNextUpload = true;
+		laptop.flushAll();
+
+		Properties document = load();
+		assertEquals("/home/user/sync", document.getProperty("rootDirectory"));
+		assertEquals("dark", document.getProperty("theme"));
+		assertFalse(raceNextUpload);
+	}
+
+	@Test
+	public void testFailedUploadIsTriedAgain() {
+		S3UserPreferenceService laptop = service(tempDir.resolve("laptop").toString());
+		// A transient error is retried right away
+		failingUploads.set(1);
+		laptop.saveUserPreference("user", "rootDirectory", "/home/user");
+		laptop.flushAll();
+		assertEquals("/home/user", load().getProperty("rootDirectory"));
+
+		// One that outlasts the retries keeps the change for the next upload
+		laptop = service(tempDir.resolve("laptop").toString());
+		failingUploads.set(4);
+		laptop.saveUserPreference("user", "rootDirectory", "/home/user/sync");
+		laptop.flushAll();
+		assertEquals("/home/user", load().getProperty("rootDirectory"));
+		laptop.flushAll();
+		assertEquals("/home/user/sync", load().getProperty("rootDirectory"));
+	}
+
+	private S3UserPreferenceService service(String stateDirectory) {
+		return new S3UserPreferenceService(s3, new TransferRetrier(4, 1, 5, 0.1), BUCKET, stateDirectory);
+	}
+
+	private Properties load() {
+		Properties values = new Properties();
+		try {
+			values.load(new StringReader(s3.getObjectAsString(BUCKET, DOCUMENT)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,81 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.cognitoidp.model.AuthenticationResultType;
+
+import io.github.lwcarani.service.SessionRefresher;
+import io.github.lwcarani.service.UserService;
+
+public class SessionRefresherTest {
+
+	private final UserService userService = mock(UserService.class);
+	private final SessionRefresher refresher = new SessionRefresher(userService, 10, 50);
+	private final BlockingQueue<String> tokens = new LinkedBlockingQueue<>();
+
+	@Test
+	public void testRenewsBeforeExpiry_Success() throws Exception {
+		AtomicInteger renewals = new AtomicInteger();
+		when(userService.refreshSession("alice", "refresh")).thenAnswer(invocation -> new AuthenticationResultType()
+				.withAccessToken("access-" + renewals.incrementAndGet()).withExpiresIn(1));
+
+		long start = System.nanoTime();
+		refresher.start("alice", "refresh", 1, tokens::add);
+
+		// Renewed after 4/5 of each token's lifetime, again and again
+		assertEquals("access-1", tokens.poll(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(800));
+		assertEquals("access-2", tokens.poll(5, TimeUnit.SECONDS));
+		refresher.stop();
+	}
+
+	@Test
+	public void testRetriesUntilTheTokenExpires() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		when(userService.refreshSession(anyString(), anyString())).thenAnswer(invocation -> {
+			attempts.incrementAndGet();
+			return null;
+		});
+
+		refresher.start("alice", "refresh", 1, tokens::add);
+		Thread.sleep(1_500);
+		int made = attempts.get();
+
+		// First at 800ms, then every 50ms while that is before the expiry at 1s
+		assertTrue(made >= 2 && made <= 4, "Attempts: " + made);
+		Thread.sleep(300);
+		assertEquals(made, attempts.get(), "No attempts after the token expired");
+		assertNull(tokens.poll());
+	}
+
+	@Test
+	public void testStopCancelsRenewal() throws Exception {
+		when(userService.refreshSession(anyString(), anyString()))
+				.thenReturn(new AuthenticationResultType().withAccessToken("access").withExpiresIn(1));
+
+		refresher.start("alice", "refresh", 1, tokens::add);
+		refresher.stop();
+		assertNull(tokens.poll(1_500, TimeUnit.MILLISECONDS));
+		verify(userService, never()).refreshSession(anyString(), anyString());
+
+		// A later login is renewed on its own schedule
+		refresher.start("bob", "refresh", 1, tokens::add);
+		assertNotNull(tokens.poll(5, TimeUnit.SECONDS));
+		refresher.stop();
+	}
+}
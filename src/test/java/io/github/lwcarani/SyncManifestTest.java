@@ -0,0 +1,99 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.lwcarani.sync.ChangeJournal;
+import io.github.lwcarani.sync.SyncManifest;
+import io.github.lwcarani.sync.SyncManifestStore;
+
+public class SyncManifestTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void testSaveAndLoad_Success() throws Exception {
+		SyncManifest manifest = new SyncManifest();
+		manifest.put(SyncManifest.Entry.directory("docs"));
+		manifest.put(new SyncManifest.Entry("docs/notes\twith tab.txt", 12, 1700000000000L, "abc123", "etag-1"));
+
+		Path file = tempDir.resolve("manifest.tsv");
+		manifest.save(file);
+		SyncManifest loaded = SyncManifest.load(file);
+
+		assertEquals(2, loaded.size());
+		assertTrue(loaded.get("docs/").isDirectory());
+
+		SyncManifest.Entry entry = loaded.get("docs/notes\twith tab.txt");
+		assertNotNull(entry);
+		assertEquals(12, entry.getSize());
+		assertEquals("abc123", entry.getContentHash());
+		assertEquals("etag-1", entry.getETag());
+		assertTrue(entry.matches(12, 1700000000000L));
+		assertFalse(entry.matches(12, 1700000000001L));
+	}
+
+	@Test
+	public void testRemoveTree_Success() {
+		SyncManifest manifest = new SyncManifest();
+		manifest.put(SyncManifest.Entry.directory("foo"));
+		manifest.put(new SyncManifest.Entry("foo/a.txt", 1, 1, "h", "e"));
+		manifest.put(new SyncManifest.Entry("foobar.txt", 1, 1, "h", "e"));
+
+		manifest.removeTree("foo");
+
+		assertNull(manifest.get("foo/"));
+		assertNull(manifest.get("foo/a.txt"));
+		assertNotNull(manifest.get("foobar.txt"));
+	}
+
+	@Test
+	public void testStoreSurvivesReload_Success() {
+		Path root = tempDir.resolve("root");
+		SyncManifestStore store = new SyncManifestStore(tempDir.resolve("state").toString());
+		SyncManifest manifest = store.load("user-1", root);
+		assertEquals(0, manifest.size());
+
+		manifest.put(new SyncManifest.Entry("a.txt", 3, 5, "h", "e"));
+		store.save("user-1", root, manifest);
+
+		assertEquals(1, new SyncManifestStore(tempDir.resolve("state").toString()).load("user-1", root).size());
+
+		store.forget("user-1", "");
+		assertEquals(0, store.load("user-1", root).size());
+	}
+
+	@Test
+	public void testStoreKeepsStatePerRoot_Success() {
+		Path first = tempDir.resolve("first");
+		Path second = tempDir.resolve("second");
+		SyncManifestStore store = new SyncManifestStore(tempDir.resolve("state").toString());
+		SyncManifest manifest = new SyncManifest();
+		manifest.put(new SyncManifest.Entry("a.txt", 3, 5, "h", "e"));
+		manifest.put(new SyncManifest.Entry("b.txt", 3, 5, "h", "e"));
+		store.save("user-1", first, manifest);
+		store.save("user-1", second, manifest);
+		store.saveJournalPosition("user-1", first, new ChangeJournal.Position(7));
+
+		// Another root of the same user starts from scratch...
+		assertEquals(0, store.load("user-1", tempDir.resolve("third")).size());
+		assertNull(store.loadJournalPosition("user-1", second));
+		// ...and a path spelled differently is the same root
+		assertEquals(7, store.loadJournalPosition("user-1", tempDir.resolve("x/../first")).getSequence());
+
+		// A remote delete is forgotten in every root
+		store.forget("user-1", "a.txt");
+		assertNull(store.load("user-1", first).get("a.txt"));
+		assertNull(store.load("user-1", second).get("a.txt"));
+		assertNotNull(store.load("user-1", second).get("b.txt"));
+	}
+}
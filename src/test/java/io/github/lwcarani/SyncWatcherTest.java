@@ -0,0 +1,108 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.lwcarani.sync.SyncWatcher;
+
+public class SyncWatcherTest {
+
+	private static final long QUIET_PERIOD_MILLIS = 300;
+
+	@TempDir
+	Path root;
+
+	// Paths of each callback, or "full sync"
+	private final BlockingQueue<Set<String>> syncs = new LinkedBlockingQueue<>();
+	private final AtomicBoolean failNextSync = new AtomicBoolean();
+	private SyncWatcher watcher;
+
+	@AfterEach
+	public void stop() {
+		if (watcher != null) {
+			watcher.stop();
+		}
+	}
+
+	@Test
+	public void testWithoutNestedPaths() {
+		Set<String> paths = new TreeSet<>(List.of("docs", "docs/a.txt", "docs/drafts/b.txt", "docs-old/c.txt",
+				"photos/2024/d.jpg", "photos/2024", "top.txt"));
+
+		assertEquals(List.of("docs", "docs-old/c.txt", "photos/2024", "top.txt"),
+				SyncWatcher.withoutNestedPaths(paths));
+	}
+
+	@Test
+	public void testBurstOfChangesSyncedOnce_Success() throws Exception {
+		Files.createDirectories(root.resolve("docs"));
+		start();
+
+		for (int i = 0; i < 5; i++) {
+			Files.writeString(root.resolve("docs/notes.txt"), "version " + i);
+		}
+		Files.writeString(root.resolve("docs/todo.txt"), "todo");
+		Files.createDirectories(root.resolve(".dbox"));
+		Files.writeString(root.resolve(".dbox/state"), "ignored");
+
+		assertEquals(Set.of("docs/notes.txt", "docs/todo.txt"), nextSync());
+		assertNull(syncs.poll(QUIET_PERIOD_MILLIS * 3, TimeUnit.MILLISECONDS), "One callback for the burst");
+	}
+
+	@Test
+	public void testNewDirectoriesAreWatched_Success() throws Exception {
+		start();
+
+		Files.createDirectories(root.resolve("new/sub"));
+		assertEquals(Set.of("new"), nextSync());
+
+		Files.writeString(root.resolve("new/sub/later.txt"), "later");
+		assertEquals(Set.of("new/sub/later.txt"), nextSync());
+	}
+
+	@Test
+	public void testFailedSyncFallsBackToFullSync() throws Exception {
+		start();
+		failNextSync.set(true);
+
+		Files.writeString(root.resolve("a.txt"), "a");
+		assertEquals(Set.of("a.txt"), nextSync());
+
+		// The failed sync may have missed changes, so the next one syncs everything
+		Files.writeString(root.resolve("b.txt"), "b");
+		assertEquals(Set.of("full sync"), nextSync());
+		Files.writeString(root.resolve("c.txt"), "c");
+		assertEquals(Set.of("c.txt"), nextSync());
+	}
+
+	private void start() throws Exception {
+		watcher = new SyncWatcher(root, paths -> {
+			syncs.add(new TreeSet<>(paths));
+			if (failNextSync.getAndSet(false)) {
+				throw new IllegalStateException("S3 unavailable");
+			}
+		}, () -> syncs.add(Set.of("full sync")), QUIET_PERIOD_MILLIS, 5_000);
+		watcher.start();
+	}
+
+	private Set<String> nextSync() throws InterruptedException {
+		Set<String> paths = syncs.poll(10, TimeUnit.SECONDS);
+		assertNotNull(paths, "No sync within 10s");
+		return paths;
+	}
+}
@@ -0,0 +1,120 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+
+import io.github.lwcarani.sync.SyncManifest;
+import io.github.lwcarani.sync.TransferJournal;
+import io.github.lwcarani.transfer.MultipartCheckpoint;
+import io.github.lwcarani.transfer.TransferEngine;
+
+public class TransferJournalTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void testReplayAfterCrash_Success() throws Exception {
+		Path file = tempDir.resolve("transfer-journal.log");
+		TransferJournal journal = TransferJournal.open(file);
+		journal.filePushed(new SyncManifest.Entry("docs/a.txt", 3, 1000, "hash", "etag-a"));
+		MultipartCheckpoint checkpoint = journal.checkpoint("user/big.bin", 100, 2000);
+		checkpoint.started("upload-1", 5 * 1024 * 1024);
+		checkpoint.partUploaded("upload-1", new PartETag(1, "etag-part-1"));
+		journal.downloadStarted("video.mp4", "etag-video");
+		// The process dies mid-write, without closing the journal
+		Files.writeString(file, "pushed\t12\t", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+		TransferJournal replayed = TransferJournal.open(file);
+		SyncManifest manifest = new SyncManifest();
+		replayed.applyTo(manifest);
+		assertEquals(1, manifest.size());
+		assertEquals("etag-a", manifest.get("docs/a.txt").getETag());
+		assertEquals(1, replayed.getPushedEntries().size());
+		assertEquals("etag-video", replayed.getDownloadETag("video.mp4"));
+
+		// Only the same version of the file may resume the upload
+		assertNull(replayed.checkpoint("user/big.bin", 101, 2000).find());
+		MultipartCheckpoint.Upload upload = replayed.checkpoint("user/big.bin", 100, 2000).find();
+		assertNotNull(upload);
+		assertEquals("upload-1", upload.getUploadId());
+		assertEquals("etag-part-1", upload.getPartETags().get(1));
+
+		// Closing keeps only what can still be resumed
+		replayed.close();
+		TransferJournal compacted = TransferJournal.open(file);
+		SyncManifest empty = new SyncManifest();
+		compacted.applyTo(empty);
+		assertEquals(0, empty.size());
+		assertEquals(1, compacted.getUnresumedUploads().size());
+		compacted.uploadClosed("upload-1");
+		compacted.downloadDiscarded("video.mp4");
+		compacted.close();
+		assertFalse(Files.exists(file));
+	}
+
+	@Test
+	public void testResumeMultipartUpload_Success() throws Exception {
+		int partSize = 5 * 1024 * 1024;
+		byte[] content = new byte[4 * partSize + 100];
+		new Random(42).nextBytes(content);
+		Path localFile = tempDir.resolve("big.bin");
+		Files.write(localFile, content);
+		long lastModified = Files.getLastModifiedTime(localFile).toMillis();
+
+		// The connection drops after two parts
+		AtomicInteger partsUploaded = new AtomicInteger();
+		AtomicBoolean connected = new AtomicBoolean(true);
+		InMemoryS3 s3 = new InMemoryS3() {
+			@Override
+			protected void beforeRequest(String operation, String key) {
+				if (operation.equals("UploadPart") && partsUploaded.incrementAndGet() > 2 && !connected.get()) {
+					throw new AmazonS3Exception("Connection lost");
+				}
+			}
+		};
+		TransferEngine engine = new TransferEngine(s3, partSize, partSize, 1, 1, 0);
+		Path journalFile = tempDir.resolve("transfer-journal.log");
+		try {
+			TransferJournal journal = TransferJournal.open(journalFile);
+			connected.set(false);
+			assertThrows(AmazonS3Exception.class, () -> engine.upload("bucket", "user/big.bin", localFile,
+					new ObjectMetadata(), null, journal.checkpoint("user/big.bin", content.length, lastModified)));
+			journal.close();
+
+			// The next attempt only uploads the parts that are missing
+			connected.set(true);
+			partsUploaded.set(0);
+			TransferJournal resumed = TransferJournal.open(journalFile);
+			engine.upload("bucket", "user/big.bin", localFile, new ObjectMetadata(), null,
+					resumed.checkpoint("user/big.bin", content.length, lastModified));
+			resumed.close();
+
+			assertEquals(3, partsUploaded.get());
+			assertArrayEquals(content, s3.getObject("bucket", "user/big.bin").getObjectContent().readAllBytes());
+			assertTrue(TransferJournal.open(journalFile).getUnresumedUploads().isEmpty());
+		} finally {
+			engine.shutdown();
+		}
+	}
+}
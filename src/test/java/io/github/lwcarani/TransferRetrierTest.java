@@ -0,0 +1,126 @@
+package io.github.lwcarani;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.FileNotFoundException;
+import java.net.SocketException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+import io.github.lwcarani.transfer.TransferRetrier;
+
+public class TransferRetrierTest {
+
+	@Test
+	public void testTransientErrorsAreRetried_Success() throws Exception {
+		TransferRetrier retrier = new TransferRetrier(4, 1, 5, 0.1);
+		AtomicInteger attempts = new AtomicInteger();
+
+		String result = retrier.call(() -> {
+			switch (attempts.incrementAndGet()) {
+			case 1:
+				throw serviceError(500, "InternalError");
+			case 2:
+				throw new SdkClientException("Unable to execute HTTP request", new SocketException("Connection reset"));
+			case 3:
+				throw new SocketException("Connection reset"); // While reading a download
+			default:
+				return "etag";
+			}
+		});
+
+		assertEquals("etag", result);
+		assertEquals(4, attempts.get());
+	}
+
+	@Test
+	public void testPermanentErrorsAreNotRetried() {
+		TransferRetrier retrier = new TransferRetrier(4, 1, 5, 0.1);
+		AtomicInteger attempts = new AtomicInteger();
+
+		AmazonS3Exception denied = serviceError(403, "AccessDenied");
+		assertSame(denied, assertThrows(AmazonS3Exception.class, () -> retrier.get(() -> {
+			attempts.incrementAndGet();
+			throw denied;
+		})));
+		assertThrows(NoSuchFileException.class, () -> retrier.call(() -> {
+			attempts.incrementAndGet();
+			throw new NoSuchFileException("gone.txt");
+		}));
+		assertThrows(FileNotFoundException.class, () -> retrier.call(() -> {
+			attempts.incrementAndGet();
+			throw new FileNotFoundException("gone.txt (No such file or directory)");
+		}));
+		assertEquals(3, attempts.get());
+	}
+
+	@Test
+	public void testRetryBudgetRunsOut() {
+		TransferRetrier retrier = new TransferRetrier(2, 0, 0, 0.1);
+		AtomicInteger attempts = new AtomicInteger();
+
+		// With S3 down, the reserve of 100 retries is spent, then failures are final
+		for (int i = 0; i < 150; i++) {
+			assertThrows(AmazonS3Exception.class, () -> retrier.get(() -> {
+				attempts.incrementAndGet();
+				throw serviceError(503, "SlowDown");
+			}));
+		}
+		assertEquals(250, attempts.get());
+	}
+
+	@Test
+	public void testDeleteObjects_RetriesOnlyKeysThatFailedTransiently() {
+		TransferRetrier retrier = new TransferRetrier(4, 1, 5, 0.1);
+		List<List<String>> requests = new ArrayList<>();
+		// "busy" fails once with SlowDown, "locked" always with AccessDenied
+		InMemoryS3 s3 = new InMemoryS3() {
+			@Override
+			public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+				List<String> keys = request.getKeys().stream().map(KeyVersion::getKey).collect(Collectors.toList());
+				requests.add(keys);
+				List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+				for (String key : keys) {
+					if (key.equals("locked") || (key.equals("busy") && requests.size() == 1)) {
+						MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+						error.setKey(key);
+						error.setCode(key.equals("locked") ? "AccessDenied" : "SlowDown");
+						errors.add(error);
+					}
+				}
+				if (!errors.isEmpty()) {
+					throw new MultiObjectDeleteException(errors, List.of());
+				}
+				return new DeleteObjectsResult(List.of());
+			}
+		};
+
+		MultiObjectDeleteException e = assertThrows(MultiObjectDeleteException.class, () -> retrier.deleteObjects(s3,
+				new DeleteObjectsRequest("bucket").withKeys("a", "busy", "locked").withQuiet(true)));
+
+		assertEquals(List.of(List.of("a", "busy", "locked"), List.of("busy")), requests);
+		assertEquals(List.of("locked"), e.getErrors().stream().map(MultiObjectDeleteException.DeleteError::getKey)
+				.collect(Collectors.toList()));
+	}
+
+	private static AmazonS3Exception serviceError(int statusCode, String errorCode) {
+		AmazonS3Exception e = new AmazonS3Exception(errorCode);
+		e.setStatusCode(statusCode);
+		e.setErrorCode(errorCode);
+		return e;
+	}
+}